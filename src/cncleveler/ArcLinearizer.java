@@ -0,0 +1,395 @@
+package cncleveler;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Replaces arcs (G2/G3) in the XY plane (G17) with straight G1 chords, so that each vertex of the
+ * arc can be leveled, unless the probed surface under the arc is flat enough for the arc to be
+ * kept. A kept arc is leveled at its end point only, so the machine moves Z linearly along it (a
+ * helix).
+ *
+ * The number of chords is computed directly from the chord error: a chord spanning an angle phi
+ * on radius r is off the arc by r * (1 - cos(phi/2)), so an arc of angle theta needs
+ * ceil(theta / (2 * acos(1 - tolerance / r))) chords.
+ *
+ * Chords are emitted as G1 blocks, so a later block that moves without its own motion word is
+ * given the input program's motion mode (G2 or G3) again. The first chord keeps all the other
+ * words of the arc block. Only absolute (G90) arcs from a known position are replaced.
+ */
+public class ArcLinearizer implements StateSink
+{
+    private static final Logger logger = Logger.getLogger((Main.class.getName()));
+
+    /**
+     * Millimeters per inch, for programs in G20 units.
+     */
+    private static final double MM_PER_INCH = 25.4;
+
+    /**
+     * Arc angles closer than this (radians) to zero are treated as full circles, as GRBL does.
+     */
+    private static final double ANGLE_EPSILON = 5e-7;
+
+    /**
+     * The probe data the arcs should follow.
+     */
+    private final ProbeSurface surface;
+
+    /**
+     * The largest allowed distance (mm) between a chord and the arc it replaces.
+     */
+    private final double chordTolerance;
+
+    /**
+     * The largest allowed distance (mm) in Z between a kept arc and the surface under it.
+     */
+    private final double surfaceTolerance;
+
+    /**
+     * The largest distance (mm) between surface samples along an arc: half the smallest probe
+     * spacing, so every cell or triangle an arc passes through is sampled.
+     */
+    private final double sampleSpacing;
+
+    /**
+     * The next stage to receive states.
+     */
+    private final StateSink next;
+
+    /**
+     * The running modal state of the input program.
+     */
+    private final ModalResolver resolver = new ModalResolver();
+
+    /**
+     * The motion mode in effect in the output program, which is G1 after an arc is replaced.
+     */
+    private Mode outputMotion = null;
+
+    /* Statistics */
+    private int arcsKept = 0;
+    private int arcsReplaced = 0;
+    private int chords = 0;
+
+    /**
+     * Constructor
+     *
+     * @param surface the probe data the arcs should follow
+     * @param chordTolerance the largest allowed distance (mm) between a chord and the arc
+     * @param surfaceTolerance the largest allowed distance (mm) between a kept arc and the surface
+     * @param next the stage that receives each state
+     */
+    public ArcLinearizer(ProbeSurface surface, double chordTolerance, double surfaceTolerance, StateSink next)
+    {
+        this.surface = surface;
+        this.chordTolerance = chordTolerance;
+        this.surfaceTolerance = surfaceTolerance;
+        this.next = next;
+        this.sampleSpacing = surface.minSpacing() / 2;
+        logger.info("Replacing arcs with chords within " + chordTolerance + " mm");
+    }
+
+    /**
+     * Replaces the arcs of a list of states.
+     *
+     * @param states the program
+     * @param surface the probe data the arcs should follow
+     * @param chordTolerance the largest allowed distance (mm) between a chord and the arc
+     * @param surfaceTolerance the largest allowed distance (mm) between a kept arc and the surface
+     * @return a new list of states, sharing the input states (an arc that is replaced becomes its
+     *         first chord)
+     * @throws IOException never, as the list does no I/O
+     */
+    public static List<State> linearize(List<State> states, ProbeSurface surface, double chordTolerance,
+            double surfaceTolerance) throws IOException
+    {
+        List<State> result = new ArrayList<State>(states.size());
+        try (ArcLinearizer linearizer = new ArcLinearizer(surface, chordTolerance, surfaceTolerance, new StateSink()
+        {
+            public void accept(State state)
+            {
+                result.add(state);
+            }
+
+            public void close()
+            {
+            }
+        }))
+        {
+            for (State state : states)
+            {
+                linearizer.accept(state);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Replaces the arcs of a columnar program.
+     *
+     * @param program the program
+     * @param surface the probe data the arcs should follow
+     * @param chordTolerance the largest allowed distance (mm) between a chord and the arc
+     * @param surfaceTolerance the largest allowed distance (mm) between a kept arc and the surface
+     * @return a new columnar program
+     * @throws IOException never, as the program store does no I/O
+     */
+    public static ProgramStore linearize(ProgramStore program, ProbeSurface surface, double chordTolerance,
+            double surfaceTolerance) throws IOException
+    {
+        ProgramStore result = new ProgramStore(Config.offHeap);
+        try (ArcLinearizer linearizer = new ArcLinearizer(surface, chordTolerance, surfaceTolerance, result))
+        {
+            for (int block = 0; block < program.size(); block++)
+            {
+                linearizer.accept(program.getState(block));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Passes the state to the next stage, replaced by chords if it is an arc over a surface that is
+     * not flat enough.
+     *
+     * @param state the next block of the program
+     */
+    @Override
+    public void accept(State state) throws IOException
+    {
+        double x0 = resolver.x;
+        double y0 = resolver.y;
+        double z0 = resolver.z;
+        resolver.resolve(state);
+
+        boolean moves = state.hasPosition() && state.getGroup(Group.NON_MODAL) == null;
+        if (state.getGroup(Group.MOTION) != null)
+        {
+            outputMotion = resolver.motion;
+        }
+        else if (moves && outputMotion != resolver.motion)
+        {
+            // The output motion mode was changed by replacing an arc, so put the input mode back
+            state.setGroup(Group.MOTION, resolver.motion);
+            outputMotion = resolver.motion;
+        }
+
+        if (!moves || !isArc(state, x0, y0, z0))
+        {
+            next.accept(state);
+            return;
+        }
+
+        Arc arc = Arc.of(state, resolver.motion == Mode.CIRCULAR_CW, x0, y0, resolver.x, resolver.y);
+        if (arc == null)
+        {
+            logger.warning("Line " + state.lineNum + ": arc has no valid center, not leveled along its length");
+            next.accept(state);
+            return;
+        }
+
+        double scale = (resolver.units == Mode.INCHES) ? MM_PER_INCH : 1.0;
+        int n = chordCount(arc.angle, arc.radius * scale);
+        if (isFlat(arc, scale, n))
+        {
+            arcsKept++;
+            next.accept(state);
+            return;
+        }
+        arcsReplaced++;
+        chords += n;
+
+        boolean hasZ = state.getAxis(Axis.Z) != null;
+        double x1 = resolver.x;
+        double y1 = resolver.y;
+        double z1 = resolver.z;
+
+        // The first chord is the original block, the last chord ends exactly at the original end
+        State chord = state;
+        chord.setGroup(Group.MOTION, Mode.LINEAR);
+        chord.setAxis(Axis.I, null);
+        chord.setAxis(Axis.J, null);
+        chord.setAxis(Axis.K, null);
+        chord.setAxis(Axis.RADIUS, null);
+        outputMotion = Mode.LINEAR;
+        for (int k = 1; k <= n; k++)
+        {
+            if (k > 1)
+            {
+                chord = new State();
+                chord.lineNum = state.lineNum;
+            }
+            boolean last = (k == n);
+            double f = (double) k / n;
+            chord.setAxis(Axis.X, last ? x1 : arc.x(f));
+            chord.setAxis(Axis.Y, last ? y1 : arc.y(f));
+            if (hasZ) chord.setAxis(Axis.Z, last ? z1 : z0 + f * (z1 - z0));
+            next.accept(chord);
+        }
+    }
+
+    /**
+     * Logs the arc statistics and closes the next stage.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        logger.info("   " + arcsReplaced + " arcs replaced by " + chords + " chords, " + arcsKept + " arcs kept");
+        next.close();
+    }
+
+    /**
+     * Abandons the job: the next stage is aborted.
+     */
+    @Override
+    public void abort()
+    {
+        next.abort();
+    }
+
+    /**
+     * Returns the number of chords needed for an arc.
+     *
+     * @param angle the angle the arc sweeps (radians)
+     * @param radius the arc radius (mm)
+     */
+    protected int chordCount(double angle, double radius)
+    {
+        // Largest angle a chord may span, at most half a turn
+        double maxAngle = (chordTolerance >= radius) ? Math.PI : 2 * Math.acos(1 - chordTolerance / radius);
+        return Math.max(1, (int) Math.ceil(Math.abs(angle) / maxAngle));
+    }
+
+    /**
+     * Returns true if a helix along the arc, leveled only at its ends, stays within the surface
+     * tolerance. The surface is sampled at each chord vertex and midway between them, and at least
+     * twice per probe spacing.
+     */
+    private boolean isFlat(Arc arc, double scale, int n)
+    {
+        double length = Math.abs(arc.angle) * arc.radius * scale;
+        int samples = (int) Math.max(2 * n, Math.ceil(length / sampleSpacing));
+
+        double h0 = surface.getProbeHeight(arc.x(0) * scale, arc.y(0) * scale);
+        double h1 = surface.getProbeHeight(arc.x(1) * scale, arc.y(1) * scale);
+        for (int k = 1; k < samples; k++)
+        {
+            double f = (double) k / samples;
+            double h = surface.getProbeHeight(arc.x(f) * scale, arc.y(f) * scale);
+            if (Math.abs(h - (h0 + f * (h1 - h0))) > surfaceTolerance) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the block just resolved is an arc that can be replaced.
+     */
+    private boolean isArc(State state, double x0, double y0, double z0)
+    {
+        if (resolver.motion != Mode.CIRCULAR_CW && resolver.motion != Mode.CIRCULAR_CCW) return false;
+        if (resolver.plane != null && resolver.plane != Mode.XY_PLANE) return false;
+        if (resolver.distance == Mode.INCREMENTAL) return false;
+        if (Double.isNaN(x0) || Double.isNaN(y0) || Double.isNaN(resolver.x) || Double.isNaN(resolver.y)) return false;
+
+        // Chords of a helix need a starting Z
+        return (state.getAxis(Axis.Z) == null) || !Double.isNaN(z0);
+    }
+
+    /**
+     * The geometry of an arc in the XY plane. Also used by CycleTimeEstimator to split arcs as GRBL
+     * does.
+     */
+    static class Arc
+    {
+        /* Center */
+        final double cx;
+        final double cy;
+
+        final double radius;
+
+        /* Angle of the start point from the center, and the angle swept (negative for clockwise) */
+        final double start;
+        final double angle;
+
+        private Arc(double cx, double cy, double radius, double start, double angle)
+        {
+            this.cx = cx;
+            this.cy = cy;
+            this.radius = radius;
+            this.start = start;
+            this.angle = angle;
+        }
+
+        /**
+         * Returns the arc from (x0,y0) to (x1,y1) given by the I and J or R words of a block, or
+         * null if the block does not give a valid center. Follows the same rules as GRBL.
+         */
+        static Arc of(State state, boolean clockwise, double x0, double y0, double x1, double y1)
+        {
+            double cx;
+            double cy;
+            Double r = state.getAxis(Axis.RADIUS);
+            if (r != null)
+            {
+                // The center is on the perpendicular bisector of the chord, on the side given by
+                // the direction and the sign of R
+                double dx = x1 - x0;
+                double dy = y1 - y0;
+                double d = Math.hypot(dx, dy);
+                double h2 = 4 * r * r - d * d;
+                if (d == 0 || h2 < 0) return null;
+
+                double h = -Math.sqrt(h2) / d;
+                if (!clockwise) h = -h;
+                if (r < 0) h = -h;
+                cx = x0 + 0.5 * (dx - dy * h);
+                cy = y0 + 0.5 * (dy + dx * h);
+            }
+            else
+            {
+                Double i = state.getAxis(Axis.I);
+                Double j = state.getAxis(Axis.J);
+                if (i == null && j == null) return null;
+                cx = x0 + ((i != null) ? i : 0.0);
+                cy = y0 + ((j != null) ? j : 0.0);
+            }
+
+            double rx = x0 - cx;
+            double ry = y0 - cy;
+            double tx = x1 - cx;
+            double ty = y1 - cy;
+            double radius = Math.hypot(rx, ry);
+            if (radius == 0) return null;
+
+            double angle = Math.atan2(rx * ty - ry * tx, rx * tx + ry * ty);
+            if (clockwise)
+            {
+                if (angle >= -ANGLE_EPSILON) angle -= 2 * Math.PI;
+            }
+            else
+            {
+                if (angle <= ANGLE_EPSILON) angle += 2 * Math.PI;
+            }
+            return new Arc(cx, cy, radius, Math.atan2(ry, rx), angle);
+        }
+
+        /**
+         * Returns the X position at fraction f of the way along the arc.
+         */
+        double x(double f)
+        {
+            return cx + radius * Math.cos(start + f * angle);
+        }
+
+        /**
+         * Returns the Y position at fraction f of the way along the arc.
+         */
+        double y(double f)
+        {
+            return cy + radius * Math.sin(start + f * angle);
+        }
+    }
+}
@@ -0,0 +1,317 @@
+package cncleveler;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Writes a file on a background thread, so that formatting output and waiting for the disk (or a
+ * network share) overlap.
+ *
+ * Bytes are collected in one of two direct buffers. When it is full it is handed to the drain
+ * thread, which writes it to the file while the other buffer is filled. The file is written under
+ * a temporary name in the same directory. close() waits for every write, forces the data to disk
+ * and then moves the file to its real name, so a reader never sees a partial file. If any write
+ * fails, the exception is thrown to the caller from the next write(), transferFrom() or close(),
+ * and the temporary file is deleted.
+ *
+ * An AsyncChannelWriter is used from one thread, apart from its own drain thread.
+ */
+public class AsyncChannelWriter implements Closeable
+{
+    /**
+     * Size of each buffer.
+     */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * The file to create.
+     */
+    private final Path target;
+
+    /**
+     * The temporary file that is written, and moved to target on close.
+     */
+    private final Path temp;
+
+    /**
+     * The temporary file, open for writing.
+     */
+    private final FileChannel channel;
+
+    /**
+     * The drain thread. Tasks run one at a time in the order submitted, so writes stay in order.
+     */
+    private final ExecutorService drain;
+
+    /**
+     * The two buffers, and the last write task submitted for each. A buffer is reused only after
+     * its task is done.
+     */
+    private final ByteBuffer[] buffers = new ByteBuffer[2];
+    private final Future<?>[] writes = new Future<?>[2];
+
+    /**
+     * The task submitted last.
+     */
+    private Future<?> last = null;
+
+    /**
+     * The first exception thrown by a drain task. Once set, later tasks do nothing.
+     */
+    private volatile Throwable failure = null;
+
+    /**
+     * Index of the buffer being filled.
+     */
+    private int fill = 0;
+
+    /**
+     * True once the file has been closed or abandoned.
+     */
+    private boolean closed = false;
+
+    /**
+     * Constructor, which creates the temporary file and starts the drain thread.
+     *
+     * @param target the file to write
+     * @throws IOException if the temporary file can't be created
+     */
+    public AsyncChannelWriter(Path target) throws IOException
+    {
+        this.target = target;
+        Path dir = target.toAbsolutePath().getParent();
+        // A new file with the usual permissions; createTempFile() would make it private to the owner
+        temp = dir.resolve(target.getFileName() + "." + Long.toHexString(ThreadLocalRandom.current().nextLong())
+                + ".tmp");
+        channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+
+        buffers[0] = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        buffers[1] = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        drain = Executors.newSingleThreadExecutor(r ->
+        {
+            Thread t = new Thread(r, "Writer " + target.getFileName());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Writes bytes from an array.
+     *
+     * @param src the array holding the bytes
+     * @param offset the index of the first byte to write
+     * @param length the number of bytes to write
+     * @throws IOException if an earlier write failed
+     */
+    public void write(byte[] src, int offset, int length) throws IOException
+    {
+        checkOpen();
+        while (length > 0)
+        {
+            ByteBuffer buffer = buffers[fill];
+            int n = Math.min(length, buffer.remaining());
+            buffer.put(src, offset, n);
+            offset += n;
+            length -= n;
+            if (!buffer.hasRemaining()) swap();
+        }
+    }
+
+    /**
+     * Copies a range of another file to this one, after the bytes already written. The copy is
+     * done by the drain thread with FileChannel.transferTo().
+     *
+     * @param source the file to copy from, which must stay open until this writer is closed
+     * @param position the position in the source of the first byte to copy
+     * @param count the number of bytes to copy
+     * @throws IOException if an earlier write failed
+     */
+    public void transferFrom(FileChannel source, long position, long count) throws IOException
+    {
+        checkOpen();
+        if (buffers[fill].position() > 0) swap();
+        submit(() ->
+        {
+            for (long done = 0; done < count;)
+            {
+                long n = source.transferTo(position + done, count - done, channel);
+                if (n <= 0) throw new IOException("Source file is shorter than expected");
+                done += n;
+            }
+        });
+    }
+
+    /**
+     * Writes the remaining bytes, forces them to disk and moves the file to its real name. If
+     * anything fails the temporary file is deleted and the exception is thrown.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if (closed) return;
+        boolean done = false;
+        try
+        {
+            if (buffers[fill].position() > 0) swap();
+            await(last);
+            checkFailure();
+            channel.force(true);
+            channel.close();
+            move();
+            done = true;
+        }
+        finally
+        {
+            closed = true;
+            drain.shutdownNow();
+            if (!done) discard();
+        }
+    }
+
+    /**
+     * Abandons the file: stops writing and deletes the temporary file, leaving any existing file
+     * at the target name untouched.
+     */
+    public void abort()
+    {
+        if (closed) return;
+        closed = true;
+        drain.shutdownNow();
+        discard();
+    }
+
+    /**
+     * Hands the buffer being filled to the drain thread, and waits until the other buffer is free.
+     */
+    private void swap() throws IOException
+    {
+        ByteBuffer buffer = buffers[fill];
+        buffer.flip();
+        writes[fill] = submit(() ->
+        {
+            while (buffer.hasRemaining())
+            {
+                channel.write(buffer);
+            }
+        });
+
+        fill ^= 1;
+        await(writes[fill]);
+        buffers[fill].clear();
+    }
+
+    /**
+     * A write to run on the drain thread.
+     */
+    private interface Task
+    {
+        void run() throws IOException;
+    }
+
+    /**
+     * Submits a task to the drain thread. The task is skipped if an earlier one failed.
+     */
+    private Future<?> submit(Task task)
+    {
+        last = drain.submit(() ->
+        {
+            if (failure != null) return;
+            try
+            {
+                task.run();
+            }
+            catch (Throwable ex)
+            {
+                failure = ex;
+            }
+        });
+        return last;
+    }
+
+    /**
+     * Throws if the file is closed or a drain task has failed.
+     */
+    private void checkOpen() throws IOException
+    {
+        if (closed) throw new IOException("Output file is closed: " + target);
+        checkFailure();
+    }
+
+    /**
+     * Throws the exception of the drain task that failed, if any.
+     */
+    private void checkFailure() throws IOException
+    {
+        Throwable ex = failure;
+        if (ex == null) return;
+        if (ex instanceof IOException) throw (IOException) ex;
+        throw new IOException("Error writing " + target, ex);
+    }
+
+    /**
+     * Waits for a task to finish.
+     */
+    private static void await(Future<?> task) throws IOException
+    {
+        if (task == null) return;
+        try
+        {
+            task.get();
+        }
+        catch (ExecutionException ex)
+        {
+            // Tasks catch their own exceptions, so this is not expected
+            throw new IOException("Error writing output", ex.getCause());
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted writing output");
+        }
+    }
+
+    /**
+     * Moves the temporary file to the target name, atomically where the file system allows.
+     */
+    private void move() throws IOException
+    {
+        try
+        {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (AtomicMoveNotSupportedException ex)
+        {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Closes and deletes the temporary file, ignoring errors as another exception is usually
+     * being thrown.
+     */
+    private void discard()
+    {
+        try
+        {
+            channel.close();
+            Files.deleteIfExists(temp);
+        }
+        catch (IOException ex)
+        {
+            // nothing more can be done
+        }
+    }
+}
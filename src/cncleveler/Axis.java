@@ -36,6 +36,19 @@ public enum Axis
     TOOL('T', false);
     
 
+    /**
+     * Dispatch table indexed by (7-bit ASCII) letter. Null entries are unsupported letters.
+     */
+    private static final Axis[] BY_LETTER = new Axis[128];
+
+    static
+    {
+        for (Axis a : values())
+        {
+            BY_LETTER[a.letter] = a;
+        }
+    }
+
     private final char letter;
     private final boolean modal;
 
@@ -68,11 +81,7 @@ public enum Axis
      */
     public static Axis find(char letter)
     {
-        for (Axis a : Axis.values())
-        {
-            if(a.letter() == letter) return a;
-        }
-        return null;
+        return (letter < BY_LETTER.length) ? BY_LETTER[letter] : null;
     }
 
 }
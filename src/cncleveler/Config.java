@@ -1,5 +1,7 @@
 package cncleveler;
 
+import java.util.EnumMap;
+
 /**
  * Defines the offset of the probe data in machine coordinates to work coordinates coordinates. This should be taken from the G54-G59 or G28, G30 settings.
  *
@@ -17,4 +19,121 @@ public class Config
 {
     /* Setting for probe-results-4.txt */
     public static Point3 probe_offset = new Point3( -272.5, -152.0, 0.0);
+
+    /* True to parse, level and write each block in a single pass with constant memory, instead of parsing the
+       whole program first. The output is the same either way. */
+    public static boolean streaming = false;
+
+    /* True to parse the G code file on all available cores */
+    public static boolean parallelParse = false;
+
+    /* True to hold the parsed program in a columnar ProgramStore instead of a List of States */
+    public static boolean columnar = false;
+
+    /* True to keep the columnar program outside the Java heap */
+    public static boolean offHeap = false;
+
+    /* True to cache the parsed columnar program as a binary image and reuse it while the G code is unchanged */
+    public static boolean useCache = true;
+
+    /* Directory for cached program images, or null to keep them next to the G code file */
+    public static String cacheDir = null;
+
+    /* Number of (X,Y) positions whose probe heights are remembered while leveling, or 0 to always interpolate */
+    public static int interpolationCacheSize = 1 << 16;
+
+    /* Resolution (mm) that remembered (X,Y) positions are quantized to; matches the 3 decimals written */
+    public static double interpolationResolution = 0.001;
+
+    /* Largest distance (mm) a G1 move may stray from the probed surface before it is split, or 0 to never split */
+    public static double subdivideTolerance = 0.0;
+
+    /* Largest distance (mm) between an arc and the chords that replace it, or 0 to never replace arcs. Arcs
+       that stay within arcFlatnessTolerance of the probed surface are kept. */
+    public static double arcTolerance = 0.0;
+
+    /* Largest distance (mm) between the probed surface and a kept arc, which is leveled at its ends only */
+    public static double arcFlatnessTolerance = 0.01;
+
+    /* Largest distance (mm) between the leveled moves and the simplified output path, or 0 to write every move */
+    public static double simplifyTolerance = 0.0;
+
+    /* True to leave out words that repeat the modal state already written (G1, F, unchanged X/Y ...) */
+    public static boolean compactOutput = false;
+
+    /* True to leave comments out of the written G code */
+    public static boolean stripComments = false;
+
+    /* True to leave line numbers (N words) out of the written G code */
+    public static boolean stripLineNumbers = false;
+
+    /* Decimal places written for each axis or parameter word in compact output; words not listed get 3 */
+    public static EnumMap<Axis, Integer> outputDecimals = new EnumMap<>(Axis.class);
+    static
+    {
+        outputDecimals.put(Axis.FEED, 1);
+        outputDecimals.put(Axis.SPEED, 0);
+    }
+
+    /* True to copy lines from the input file verbatim and only splice in the leveled Z, keeping the CAM
+       formatting. Lines whose other words were changed (split moves, replaced arcs) are written in full.
+       Overrides compactOutput, stripComments and stripLineNumbers; not available for columnar programs. */
+    public static boolean minimalEdit = false;
+
+    /* True to run each stage of a streaming job (arcs, subdivision, leveling, simplification, writing) on its
+       own thread, connected by bounded queues. Ignored on a single processor. */
+    public static boolean pipelined = false;
+
+    /* Number of blocks passed between pipeline stages at a time */
+    public static int pipelineBatchSize = 256;
+
+    /* Number of batches that can wait in each pipeline queue; rounded up to a power of two */
+    public static int pipelineQueueSize = 16;
+
+    /* Serial port to stream the leveled program straight to GRBL on, instead of writing gcode_leveled.nc, or
+       null. The port must already be set up, e.g. "stty -F /dev/ttyUSB0 115200 raw -echo". "simulator" streams
+       to a GrblSimulator in this process. Sending always streams, whatever Config.streaming says. */
+    public static String grblPort = null;
+
+    /* Time the GRBL simulator takes to accept each block (microseconds) */
+    public static int grblSimulatorBlockMicros = 500;
+
+    /* True to estimate how long GRBL takes to run the program, before and after leveling */
+    public static boolean estimateCycleTime = false;
+
+    /* GRBL console log of "$$" with the machine's rates and accelerations, for the cycle time estimate */
+    public static String grblSettings = "grbl-1.1f-settings-on-Mega.txt";
+
+    /* Number of moves GRBL's planner looks ahead over: 15 for GRBL on an Uno, 35 for grbl-Mega */
+    public static int plannerBlocks = 35;
+
+    /* File to write a probe program to, covering the cutting moves of gcode.nc, instead of leveling; or null */
+    public static String probeProgram = null;
+
+    /* Spacing (mm) of the points of a generated probe program */
+    public static double probePitch = 10.0;
+
+    /* Distance (mm) around the cutting moves that a generated probe program covers */
+    public static double probeMargin = 2.0;
+
+    /* Clearance height, probe depth and probe feed rate of a generated probe program, as in the hand-written
+       program used for probe-results-4.txt */
+    public static double probeClearanceZ = -15.0;
+    public static double probeDepthZ = -25.0;
+    public static double probeFeed = 50.0;
+
+    /* GRBL log of follow-up probes (from a refinement probe program) to add to the probe grid, or null */
+    public static String refinementProbes = null;
+
+    /* File to write a probe program to that refines the probe grid where its estimated error is above
+       refineTolerance, or null */
+    public static String refineProgram = null;
+
+    /* Largest estimated interpolation error (mm) of a probe grid cell before it is refined */
+    public static double refineTolerance = 0.01;
+
+    /* True to level from a Delaunay triangulation of the probes, which need not form a lattice, instead of a
+       probe grid. Moves are subdivided along the triangle edges. Refinement and the plot need a probe grid and
+       are skipped */
+    public static boolean delaunaySurface = false;
 }
@@ -0,0 +1,602 @@
+package cncleveler;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Estimates how long GRBL takes to run a program, by running its moves through a model of GRBL's
+ * planner.
+ *
+ * Each move is limited by the feed rate and by the maximum rate and acceleration of the axes it
+ * moves ($110-$112, $120-$122). The speed through the corner between two moves is limited by
+ * GRBL's junction deviation rule ($11). The planner looks ahead over a buffer of moves: a backward
+ * pass limits each move's entry speed so the machine can stop by the end of the buffer, and a
+ * forward pass limits it to what can be reached by accelerating from the previous move. When the
+ * buffer is full the oldest move is run with a trapezoidal (or triangular) speed profile, from its
+ * planned entry speed to the next move's. Arcs are split into segments with the arc tolerance ($12)
+ * as GRBL does. Spindle, coolant, stop and non-modal commands make GRBL finish the buffered moves
+ * first, and a dwell (G4) adds its time.
+ *
+ * The time is reported for each section of the program (started by a comment-only line such as
+ * "( Contour )", or by a tool change) and in total. Each move costs a few operations per buffered
+ * move, so a million-block program is estimated in about the time it takes to parse.
+ *
+ * A CycleTimeEstimator is a StateSink stage that passes each state on unchanged, so it can be put
+ * anywhere in a streaming chain, or be the end of one.
+ */
+public class CycleTimeEstimator implements StateSink
+{
+    private static final Logger logger = Logger.getLogger((Main.class.getName()));
+
+    private static final Group[] GROUPS = Group.values();
+    private static final Axis[] AXES = Axis.values();
+
+    /**
+     * Millimeters per inch, for programs in G20 units.
+     */
+    private static final double MM_PER_INCH = 25.4;
+
+    /**
+     * Moves shorter than this (mm) are dropped, as GRBL does.
+     */
+    private static final double MIN_LENGTH = 1e-6;
+
+    /**
+     * The slowest feed rate GRBL moves at (mm/sec).
+     */
+    private static final double MIN_FEED = 1.0 / 60;
+
+    /**
+     * Junctions closer than this to straight (or to a full reversal) are not limited (or stop).
+     */
+    private static final double COS_LIMIT = 0.999999;
+
+    /**
+     * The time spent in one section of the program.
+     */
+    private static class Section
+    {
+        String name;
+        double seconds = 0;
+        int moves = 0;
+
+        Section(String name)
+        {
+            this.name = name;
+        }
+    }
+
+    /**
+     * Name of the estimate in the log, such as "input".
+     */
+    private final String name;
+
+    /**
+     * Machine limits. Rates in mm/sec and accelerations in mm/sec^2.
+     */
+    private final double[] maxRate = new double[3];
+    private final double[] maxAccel = new double[3];
+    private final double junctionDeviation;
+    private final double arcTolerance;
+
+    /**
+     * The stage that receives each state, or null if none.
+     */
+    private final StateSink next;
+
+    private final ModalResolver resolver = new ModalResolver();
+    private Mode rateMode = Mode.FEED_PER_MIN;
+
+    /**
+     * The planner buffer, a ring of moves oldest first: length (mm), acceleration, squared nominal
+     * speed, squared maximum entry speed, squared planned entry speed and section.
+     */
+    private final double[] lengths;
+    private final double[] accels;
+    private final double[] nominalSqrs;
+    private final double[] maxEntrySqrs;
+    private final double[] entrySqrs;
+    private final Section[] sections;
+    private int oldest = 0;
+    private int count = 0;
+
+    /**
+     * Unit vector and squared nominal speed of the last move planned.
+     */
+    private double prevUx = 0;
+    private double prevUy = 0;
+    private double prevUz = 0;
+    private double prevNominalSqr = 0;
+
+    /**
+     * True when the machine is stopped with nothing planned, so the next move starts from rest.
+     */
+    private boolean stopped = true;
+
+    private final List<Section> sectionList = new ArrayList<Section>();
+    private Section section = new Section("Start");
+
+    /* Statistics */
+    private double totalSeconds = 0;
+    private int moves = 0;
+    private int untimedMoves = 0;
+
+    /**
+     * Constructor, with the planner buffer size from Config.
+     *
+     * @param name the name of the estimate in the log
+     * @param settings the machine's GRBL settings
+     * @param next the stage that receives each state, or null if none
+     */
+    public CycleTimeEstimator(String name, GrblSettings settings, StateSink next)
+    {
+        this(name, settings, Config.plannerBlocks, next);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param name the name of the estimate in the log
+     * @param settings the machine's GRBL settings
+     * @param plannerBlocks the number of moves GRBL's planner looks ahead over
+     * @param next the stage that receives each state, or null if none
+     */
+    public CycleTimeEstimator(String name, GrblSettings settings, int plannerBlocks, StateSink next)
+    {
+        this.name = name;
+        this.next = next;
+        for (int i = 0; i < 3; i++)
+        {
+            maxRate[i] = settings.maxRate[i] / 60;
+            maxAccel[i] = settings.acceleration[i];
+        }
+        junctionDeviation = settings.junctionDeviation;
+        arcTolerance = settings.arcTolerance;
+
+        int size = Math.max(plannerBlocks, 1);
+        lengths = new double[size];
+        accels = new double[size];
+        nominalSqrs = new double[size];
+        maxEntrySqrs = new double[size];
+        entrySqrs = new double[size];
+        sections = new Section[size];
+        sectionList.add(section);
+    }
+
+    /**
+     * Estimates the run time of a G code file.
+     *
+     * @param name the name of the estimate in the log
+     * @param filename the G code file
+     * @param settings the machine's GRBL settings
+     * @return the estimated time in seconds
+     * @throws IOException on IO errors
+     */
+    public static double estimate(String name, String filename, GrblSettings settings) throws IOException
+    {
+        CycleTimeEstimator estimator = new CycleTimeEstimator(name, settings, null);
+        try (StateSink sink = estimator)
+        {
+            GCodeParser parser = new GCodeParser();
+            parser.keepOriginalText = false;
+            parser.read(filename, sink);
+        }
+        return estimator.totalSeconds;
+    }
+
+    /**
+     * Estimates the run time of a list of states.
+     *
+     * @param name the name of the estimate in the log
+     * @param states the program
+     * @param settings the machine's GRBL settings
+     * @return the estimated time in seconds
+     */
+    public static double estimate(String name, List<State> states, GrblSettings settings)
+    {
+        CycleTimeEstimator estimator = new CycleTimeEstimator(name, settings, null);
+        for (State state : states)
+        {
+            estimator.estimate(state);
+        }
+        estimator.finish();
+        return estimator.totalSeconds;
+    }
+
+    /**
+     * Estimates the run time of a columnar program.
+     *
+     * @param name the name of the estimate in the log
+     * @param program the program
+     * @param settings the machine's GRBL settings
+     * @return the estimated time in seconds
+     */
+    public static double estimate(String name, ProgramStore program, GrblSettings settings)
+    {
+        CycleTimeEstimator estimator = new CycleTimeEstimator(name, settings, null);
+        int n = program.size();
+        for (int i = 0; i < n; i++)
+        {
+            estimator.estimate(program.getState(i));
+        }
+        estimator.finish();
+        return estimator.totalSeconds;
+    }
+
+    /**
+     * Adds the state to the estimate and passes it to the next stage.
+     *
+     * @param state the next block of the program
+     */
+    @Override
+    public void accept(State state) throws IOException
+    {
+        estimate(state);
+        if (next != null) next.accept(state);
+    }
+
+    /**
+     * Runs the moves left in the planner, logs the estimate and closes the next stage.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        finish();
+        if (next != null) next.close();
+    }
+
+    /**
+     * Abandons the job: the next stage is aborted.
+     */
+    @Override
+    public void abort()
+    {
+        if (next != null) next.abort();
+    }
+
+    /**
+     * Returns the estimated time so far, in seconds. Moves still in the planner are not included
+     * until the program is finished.
+     */
+    public double totalSeconds()
+    {
+        return totalSeconds;
+    }
+
+    /**
+     * Adds a block to the estimate.
+     */
+    private void estimate(State state)
+    {
+        Mode nonModal = state.getGroup(Group.NON_MODAL);
+        if (nonModal == null && !state.hasPosition() && state.getComment() != null && isCommentOnly(state))
+        {
+            startSection(state.getComment());
+            return;
+        }
+        Double tool = state.getAxis(Axis.TOOL);
+        if (tool != null) startSection("T" + tool.intValue());
+
+        Mode m = state.getGroup(Group.RATE_MODE);
+        if (m != null) rateMode = m;
+
+        double x0 = resolver.x;
+        double y0 = resolver.y;
+        double z0 = resolver.z;
+        resolver.resolve(state);
+
+        // GRBL finishes the buffered moves before these take effect
+        if (nonModal != null || state.getGroup(Group.SPINDLE) != null || state.getGroup(Group.COOLANT) != null
+                || state.getGroup(Group.STOPPING) != null || state.getAxis(Axis.SPEED) != null)
+        {
+            synchronize();
+        }
+        if (nonModal == Mode.DWELL)
+        {
+            Double p = state.getAxis(Axis.PARAM);
+            if (p != null) addTime(section, p);
+        }
+        if (nonModal != null || !state.hasPosition() || resolver.motion == null) return;
+
+        double x1 = resolver.x;
+        double y1 = resolver.y;
+        double z1 = resolver.z;
+        boolean rapid = (resolver.motion == Mode.RAPID);
+        if (Double.isNaN(x0 + y0 + z0 + x1 + y1 + z1) || (!rapid && Double.isNaN(resolver.feed)))
+        {
+            // Moves from an unknown position, or without a feed rate, can't be timed
+            untimedMoves++;
+            return;
+        }
+
+        double scale = (resolver.units == Mode.INCHES) ? MM_PER_INCH : 1.0;
+        boolean arc = (resolver.motion == Mode.CIRCULAR_CW || resolver.motion == Mode.CIRCULAR_CCW)
+                && (resolver.plane == null || resolver.plane == Mode.XY_PLANE);
+        ArcLinearizer.Arc geometry = arc
+                ? ArcLinearizer.Arc.of(state, resolver.motion == Mode.CIRCULAR_CW, x0, y0, x1, y1)
+                : null;
+
+        if (geometry == null)
+        {
+            // Arcs in the XZ and YZ planes are timed as straight lines
+            double length = scale * Math.sqrt(sq(x1 - x0) + sq(y1 - y0) + sq(z1 - z0));
+            plan(scale * (x1 - x0), scale * (y1 - y0), scale * (z1 - z0), feed(rapid, length, scale));
+        }
+        else
+        {
+            double radius = geometry.radius * scale;
+            double arcLength = Math.abs(geometry.angle) * radius;
+            double length = Math.hypot(arcLength, scale * (z1 - z0));
+            double feed = feed(false, length, scale);
+
+            // GRBL's number of segments for the arc tolerance, floor(0.5 * angle * r / sqrt(tol * (2r - tol)))
+            int n = (int) Math.floor(0.5 * arcLength / Math.sqrt(arcTolerance * (2 * radius - arcTolerance)));
+            n = Math.max(n, 1);
+            double px = x0;
+            double py = y0;
+            double pz = z0;
+            for (int i = 1; i <= n; i++)
+            {
+                double f = (double) i / n;
+                double x = (i == n) ? x1 : geometry.x(f);
+                double y = (i == n) ? y1 : geometry.y(f);
+                double z = z0 + f * (z1 - z0);
+                plan(scale * (x - px), scale * (y - py), scale * (z - pz), feed);
+                px = x;
+                py = y;
+                pz = z;
+            }
+        }
+        moves++;
+        section.moves++;
+    }
+
+    /**
+     * Returns the programmed speed of a move in mm/sec: infinite for a rapid move, so only the axis
+     * limits apply, and the whole move's length over its time in inverse time (G93) mode.
+     */
+    private double feed(boolean rapid, double length, double scale)
+    {
+        if (rapid) return Double.POSITIVE_INFINITY;
+        double feed = (rateMode == Mode.STROKES_PER_MIN) ? length * resolver.feed / 60
+                : resolver.feed * scale / 60;
+        return Math.max(feed, MIN_FEED);
+    }
+
+    /**
+     * Adds a straight move to the planner buffer, running the oldest move if the buffer is full,
+     * and plans the buffered moves again.
+     *
+     * @param dx the X distance (mm)
+     * @param dy the Y distance (mm)
+     * @param dz the Z distance (mm)
+     * @param feed the programmed speed (mm/sec)
+     */
+    private void plan(double dx, double dy, double dz, double feed)
+    {
+        double length = Math.sqrt(dx * dx + dy * dy + dz * dz);
+        if (length < MIN_LENGTH) return;
+        double ux = dx / length;
+        double uy = dy / length;
+        double uz = dz / length;
+
+        double nominal = Math.min(feed, limit(maxRate, ux, uy, uz));
+        double nominalSqr = nominal * nominal;
+        double accel = limit(maxAccel, ux, uy, uz);
+
+        double maxEntrySqr = 0;
+        if (!stopped)
+        {
+            // GRBL's junction deviation: the speed at which the centripetal acceleration of a
+            // circle through the corner, deviating by junctionDeviation from it, reaches the limit
+            double cos = -(prevUx * ux + prevUy * uy + prevUz * uz);
+            double junctionSqr;
+            if (cos > COS_LIMIT)
+            {
+                junctionSqr = 0;
+            }
+            else if (cos < -COS_LIMIT)
+            {
+                junctionSqr = Double.POSITIVE_INFINITY;
+            }
+            else
+            {
+                double jx = ux - prevUx;
+                double jy = uy - prevUy;
+                double jz = uz - prevUz;
+                double jl = Math.sqrt(jx * jx + jy * jy + jz * jz);
+                double junctionAccel = limit(maxAccel, jx / jl, jy / jl, jz / jl);
+                double sinHalf = Math.sqrt(0.5 * (1.0 - cos));
+                junctionSqr = junctionAccel * junctionDeviation * sinHalf / (1.0 - sinHalf);
+            }
+            maxEntrySqr = Math.min(junctionSqr, Math.min(nominalSqr, prevNominalSqr));
+        }
+
+        if (count == lengths.length) runOldest();
+
+        int i = (oldest + count) % lengths.length;
+        lengths[i] = length;
+        accels[i] = accel;
+        nominalSqrs[i] = nominalSqr;
+        maxEntrySqrs[i] = maxEntrySqr;
+        entrySqrs[i] = maxEntrySqr;
+        sections[i] = section;
+        count++;
+
+        prevUx = ux;
+        prevUy = uy;
+        prevUz = uz;
+        prevNominalSqr = nominalSqr;
+        stopped = false;
+
+        recalculate();
+    }
+
+    /**
+     * Plans the entry speed of each buffered move after the oldest, which is already running: a
+     * backward pass so the last move can stop, then a forward pass so each entry speed can be
+     * reached from the one before.
+     */
+    private void recalculate()
+    {
+        int size = lengths.length;
+        double nextEntrySqr = 0;
+        for (int k = count - 1; k >= 1; k--)
+        {
+            int i = (oldest + k) % size;
+            double entrySqr = Math.min(maxEntrySqrs[i], nextEntrySqr + 2 * accels[i] * lengths[i]);
+            entrySqrs[i] = entrySqr;
+            nextEntrySqr = entrySqr;
+        }
+        for (int k = 1; k < count; k++)
+        {
+            int i = (oldest + k) % size;
+            int prev = (oldest + k - 1) % size;
+            double reachableSqr = entrySqrs[prev] + 2 * accels[prev] * lengths[prev];
+            if (entrySqrs[i] > reachableSqr) entrySqrs[i] = reachableSqr;
+        }
+    }
+
+    /**
+     * Runs the oldest buffered move, from its entry speed to the next move's (or to a stop), and
+     * adds its time to its section.
+     */
+    private void runOldest()
+    {
+        int i = oldest;
+        double exitSqr = (count > 1) ? entrySqrs[(oldest + 1) % lengths.length] : 0;
+        addTime(sections[i], profileTime(lengths[i], accels[i], nominalSqrs[i], entrySqrs[i], exitSqr));
+        sections[i] = null;
+        oldest = (oldest + 1) % lengths.length;
+        count--;
+    }
+
+    /**
+     * Runs every buffered move, leaving the machine stopped.
+     */
+    private void synchronize()
+    {
+        while (count > 0)
+        {
+            runOldest();
+        }
+        stopped = true;
+    }
+
+    /**
+     * Returns the time (s) to move a distance accelerating from the entry speed towards the nominal
+     * speed and decelerating to the exit speed: a trapezoid if the nominal speed is reached, else
+     * a triangle.
+     */
+    private static double profileTime(double length, double accel, double nominalSqr, double entrySqr,
+            double exitSqr)
+    {
+        double entry = Math.sqrt(entrySqr);
+        double exit = Math.sqrt(exitSqr);
+        double accelLength = (nominalSqr - entrySqr) / (2 * accel);
+        double decelLength = (nominalSqr - exitSqr) / (2 * accel);
+        if (accelLength + decelLength <= length)
+        {
+            double nominal = Math.sqrt(nominalSqr);
+            return (nominal - entry) / accel + (nominal - exit) / accel
+                    + (length - accelLength - decelLength) / nominal;
+        }
+        double peak = Math.sqrt(Math.max((2 * accel * length + entrySqr + exitSqr) / 2, Math.max(entrySqr, exitSqr)));
+        return (peak - entry) / accel + (peak - exit) / accel;
+    }
+
+    /**
+     * Returns the largest value along a unit vector that keeps each axis within its limit, as
+     * GRBL's limit_value_by_axis_maximum() does.
+     */
+    private static double limit(double[] max, double ux, double uy, double uz)
+    {
+        double value = Double.POSITIVE_INFINITY;
+        if (ux != 0) value = Math.min(value, Math.abs(max[0] / ux));
+        if (uy != 0) value = Math.min(value, Math.abs(max[1] / uy));
+        if (uz != 0) value = Math.min(value, Math.abs(max[2] / uz));
+        return value;
+    }
+
+    /**
+     * Adds time to a section and the total.
+     */
+    private void addTime(Section s, double seconds)
+    {
+        s.seconds += seconds;
+        totalSeconds += seconds;
+    }
+
+    /**
+     * Starts a new section of the program, or renames the current one if it has no moves yet.
+     */
+    private void startSection(String comment)
+    {
+        String text = comment.trim();
+        if (text.startsWith("(") && text.endsWith(")")) text = text.substring(1, text.length() - 1).trim();
+        if (text.startsWith(";")) text = text.substring(1).trim();
+        if (text.isEmpty()) return;
+
+        if (section.moves == 0 && section.seconds == 0)
+        {
+            section.name = text;
+        }
+        else
+        {
+            section = new Section(text);
+            sectionList.add(section);
+        }
+    }
+
+    /**
+     * Runs the moves left in the planner and logs the estimate.
+     */
+    private void finish()
+    {
+        synchronize();
+        logger.info(String.format("   Estimated %s cycle time: %s for %d moves", name, formatTime(totalSeconds), moves));
+        for (Section s : sectionList)
+        {
+            if (s.moves > 0 || s.seconds > 0)
+            {
+                logger.info(String.format("      %s: %s for %d moves", s.name, formatTime(s.seconds), s.moves));
+            }
+        }
+        if (untimedMoves > 0)
+        {
+            logger.info("   " + untimedMoves + " moves from an unknown position or without a feed rate were not timed");
+        }
+    }
+
+    /**
+     * Returns true if the state has nothing but a comment.
+     */
+    private static boolean isCommentOnly(State state)
+    {
+        for (Group g : GROUPS)
+        {
+            if (state.getGroup(g) != null) return false;
+        }
+        for (Axis a : AXES)
+        {
+            if (state.getAxis(a) != null) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Formats a time as h:mm:ss.s.
+     */
+    private static String formatTime(double seconds)
+    {
+        long tenths = Math.round(seconds * 10);
+        return String.format("%d:%02d:%02d.%d", tenths / 36000, (tenths / 600) % 60, (tenths / 10) % 60, tenths % 10);
+    }
+
+    private static double sq(double v)
+    {
+        return v * v;
+    }
+}
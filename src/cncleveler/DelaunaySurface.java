@@ -0,0 +1,964 @@
+package cncleveler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.DoubleConsumer;
+import java.util.logging.Logger;
+
+/**
+ * A probe surface made from probes at any positions, not just on a lattice. The probes are joined
+ * into a Delaunay triangulation (no probe lies inside the circumcircle of a triangle, which avoids
+ * long thin triangles where it can) and the height is interpolated linearly within each triangle
+ * from the barycentric weights of its corners.
+ *
+ * As with ProbeGrid, the (X,Y) values are offset by the work coordinate offset, and Z is offset so
+ * that Z=0 at (X,Y) = (0,0). Outside the probed area (the convex hull of the probes) the height is
+ * that of the nearest point of its boundary. The enclosing triangle the triangulation is built in
+ * is finite, so the boundary it leaves can be concave where probes lie nearly in a line; it is
+ * filled in with extra triangles.
+ *
+ * The triangulation is built by Bowyer-Watson insertion: each probe removes the triangles whose
+ * circumcircle contains it, and the hole is filled with triangles fanning out from the probe. The
+ * probes are inserted row by row so that each is found close to the one before.
+ *
+ * A query finds its triangle by walking from triangle to neighbouring triangle towards the point.
+ * The walk starts from the triangle of the last query, which is usually the same triangle or a
+ * neighbour along a toolpath, or for a point further away from a triangle near it kept in a coarse
+ * grid of buckets. So a query takes a few steps however many probes there are. Because of this,
+ * a DelaunaySurface must not be queried from more than one thread at a time; see copy().
+ */
+public class DelaunaySurface implements ProbeSurface
+{
+    private static final Logger logger = Logger.getLogger((Main.class.getName()));
+
+    /**
+     * Size of the triangle enclosing the probes while the triangulation is built, relative to the
+     * extent of the probes.
+     */
+    private static final double SUPER_SCALE = 100.0;
+
+    /**
+     * Number of probes.
+     */
+    protected int vertices = 0;
+
+    /**
+     * Probe positions, then the three corners of the enclosing triangle while building.
+     */
+    protected double[] px;
+    protected double[] py;
+    protected double[] pz;
+
+    /**
+     * Number of triangles.
+     */
+    protected int triangles = 0;
+
+    /**
+     * The probe indexes of the corners of each triangle, three per triangle in counter-clockwise
+     * order.
+     */
+    protected int[] corners;
+
+    /**
+     * The neighbours of each triangle, three per triangle: neighbour k is across the edge opposite
+     * corner k. An edge on the boundary of the probed area holds -(h+1) for boundary edge h.
+     */
+    protected int[] neighbours;
+
+    /**
+     * The boundary edges, from probe hullFrom[h] to probe hullTo[h] counter-clockwise, and the
+     * boundary edges before and after each.
+     */
+    protected int[] hullFrom;
+    protected int[] hullTo;
+    protected int[] hullNext;
+    protected int[] hullPrev;
+
+    /**
+     * A triangle near the center of each bucket of a coarse grid over the probes, in row-major
+     * order, to start the walk from for a query far from the last one.
+     */
+    protected int[] buckets;
+    protected int bucketsX;
+    protected int bucketsY;
+    protected double bucketX0;
+    protected double bucketY0;
+    protected double bucketWidth;
+    protected double bucketHeight;
+
+    /**
+     * The length of the shortest triangle edge.
+     */
+    protected double shortestEdge;
+
+    /**
+     * The position of the last query, and the triangle the walk to it ended in.
+     */
+    private double lastX = Double.NaN;
+    private double lastY = Double.NaN;
+    private int lastT = 0;
+
+    /* Scratch space while building: number of triangle slots in use, free slots, and a mark per
+       triangle with the current insertion's stamp if it is in the hole being filled */
+    private int slots;
+    private int[] free;
+    private int freeCount;
+    private int[] marks;
+    private int stamp;
+
+    /**
+     * Constructor, which requires a list of Point3(x,y,z) probe values, with at least three probes
+     * not in a line. Probes at the same (x,y) as an earlier probe are ignored.
+     *
+     * @param rawProbePoints List of raw probe points
+     */
+    public DelaunaySurface(List<Point3> rawProbePoints)
+    {
+        logger.info("Creating Delaunay Surface");
+
+        offsetProbes(rawProbePoints);
+        triangulate();
+        makeHull();
+        makeBuckets();
+        shortestEdge = findShortestEdge();
+
+        // Offset so that Z = 0 at (x,y) = (0,0)
+        double zOffset = getProbeHeight(0.0, 0.0);
+        logger.info(String.format("Z offset = %.3f", zOffset));
+        for (int v = 0; v < vertices; v++)
+        {
+            pz[v] -= zOffset;
+        }
+
+        logger.info(String.format("   %d probes, %d triangles, %d boundary edges, %dx%d buckets", vertices,
+                triangles, hullFrom.length, bucketsX, bucketsY));
+        logger.info("Delaunay Surface Complete");
+    }
+
+    /**
+     * Constructor for a surface that shares the triangulation of another surface but has its own
+     * lookup cache, so that each thread can query its own copy.
+     *
+     * @param other the surface to share the triangulation of
+     */
+    protected DelaunaySurface(DelaunaySurface other)
+    {
+        vertices = other.vertices;
+        px = other.px;
+        py = other.py;
+        pz = other.pz;
+        triangles = other.triangles;
+        corners = other.corners;
+        neighbours = other.neighbours;
+        hullFrom = other.hullFrom;
+        hullTo = other.hullTo;
+        hullNext = other.hullNext;
+        hullPrev = other.hullPrev;
+        buckets = other.buckets;
+        bucketsX = other.bucketsX;
+        bucketsY = other.bucketsY;
+        bucketX0 = other.bucketX0;
+        bucketY0 = other.bucketY0;
+        bucketWidth = other.bucketWidth;
+        bucketHeight = other.bucketHeight;
+        shortestEdge = other.shortestEdge;
+    }
+
+    @Override
+    public DelaunaySurface copy()
+    {
+        return new DelaunaySurface(this);
+    }
+
+    /**
+     * Computes the Z probe offset at an (x,y) coordinate by interpolating linearly between the
+     * corners of the triangle containing it, weighted by their barycentric coordinates: the weight
+     * of each corner is the area of the triangle formed by (x,y) and the opposite edge.
+     *
+     * @param x The X coordinate to use in interpolation
+     * @param y The Y coordinate to use in interpolation
+     * @return the interpolated Z value
+     */
+    @Override
+    public double getProbeHeight(double x, double y)
+    {
+        int t = locate(x, y, start(x, y));
+        lastX = x;
+        lastY = y;
+        return (t >= 0) ? interpolate(t, x, y) : boundaryHeight(-t - 1, x, y);
+    }
+
+    @Override
+    public void getProbeHeights(double[] xs, double[] ys, double[] out, int offset, int count)
+    {
+        for (int n = offset; n < offset + count; n++)
+        {
+            out[n] = getProbeHeight(xs[n], ys[n]);
+        }
+    }
+
+    /**
+     * Finds where the line p(t) = (x + t*dx, y + t*dy) crosses a triangle edge or the boundary, by
+     * walking through the triangles it passes. Outside the boundary, the nearest boundary point
+     * moves from an edge to its end where the line crosses the perpendicular to the edge through
+     * that end, so those crossings are found too.
+     */
+    @Override
+    public void findEdges(double x, double y, double dx, double dy, DoubleConsumer edges)
+    {
+        // The part of the line inside the boundary, clipped against each boundary edge
+        double tIn = 0.0;
+        double tOut = 1.0;
+        for (int h = 0; h < hullFrom.length; h++)
+        {
+            int a = hullFrom[h];
+            int b = hullTo[h];
+            double ex = px[b] - px[a];
+            double ey = py[b] - py[a];
+
+            // Distance inside the edge, times its length, at t = 0 and per unit of t
+            double inside = orient(a, b, x, y);
+            double rate = ex * dy - ey * dx;
+            if (rate > 0) tIn = Math.max(tIn, -inside / rate);
+            else if (rate < 0) tOut = Math.min(tOut, -inside / rate);
+            else if (inside < 0) tOut = -1.0;
+
+            // Where the line outside the edge crosses the perpendiculars through its ends
+            double along = ex * dx + ey * dy;
+            if (along != 0)
+            {
+                double ta = ((px[a] - x) * ex + (py[a] - y) * ey) / along;
+                double tb = ((px[b] - x) * ex + (py[b] - y) * ey) / along;
+                if (ta > 0.0 && ta < 1.0 && inside + ta * rate < 0) edges.accept(ta);
+                if (tb > 0.0 && tb < 1.0 && inside + tb * rate < 0) edges.accept(tb);
+            }
+        }
+        if (tIn >= tOut) return;
+        if (tIn > 0.0) edges.accept(tIn);
+        if (tOut < 1.0) edges.accept(tOut);
+
+        // Walk both ways from the middle of the part inside
+        double mid = (tIn + tOut) / 2;
+        int t = locate(x + mid * dx, y + mid * dy, start(x + mid * dx, y + mid * dy));
+        if (t < 0) return;
+        walkEdges(t, x, y, dx, dy, mid, tOut, false, edges);
+        walkEdges(t, x + dx, y + dy, -dx, -dy, 1.0 - mid, 1.0 - tIn, true, edges);
+    }
+
+    /**
+     * Walks along the line p(t) = (x + t*dx, y + t*dy) from triangle t, containing p(from), to
+     * p(to), reporting the value of t where the line leaves each triangle.
+     *
+     * @param reverse true if the line runs backwards, so that t is reported as 1 - t
+     */
+    private void walkEdges(int t, double x, double y, double dx, double dy, double from, double to,
+            boolean reverse, DoubleConsumer edges)
+    {
+        for (int step = 0; step < triangles; step++)
+        {
+            // The edge the line leaves by is the nearest of those it is heading out of
+            int base = 3 * t;
+            int exit = -1;
+            double tExit = to;
+            for (int k = 0; k < 3; k++)
+            {
+                int a = corners[base + (k + 1) % 3];
+                int b = corners[base + (k + 2) % 3];
+                double rate = (px[b] - px[a]) * dy - (py[b] - py[a]) * dx;
+                if (rate < 0)
+                {
+                    double te = -orient(a, b, x, y) / rate;
+                    if (te < tExit)
+                    {
+                        tExit = te;
+                        exit = k;
+                    }
+                }
+            }
+            if (exit < 0 || neighbours[base + exit] < 0) return;
+            if (tExit > from) edges.accept(reverse ? 1.0 - tExit : tExit);
+            t = neighbours[base + exit];
+        }
+    }
+
+    /**
+     * Returns 0, as the height is linear within each triangle, and along a line outside the
+     * boundary between the crossings found by findEdges().
+     */
+    @Override
+    public double getCurvature(double x, double y, double dx, double dy)
+    {
+        return 0.0;
+    }
+
+    @Override
+    public double minSpacing()
+    {
+        return shortestEdge;
+    }
+
+    /**
+     * Returns the number of triangles.
+     */
+    public int triangleCount()
+    {
+        return triangles;
+    }
+
+    /**
+     * Returns the probe index of corner k (0, 1 or 2) of triangle t, counter-clockwise.
+     */
+    public int corner(int t, int k)
+    {
+        return corners[3 * t + k];
+    }
+
+    /**
+     * Returns the position of probe v, offset to work coordinates.
+     */
+    public Point3 probe(int v)
+    {
+        return new Point3(px[v], py[v], pz[v]);
+    }
+
+    /**
+     * Offsets the probes to work coordinates, drops repeated positions, and orders them row by row
+     * (alternating direction) for insertion.
+     */
+    private void offsetProbes(List<Point3> rawProbePoints)
+    {
+        logger.info("   Offseting to probe grid by " + Config.probe_offset);
+
+        Set<List<Double>> seen = new HashSet<List<Double>>();
+        List<Point3> probes = new ArrayList<Point3>(rawProbePoints.size());
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        for (Point3 raw : rawProbePoints)
+        {
+            Point3 p = raw.relativeTo(Config.probe_offset);
+            if (seen.add(Arrays.asList(p.x, p.y)))
+            {
+                probes.add(p);
+                minX = Math.min(minX, p.x);
+                minY = Math.min(minY, p.y);
+                maxX = Math.max(maxX, p.x);
+                maxY = Math.max(maxY, p.y);
+            }
+        }
+        if (probes.size() < rawProbePoints.size())
+        {
+            logger.warning("   Ignored " + (rawProbePoints.size() - probes.size()) + " repeated probe positions");
+        }
+        if (probes.size() < 3)
+        {
+            throw new IllegalArgumentException("A Delaunay surface needs at least three probes");
+        }
+
+        // Rows about as tall as the average spacing of the probes
+        double rowHeight = Math.sqrt(Math.max((maxX - minX) * (maxY - minY), 1e-6) / probes.size());
+        double y0 = minY;
+        probes.sort((a, b) ->
+        {
+            int rowA = (int) ((a.y - y0) / rowHeight);
+            int rowB = (int) ((b.y - y0) / rowHeight);
+            if (rowA != rowB) return Integer.compare(rowA, rowB);
+            return (rowA % 2 == 0) ? Double.compare(a.x, b.x) : Double.compare(b.x, a.x);
+        });
+
+        vertices = probes.size();
+        px = new double[vertices + 3];
+        py = new double[vertices + 3];
+        pz = new double[vertices + 3];
+        for (int v = 0; v < vertices; v++)
+        {
+            Point3 p = probes.get(v);
+            px[v] = p.x;
+            py[v] = p.y;
+            pz[v] = p.z;
+        }
+
+        // A triangle enclosing every probe by a wide margin
+        double cx = (minX + maxX) / 2;
+        double cy = (minY + maxY) / 2;
+        double size = Math.max(Math.max(maxX - minX, maxY - minY), 1.0) * SUPER_SCALE;
+        px[vertices] = cx - 2 * size;
+        py[vertices] = cy - size;
+        px[vertices + 1] = cx + 2 * size;
+        py[vertices + 1] = cy - size;
+        px[vertices + 2] = cx;
+        py[vertices + 2] = cy + 2 * size;
+    }
+
+    /**
+     * Builds the triangulation by inserting the probes one at a time into the enclosing triangle.
+     */
+    private void triangulate()
+    {
+        // A triangulation of n points has at most 2n - 5 triangles, counting the enclosing corners
+        int capacity = 2 * (vertices + 3);
+        corners = new int[3 * capacity];
+        neighbours = new int[3 * capacity];
+        marks = new int[capacity];
+        free = new int[16];
+
+        corners[0] = vertices;
+        corners[1] = vertices + 1;
+        corners[2] = vertices + 2;
+        neighbours[0] = neighbours[1] = neighbours[2] = -1;
+        slots = 1;
+
+        // Start and end triangle of each new edge from the inserted probe, by the other end
+        int[] fanFrom = new int[vertices + 3];
+        int[] fanTo = new int[vertices + 3];
+        int[] hole = new int[16];
+        int[] edges = new int[64];
+
+        for (int v = 0; v < vertices; v++)
+        {
+            double x = px[v];
+            double y = py[v];
+            int t0 = locate(x, y, lastT);
+
+            // The hole: triangles whose circumcircle contains the probe, connected to the one
+            // containing it
+            stamp++;
+            int holeSize = 0;
+            hole[holeSize++] = t0;
+            marks[t0] = stamp;
+            for (int h = 0; h < holeSize; h++)
+            {
+                int t = hole[h];
+                for (int k = 0; k < 3; k++)
+                {
+                    int nb = neighbours[3 * t + k];
+                    if (nb >= 0 && marks[nb] != stamp && inCircle(nb, x, y))
+                    {
+                        if (holeSize == hole.length) hole = Arrays.copyOf(hole, 2 * holeSize);
+                        marks[nb] = stamp;
+                        hole[holeSize++] = nb;
+                    }
+                }
+            }
+
+            // The edges of the hole, four ints each: from, to, triangle outside, and the index of
+            // the edge in the triangle outside. Round-off on nearly co-circular probes can leave
+            // an edge the probe does not see from inside; then the triangle beyond joins the hole.
+            int edgeCount;
+            boolean visible;
+            do
+            {
+                edgeCount = 0;
+                visible = true;
+                for (int h = 0; h < holeSize; h++)
+                {
+                    int t = hole[h];
+                    for (int k = 0; k < 3; k++)
+                    {
+                        int nb = neighbours[3 * t + k];
+                        if (nb >= 0 && marks[nb] == stamp) continue;
+
+                        int a = corners[3 * t + (k + 1) % 3];
+                        int b = corners[3 * t + (k + 2) % 3];
+                        if (nb >= 0 && orient(a, b, x, y) <= 0)
+                        {
+                            if (holeSize == hole.length) hole = Arrays.copyOf(hole, 2 * holeSize);
+                            marks[nb] = stamp;
+                            hole[holeSize++] = nb;
+                            visible = false;
+                            continue;
+                        }
+
+                        if (4 * edgeCount + 4 > edges.length) edges = Arrays.copyOf(edges, 2 * edges.length);
+                        int e = 4 * edgeCount++;
+                        edges[e] = a;
+                        edges[e + 1] = b;
+                        edges[e + 2] = nb;
+                        edges[e + 3] = (nb >= 0) ? edgeIndex(nb, t) : -1;
+                    }
+                }
+            }
+            while (!visible);
+
+            // Fill the hole with a fan of triangles (from, to, probe)
+            for (int h = 0; h < holeSize; h++)
+            {
+                release(hole[h]);
+            }
+            for (int e = 0; e < 4 * edgeCount; e += 4)
+            {
+                int t = allocate();
+                int a = edges[e];
+                int b = edges[e + 1];
+                int nb = edges[e + 2];
+                corners[3 * t] = a;
+                corners[3 * t + 1] = b;
+                corners[3 * t + 2] = v;
+                neighbours[3 * t + 2] = nb;
+                if (nb >= 0) neighbours[3 * nb + edges[e + 3]] = t;
+                fanFrom[a] = t;
+                fanTo[b] = t;
+            }
+            for (int e = 0; e < 4 * edgeCount; e += 4)
+            {
+                int t = fanFrom[edges[e]];
+                neighbours[3 * t] = fanFrom[edges[e + 1]];
+                neighbours[3 * t + 1] = fanTo[edges[e]];
+            }
+            lastT = fanFrom[edges[0]];
+        }
+    }
+
+    /**
+     * Drops the triangles with a corner of the enclosing triangle, fills in the boundary where that
+     * leaves it concave, and numbers the edges left without a neighbour as the boundary of the
+     * probed area.
+     */
+    private void makeHull()
+    {
+        int[] index = new int[slots];
+        Arrays.fill(index, -1);
+        triangles = 0;
+        for (int t = 0; t < slots; t++)
+        {
+            int base = 3 * t;
+            if (corners[base] >= 0 && corners[base] < vertices && corners[base + 1] < vertices
+                    && corners[base + 2] < vertices)
+            {
+                index[t] = triangles++;
+            }
+        }
+        if (triangles == 0)
+        {
+            throw new IllegalArgumentException("A Delaunay surface needs probes that are not all in a line");
+        }
+
+        // The boundary edges: from, to, and the triangle and edge index inside
+        int[] keptCorners = new int[3 * triangles];
+        int[] keptNeighbours = new int[3 * triangles];
+        int[] from = new int[triangles + 2];
+        int[] to = new int[triangles + 2];
+        int[] inside = new int[triangles + 2];
+        int edges = 0;
+        for (int t = 0; t < slots; t++)
+        {
+            int kept = index[t];
+            if (kept < 0) continue;
+            for (int k = 0; k < 3; k++)
+            {
+                keptCorners[3 * kept + k] = corners[3 * t + k];
+                int nb = neighbours[3 * t + k];
+                if (nb >= 0 && index[nb] >= 0)
+                {
+                    keptNeighbours[3 * kept + k] = index[nb];
+                }
+                else
+                {
+                    if (edges == from.length)
+                    {
+                        from = Arrays.copyOf(from, 2 * edges);
+                        to = Arrays.copyOf(to, 2 * edges);
+                        inside = Arrays.copyOf(inside, 2 * edges);
+                    }
+                    from[edges] = corners[3 * t + (k + 1) % 3];
+                    to[edges] = corners[3 * t + (k + 2) % 3];
+                    inside[edges] = 3 * kept + k;
+                    edges++;
+                }
+            }
+        }
+        corners = keptCorners;
+        neighbours = keptNeighbours;
+
+        // Link the boundary edges into a ring through the probes they share
+        int[] edgeFrom = new int[vertices];
+        for (int h = 0; h < edges; h++)
+        {
+            edgeFrom[from[h]] = h;
+        }
+        int[] next = new int[edges];
+        int[] prev = new int[edges];
+        for (int h = 0; h < edges; h++)
+        {
+            next[h] = edgeFrom[to[h]];
+            prev[next[h]] = h;
+        }
+
+        int ring = fillConcave(from, to, inside, next, prev, edges);
+
+        // Number the edges left in the ring
+        hullFrom = new int[ring];
+        hullTo = new int[ring];
+        hullNext = new int[ring];
+        hullPrev = new int[ring];
+        int first = 0;
+        while (from[first] < 0)
+        {
+            first++;
+        }
+        int h = first;
+        for (int n = 0; n < ring; n++)
+        {
+            hullFrom[n] = from[h];
+            hullTo[n] = to[h];
+            hullNext[n] = (n + 1) % ring;
+            hullPrev[(n + 1) % ring] = n;
+            neighbours[inside[h]] = -(n + 1);
+            h = next[h];
+        }
+
+        free = null;
+        marks = null;
+    }
+
+    /**
+     * Fills in the boundary where it turns inwards, so that it is the convex hull of the probes.
+     * Dropping the triangles of the enclosing triangle leaves the boundary concave where a probe
+     * lies just inside the hull, nearer to the enclosing corners than to the probes beyond it. Each
+     * probe where the boundary turns right, with no other boundary probe in the triangle it makes
+     * with its neighbours along the boundary, is covered by that triangle, until none is left.
+     *
+     * @param from the probe each boundary edge starts at, set to -1 for edges removed
+     * @param to the probe each boundary edge ends at
+     * @param inside the index into neighbours of each boundary edge
+     * @param next the boundary edge after each
+     * @param prev the boundary edge before each
+     * @param edges the number of boundary edges
+     * @return the number of boundary edges left
+     */
+    private int fillConcave(int[] from, int[] to, int[] inside, int[] next, int[] prev, int edges)
+    {
+        int ring = edges;
+        int added = 0;
+        boolean changed = true;
+        while (changed && ring > 3)
+        {
+            changed = false;
+            for (int h1 = 0; h1 < edges; h1++)
+            {
+                if (from[h1] < 0) continue;
+                int h2 = next[h1];
+                int a = from[h1];
+                int b = to[h1];
+                int c = to[h2];
+                if (orient(a, b, px[c], py[c]) >= 0 || !isEmpty(a, c, b, from, next, h2)) continue;
+
+                // Triangle (a, c, b) covers edges a-b and b-c, and a-c takes their place
+                if (3 * triangles == corners.length)
+                {
+                    corners = Arrays.copyOf(corners, 2 * corners.length);
+                    neighbours = Arrays.copyOf(neighbours, 2 * neighbours.length);
+                }
+                int t = triangles++;
+                corners[3 * t] = a;
+                corners[3 * t + 1] = c;
+                corners[3 * t + 2] = b;
+                neighbours[3 * t] = inside[h2] / 3;
+                neighbours[inside[h2]] = t;
+                neighbours[3 * t + 1] = inside[h1] / 3;
+                neighbours[inside[h1]] = t;
+
+                to[h1] = c;
+                inside[h1] = 3 * t + 2;
+                next[h1] = next[h2];
+                prev[next[h2]] = h1;
+                from[h2] = -1;
+                ring--;
+                added++;
+                changed = true;
+                if (ring == 3) break;
+            }
+        }
+
+        if (added > 0)
+        {
+            logger.info("   Added " + added + " triangles to make the boundary convex");
+        }
+        return ring;
+    }
+
+    /**
+     * Returns true if no boundary probe other than its corners lies inside or on the edges of the
+     * counter-clockwise triangle (a, b, c). Only boundary probes can lie outside the probed area.
+     */
+    private boolean isEmpty(int a, int b, int c, int[] from, int[] next, int h)
+    {
+        for (int e = next[h]; e != h; e = next[e])
+        {
+            int v = from[e];
+            if (v == a || v == b || v == c) continue;
+            if (orient(a, b, px[v], py[v]) >= 0 && orient(b, c, px[v], py[v]) >= 0
+                    && orient(c, a, px[v], py[v]) >= 0)
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns the length of the shortest triangle edge.
+     */
+    private double findShortestEdge()
+    {
+        double shortest = Double.POSITIVE_INFINITY;
+        for (int n = 0; n < 3 * triangles; n++)
+        {
+            int a = corners[n];
+            int b = corners[(n % 3 == 2) ? n - 2 : n + 1];
+            shortest = Math.min(shortest, Math.hypot(px[b] - px[a], py[b] - py[a]));
+        }
+        return shortest;
+    }
+
+    /**
+     * Finds a triangle near the center of each bucket, about one bucket per two probes.
+     */
+    private void makeBuckets()
+    {
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        for (int v = 0; v < vertices; v++)
+        {
+            minX = Math.min(minX, px[v]);
+            minY = Math.min(minY, py[v]);
+            maxX = Math.max(maxX, px[v]);
+            maxY = Math.max(maxY, py[v]);
+        }
+
+        double side = Math.sqrt((maxX - minX) * (maxY - minY) / Math.max(vertices / 2, 1));
+        bucketsX = Math.max(1, Math.min(1024, (int) Math.ceil((maxX - minX) / side)));
+        bucketsY = Math.max(1, Math.min(1024, (int) Math.ceil((maxY - minY) / side)));
+        bucketX0 = minX;
+        bucketY0 = minY;
+        bucketWidth = (maxX - minX) / bucketsX;
+        bucketHeight = (maxY - minY) / bucketsY;
+
+        buckets = new int[bucketsX * bucketsY];
+        lastT = 0;
+        for (int j = 0; j < bucketsY; j++)
+        {
+            for (int n = 0; n < bucketsX; n++)
+            {
+                // Row by row, alternating direction, so each walk starts next to the last
+                int i = (j % 2 == 0) ? n : bucketsX - 1 - n;
+                locate(minX + (i + 0.5) * bucketWidth, minY + (j + 0.5) * bucketHeight, lastT);
+                buckets[j * bucketsX + i] = lastT;
+            }
+        }
+    }
+
+    /**
+     * Returns the triangle to start the walk to (x,y) from: the last triangle if (x,y) is within a
+     * bucket of the last query, otherwise the triangle of the bucket containing (x,y).
+     */
+    private int start(double x, double y)
+    {
+        if (Math.abs(x - lastX) < bucketWidth && Math.abs(y - lastY) < bucketHeight)
+        {
+            return lastT;
+        }
+        int i = Math.max(0, Math.min(bucketsX - 1, (int) ((x - bucketX0) / bucketWidth)));
+        int j = Math.max(0, Math.min(bucketsY - 1, (int) ((y - bucketY0) / bucketHeight)));
+        return buckets[j * bucketsX + i];
+    }
+
+    /**
+     * Walks from triangle t towards (x,y), crossing each time an edge that has (x,y) on its far
+     * side. On a Delaunay triangulation the walk always arrives. The edge tried first is rotated at
+     * each step so that round-off can't keep the walk going round in a circle, and if the triangles
+     * filling in the boundary ever do, every triangle is searched.
+     *
+     * @return the triangle containing (x,y), or -(h+1) if (x,y) is outside boundary edge h
+     */
+    private int locate(double x, double y, int t)
+    {
+        int limit = (triangles > 0) ? triangles : slots;
+        for (int step = 0; step <= limit; step++)
+        {
+            lastT = t;
+            int base = 3 * t;
+            int next = t;
+            for (int m = 0; m < 3; m++)
+            {
+                int k = (step + m) % 3;
+                if (orient(corners[base + (k + 1) % 3], corners[base + (k + 2) % 3], x, y) < 0)
+                {
+                    next = neighbours[base + k];
+                    break;
+                }
+            }
+            if (next == t || next < 0) return next;
+            t = next;
+        }
+
+        logger.warning(String.format("Walk to (%.3f,%.3f) did not arrive, searching every triangle", x, y));
+        return search(x, y);
+    }
+
+    /**
+     * Returns the triangle containing (x,y) by testing every triangle, or the first boundary edge if
+     * none does.
+     */
+    private int search(double x, double y)
+    {
+        int limit = (triangles > 0) ? triangles : slots;
+        for (int t = 0; t < limit; t++)
+        {
+            int base = 3 * t;
+            if (corners[base] >= 0 && orient(corners[base + 1], corners[base + 2], x, y) >= 0
+                    && orient(corners[base + 2], corners[base], x, y) >= 0
+                    && orient(corners[base], corners[base + 1], x, y) >= 0)
+            {
+                lastT = t;
+                return t;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Interpolates the height at (x,y) in triangle t from the barycentric weights of its corners.
+     */
+    private double interpolate(int t, double x, double y)
+    {
+        int a = corners[3 * t];
+        int b = corners[3 * t + 1];
+        int c = corners[3 * t + 2];
+        double wa = orient(b, c, x, y);
+        double wb = orient(c, a, x, y);
+        double wc = orient(a, b, x, y);
+        return (wa * pz[a] + wb * pz[b] + wc * pz[c]) / (wa + wb + wc);
+    }
+
+    /**
+     * Returns the height at the nearest point of the boundary to (x,y), outside the probed area.
+     * The boundary is convex, so the distance falls steadily along it from the edge the walk left
+     * by to the nearest edge.
+     */
+    private double boundaryHeight(int h, double x, double y)
+    {
+        double d = boundaryDistance(h, x, y);
+        while (true)
+        {
+            double dNext = boundaryDistance(hullNext[h], x, y);
+            double dPrev = boundaryDistance(hullPrev[h], x, y);
+            if (dNext < d && dNext <= dPrev)
+            {
+                h = hullNext[h];
+                d = dNext;
+            }
+            else if (dPrev < d)
+            {
+                h = hullPrev[h];
+                d = dPrev;
+            }
+            else
+            {
+                break;
+            }
+        }
+
+        double f = boundaryParameter(h, x, y);
+        return pz[hullFrom[h]] + f * (pz[hullTo[h]] - pz[hullFrom[h]]);
+    }
+
+    /**
+     * Returns how far along boundary edge h the nearest point to (x,y) is, from 0 to 1.
+     */
+    private double boundaryParameter(int h, double x, double y)
+    {
+        int a = hullFrom[h];
+        int b = hullTo[h];
+        double dx = px[b] - px[a];
+        double dy = py[b] - py[a];
+        double f = ((x - px[a]) * dx + (y - py[a]) * dy) / (dx * dx + dy * dy);
+        return Math.max(0.0, Math.min(1.0, f));
+    }
+
+    /**
+     * Returns the square of the distance from (x,y) to boundary edge h.
+     */
+    private double boundaryDistance(int h, double x, double y)
+    {
+        double f = boundaryParameter(h, x, y);
+        int a = hullFrom[h];
+        int b = hullTo[h];
+        double ex = px[a] + f * (px[b] - px[a]) - x;
+        double ey = py[a] + f * (py[b] - py[a]) - y;
+        return ex * ex + ey * ey;
+    }
+
+    /**
+     * Returns twice the signed area of the triangle (a, b, (x,y)): positive if (x,y) is to the left
+     * of the line from probe a to probe b.
+     */
+    private double orient(int a, int b, double x, double y)
+    {
+        return (px[b] - px[a]) * (y - py[a]) - (py[b] - py[a]) * (x - px[a]);
+    }
+
+    /**
+     * Returns true if (x,y) is strictly inside the circumcircle of triangle t.
+     */
+    private boolean inCircle(int t, double x, double y)
+    {
+        int a = corners[3 * t];
+        int b = corners[3 * t + 1];
+        int c = corners[3 * t + 2];
+        double adx = px[a] - x;
+        double ady = py[a] - y;
+        double bdx = px[b] - x;
+        double bdy = py[b] - y;
+        double cdx = px[c] - x;
+        double cdy = py[c] - y;
+        double det = (adx * adx + ady * ady) * (bdx * cdy - cdx * bdy)
+                + (bdx * bdx + bdy * bdy) * (cdx * ady - adx * cdy)
+                + (cdx * cdx + cdy * cdy) * (adx * bdy - bdx * ady);
+        return det > 0;
+    }
+
+    /**
+     * Returns the index k of the edge of triangle t that is shared with triangle other.
+     */
+    private int edgeIndex(int t, int other)
+    {
+        for (int k = 0; k < 3; k++)
+        {
+            if (neighbours[3 * t + k] == other) return k;
+        }
+        throw new IllegalStateException("Triangles " + t + " and " + other + " are not neighbours");
+    }
+
+    /**
+     * Returns a triangle slot, reusing a released one if there is one.
+     */
+    private int allocate()
+    {
+        if (freeCount > 0) return free[--freeCount];
+        if (3 * slots == corners.length)
+        {
+            corners = Arrays.copyOf(corners, 2 * corners.length);
+            neighbours = Arrays.copyOf(neighbours, 2 * neighbours.length);
+            marks = Arrays.copyOf(marks, 2 * marks.length);
+        }
+        return slots++;
+    }
+
+    /**
+     * Releases the slot of a triangle removed from the triangulation.
+     */
+    private void release(int t)
+    {
+        corners[3 * t] = -1;
+        if (freeCount == free.length) free = Arrays.copyOf(free, 2 * freeCount);
+        free[freeCount++] = t;
+    }
+}
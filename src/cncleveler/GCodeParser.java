@@ -1,9 +1,6 @@
 package cncleveler;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
@@ -58,20 +55,105 @@ public class GCodeParser
             'T');
 
     /**
-     * Character buffer to hold the current line being parsed.
+     * Character class flag for characters allowed in a number.
      */
-    protected char[] buffer;
+    private static final byte CLASS_NUMBER = 0x01;
+
+    /**
+     * Character class flag for G code state letters.
+     */
+    private static final byte CLASS_MODE = 0x02;
+
+    /**
+     * Character class flag for G code axis letters.
+     */
+    private static final byte CLASS_AXIS = 0x04;
+
+    /**
+     * Character class table indexed by (7-bit ASCII) character. Built once from NUMBER_CHARS,
+     * MODE_LETTERS and AXIS_LETTERS so the tokenizer can classify a character with a single array
+     * load instead of boxing it for a Set lookup.
+     */
+    private static final byte[] CHAR_CLASS = new byte[128];
+
+    /**
+     * Exact powers of ten that can be represented as a double without rounding.
+     */
+    private static final double[] POWERS_OF_TEN = { 1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+            1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22 };
+
+    /**
+     * Largest mantissa that is exactly representable as a double (2^53).
+     */
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;
+
+    static
+    {
+        for (char c : NUMBER_CHARS)
+            CHAR_CLASS[c] |= CLASS_NUMBER;
+        for (char c : MODE_LETTERS)
+            CHAR_CLASS[c] |= CLASS_MODE;
+        for (char c : AXIS_LETTERS)
+            CHAR_CLASS[c] |= CLASS_AXIS;
+    }
+
+    /**
+     * Character buffer to hold the current line being parsed. It is reused from line to line and
+     * only grows when a longer line is read. The line is stored upper case.
+     */
+    protected char[] buffer = new char[256];
 
     /**
      * Index into the character buffer.
      */
     protected int index;
 
+    /**
+     * Index of the first character of the current line in the buffer, after leading white space.
+     */
+    protected int start;
+
+    /**
+     * Index one past the last character of the current line in the buffer, before trailing white
+     * space.
+     */
+    protected int end;
+
     /**
      * Current line number in the file. Used as a debug aid.
      */
     protected int lineNum;
 
+    /**
+     * Position in the file of the chunk being parsed when this parser is one of several parsing a
+     * file in parallel, or -1 when parsing a whole file. Used to locate errors, since line numbers
+     * are then relative to the chunk.
+     */
+    protected long chunkOffset = -1;
+
+    /**
+     * True to store the text of each line in State.originalText. Turning this off avoids creating a
+     * String for every line when the original text is not needed.
+     */
+    public boolean keepOriginalText = true;
+
+    /**
+     * True to attach a SourceSpan to each state parsed from a file, giving the position of its
+     * line and Z word, for minimal-edit output.
+     */
+    public boolean keepSourceSpans = false;
+
+    /**
+     * Position in the buffer of the Z word of the current line, or -1 if it has none.
+     */
+    private int zStart;
+    private int zEnd;
+
+    /**
+     * Position in the buffer one past the last code word of the current line, or -1 if it has none.
+     */
+    private int wordsEnd;
+
     /**
      * Initial letter of the current code word being parsed.
      */
@@ -95,6 +177,37 @@ public class GCodeParser
      * @throws IOException on any I/O error
      */
     public List<State> read(String filename) throws IOException
+    {
+        List<State> states = new ArrayList<State>();
+
+        read(filename, new StateSink()
+        {
+            public void accept(State state)
+            {
+                states.add(state);
+            }
+
+            public void close()
+            {
+            }
+        });
+
+        return states;
+    }
+
+    /**
+     * Reads and parses a G code file, passing each state to the sink as soon as its line has been
+     * parsed. Only the current line is held in memory, so files of any size can be processed. The
+     * sink is not closed by this method.
+     * 
+     * The file is memory mapped and tokenized from its bytes. Lines that contain non-ASCII
+     * characters are decoded as UTF-8.
+     * 
+     * @param filename The filename (and path) to the G code file
+     * @param sink The stage that receives each parsed state in file order
+     * @throws IOException on any I/O error
+     */
+    public void read(String filename, StateSink sink) throws IOException
     {
         // Show progress
         logger.info("Opening: " + filename);
@@ -102,86 +215,257 @@ public class GCodeParser
         // Open input file for reading
         Path inFile = Paths.get(filename);
 
-        List<State> states = new ArrayList<State>();
+        try (MappedLineReader in = new MappedLineReader(inFile))
+        {
+            read(in, sink);
+        }
+        logger.info("Parsed " + lineNum + " lines");
+    }
 
-        // BufferedReader supports readLine()
-        BufferedReader in = Files.newBufferedReader(inFile, StandardCharsets.UTF_8);
+    /**
+     * Parses every remaining line from the reader, passing each state to the sink. Line numbers
+     * start from 1 at the reader's first line.
+     * 
+     * @param in the reader to parse
+     * @param sink The stage that receives each parsed state in order
+     * @throws IOException on any I/O error
+     */
+    protected void read(MappedLineReader in, StateSink sink) throws IOException
+    {
         lineNum = 0;
-        String line;
-        while ((line = in.readLine()) != null)
+        while (in.nextLine())
         {
             lineNum++;
+            sink.accept(parseLine(in));
+        }
+    }
+
+    /**
+     * Parses one line (block) of G code into a new State.
+     * 
+     * @param line the text of the line to parse
+     * @return the parsed state
+     */
+    protected State parseLine(String line)
+    {
+        // Create a new State for this line
+        State state = new State();
+        state.lineNum = lineNum;
+        state.originalText = line;
+
+        // Copy the line into the character buffer for parsing
+        loadBuffer(line);
+        parseBuffer(state);
+        return state;
+    }
 
-            // Create a new State for this line
-            State state = new State();
+    /**
+     * Parses the current line of a mapped file into a new State. The line text is only decoded
+     * into a String if keepOriginalText is set or the line is not plain ASCII.
+     * 
+     * @param in the reader positioned at the line to parse
+     * @return the parsed state
+     */
+    protected State parseLine(MappedLineReader in)
+    {
+        State state;
+        boolean ascii = loadBuffer(in);
+        if (ascii)
+        {
+            state = new State();
             state.lineNum = lineNum;
-            state.originalText = line;
-            states.add(state);
+            if (keepOriginalText)
+            {
+                state.originalText = in.lineText();
+            }
+            parseBuffer(state);
+        }
+        else
+        {
+            state = parseLine(in.lineText());
+        }
+
+        if (keepSourceSpans)
+        {
+            SourceSpan span = new SourceSpan(in.lineOffset(), in.length() + in.terminatorLength());
+            if (ascii)
+            {
+                // Each character in the buffer is one byte of the line
+                span.zStart = zStart;
+                span.zEnd = zEnd;
+                span.insertAt = wordsEnd;
+            }
+            state.source = span;
+            state.recordSource();
+        }
+        return state;
+    }
 
-            // Get a character buffer for parsing the line
-            buffer = line.trim().toUpperCase().toCharArray();
-            index = 0;
+    /**
+     * Parses the code words in the character buffer into the state.
+     * 
+     * @param state the state to hold the parsed values
+     */
+    protected void parseBuffer(State state)
+    {
+        zStart = -1;
+        zEnd = -1;
+        wordsEnd = -1;
+        while (index < end)
+        {
+            char c = buffer[index];
+            int charClass = (c < CHAR_CLASS.length) ? CHAR_CLASS[c] : 0;
 
-            while (index < buffer.length)
+            if ((charClass & CLASS_MODE) != 0)
             {
-                if (MODE_LETTERS.contains(buffer[index]))
+                parseValue();
+                wordsEnd = index;
+                Mode mode = Mode.find(letter, value);
+                if (mode == null)
                 {
-                    parseValue();
-                    String code = State.format(letter, value);
-                    Mode mode = Mode.find(code);
-                    if (mode == null)
-                    {
-                        logError("Unrecognized code word:", code);
-                    }
-                    if (state.getGroup(mode.group()) != null)
-                    {
-                        logError("Duplicate Mode Group:", mode.code() + " to " + mode.group().name());
-                    }
-                    state.setGroup(mode.group(), mode);
+                    logError("Unrecognized code word:", State.format(letter, value));
+                    continue;
                 }
-                else if (AXIS_LETTERS.contains(buffer[index]))
+                if (state.getGroup(mode.group()) != null)
                 {
-                    parseValue();
-                    Axis axis = Axis.find(letter);
-                    if (axis == null)
-                    {
-                        logError("Unrecognized code word:", State.format(letter, value));
-                    }
-                    if (state.getAxis(axis) != null)
-                    {
-                        logError("Duplicate Axis:", Character.toString(axis.letter()));
-                    }
-                    state.setAxis(axis, value);
+                    logError("Duplicate Mode Group:", mode.code() + " to " + mode.group().name());
                 }
-                else if (buffer[index] == '(')
+                state.setGroup(mode.group(), mode);
+            }
+            else if ((charClass & CLASS_AXIS) != 0)
+            {
+                int wordStart = index;
+                parseValue();
+                wordsEnd = index;
+                Axis axis = Axis.find(letter);
+                if (axis == null)
                 {
-                    String comment = parseComment();
-                    if (state.getComment() != null)
-                    {
-                        logError("Duplicate Comment: ", comment);
-                    }
-                    state.setComment(comment);
+                    logError("Unrecognized code word:", State.format(letter, value));
+                    continue;
                 }
-                else if (buffer[index] <= ' ')
+                if (axis == Axis.Z)
                 {
-                    // skip over white space
-                    index++;
+                    zStart = wordStart;
+                    zEnd = index;
                 }
-                else if ((buffer[index] == '%'))
+                if (state.getAxis(axis) != null)
                 {
-                    // skip over %
-                    index++;
+                    logError("Duplicate Axis:", Character.toString(axis.letter()));
                 }
-                else
+                state.setAxis(axis, value);
+            }
+            else if (c == '(')
+            {
+                String comment = parseComment();
+                if (state.getComment() != null)
                 {
-                    logError("Unrecognized code letter: ", Character.toString(buffer[index]));
+                    logError("Duplicate Comment: ", comment);
                 }
+                state.setComment(comment);
             }
+            else if (c <= ' ')
+            {
+                // skip over white space
+                index++;
+            }
+            else if (c == '%')
+            {
+                // skip over %
+                index++;
+            }
+            else
+            {
+                logError("Unrecognized code letter: ", Character.toString(c));
+                index++;
+            }
+        }
+    }
 
+    /**
+     * Copies the line into the reusable character buffer, converting it to upper case, and sets
+     * start and end to exclude leading and trailing white space (the same characters removed by
+     * String.trim()).
+     * 
+     * @param line the line to copy
+     */
+    protected void loadBuffer(String line)
+    {
+        // Upper casing outside of ASCII can change the length of the line (for example, German
+        // sharp s becomes SS), so leave that to String.toUpperCase()
+        for (int i = 0; i < line.length(); i++)
+        {
+            if (line.charAt(i) >= 128)
+            {
+                line = line.toUpperCase();
+                break;
+            }
         }
-        in.close();
-        logger.info("Parsed " + lineNum + " lines");
-        return states;
+
+        int length = line.length();
+        if (buffer.length < length)
+        {
+            buffer = new char[Math.max(length, buffer.length * 2)];
+        }
+
+        for (int i = 0; i < length; i++)
+        {
+            char c = line.charAt(i);
+            if (c >= 'a' && c <= 'z')
+            {
+                c -= ('a' - 'A');
+            }
+            buffer[i] = c;
+        }
+        trimBuffer(length);
+    }
+
+    /**
+     * Copies the current line of a mapped file into the reusable character buffer, converting it to
+     * upper case. Each byte is one character, so this only succeeds for plain ASCII lines.
+     * 
+     * @param in the reader positioned at the line to copy
+     * @return true if the line was copied, false if it contains non-ASCII bytes
+     */
+    protected boolean loadBuffer(MappedLineReader in)
+    {
+        int length = in.length();
+        if (buffer.length < length)
+        {
+            buffer = new char[Math.max(length, buffer.length * 2)];
+        }
+
+        for (int i = 0; i < length; i++)
+        {
+            byte b = in.byteAt(i);
+            if (b < 0)
+            {
+                return false;
+            }
+            if (b >= 'a' && b <= 'z')
+            {
+                b -= ('a' - 'A');
+            }
+            buffer[i] = (char) b;
+        }
+        trimBuffer(length);
+        return true;
+    }
+
+    /**
+     * Sets start and end to exclude leading and trailing white space from the line in the buffer
+     * (the same characters removed by String.trim()), and moves the index to the start.
+     * 
+     * @param length the number of characters in the buffer
+     */
+    private void trimBuffer(int length)
+    {
+        start = 0;
+        end = length;
+        while ((start < end) && (buffer[start] <= ' '))
+            start++;
+        while ((end > start) && (buffer[end - 1] <= ' '))
+            end--;
+        index = start;
     }
 
     /**
@@ -204,24 +488,97 @@ public class GCodeParser
         {
             logError("Reached end of line; expected number", null);
         }
-        // Put all number characters into a string
-        StringBuilder number = new StringBuilder();
-        while (!endOfLine() && NUMBER_CHARS.contains(buffer[index]))
+
+        // Find the run of number characters
+        int numberStart = index;
+        while (!endOfLine() && (buffer[index] < CHAR_CLASS.length)
+                && ((CHAR_CLASS[buffer[index]] & CLASS_NUMBER) != 0))
         {
-            number.append(buffer[index]);
             index++;
         }
-        // Parse the string into a double
-        value = 0.0;
+
+        // Parse the run into a double
+        value = parseNumber(numberStart, index);
+        if (Double.isNaN(value))
+        {
+            value = 0.0;
+            logError("Unable to parse number: ", new String(buffer, numberStart, index - numberStart));
+        }
+        intValue = (int) Math.floor(value);
+    }
+
+    /**
+     * Parses a decimal number of the form [+-]digits[.digits] from the buffer without allocating.
+     * The result is identical to Double.parseDouble(): when the digits fit in an exactly
+     * representable mantissa, a single division by an exact power of ten is correctly rounded. Longer
+     * numbers fall back to Double.parseDouble().
+     * 
+     * @param from index of the first character of the number
+     * @param to index one past the last character of the number
+     * @return the parsed value, or NaN if the characters are not a valid number
+     */
+    protected double parseNumber(int from, int to)
+    {
+        int i = from;
+        boolean negative = false;
+        if ((i < to) && (buffer[i] == '+' || buffer[i] == '-'))
+        {
+            negative = (buffer[i] == '-');
+            i++;
+        }
+
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = 0;
+        boolean decimalPoint = false;
+        for (; i < to; i++)
+        {
+            char c = buffer[i];
+            if (c >= '0' && c <= '9')
+            {
+                if (mantissa >= MAX_EXACT_MANTISSA / 10)
+                {
+                    // Too many digits for the fast path
+                    return parseNumberSlow(from, to);
+                }
+                mantissa = mantissa * 10 + (c - '0');
+                digits++;
+                if (decimalPoint) fractionDigits++;
+            }
+            else if (c == '.' && !decimalPoint)
+            {
+                decimalPoint = true;
+            }
+            else
+            {
+                return Double.NaN;
+            }
+        }
+
+        if (digits == 0) return Double.NaN;
+        if (fractionDigits >= POWERS_OF_TEN.length) return parseNumberSlow(from, to);
+
+        double v = mantissa / POWERS_OF_TEN[fractionDigits];
+        return negative ? -v : v;
+    }
+
+    /**
+     * Parses a number that is too long for the fast path in parseNumber().
+     * 
+     * @param from index of the first character of the number
+     * @param to index one past the last character of the number
+     * @return the parsed value, or NaN if the characters are not a valid number
+     */
+    private double parseNumberSlow(int from, int to)
+    {
         try
         {
-            value = Double.parseDouble(number.toString());
+            return Double.parseDouble(new String(buffer, from, to - from));
         }
         catch (NumberFormatException ex)
         {
-            logError("Unable to parse number: ", number.toString());
+            return Double.NaN;
         }
-        intValue = (int) Math.floor(value);
     }
 
     /**
@@ -232,7 +589,7 @@ public class GCodeParser
      */
     protected boolean endOfLine()
     {
-        return index >= buffer.length;
+        return index >= end;
     }
 
     /**
@@ -251,21 +608,20 @@ public class GCodeParser
      */
     protected String parseComment()
     {
-        StringBuilder text = new StringBuilder();
+        int commentStart = index;
 
         while (!endOfLine() && (buffer[index] != ')'))
         {
-            text.append(buffer[index]);
             index++;
         }
         if (endOfLine())
         {
             logError("Reached end of line inside comment", null);
+            return new String(buffer, commentStart, index - commentStart);
         }
-        text.append(buffer[index]);
         index++;
 
-        return text.toString();
+        return new String(buffer, commentStart, index - commentStart);
     }
 
     /**
@@ -283,8 +639,13 @@ public class GCodeParser
         }
         sb.append(" at line ");
         sb.append(lineNum);
+        if (chunkOffset >= 0)
+        {
+            sb.append(" of chunk at byte ");
+            sb.append(chunkOffset);
+        }
         sb.append(", char ");
-        sb.append(index);
+        sb.append(index - start);
         logger.severe(sb.toString());
         // throw new RuntimeException(sb.toString());
     }
@@ -1,42 +1,707 @@
 package cncleveler;
 
-import java.io.BufferedWriter;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.List;
-import java.util.logging.Level;
 import java.util.logging.Logger;
 
-public class GCodeWriter
+/**
+ * Writes states to a G code text file, one line (block) per state.
+ *
+ * A GCodeWriter is a StateSink stage, so it can be used at the end of a streaming chain. The static
+ * write() methods write an already parsed list of states or columnar program.
+ *
+ * Lines are formatted straight into a reusable byte buffer that is handed to an AsyncChannelWriter
+ * when full: codes are copied from pre-encoded bytes and numbers are formatted by WordFormatter, so
+ * no Strings are created per word or per line. The text is the same as State.toString() gives. The
+ * file is written on a background thread and only appears under its name once it is complete;
+ * I/O errors are thrown from accept() or close(). If the program can't be finished, abort() drops
+ * the partial file.
+ *
+ * In compact mode (Config.compactOutput) words that repeat the modal state already written are
+ * left out: a repeated motion or other modal code, an unchanged feed rate or spindle speed, and an
+ * unchanged X, Y or Z. Restating the spindle or coolant mode already in effect does nothing on GRBL,
+ * so those are left out too, but a repeated M0 or M1 is kept as it pauses the job again. Values are rounded to the decimal places in Config.outputDecimals. Comments
+ * and line numbers can also be left out. Compact output is smaller to stream over GRBL's serial
+ * link, and the number of bytes saved is logged when the file is closed.
+ *
+ * In minimal-edit mode (Config.minimalEdit) the writer is given the file the program was parsed
+ * from, and states parsed with source spans are written by copying their lines from that file. A
+ * line whose Z was changed by leveling is copied around a new Z word, so spacing, word order and
+ * number formats from the CAM program are kept. Runs of unchanged lines are copied in bulk, with
+ * FileChannel.transferTo() for long runs. States without a span, or whose other words have been
+ * changed, are written in full.
+ */
+public class GCodeWriter implements StateSink
 {
     private static final Logger logger = Logger.getLogger((Main.class.getName()));
 
-    public static void write(String filename, List<State> states) 
+    private static final Group[] GROUPS = Group.values();
+    private static final Axis[] AXES = Axis.values();
+
+    /**
+     * The code of each mode, indexed by Mode ordinal.
+     */
+    private static final byte[][] CODES = new byte[Mode.values().length][];
+
+    /**
+     * The line separator written after each line.
+     */
+    private static final byte[] NEWLINE = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Size of the output buffer.
+     */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Decimal places of each word when not in compact mode, as State.toString() writes them.
+     */
+    private static final int PLAIN_DECIMALS = 3;
+
+    /**
+     * A written value that is not known.
+     */
+    private static final long UNKNOWN = Long.MIN_VALUE;
+
+    static
+    {
+        for (Mode m : Mode.values())
+        {
+            CODES[m.ordinal()] = m.code().getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    /**
+     * The output file.
+     */
+    private final AsyncChannelWriter out;
+
+    /**
+     * True once abort() has been called. Volatile as abort() may be called from another thread
+     * when the writer runs in a pipeline stage.
+     */
+    private volatile boolean aborted = false;
+
+    /**
+     * True once close() has been called.
+     */
+    private boolean closed = false;
+
+    /**
+     * The file the program was parsed from, for minimal-edit mode, or null.
+     */
+    private final FileChannel source;
+
+    /**
+     * Range of bytes in the source file waiting to be copied to the output. Kept pending so
+     * consecutive lines are copied together.
+     */
+    private long copyStart = 0;
+    private long copyEnd = 0;
+
+    /**
+     * The output buffer, and its backing array that lines are formatted into.
+     */
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final byte[] buf = buffer.array();
+
+    /**
+     * Index in buf of the next byte to write.
+     */
+    private int pos = 0;
+
+    /**
+     * Number of bytes in the current line so far.
+     */
+    private int lineLength = 0;
+
+    /**
+     * Number of lines written so far.
+     */
+    private int lineCount = 0;
+
+    /* Output options, from Config */
+    private final boolean compact;
+    private final boolean stripComments;
+    private final boolean stripLineNumbers;
+
+    /**
+     * Decimal places for each axis or parameter word, indexed by Axis ordinal.
+     */
+    private final int[] decimals = new int[AXES.length];
+
+    /**
+     * The modal codes written so far, indexed by Group ordinal. Null until written.
+     */
+    private final Mode[] writtenModes = new Mode[GROUPS.length];
+
+    /**
+     * The last value written for each modal axis, indexed by Axis ordinal, as a rounded value and
+     * sign (see wordKey()). UNKNOWN until written, or when the current value is not known.
+     */
+    private final long[] writtenWords = new long[AXES.length];
+
+    /**
+     * Scratch space to measure the full length of words left out in compact mode.
+     */
+    private final byte[] scratch = new byte[WordFormatter.MAX_WORD_LENGTH];
+
+    /* Size of the output, and the size it would have been without compacting */
+    private long bytesWritten = 0;
+    private long bytesFull = 0;
+
+    /* Lines copied unchanged, and with a new Z, in minimal-edit mode */
+    private int linesCopied = 0;
+    private int linesEdited = 0;
+
+    /**
+     * Constructor, which opens the output file for writing.
+     *
+     * @param filename the filename (and path) of the G code file to write
+     * @throws IOException on any I/O error
+     */
+    public GCodeWriter(String filename) throws IOException
+    {
+        this(filename, null);
+    }
+
+    /**
+     * Constructor, which opens the output file for writing, and the file the program was parsed
+     * from for minimal-edit output.
+     *
+     * @param filename the filename (and path) of the G code file to write
+     * @param sourceFilename the G code file the states were parsed from, to copy unchanged lines
+     *            from, or null to write every line in full
+     * @throws IOException on any I/O error
+     */
+    public GCodeWriter(String filename, String sourceFilename) throws IOException
     {
         logger.info("Writing G Code to: " + filename);
-        State globalState = new State();
+        if (sourceFilename != null)
+        {
+            logger.info("   Copying unchanged lines from: " + sourceFilename);
+            source = FileChannel.open(Paths.get(sourceFilename), StandardOpenOption.READ);
+        }
+        else
+        {
+            source = null;
+        }
+
+        try
+        {
+            out = new AsyncChannelWriter(Paths.get(filename));
+        }
+        catch (IOException ex)
+        {
+            if (source != null) source.close();
+            throw ex;
+        }
+        compact = Config.compactOutput && (source == null);
+        stripComments = Config.stripComments && (source == null);
+        stripLineNumbers = Config.stripLineNumbers && (source == null);
+
+        for (Axis a : AXES)
+        {
+            int places = (a == Axis.LINE_NUM) ? 0 : PLAIN_DECIMALS;
+            decimals[a.ordinal()] = compact ? Config.outputDecimals.getOrDefault(a, places) : PLAIN_DECIMALS;
+            writtenWords[a.ordinal()] = UNKNOWN;
+        }
+    }
+
+    /**
+     * Writes a list of states to a G code file.
+     *
+     * @param filename the filename (and path) of the G code file to write
+     * @param states the states to write
+     * @throws IOException on any I/O error, in which case no file is written
+     */
+    public static void write(String filename, List<State> states) throws IOException
+    {
+        write(filename, states, null);
+    }
+
+    /**
+     * Writes a list of states to a G code file, copying unchanged lines from the file they were
+     * parsed from.
+     *
+     * @param filename the filename (and path) of the G code file to write
+     * @param states the states to write
+     * @param sourceFilename the G code file the states were parsed from, or null to write every
+     *            line in full
+     * @throws IOException on any I/O error, in which case no file is written
+     */
+    public static void write(String filename, List<State> states, String sourceFilename) throws IOException
+    {
+        try (GCodeWriter writer = new GCodeWriter(filename, sourceFilename))
+        {
+            try
+            {
+                for (State state : states)
+                {
+                    writer.accept(state);
+                }
+            }
+            catch (IOException | RuntimeException ex)
+            {
+                writer.abort();
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * Writes a columnar program to a G code file.
+     *
+     * @param filename the filename (and path) of the G code file to write
+     * @param program the program to write
+     * @throws IOException on any I/O error, in which case no file is written
+     */
+    public static void write(String filename, ProgramStore program) throws IOException
+    {
+        try (GCodeWriter writer = new GCodeWriter(filename))
+        {
+            try
+            {
+                int n = program.size();
+                for (int block = 0; block < n; block++)
+                {
+                    if (writer.isPlain())
+                    {
+                        writer.write(program, block);
+                    }
+                    else
+                    {
+                        writer.accept(program.getState(block));
+                    }
+                }
+            }
+            catch (IOException | RuntimeException ex)
+            {
+                writer.abort();
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * Writes the state as the next line of the output file. In compact mode a state with nothing
+     * left to write is skipped.
+     *
+     * @param state the state to write
+     */
+    @Override
+    public void accept(State state) throws IOException
+    {
+        if (aborted) return;
+        if (source != null && state.matchesSource() && copy(state)) return;
+
+        emitCopy();
+        if (!isPlain()) bytesFull += fullLength(state);
+
+        format(state);
+        if (compact && lineLength == 0) return;
+        endLine();
+    }
 
-        Path outFile = Paths.get(filename);
-        int lineCount = 0;
-        try (BufferedWriter out = Files.newBufferedWriter(outFile, StandardCharsets.UTF_8))
+    /**
+     * Writes the rest of the output and closes the file, which then appears under its name. After
+     * abort() this only releases the source file. Closing again does nothing.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if (closed) return;
+        closed = true;
+        try
         {
-            for (State state : states)
+            if (aborted)
             {
-                out.write(state.toString());
-                out.newLine();
-                lineCount++;
-                globalState.mergeWith(state);
+                logger.warning("Output abandoned after " + lineCount + " lines");
+                return;
             }
+            emitCopy();
+            flush();
             out.close();
-            logger.info("Wrote " + lineCount + " lines");
         }
-        catch (Exception ex)
+        finally
         {
-            logger.log(Level.SEVERE, "Error writing G Code File", ex);
+            out.abort();
+            if (source != null) source.close();
         }
+        logger.info("Wrote " + lineCount + " lines");
+        if (source != null)
+        {
+            logger.info("   " + linesCopied + " lines copied, " + linesEdited + " with a new Z");
+        }
+        if (!isPlain() && bytesFull > 0)
+        {
+            long saved = bytesFull - bytesWritten;
+            logger.info(String.format("   %d bytes, %d bytes (%.1f%%) saved", bytesWritten, saved,
+                    100.0 * saved / bytesFull));
+        }
+    }
+
+    /**
+     * Abandons the output after an error: nothing more is written, and close() deletes the partial
+     * file so an existing file of the same name is left as it was. close() must still be called.
+     * This may be called from any thread.
+     */
+    @Override
+    public void abort()
+    {
+        aborted = true;
+    }
+
+    /**
+     * Returns true if states are written in full, exactly as State.toString() formats them.
+     */
+    private boolean isPlain()
+    {
+        return !compact && !stripComments && !stripLineNumbers;
+    }
+
+    /**
+     * Writes a state whose only change since parsing is its Z by copying its line from the source
+     * file, splicing in the new Z word if needed.
+     *
+     * @param state the state to write, which has a source span
+     * @return true if the state was written, false if it must be written in full
+     */
+    private boolean copy(State state) throws IOException
+    {
+        SourceSpan span = state.source;
+        long line = span.offset;
+        Double z = state.getAxis(Axis.Z);
 
+        if (Double.compare((z == null) ? Double.NaN : z, span.z) == 0)
+        {
+            copy(line, line + span.length);
+            linesCopied++;
+        }
+        else if (z != null && span.zStart >= 0)
+        {
+            // Replace the Z word
+            copy(line, line + span.zStart);
+            writeSplice(false, z);
+            copy(line + span.zEnd, line + span.length);
+            linesEdited++;
+        }
+        else if (z != null && span.insertAt >= 0)
+        {
+            // Add a Z word after the last word
+            copy(line, line + span.insertAt);
+            writeSplice(true, z);
+            copy(line + span.insertAt, line + span.length);
+            linesEdited++;
+        }
+        else
+        {
+            return false;
+        }
+        lineCount++;
+        return true;
+    }
+
+    /**
+     * Adds a range of source bytes to the bytes waiting to be copied.
+     */
+    private void copy(long from, long to) throws IOException
+    {
+        if (from != copyEnd)
+        {
+            emitCopy();
+            copyStart = from;
+        }
+        copyEnd = to;
+    }
+
+    /**
+     * Copies the bytes waiting to be copied from the source file to the output. A short range is
+     * read into the output buffer, a long one is transferred straight to the output file.
+     */
+    private void emitCopy() throws IOException
+    {
+        long n = copyEnd - copyStart;
+        if (n == 0) return;
+
+        if (n <= BUFFER_SIZE - pos)
+        {
+            buffer.clear().position(pos).limit(pos + (int) n);
+            while (buffer.hasRemaining())
+            {
+                if (source.read(buffer, copyStart + buffer.position() - pos) < 0)
+                {
+                    throw new IOException("Source file is shorter than when it was parsed");
+                }
+            }
+            pos += (int) n;
+        }
+        else
+        {
+            flush();
+            out.transferFrom(source, copyStart, n);
+            bytesWritten += n;
+        }
+        copyStart = copyEnd;
+    }
+
+    /**
+     * Writes a Z word between copied parts of a line.
+     *
+     * @param space true to write a space before the word
+     * @param z the new Z
+     */
+    private void writeSplice(boolean space, double z) throws IOException
+    {
+        emitCopy();
+        if (BUFFER_SIZE - pos < WordFormatter.MAX_WORD_LENGTH + 1) flush();
+        if (space) buf[pos++] = ' ';
+        pos = WordFormatter.write(buf, pos, Axis.Z.letter(), z, decimals[Axis.Z.ordinal()]);
+    }
+
+    /**
+     * Writes a block of a columnar program in full, straight from its columns.
+     *
+     * @param program the program
+     * @param block the block index
+     */
+    private void write(ProgramStore program, int block) throws IOException
+    {
+        for (Group g : GROUPS)
+        {
+            Mode m = program.getGroup(block, g);
+            if (m != null) writeCode(m);
+        }
+
+        int mask = program.getAxisMask(block);
+        for (Axis a : AXES)
+        {
+            if ((mask & (1 << a.ordinal())) != 0)
+            {
+                writeWord(a.letter(), program.getAxis(block, a), PLAIN_DECIMALS);
+            }
+        }
+
+        String comment = program.getComment(block);
+        if (comment != null) writeText(comment);
+        endLine();
+    }
+
+    /**
+     * Formats a state into the output buffer, leaving out the words that are not needed.
+     *
+     * @param state the state to format
+     */
+    protected void format(State state) throws IOException
+    {
+        boolean positionUnknown = false;
+
+        for (Group g : GROUPS)
+        {
+            Mode m = state.getGroup(g);
+            if (m == null) continue;
+            // A stop (M0, M1) pauses again each time it is given, so it is never left out
+            if (compact && g.modal() && g != Group.STOPPING && m == writtenModes[g.ordinal()]) continue;
+
+            writeCode(m);
+            if (!g.modal()) continue;
+
+            // Positions are written in the units, coordinate system and distance mode in effect
+            if (g == Group.UNITS || g == Group.WORK_COORDINATES || g == Group.DISTANCE) positionUnknown = true;
+            writtenModes[g.ordinal()] = m;
+        }
+
+        Mode nonModal = state.getGroup(Group.NON_MODAL);
+        Mode motion = writtenModes[Group.MOTION.ordinal()];
+
+        // Axis words that must be written even when they repeat the last value
+        boolean keepPosition = (nonModal != null) || (writtenModes[Group.DISTANCE.ordinal()] == Mode.INCREMENTAL)
+                || (motion == Mode.CIRCULAR_CW) || (motion == Mode.CIRCULAR_CCW) || (motion == Mode.PROBE_TOWARD);
+        boolean keepFeed = writtenModes[Group.RATE_MODE.ordinal()] == Mode.STROKES_PER_MIN;
+
+        if (positionUnknown) forgetPosition();
+        for (Axis a : AXES)
+        {
+            Double d = state.getAxis(a);
+            if (d == null) continue;
+            if (a == Axis.LINE_NUM && stripLineNumbers) continue;
+
+            int places = decimals[a.ordinal()];
+            if (compact && a.modal())
+            {
+                long key = wordKey(d, places);
+                boolean position = (a == Axis.X) || (a == Axis.Y) || (a == Axis.Z);
+                boolean keep = (position && keepPosition) || (a == Axis.FEED && keepFeed);
+                if (!keep && key != UNKNOWN && key == writtenWords[a.ordinal()]) continue;
+                writtenWords[a.ordinal()] = key;
+            }
+            writeWord(a.letter(), d, places);
+        }
+
+        // After these the current position is no longer given by the last X, Y and Z written
+        if ((writtenModes[Group.DISTANCE.ordinal()] == Mode.INCREMENTAL) || (motion == Mode.PROBE_TOWARD)
+                || (nonModal != null && nonModal != Mode.DWELL))
+        {
+            forgetPosition();
+        }
+
+        if (state.getComment() != null && !stripComments)
+        {
+            writeText(state.getComment());
+        }
+
+        // GRBL resets the modal state (spindle and coolant off, G1, G90 ...) at the end of a program,
+        // so a program after it is written in full
+        Mode stop = state.getGroup(Group.STOPPING);
+        if (stop == Mode.END || stop == Mode.END_RETURN)
+        {
+            Arrays.fill(writtenModes, null);
+            Arrays.fill(writtenWords, UNKNOWN);
+        }
+    }
+
+    /**
+     * Returns a key that is equal for two values exactly when they are written as the same word,
+     * or UNKNOWN if the value is not rounded by WordFormatter's fast path.
+     */
+    private static long wordKey(double value, int places)
+    {
+        long rounded = WordFormatter.round(value, places);
+        if (rounded < 0) return UNKNOWN;
+        return (rounded << 1) | (Double.doubleToRawLongBits(value) >>> 63);
+    }
+
+    /**
+     * Forgets the last X, Y and Z written, so the next value of each is written.
+     */
+    private void forgetPosition()
+    {
+        writtenWords[Axis.X.ordinal()] = UNKNOWN;
+        writtenWords[Axis.Y.ordinal()] = UNKNOWN;
+        writtenWords[Axis.Z.ordinal()] = UNKNOWN;
+    }
+
+    /**
+     * Returns the length of the line State.toString() gives for a state, plus the line separator.
+     */
+    private int fullLength(State state)
+    {
+        int length = 0;
+        for (Group g : GROUPS)
+        {
+            Mode m = state.getGroup(g);
+            if (m != null) length += CODES[m.ordinal()].length + 1;
+        }
+        for (Axis a : AXES)
+        {
+            Double d = state.getAxis(a);
+            if (d != null) length += WordFormatter.write(scratch, 0, a.letter(), d, PLAIN_DECIMALS) + 1;
+        }
+        if (state.getComment() != null) length += state.getComment().length() + 1;
+        return Math.max(length - 1, 0) + NEWLINE.length;
+    }
+
+    /**
+     * Writes a mode's code as the next word of the line.
+     */
+    private void writeCode(Mode m) throws IOException
+    {
+        byte[] code = CODES[m.ordinal()];
+        startWord(code.length);
+        System.arraycopy(code, 0, buf, pos, code.length);
+        pos += code.length;
+        lineLength += code.length;
+    }
+
+    /**
+     * Writes a letter and number as the next word of the line.
+     */
+    private void writeWord(char letter, double value, int places) throws IOException
+    {
+        startWord(WordFormatter.MAX_WORD_LENGTH);
+        int end = WordFormatter.write(buf, pos, letter, value, places);
+        lineLength += end - pos;
+        pos = end;
+    }
+
+    /**
+     * Writes text (a comment) as the next word of the line, in UTF-8.
+     */
+    private void writeText(String text) throws IOException
+    {
+        startWord(0);
+        int n = text.length();
+        for (int i = 0; i < n; i++)
+        {
+            char c = text.charAt(i);
+            if (c >= 0x80)
+            {
+                // Not plain ASCII, so encode the rest of the text
+                writeBytes(text.substring(i).getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            if (pos == BUFFER_SIZE) flush();
+            buf[pos++] = (byte) c;
+            lineLength++;
+        }
+    }
+
+    /**
+     * Writes bytes to the line, flushing the buffer as often as needed.
+     */
+    private void writeBytes(byte[] bytes) throws IOException
+    {
+        int offset = 0;
+        while (offset < bytes.length)
+        {
+            if (pos == BUFFER_SIZE) flush();
+            int n = Math.min(bytes.length - offset, BUFFER_SIZE - pos);
+            System.arraycopy(bytes, offset, buf, pos, n);
+            pos += n;
+            offset += n;
+            lineLength += n;
+        }
+    }
+
+    /**
+     * Makes room for a word of up to the given length, and writes a space before it unless it is
+     * the first word of the line.
+     */
+    private void startWord(int length) throws IOException
+    {
+        if (BUFFER_SIZE - pos < length + 1) flush();
+        if (lineLength > 0)
+        {
+            buf[pos++] = ' ';
+            lineLength++;
+        }
+    }
+
+    /**
+     * Ends the current line.
+     */
+    private void endLine() throws IOException
+    {
+        if (BUFFER_SIZE - pos < NEWLINE.length) flush();
+        System.arraycopy(NEWLINE, 0, buf, pos, NEWLINE.length);
+        pos += NEWLINE.length;
+        lineCount++;
+        lineLength = 0;
+    }
+
+    /**
+     * Hands the buffered bytes to the output file.
+     */
+    private void flush() throws IOException
+    {
+        out.write(buf, 0, pos);
+        bytesWritten += pos;
+        pos = 0;
     }
 }
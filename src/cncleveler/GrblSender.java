@@ -0,0 +1,449 @@
+package cncleveler;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+/**
+ * Streams states to a GRBL controller as they arrive, so a job can be leveled and run without
+ * writing an intermediate file.
+ *
+ * A GrblSender is a StateSink stage: put at the end of a streaming chain, each block is leveled
+ * just before it is sent. Blocks are sent with GRBL's character-counting protocol rather than
+ * send-and-wait: the sender keeps track of how many bytes of unacknowledged lines are in GRBL's
+ * 128 byte serial receive buffer, and sends the next line as soon as it fits. Every line is
+ * acknowledged by an "ok" (or "error:N") in order, which frees its bytes. This keeps GRBL's buffers
+ * full, so short segments don't starve the planner the way they do waiting for each "ok".
+ *
+ * Lines are formatted with WordFormatter without spaces, comments or line numbers, to make the
+ * most of the receive buffer. A line too long for GRBL's 80 character line buffer stops the job
+ * before it is sent, and an "error:N" or "ALARM:N" response stops it with an IOException. Other
+ * messages ([MSG:...] and status reports) are ignored. Nothing is sent until GRBL's start-up banner
+ * has been read, as opening the port resets the controller.
+ *
+ * The time from sending each block to its "ok" is recorded, and on close the ack latency and the
+ * sustained number of blocks per second are logged.
+ */
+public class GrblSender implements StateSink
+{
+    private static final Logger logger = Logger.getLogger((Main.class.getName()));
+
+    /**
+     * Size of GRBL's serial receive buffer.
+     */
+    public static final int RX_BUFFER_SIZE = 128;
+
+    /**
+     * Size of GRBL's line buffer. A line of more than LINE_BUFFER_SIZE - 1 characters, not counting
+     * its newline, is rejected with "error:11" (line overflow).
+     */
+    public static final int LINE_BUFFER_SIZE = 80;
+
+    private static final Group[] GROUPS = Group.values();
+    private static final Axis[] AXES = Axis.values();
+
+    /**
+     * The code of each mode, indexed by Mode ordinal.
+     */
+    private static final byte[][] CODES = new byte[Mode.values().length][];
+
+    /**
+     * Decimal places of each word, as State.toString() writes them.
+     */
+    private static final int DECIMALS = 3;
+
+    /**
+     * How long to wait for GRBL's start-up banner (ms). Opening the port resets an Arduino, and
+     * GRBL only prints its banner, and reads lines, once the bootloader has finished.
+     */
+    private static final long BANNER_TIMEOUT_MILLIS = 5000;
+
+    /**
+     * The real-time soft reset command, which makes GRBL print its banner again.
+     */
+    private static final int SOFT_RESET = 0x18;
+
+    /**
+     * Number of latency histogram buckets. Bucket i counts latencies of 2^i to 2^(i+1) microseconds.
+     */
+    private static final int BUCKETS = 40;
+
+    static
+    {
+        for (Mode m : Mode.values())
+        {
+            CODES[m.ordinal()] = m.code().getBytes(StandardCharsets.US_ASCII);
+        }
+    }
+
+    /**
+     * Responses from GRBL, and the lines sent to it.
+     */
+    private final InputStream in;
+    private final OutputStream out;
+
+    /**
+     * The line being sent. Room is left for one word past the line buffer size, so a line that is
+     * too long is caught after formatting the word that makes it too long.
+     */
+    private final byte[] line = new byte[LINE_BUFFER_SIZE + WordFormatter.MAX_WORD_LENGTH + 1];
+
+    /**
+     * The response being read.
+     */
+    private final StringBuilder response = new StringBuilder();
+
+    /**
+     * The unacknowledged lines, oldest first, in a ring: their lengths, send times (ns) and input
+     * line numbers. Each line is at least two bytes, so at most half the receive buffer's size can
+     * be waiting.
+     */
+    private final int[] sentLengths = new int[RX_BUFFER_SIZE / 2];
+    private final long[] sentTimes = new long[RX_BUFFER_SIZE / 2];
+    private final int[] sentLines = new int[RX_BUFFER_SIZE / 2];
+    private int oldest = 0;
+    private int waiting = 0;
+
+    /**
+     * Number of bytes of unacknowledged lines in GRBL's receive buffer.
+     */
+    private int bufferedBytes = 0;
+
+    /**
+     * True once abort() has been called. Volatile as abort() may be called from another thread
+     * when the sender runs in a pipeline stage.
+     */
+    private volatile boolean aborted = false;
+
+    private boolean closed = false;
+
+    /**
+     * True once GRBL's banner has been seen.
+     */
+    private boolean started = false;
+
+    /* Statistics */
+    private long blocksSent = 0;
+    private long bytesSent = 0;
+    private long firstSent = 0;
+    private long lastAck = 0;
+    private long totalLatency = 0;
+    private long maxLatency = 0;
+    private final long[] latencies = new long[BUCKETS];
+
+    /**
+     * Opens a serial port device and returns a sender for it. The port must already be set up for
+     * GRBL (for example with "stty -F /dev/ttyUSB0 115200 raw -echo"), as Java can't set the baud
+     * rate of a port.
+     *
+     * @param port the path of the serial port device
+     * @return the sender
+     * @throws IOException if the port can't be opened
+     */
+    public static GrblSender open(String port) throws IOException
+    {
+        FileInputStream in = new FileInputStream(port);
+        try
+        {
+            return new GrblSender(in, new FileOutputStream(port));
+        }
+        catch (IOException ex)
+        {
+            in.close();
+            throw ex;
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param in the responses from GRBL
+     * @param out the stream to send lines to GRBL on
+     */
+    public GrblSender(InputStream in, OutputStream out)
+    {
+        this.in = new BufferedInputStream(in);
+        this.out = out;
+    }
+
+    /**
+     * Sends a state to GRBL, first waiting for acknowledgements until there is room for it in
+     * GRBL's receive buffer.
+     *
+     * @param state the next block of the program
+     * @throws IOException on an I/O error, or if GRBL reports an error or alarm
+     */
+    @Override
+    public void accept(State state) throws IOException
+    {
+        if (aborted) return;
+        if (!started) start();
+
+        int length = format(state);
+        if (length == 0) return; // nothing but a comment
+        if (length > LINE_BUFFER_SIZE)
+        {
+            throw new IOException("Line " + state.lineNum + " has more than " + (LINE_BUFFER_SIZE - 1)
+                    + " characters, the most GRBL's line buffer holds");
+        }
+
+        while (bufferedBytes + length > RX_BUFFER_SIZE)
+        {
+            readResponse();
+        }
+
+        out.write(line, 0, length);
+        out.flush();
+
+        long now = System.nanoTime();
+        if (blocksSent == 0) firstSent = now;
+        int slot = (oldest + waiting) % sentLengths.length;
+        sentLengths[slot] = length;
+        sentTimes[slot] = now;
+        sentLines[slot] = state.lineNum;
+        waiting++;
+        bufferedBytes += length;
+        blocksSent++;
+        bytesSent += length;
+    }
+
+    /**
+     * Waits for GRBL to acknowledge every line sent, logs the statistics and closes the streams.
+     *
+     * @throws IOException on an I/O error, or if GRBL reports an error or alarm
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if (closed) return;
+        closed = true;
+        try
+        {
+            while (waiting > 0 && !aborted)
+            {
+                readResponse();
+            }
+        }
+        finally
+        {
+            try
+            {
+                out.close();
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        logStatistics();
+    }
+
+    /**
+     * Stops sending: GRBL is sent a feed hold, so the machine decelerates to a stop without losing
+     * its position, and later states and acknowledgements are ignored. The job can be resumed or
+     * reset from a terminal.
+     */
+    @Override
+    public void abort()
+    {
+        if (aborted) return;
+        aborted = true;
+        try
+        {
+            out.write('!');
+            out.flush();
+        }
+        catch (IOException ex)
+        {
+            // nothing more can be done
+        }
+        logger.warning("Streaming to GRBL abandoned after " + blocksSent + " blocks");
+    }
+
+    /**
+     * Waits for GRBL's start-up banner before the first line is sent, as lines sent while the
+     * controller is resetting are lost and would never be acknowledged. If no banner arrives (the
+     * port did not reset the controller), GRBL is sent a soft reset, which prints it again.
+     *
+     * @throws IOException if GRBL does not answer
+     */
+    private void start() throws IOException
+    {
+        started = true;
+        if (awaitBanner()) return;
+
+        logger.info("No banner from GRBL, sending a soft reset");
+        out.write(SOFT_RESET);
+        out.flush();
+        if (!awaitBanner())
+        {
+            throw new IOException("No answer from GRBL after " + 2 * BANNER_TIMEOUT_MILLIS / 1000 + " seconds");
+        }
+    }
+
+    /**
+     * Reads lines until GRBL's banner ("Grbl 1.1f ['$' for help]") or until the timeout. Anything
+     * before the banner, such as noise while the controller resets, is discarded.
+     *
+     * @return true if the banner was read
+     */
+    private boolean awaitBanner() throws IOException
+    {
+        long deadline = System.nanoTime() + BANNER_TIMEOUT_MILLIS * 1_000_000;
+        response.setLength(0);
+        while (System.nanoTime() < deadline)
+        {
+            // A serial port read can't time out, so only read what has arrived
+            if (in.available() == 0)
+            {
+                LockSupport.parkNanos(10_000_000);
+                continue;
+            }
+
+            int c = in.read();
+            if (c < 0) throw new IOException("GRBL closed the connection before it started");
+            if (c == '\n')
+            {
+                String text = response.toString();
+                response.setLength(0);
+                if (text.startsWith("Grbl "))
+                {
+                    logger.info("Connected to " + text);
+                    return true;
+                }
+            }
+            else if (c != '\r')
+            {
+                response.append((char) c);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Formats a state into the line buffer, with a newline, and returns its length including the
+     * newline, or 0 if the state has no words to send.
+     */
+    private int format(State state)
+    {
+        int pos = 0;
+        for (Group g : GROUPS)
+        {
+            Mode m = state.getGroup(g);
+            if (m != null)
+            {
+                byte[] code = CODES[m.ordinal()];
+                System.arraycopy(code, 0, line, pos, code.length);
+                pos += code.length;
+                if (pos > LINE_BUFFER_SIZE) return pos;
+            }
+        }
+        for (Axis a : AXES)
+        {
+            Double d = state.getAxis(a);
+            if (d != null && a != Axis.LINE_NUM)
+            {
+                pos = WordFormatter.write(line, pos, a.letter(), d, DECIMALS);
+                if (pos > LINE_BUFFER_SIZE) return pos;
+            }
+        }
+        if (pos == 0) return 0;
+        line[pos++] = '\n';
+        return pos;
+    }
+
+    /**
+     * Reads one response line from GRBL. An "ok" acknowledges the oldest line sent.
+     */
+    private void readResponse() throws IOException
+    {
+        response.setLength(0);
+        while (true)
+        {
+            int c = in.read();
+            if (c < 0)
+            {
+                throw new IOException("GRBL closed the connection with " + waiting + " blocks unacknowledged");
+            }
+            if (c == '\n') break;
+            if (c != '\r') response.append((char) c);
+        }
+
+        String text = response.toString();
+        if (text.equals("ok"))
+        {
+            acknowledge();
+        }
+        else if (text.startsWith("error:"))
+        {
+            int lineNum = (waiting > 0) ? sentLines[oldest] : 0;
+            acknowledge();
+            throw new IOException("GRBL rejected line " + lineNum + " with " + text);
+        }
+        else if (text.startsWith("ALARM:"))
+        {
+            throw new IOException("GRBL raised " + text);
+        }
+        else if (text.length() > 0)
+        {
+            logger.fine("GRBL: " + text);
+        }
+    }
+
+    /**
+     * Frees the oldest line's bytes and records its ack latency.
+     */
+    private void acknowledge() throws IOException
+    {
+        if (waiting == 0) throw new IOException("GRBL acknowledged more lines than were sent");
+
+        long now = System.nanoTime();
+        long latency = now - sentTimes[oldest];
+        totalLatency += latency;
+        maxLatency = Math.max(maxLatency, latency);
+        long micros = Math.max(latency / 1000, 1);
+        latencies[Math.min(63 - Long.numberOfLeadingZeros(micros), BUCKETS - 1)]++;
+        lastAck = now;
+
+        bufferedBytes -= sentLengths[oldest];
+        oldest = (oldest + 1) % sentLengths.length;
+        waiting--;
+    }
+
+    /**
+     * Logs the number of blocks sent, the sustained rate and the ack latency.
+     */
+    private void logStatistics()
+    {
+        long acked = blocksSent - waiting;
+        if (acked == 0) return;
+
+        double seconds = Math.max(lastAck - firstSent, 1) / 1e9;
+        logger.info(String.format("   Sent %d blocks (%d bytes) to GRBL in %.1f s: %.0f blocks/s", blocksSent,
+                bytesSent, seconds, acked / seconds));
+        logger.info(String.format("   Ack latency: mean %.2f ms, median < %.2f ms, 99%% < %.2f ms, max %.2f ms",
+                totalLatency / 1e6 / acked, percentile(acked, 0.5), percentile(acked, 0.99), maxLatency / 1e6));
+    }
+
+    /**
+     * Returns the upper bound (ms) of the histogram bucket that holds the given fraction of the
+     * latencies.
+     */
+    private double percentile(long count, double fraction)
+    {
+        long target = (long) Math.ceil(count * fraction);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            seen += latencies[i];
+            if (seen >= target) return Math.min((2L << i) / 1e3, maxLatency / 1e6);
+        }
+        return maxLatency / 1e6;
+    }
+}
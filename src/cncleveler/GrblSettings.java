@@ -0,0 +1,98 @@
+package cncleveler;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.logging.Logger;
+
+/**
+ * The GRBL settings that limit how fast a machine moves, read from a console log of the "$$"
+ * command such as grbl-1.1f-settings-on-Mega.txt.
+ *
+ * Lines look like "$110 = 800.000    (X-axis maximum rate, mm/min)" or "$110=800.000". Settings
+ * that are not in the file keep GRBL's default values. Rates are in mm/min and accelerations in
+ * mm/sec^2, as GRBL reports them.
+ */
+public class GrblSettings
+{
+    private static final Logger logger = Logger.getLogger((Main.class.getName()));
+
+    /* $11 Junction deviation (mm) */
+    public double junctionDeviation = 0.010;
+
+    /* $12 Arc tolerance (mm) */
+    public double arcTolerance = 0.002;
+
+    /* $110-$112 Maximum rate of X, Y and Z (mm/min) */
+    public double[] maxRate = { 500.0, 500.0, 500.0 };
+
+    /* $120-$122 Acceleration of X, Y and Z (mm/sec^2) */
+    public double[] acceleration = { 10.0, 10.0, 10.0 };
+
+    /**
+     * Reads the settings from a GRBL console log.
+     *
+     * @param filename the log file
+     * @return the settings
+     * @throws IOException on IO errors
+     */
+    public static GrblSettings read(String filename) throws IOException
+    {
+        logger.info("Reading: " + filename);
+
+        GrblSettings settings = new GrblSettings();
+        try (MappedLineReader in = new MappedLineReader(Paths.get(filename)))
+        {
+            while (in.nextLine())
+            {
+                if (in.startsWith("$"))
+                {
+                    String line = in.lineText();
+                    try
+                    {
+                        // Setting number before the '=', value up to the first space after it
+                        int equals = line.indexOf('=');
+                        if (equals < 0) continue;
+                        int number = Integer.parseInt(line.substring(1, equals).trim());
+                        String value = line.substring(equals + 1).trim().split("\\s+")[0];
+                        settings.set(number, Double.parseDouble(value));
+                    }
+                    catch (NumberFormatException ex)
+                    {
+                        logger.warning("Error parsing setting: " + line);
+                    }
+                }
+            }
+        }
+
+        logger.info(String.format("   Max rate X%.0f Y%.0f Z%.0f mm/min, acceleration X%.0f Y%.0f Z%.0f mm/sec^2, junction deviation %.3f mm",
+                settings.maxRate[0], settings.maxRate[1], settings.maxRate[2], settings.acceleration[0],
+                settings.acceleration[1], settings.acceleration[2], settings.junctionDeviation));
+        return settings;
+    }
+
+    /**
+     * Sets a setting by its number. Settings that don't affect motion timing are ignored.
+     *
+     * @param number the setting number, without the '$'
+     * @param value the value
+     */
+    public void set(int number, double value)
+    {
+        if (number == 11)
+        {
+            junctionDeviation = value;
+        }
+        else if (number == 12)
+        {
+            arcTolerance = value;
+        }
+        else if (number >= 110 && number <= 112)
+        {
+            maxRate[number - 110] = value;
+        }
+        else if (number >= 120 && number <= 122)
+        {
+            acceleration[number - 120] = value;
+        }
+    }
+}
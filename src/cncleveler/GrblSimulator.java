@@ -0,0 +1,335 @@
+package cncleveler;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+/**
+ * A stand-in for a GRBL controller, for trying a sender without a machine.
+ *
+ * The simulator reads lines on its own thread and answers each with "ok", taking a fixed time to
+ * accept each block as GRBL's parser and planner would. Bytes received are held in a 128 byte
+ * receive buffer like GRBL's; bytes that arrive when it is full are counted as overruns (a real
+ * GRBL would drop them), so a sender that breaks the character-counting protocol shows up in the
+ * statistics logged on close.
+ *
+ * The real-time commands are acted on as they arrive and never enter the receive buffer, as in
+ * GRBL: a feed hold ('!') stops blocks being accepted until a cycle start ('~'), a status query
+ * ('?') is answered with the state (Idle, Run or Hold), and a soft reset (Ctrl-X) empties the
+ * buffer and sends the banner again. The sender hanging up, by closing its end of either pipe,
+ * ends the simulation normally; lines still in the receive buffer are dropped.
+ *
+ * connect() runs a simulator over a pair of pipes within the process. The constructor takes any
+ * pair of streams, so the simulator can also be run on one end of a named pipe or pseudo-terminal.
+ */
+public class GrblSimulator implements Closeable
+{
+    private static final Logger logger = Logger.getLogger((Main.class.getName()));
+
+    /**
+     * Size of each pipe created by connect(), comfortably more than the receive buffer.
+     */
+    private static final int PIPE_SIZE = 4096;
+
+    private static final byte SOFT_RESET = 0x18;
+    private static final byte FEED_HOLD = '!';
+    private static final byte CYCLE_START = '~';
+    private static final byte STATUS_QUERY = '?';
+
+    private static final byte[] OK = "ok\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] BANNER = "Grbl 1.1f ['$' for help]\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * The lines from the sender, and the stream responses are written to.
+     */
+    private final InputStream in;
+    private final OutputStream out;
+
+    /**
+     * Time taken to accept each block (ns).
+     */
+    private final long blockNanos;
+
+    /**
+     * The receive buffer, a ring of received bytes waiting to be processed.
+     */
+    private final byte[] rx = new byte[GrblSender.RX_BUFFER_SIZE];
+    private int rxStart = 0;
+    private int rxCount = 0;
+
+    /**
+     * Number of complete lines in the receive buffer.
+     */
+    private int rxLines = 0;
+
+    /**
+     * When the block being accepted will be done (ns).
+     */
+    private long busyUntil = 0;
+
+    /**
+     * True while in a feed hold.
+     */
+    private boolean held = false;
+
+    /**
+     * True while the sender is still connected.
+     */
+    private boolean open = true;
+
+    /**
+     * The simulator thread.
+     */
+    private final Thread thread;
+
+    /**
+     * The sender's ends of the pipes, if created by connect().
+     */
+    private InputStream senderIn = null;
+    private OutputStream senderOut = null;
+
+    /**
+     * The exception that stopped the simulator thread, if any.
+     */
+    private volatile IOException failure = null;
+
+    /* Statistics, read after the thread has finished */
+    private long blocks = 0;
+    private long overruns = 0;
+    private int maxBuffered = 0;
+
+    /**
+     * Starts a simulator connected to a pair of pipes. The sender's ends of the pipes are returned
+     * by senderInput() and senderOutput().
+     *
+     * @param blockMicros the time taken to accept each block (microseconds)
+     * @return the running simulator
+     * @throws IOException if the pipes can't be connected
+     */
+    public static GrblSimulator connect(long blockMicros) throws IOException
+    {
+        PipedInputStream commands = new PipedInputStream(PIPE_SIZE);
+        PipedOutputStream senderOut = new PipedOutputStream(commands);
+        PipedOutputStream responses = new PipedOutputStream();
+        PipedInputStream senderIn = new PipedInputStream(responses, PIPE_SIZE);
+
+        GrblSimulator simulator = new GrblSimulator(commands, responses, blockMicros);
+        simulator.senderIn = senderIn;
+        simulator.senderOut = senderOut;
+        return simulator;
+    }
+
+    /**
+     * Constructor, which starts the simulator thread.
+     *
+     * @param in the lines sent to GRBL
+     * @param out the stream to write GRBL's responses to
+     * @param blockMicros the time taken to accept each block (microseconds)
+     */
+    public GrblSimulator(InputStream in, OutputStream out, long blockMicros)
+    {
+        this.in = in;
+        this.out = out;
+        this.blockNanos = blockMicros * 1000;
+        thread = new Thread(this::run, "GRBL simulator");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Returns the stream a sender reads the simulator's responses from, if created by connect().
+     */
+    public InputStream senderInput()
+    {
+        return senderIn;
+    }
+
+    /**
+     * Returns the stream a sender sends lines to the simulator on, if created by connect().
+     */
+    public OutputStream senderOutput()
+    {
+        return senderOut;
+    }
+
+    /**
+     * Returns the number of blocks accepted. Read after close().
+     */
+    public long blocksAccepted()
+    {
+        return blocks;
+    }
+
+    /**
+     * Returns the number of bytes received when the receive buffer was full. Read after close().
+     */
+    public long overruns()
+    {
+        return overruns;
+    }
+
+    /**
+     * Returns the most bytes held in the receive buffer at once. Read after close().
+     */
+    public int maxBuffered()
+    {
+        return maxBuffered;
+    }
+
+    /**
+     * Waits for the sender to hang up, then logs the simulator's statistics.
+     *
+     * @throws IOException if the simulator failed
+     */
+    @Override
+    public void close() throws IOException
+    {
+        try
+        {
+            thread.join();
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for the GRBL simulator");
+        }
+        logger.info(String.format("   GRBL simulator accepted %d blocks, receive buffer peaked at %d bytes, %d bytes overrun",
+                blocks, maxBuffered, overruns));
+        if (failure != null) throw failure;
+    }
+
+    /**
+     * The simulator thread: receives bytes as they arrive and accepts one complete line at a time.
+     */
+    private void run()
+    {
+        try
+        {
+            respond(BANNER);
+            while (open)
+            {
+                if (held || rxLines == 0 || in.available() > 0)
+                {
+                    // Nothing to do until more bytes arrive, or more are already waiting
+                    int c = in.read();
+                    if (c < 0)
+                    {
+                        open = false;
+                    }
+                    else
+                    {
+                        receive((byte) c);
+                    }
+                    continue;
+                }
+
+                long wait = busyUntil - System.nanoTime();
+                if (wait > 0)
+                {
+                    LockSupport.parkNanos(Math.min(wait, 50_000));
+                    continue;
+                }
+                acceptLine();
+            }
+        }
+        catch (IOException ex)
+        {
+            failure = ex;
+        }
+        finally
+        {
+            try
+            {
+                out.close();
+            }
+            catch (IOException ex)
+            {
+                // nothing more can be done
+            }
+        }
+    }
+
+    /**
+     * Adds a received byte to the receive buffer, or counts it as an overrun if the buffer is full.
+     * Real-time commands are acted on at once instead, as GRBL does.
+     */
+    private void receive(byte c)
+    {
+        switch (c)
+        {
+        case SOFT_RESET:
+            rxStart = 0;
+            rxCount = 0;
+            rxLines = 0;
+            held = false;
+            respond(BANNER);
+            return;
+        case FEED_HOLD:
+            held = true;
+            return;
+        case CYCLE_START:
+            held = false;
+            return;
+        case STATUS_QUERY:
+            String status = held ? "Hold:0" : (rxLines > 0 || busyUntil > System.nanoTime()) ? "Run" : "Idle";
+            respond(("<" + status + ">\r\n").getBytes(StandardCharsets.US_ASCII));
+            return;
+        default:
+            break;
+        }
+        if (rxCount == rx.length)
+        {
+            overruns++;
+            return;
+        }
+        rx[(rxStart + rxCount) % rx.length] = c;
+        rxCount++;
+        maxBuffered = Math.max(maxBuffered, rxCount);
+        if (c == '\n') rxLines++;
+    }
+
+    /**
+     * Takes the oldest line from the receive buffer and acknowledges it.
+     */
+    private void acceptLine()
+    {
+        while (rx[rxStart] != '\n')
+        {
+            rxStart = (rxStart + 1) % rx.length;
+            rxCount--;
+        }
+        rxStart = (rxStart + 1) % rx.length;
+        rxCount--;
+        rxLines--;
+
+        blocks++;
+        busyUntil = System.nanoTime() + blockNanos;
+        respond(OK);
+    }
+
+    /**
+     * Sends a response to the sender. If the sender has closed its end of the pipe it has hung up,
+     * which ends the simulation.
+     */
+    private void respond(byte[] response)
+    {
+        if (!open) return;
+        try
+        {
+            out.write(response);
+            out.flush();
+        }
+        catch (IOException ex)
+        {
+            logger.fine("GRBL simulator: sender hung up (" + ex.getMessage() + ")");
+            open = false;
+        }
+    }
+}
@@ -1,41 +1,66 @@
 package cncleveler;
 
+/**
+ * Defines the groups of G code words. Only one word from each group may appear in a block. Also
+ * flags if the group is modal -- true if its setting carries forward to the next G code line (block).
+ */
 public enum Group
 {
     /**
      * Values for modal G-Codes.
      */
-    // Motion modes: {G0, G1, G2, G3}
-    MOTION,
+    // Motion modes: {G0, G1, G2, G3, G38.2}
+    MOTION(true),
 
     // plane modes: {G17, G18, G19}
-    PLANE,
+    PLANE(true),
 
     // distance modes: {G90, G91}
-    DISTANCE,
+    DISTANCE(true),
 
     // feed rate modes: {G93, G94}
-    RATE_MODE,
+    RATE_MODE(true),
 
     // units modes: {G20, G21}
-    UNITS,
+    UNITS(true),
 
     // cutter radius compensation: {G40, G41, G42}
-    CUTTER_COMP,
+    CUTTER_COMP(true),
 
     // tool length offsets modes: {G43, G44, G49}
-    TOOL_LENGTH,
+    TOOL_LENGTH(true),
 
     // work coordinate system modes: {G54, G55, G56, G57, G58, G59}
-    WORK_COORDINATES,
+    WORK_COORDINATES(true),
 
     // spindle turning modes: {M3, M4, M5}
-    SPINDLE,
+    SPINDLE(true),
 
     // coolant modes: {M7, M8, M9}
-    COOLANT,
+    COOLANT(true),
 
     // stopping modes: {M0, M1, M2, M30, M60}
-    STOPPING
+    STOPPING(true),
 
+    /**
+     * Values for non-modal G-Codes, which only apply to the block they appear in.
+     */
+    // non-modal codes: {G4, G10, G28, G30, G53}
+    NON_MODAL(false);
+
+    private final boolean modal;
+
+    /* 
+     * Private constructor only used by the enum definitions themselves.
+     * 
+     * @param modal
+     *            True if this group is modal
+     */
+    private Group(boolean modal)
+    {
+        this.modal = modal;
+    }
+
+    /* Getters */
+    public boolean modal() { return modal; }
 }
@@ -0,0 +1,254 @@
+package cncleveler;
+
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+/**
+ * Remembers probe heights by (X,Y) position, so that programs that pass over the same positions
+ * many times (a contour cut at Z0, then Z-0.100, and so on) only interpolate each position once.
+ *
+ * Positions are quantized to the output resolution, and the height is interpolated at the
+ * quantized position, so the result does not depend on the order of queries. The cache is an
+ * open-addressing hash table of primitive keys and values holding at most maxEntries positions.
+ * When full, an entry is evicted using the clock (second chance) algorithm: entries that have been
+ * hit since the clock hand last passed are kept.
+ *
+ * Like ProbeGrid, an InterpolationCache must not be queried from more than one thread at a time.
+ */
+public class InterpolationCache
+{
+    private static final Logger logger = Logger.getLogger((Main.class.getName()));
+
+    /**
+     * Marks an unused slot. No quantized position packs to this key.
+     */
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    /**
+     * The probe data that heights are interpolated from.
+     */
+    private final ProbeSurface grid;
+
+    /**
+     * The size of the quantization step in X and Y.
+     */
+    private final double resolution;
+
+    /**
+     * The largest number of positions held.
+     */
+    private final int maxEntries;
+
+    /* The hash table: packed quantized position, height and clock reference bit of each slot */
+    private final long[] keys;
+    private final double[] values;
+    private final boolean[] referenced;
+
+    /**
+     * The number of table slots minus one. The table size is a power of two.
+     */
+    private final int mask;
+
+    /**
+     * The number of bits in a slot index.
+     */
+    private final int bits;
+
+    /**
+     * Number of positions held.
+     */
+    private int size = 0;
+
+    /**
+     * The slot the clock hand is on.
+     */
+    private int hand = 0;
+
+    /* Statistics */
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    /**
+     * Constructor
+     *
+     * @param grid the probe data to interpolate from
+     * @param maxEntries the largest number of positions to hold
+     * @param resolution the quantization step in X and Y, for example 0.001 mm
+     */
+    public InterpolationCache(ProbeSurface grid, int maxEntries, double resolution)
+    {
+        if (maxEntries < 1 || maxEntries > (1 << 29))
+        {
+            throw new IllegalArgumentException("Cache size out of range: " + maxEntries);
+        }
+        this.grid = grid;
+        this.resolution = resolution;
+        this.maxEntries = maxEntries;
+
+        // Keep the table at most half full so probe sequences stay short
+        int capacity = Integer.highestOneBit(2 * maxEntries - 1) << 1;
+        bits = Integer.numberOfTrailingZeros(capacity);
+        mask = capacity - 1;
+        keys = new long[capacity];
+        values = new double[capacity];
+        referenced = new boolean[capacity];
+        Arrays.fill(keys, EMPTY);
+    }
+
+    /**
+     * Returns the probe height at (x,y), quantized to the cache resolution.
+     *
+     * @param x The X coordinate
+     * @param y The Y coordinate
+     * @return the interpolated Z value
+     */
+    public double getProbeHeight(double x, double y)
+    {
+        long qx = Math.round(x / resolution);
+        long qy = Math.round(y / resolution);
+        if (Double.isNaN(x) || Double.isNaN(y) || Math.abs(qx) >= Integer.MAX_VALUE || Math.abs(qy) >= Integer.MAX_VALUE)
+        {
+            // Not a position, or too far out to pack into a key, so do not cache
+            misses++;
+            return grid.getProbeHeight(x, y);
+        }
+
+        long key = (qx << 32) | (qy & 0xFFFFFFFFL);
+        int slot = find(key);
+        if (keys[slot] == key)
+        {
+            hits++;
+            referenced[slot] = true;
+            return values[slot];
+        }
+
+        misses++;
+        double z = grid.getProbeHeight(qx * resolution, qy * resolution);
+        if (size >= maxEntries)
+        {
+            evict();
+            slot = find(key);
+        }
+        keys[slot] = key;
+        values[slot] = z;
+        referenced[slot] = false;
+        size++;
+        return z;
+    }
+
+    /**
+     * Returns the probe heights of a range of (x,y) coordinates.
+     *
+     * @param xs the X coordinates
+     * @param ys the Y coordinates
+     * @param out receives the interpolated Z values
+     * @param offset the index of the first point in xs, ys and out
+     * @param count the number of points
+     */
+    public void getProbeHeights(double[] xs, double[] ys, double[] out, int offset, int count)
+    {
+        for (int n = offset; n < offset + count; n++)
+        {
+            out[n] = getProbeHeight(xs[n], ys[n]);
+        }
+    }
+
+    /**
+     * Returns the number of queries answered from the cache.
+     */
+    public long hits()
+    {
+        return hits;
+    }
+
+    /**
+     * Returns the number of queries that were interpolated.
+     */
+    public long misses()
+    {
+        return misses;
+    }
+
+    /**
+     * Reports the hit and miss counts to the logger.
+     */
+    public void logStatistics()
+    {
+        long total = hits + misses;
+        double rate = (total == 0) ? 0.0 : 100.0 * hits / total;
+        logger.info(String.format("   Interpolation cache: %d hits, %d misses (%.1f%% hit rate), %d evictions", hits,
+                misses, rate, evictions));
+    }
+
+    /**
+     * Returns the slot holding key, or the empty slot where it would be inserted.
+     */
+    private int find(long key)
+    {
+        int slot = home(key);
+        while (keys[slot] != EMPTY && keys[slot] != key)
+        {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Returns the first slot to probe for a key.
+     */
+    private int home(long key)
+    {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> (64 - bits));
+    }
+
+    /**
+     * Advances the clock hand to the first entry that has not been hit since the hand last passed
+     * it, clearing reference bits on the way, and removes that entry.
+     */
+    private void evict()
+    {
+        while (true)
+        {
+            hand = (hand + 1) & mask;
+            if (keys[hand] == EMPTY) continue;
+            if (referenced[hand])
+            {
+                referenced[hand] = false;
+            }
+            else
+            {
+                remove(hand);
+                evictions++;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Removes the entry in a slot, shifting later entries of the same probe sequence back so that
+     * no lookup passes over an empty slot before reaching its key.
+     */
+    private void remove(int slot)
+    {
+        int hole = slot;
+        int i = slot;
+        while (true)
+        {
+            i = (i + 1) & mask;
+            if (keys[i] == EMPTY) break;
+
+            // Move the entry into the hole unless its home slot lies after the hole
+            int home = home(keys[i]);
+            if (((i - home) & mask) >= ((i - hole) & mask))
+            {
+                keys[hole] = keys[i];
+                values[hole] = values[i];
+                referenced[hole] = referenced[i];
+                hole = i;
+            }
+        }
+        keys[hole] = EMPTY;
+        size--;
+    }
+}
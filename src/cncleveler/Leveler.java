@@ -1,60 +1,344 @@
 package cncleveler;
 
+import java.io.IOException;
 import java.util.List;
 import java.util.logging.Logger;
 
-public class Leveler
+/**
+ * Adjusts the Z value of each block of G code by the probed surface height at the block's (X,Y)
+ * position.
+ *
+ * A Leveler is a StateSink stage: each state passed to accept() is resolved, leveled and handed on
+ * to the next stage, so only the running modal state is held in memory. The static level() methods
+ * level an already parsed list of states or columnar program in place, reading positions from a
+ * shared PositionIndex.
+ *
+ * Each block is leveled from its programmed (unleveled) position, so the probe height is added
+ * once per block. Incremental (G91) blocks get an incremental Z word, and inch (G20) programs are
+ * converted to and from the millimeter probe data.
+ */
+public class Leveler implements StateSink
 {
     private static final Logger logger = Logger.getLogger((Main.class.getName()));
 
     /**
-     * Updates each state in states with an adjusted Z value based on probe data
+     * Millimeters per inch, for programs in G20 units.
+     */
+    private static final double MM_PER_INCH = 25.4;
+
+    /**
+     * Number of blocks whose probe heights are looked up together when leveling from a
+     * PositionIndex.
+     */
+    private static final int BATCH_SIZE = 4096;
+
+    /**
+     * The probe data used to level each block.
+     */
+    private final ProbeSurface grid;
+
+    /**
+     * Remembers the probe heights of positions already leveled, or null if disabled.
+     */
+    private final InterpolationCache cache;
+
+    /**
+     * The next stage to receive leveled states. May be null.
+     */
+    private final StateSink next;
+
+    /**
+     * The running modal state of the input program when leveling a stream of states.
+     */
+    private final ModalResolver resolver = new ModalResolver();
+
+    /**
+     * The absolute Z position of the leveled output after the last block. NaN until known.
+     */
+    private double outputZ = Double.NaN;
+
+    /**
+     * Coordinates (in millimeters) and probe heights of a batch of PositionIndex entries, starting
+     * at entry batchStart. Allocated on first use.
+     */
+    private double[] batchX = null;
+    private double[] batchY = null;
+    private double[] batchHeights = null;
+    private int batchStart = -1;
+
+    /**
+     * Number of blocks that have had Z adjusted.
+     */
+    private int count = 0;
+
+    /**
+     * Minimum of each axis after adjustment.
+     */
+    private final Point3 min = new Point3(Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY,
+            Double.POSITIVE_INFINITY);
+
+    /**
+     * Maximum of each axis after adjustment.
+     */
+    private final Point3 max = new Point3(Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY,
+            Double.NEGATIVE_INFINITY);
+
+    /**
+     * Constructor
+     *
+     * @param grid the probe data to level against
+     * @param next the stage that receives each leveled state, or null if none
      */
-    public static void level(List<State> states, ProbeGrid grid)
+    public Leveler(ProbeSurface grid, StateSink next)
     {
+        this.grid = grid;
+        this.next = next;
+        this.cache = (Config.interpolationCacheSize > 0)
+                ? new InterpolationCache(grid, Config.interpolationCacheSize, Config.interpolationResolution)
+                : null;
         logger.info("Leveling states");
+    }
 
-        // The running state as each state is processed
-        State globalState = new State();
+    /**
+     * Updates each state in states with an adjusted Z value based on probe data
+     */
+    public static void level(List<State> states, ProbeSurface grid)
+    {
+        level(states, PositionIndex.build(states), grid);
+    }
 
-        int count = 0;
-        Point3 min = new Point3(Double.POSITIVE_INFINITY,Double.POSITIVE_INFINITY,Double.POSITIVE_INFINITY);
-        Point3 max = new Point3(Double.NEGATIVE_INFINITY,Double.NEGATIVE_INFINITY,Double.NEGATIVE_INFINITY);
-                
-                
+    /**
+     * Updates each state in states with an adjusted Z value based on probe data, using positions
+     * that have already been resolved.
+     *
+     * @param states the program to level
+     * @param index the resolved positions of the program
+     * @param grid the probe data to level against
+     */
+    public static void level(List<State> states, PositionIndex index, ProbeSurface grid)
+    {
+        Leveler leveler = new Leveler(grid, null);
+        int i = 0;
         for (State state : states)
         {
-            // Include this state in the global state
-            globalState.mergeWith(state);
-            
-            // If motion and Z has been defined prior to this point...
-            if (globalState.getGroup(Group.MOTION) != null && globalState.getAxis(Axis.Z) != null)
+            double z = leveler.levelZ(state.hasPosition(), state.getGroup(Group.NON_MODAL) != null, index, i++);
+            if (!Double.isNaN(z)) state.setAxis(Axis.Z, z);
+        }
+        leveler.logStatistics();
+    }
+
+    /**
+     * Updates each block of a columnar program with an adjusted Z value based on probe data. This
+     * gives the same result as leveling the equivalent list of states.
+     */
+    public static void level(ProgramStore program, ProbeSurface grid)
+    {
+        level(program, PositionIndex.build(program), grid);
+    }
+
+    /**
+     * Updates each block of a columnar program with an adjusted Z value based on probe data, using
+     * positions that have already been resolved.
+     *
+     * @param program the program to level
+     * @param index the resolved positions of the program
+     * @param grid the probe data to level against
+     */
+    public static void level(ProgramStore program, PositionIndex index, ProbeSurface grid)
+    {
+        Leveler leveler = new Leveler(grid, null);
+        int positionMask = (1 << Axis.X.ordinal()) | (1 << Axis.Y.ordinal()) | (1 << Axis.Z.ordinal());
+
+        int n = program.size();
+        for (int block = 0; block < n; block++)
+        {
+            boolean moves = (program.getAxisMask(block) & positionMask) != 0;
+            boolean nonModal = program.getGroup(block, Group.NON_MODAL) != null;
+            double z = leveler.levelZ(moves, nonModal, index, block);
+            if (!Double.isNaN(z)) program.setAxis(block, Axis.Z, z);
+        }
+        leveler.logStatistics();
+    }
+
+    /**
+     * Levels the state and passes it to the next stage.
+     *
+     * @param state the state to level
+     */
+    @Override
+    public void accept(State state) throws IOException
+    {
+        level(state);
+        if (next != null) next.accept(state);
+    }
+
+    /**
+     * Logs the leveling statistics and closes the next stage.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        logStatistics();
+        if (next != null) next.close();
+    }
+
+    /**
+     * Abandons the job: the next stage is aborted.
+     */
+    @Override
+    public void abort()
+    {
+        if (next != null) next.abort();
+    }
+
+    /**
+     * Updates the state with an adjusted Z value based on probe data
+     *
+     * @param state the state to level
+     */
+    protected void level(State state)
+    {
+        resolver.resolve(state);
+        double z = levelZ(state.hasPosition(), state.getGroup(Group.NON_MODAL) != null, resolver.x, resolver.y,
+                resolver.z, resolver.motion, resolver.distance, resolver.units);
+        if (!Double.isNaN(z)) state.setAxis(Axis.Z, z);
+    }
+
+    /**
+     * Computes the leveled Z word for entry i of a position index. Probe heights are looked up a
+     * batch of entries at a time.
+     */
+    private double levelZ(boolean moves, boolean nonModal, PositionIndex index, int i)
+    {
+        double x = index.x[i];
+        double y = index.y[i];
+        double z = index.z[i];
+        if (!isLeveled(moves, nonModal, x, y, z, PositionIndex.mode(index.motion[i]))) return Double.NaN;
+
+        return adjust(x, y, z, PositionIndex.mode(index.distance[i]), batchHeight(index, i));
+    }
+
+    /**
+     * Computes the leveled Z word for a block.
+     *
+     * @param moves true if the block sets X, Y or Z
+     * @param nonModal true if the block has a non-modal code (G10, G28, G53 ...)
+     * @param x the resolved absolute X position after the block
+     * @param y the resolved absolute Y position after the block
+     * @param z the resolved (unleveled) absolute Z position after the block
+     * @param motion the motion mode in effect
+     * @param distance the distance mode in effect
+     * @param units the units mode in effect
+     * @return the new Z word for the block, or NaN if the block is not leveled
+     */
+    protected double levelZ(boolean moves, boolean nonModal, double x, double y, double z, Mode motion,
+            Mode distance, Mode units)
+    {
+        if (!isLeveled(moves, nonModal, x, y, z, motion)) return Double.NaN;
+
+        double height;
+        if (units == Mode.INCHES)
+        {
+            height = probeHeight(x * MM_PER_INCH, y * MM_PER_INCH) / MM_PER_INCH;
+        }
+        else
+        {
+            height = probeHeight(x, y);
+        }
+        return adjust(x, y, z, distance, height);
+    }
+
+    /**
+     * Returns the probe height at (x,y) in millimeters, from the cache when enabled.
+     */
+    private double probeHeight(double x, double y)
+    {
+        return (cache != null) ? cache.getProbeHeight(x, y) : grid.getProbeHeight(x, y);
+    }
+
+    /**
+     * Returns true if a block is leveled. Until leveling starts the output follows the programmed Z.
+     */
+    private boolean isLeveled(boolean moves, boolean nonModal, double x, double y, double z, Mode motion)
+    {
+        // Non-modal blocks (G10, G28, G53 ...) do not program a position in work coordinates
+        if (nonModal || !moves) return false;
+
+        // If motion and X, Y and Z have been defined prior to this point...
+        if (motion == null || Double.isNaN(x) || Double.isNaN(y) || Double.isNaN(z))
+        {
+            outputZ = z;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the probe height for entry i of a position index, in the units of that entry. When i
+     * is outside the current batch, the heights of the next BATCH_SIZE entries are looked up in one
+     * call.
+     */
+    private double batchHeight(PositionIndex index, int i)
+    {
+        if (batchHeights == null)
+        {
+            batchX = new double[BATCH_SIZE];
+            batchY = new double[BATCH_SIZE];
+            batchHeights = new double[BATCH_SIZE];
+        }
+
+        if ((batchStart < 0) || (i < batchStart) || (i >= batchStart + BATCH_SIZE))
+        {
+            batchStart = i;
+            int n = Math.min(BATCH_SIZE, index.size() - i);
+            for (int k = 0; k < n; k++)
             {
-                // and this state defines x, y, or z, then we need to update z in this state
-                if (state.getAxis(Axis.X) != null || state.getAxis(Axis.Y) != null || state.getAxis(Axis.Z) != null)
-                {
-
-                    Double x = globalState.getAxis(Axis.X);
-                    Double y = globalState.getAxis(Axis.Y);
-                    Double z = globalState.getAxis(Axis.Z);
-                    if (x != null && y != null && z != null)
-                    {
-                        double adjustedZ = z + grid.getProbeHeight(x, y);
-                        state.setAxis(Axis.Z, adjustedZ);
-                        globalState.setAxis(Axis.Z, adjustedZ);
-                        count++;
-                        
-                        // compute min/max of each axis
-                        min.minWith(x, y, adjustedZ);
-                        max.maxWith(x, y, adjustedZ);
-                    }
-                }
+                double scale = (PositionIndex.mode(index.units[i + k]) == Mode.INCHES) ? MM_PER_INCH : 1.0;
+                batchX[k] = index.x[i + k] * scale;
+                batchY[k] = index.y[i + k] * scale;
+            }
+            if (cache != null)
+            {
+                cache.getProbeHeights(batchX, batchY, batchHeights, 0, n);
+            }
+            else
+            {
+                grid.getProbeHeights(batchX, batchY, batchHeights, 0, n);
             }
         }
+
+        double height = batchHeights[i - batchStart];
+        return (PositionIndex.mode(index.units[i]) == Mode.INCHES) ? height / MM_PER_INCH : height;
+    }
+
+    /**
+     * Returns the Z word for a block whose programmed Z is adjusted by height, and records the
+     * adjustment in the statistics.
+     */
+    private double adjust(double x, double y, double z, Mode distance, double height)
+    {
+        double adjustedZ = z + height;
+        count++;
+
+        // compute min/max of each axis
+        min.minWith(x, y, adjustedZ);
+        max.maxWith(x, y, adjustedZ);
+
+        double word = (distance == Mode.INCREMENTAL) ? adjustedZ - outputZ : adjustedZ;
+        outputZ = adjustedZ;
+        return word;
+    }
+
+    /**
+     * Reports the number of adjusted blocks and the extents after adjustment to the logger.
+     */
+    private void logStatistics()
+    {
         logger.info("   " + count + " blocks adjusted");
         logger.info("   After adjustment:");
         logger.info("     Min : " + min);
         logger.info("     Max : " + max);
+        if (cache != null) cache.logStatistics();
         logger.info("Leveling complete");
     }
 }
@@ -22,39 +22,298 @@ public class Main
         setupLogger();
         logger.info("Starting");
 
+        if (Config.probeProgram != null)
+        {
+            ProbeProgramGenerator.generate("gcode.nc", Config.probeProgram);
+            logger.info("Done.");
+            return;
+        }
+
         List<Point3> probes = ProbeLogReader.read("probe-results-4.txt");
-        ProbeGrid grid = new ProbeGrid(probes);
-        //ProbeGrid grid = new ProbeGrid(testProbes());
-
-         PyPlotGrid plot = new PyPlotGrid();
-         plot.plot(grid);
-
-        GCodeParser parser = new GCodeParser();
-        List<State> states = parser.read("gcode.nc");
-        parser = null;
-        
-        Leveler.level(states, grid);
-
-        //replayStates(states);
-        
-        GCodeWriter.write("gcode_leveled.nc", states);
- 
+        if (Config.refinementProbes != null)
+        {
+            probes.addAll(ProbeLogReader.read(Config.refinementProbes));
+        }
+        ProbeSurface surface;
+        if (Config.delaunaySurface)
+        {
+            surface = new DelaunaySurface(probes);
+            if (Config.refineProgram != null)
+            {
+                logger.warning("Refinement needs a probe grid; skipped");
+            }
+        }
+        else
+        {
+            ProbeGrid grid = new ProbeGrid(probes);
+            surface = grid;
+            if (Config.refineProgram != null)
+            {
+                ProbeRefiner.refine(grid, Config.refineTolerance, Config.refineProgram, "probe-results-4.txt");
+            }
+            //ProbeGrid grid = new ProbeGrid(testProbes());
+
+            PyPlotGrid plot = new PyPlotGrid();
+            plot.plot(grid);
+        }
+
+        GrblSettings settings = null;
+        if (Config.estimateCycleTime)
+        {
+            settings = GrblSettings.read(Config.grblSettings);
+            CycleTimeEstimator.estimate("input", "gcode.nc", settings);
+        }
+
+        if (Config.grblPort != null)
+        {
+            streamToGrbl("gcode.nc", Config.grblPort, surface, settings);
+        }
+        else if (Config.streaming)
+        {
+            levelStreaming("gcode.nc", "gcode_leveled.nc", surface, settings);
+        }
+        else if (Config.columnar)
+        {
+            ProgramStore program;
+            if (Config.useCache)
+            {
+                program = new ProgramCache(Config.cacheDir).read("gcode.nc");
+            }
+            else
+            {
+                program = new ProgramStore(Config.offHeap);
+                new GCodeParser().read("gcode.nc", program);
+            }
+            logger.info("   Program store uses " + program.bytesPerBlock() + " bytes per block");
+            if (Config.minimalEdit)
+            {
+                logger.warning("Minimal-edit output is not available for columnar programs; writing every line in full");
+            }
+            if (Config.arcTolerance > 0)
+            {
+                program = ArcLinearizer.linearize(program, surface, Config.arcTolerance, Config.arcFlatnessTolerance);
+            }
+            if (Config.subdivideTolerance > 0)
+            {
+                program = Subdivider.subdivide(program, surface, Config.subdivideTolerance);
+            }
+            PositionIndex index = PositionIndex.build(program);
+
+            Leveler.level(program, index, surface);
+            if (Config.simplifyTolerance > 0)
+            {
+                program = PathSimplifier.simplify(program, Config.simplifyTolerance);
+            }
+            if (settings != null)
+            {
+                CycleTimeEstimator.estimate("leveled", program, settings);
+            }
+
+            //replayStates(program, index);
+
+            GCodeWriter.write("gcode_leveled.nc", program);
+        }
+        else
+        {
+            List<State> states;
+            if (Config.parallelParse)
+            {
+                ParallelGCodeParser parser = new ParallelGCodeParser();
+                parser.keepSourceSpans = Config.minimalEdit;
+                states = parser.read("gcode.nc");
+            }
+            else
+            {
+                GCodeParser parser = new GCodeParser();
+                parser.keepSourceSpans = Config.minimalEdit;
+                states = parser.read("gcode.nc");
+            }
+            if (Config.arcTolerance > 0)
+            {
+                states = ArcLinearizer.linearize(states, surface, Config.arcTolerance, Config.arcFlatnessTolerance);
+            }
+            if (Config.subdivideTolerance > 0)
+            {
+                states = Subdivider.subdivide(states, surface, Config.subdivideTolerance);
+            }
+
+            PositionIndex index = PositionIndex.build(states);
+
+            Leveler.level(states, index, surface);
+            if (Config.simplifyTolerance > 0)
+            {
+                states = PathSimplifier.simplify(states, Config.simplifyTolerance);
+            }
+            if (settings != null)
+            {
+                CycleTimeEstimator.estimate("leveled", states, settings);
+            }
+
+            //replayStates(states, index);
+
+            GCodeWriter.write("gcode_leveled.nc", states, Config.minimalEdit ? "gcode.nc" : null);
+        }
+
         logger.info("Done.");
     }
 
-    protected static void replayStates(List<State> states)
+    /**
+     * Parses, levels and writes a G code file one block at a time. Only the running modal state is
+     * kept, so memory use does not depend on the size of the input file. If settings are given the
+     * cycle time of the leveled program is estimated.
+     */
+    protected static void levelStreaming(String inFilename, String outFilename, ProbeSurface surface,
+            GrblSettings settings) throws IOException
     {
-        State globalState = new State();
-        for (State state : states)
+        GCodeWriter writer = new GCodeWriter(outFilename, Config.minimalEdit ? inFilename : null);
+        stream(inFilename, writer, surface, settings);
+    }
+
+    /**
+     * Parses and levels a G code file one block at a time, sending each block to GRBL as soon as it
+     * is leveled. The port "simulator" streams to a GrblSimulator instead of a machine. If settings
+     * are given the cycle time of the leveled program is estimated.
+     */
+    protected static void streamToGrbl(String inFilename, String port, ProbeSurface surface,
+            GrblSettings settings) throws IOException
+    {
+        if (port.equals("simulator"))
         {
-            globalState.mergeWith(state);
+            try (GrblSimulator simulator = GrblSimulator.connect(Config.grblSimulatorBlockMicros))
+            {
+                GrblSender sender = new GrblSender(simulator.senderInput(), simulator.senderOutput());
+                stream(inFilename, sender, surface, settings);
+            }
+        }
+        else
+        {
+            logger.info("Streaming to GRBL on " + port);
+            GrblSender sender = GrblSender.open(port);
+            stream(inFilename, sender, surface, settings);
+        }
+    }
 
+    /**
+     * Parses a G code file into a chain of streaming stages ending in the given output. If parsing
+     * or a stage fails, including while the chain is closed, the chain is aborted so the output
+     * does not finish a partial job: GCodeWriter drops the partial file and GrblSender holds the
+     * machine. If settings are given the output's cycle time is estimated on the way.
+     */
+    private static void stream(String inFilename, StateSink output, ProbeSurface surface, GrblSettings settings)
+            throws IOException
+    {
+        // With one processor the stage threads would only take turns
+        boolean pipelined = Config.pipelined && Runtime.getRuntime().availableProcessors() > 1;
+        if (pipelined) logger.info("Running each stage on its own thread");
+
+        StateSink last = (settings != null) ? new CycleTimeEstimator("leveled", settings, output) : output;
+        StateSink chain = pipe("write", last, pipelined);
+        if (Config.simplifyTolerance > 0)
+        {
+            chain = pipe("simplify", new PathSimplifier(Config.simplifyTolerance, chain), pipelined);
+        }
+        chain = pipe("level", new Leveler(stageSurface(surface, pipelined), chain), pipelined);
+        if (Config.subdivideTolerance > 0)
+        {
+            chain = pipe("subdivide", new Subdivider(stageSurface(surface, pipelined), Config.subdivideTolerance,
+                    chain), pipelined);
+        }
+        if (Config.arcTolerance > 0)
+        {
+            chain = pipe("arcs", new ArcLinearizer(stageSurface(surface, pipelined), Config.arcTolerance,
+                    Config.arcFlatnessTolerance, chain), pipelined);
+        }
+
+        boolean closing = false;
+        try
+        {
+            if (Config.parallelParse)
+            {
+                ParallelGCodeParser parser = new ParallelGCodeParser();
+                parser.keepOriginalText = false;
+                parser.keepSourceSpans = Config.minimalEdit;
+                parser.read(inFilename, chain);
+            }
+            else
+            {
+                GCodeParser parser = new GCodeParser();
+                parser.keepOriginalText = false;
+                parser.keepSourceSpans = Config.minimalEdit;
+                parser.read(inFilename, chain);
+            }
+            closing = true;
+            chain.close();
+        }
+        catch (IOException | RuntimeException ex)
+        {
+            chain.abort();
+            try
+            {
+                // A stage that failed to close may not have closed the stages after it
+                if (!closing) chain.close();
+                output.close();
+            }
+            catch (IOException | RuntimeException closeEx)
+            {
+                if (closeEx != ex) ex.addSuppressed(closeEx);
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * Returns the stage, run on its own thread if the streaming job is pipelined.
+     */
+    private static StateSink pipe(String name, StateSink stage, boolean pipelined)
+    {
+        return pipelined ? new PipelineStage(name, stage) : stage;
+    }
+
+    /**
+     * Returns the probe surface for a stage. A surface caches its last lookup, so pipelined stages
+     * each get their own copy.
+     */
+    private static ProbeSurface stageSurface(ProbeSurface surface, boolean pipelined)
+    {
+        return pipelined ? surface.copy() : surface;
+    }
+
+    protected static void replayStates(List<State> states, PositionIndex index)
+    {
+        int i = 0;
+        for (State state : states)
+        {
             System.out.println("----------------------------------");
             System.out.println("Orig:   " + state.originalText);
             System.out.println("State:  " + state.toString());
-            System.out.println("Global: " + globalState.toString());
-            // globalState.print();
+            System.out.println("Global: " + describe(index, i++));
+        }
+    }
+
+    protected static void replayStates(ProgramStore program, PositionIndex index)
+    {
+        for (int block = 0; block < program.size(); block++)
+        {
+            System.out.println("----------------------------------");
+            System.out.println("Line:   " + (block + 1));
+            System.out.println("State:  " + program.toString(block));
+            System.out.println("Global: " + describe(index, block));
+        }
+    }
+
+    /**
+     * Formats the resolved position and modes of entry i of a position index.
+     */
+    private static String describe(PositionIndex index, int i)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (byte code : new byte[] { index.motion[i], index.units[i], index.distance[i], index.wcs[i] })
+        {
+            Mode m = PositionIndex.mode(code);
+            if (m != null) sb.append(m.code()).append(' ');
         }
+        sb.append(String.format("X%.3f Y%.3f Z%.3f", index.x[i], index.y[i], index.z[i]));
+        return sb.toString();
     }
 
     protected static List<Point3> testProbes()
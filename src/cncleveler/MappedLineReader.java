@@ -0,0 +1,252 @@
+package cncleveler;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads lines from a text file by memory mapping it and scanning the bytes for line terminators.
+ * No characters are decoded and no Strings are created unless a caller asks for the text of a line,
+ * so plain ASCII files can be processed at disk speed.
+ *
+ * Line terminators are the same as BufferedReader.readLine(): LF, CR or CR LF. Files larger than
+ * the mapping window are mapped one window at a time, always starting a new window at the start of
+ * a line.
+ */
+public class MappedLineReader implements Closeable
+{
+    /**
+     * Maximum number of bytes mapped at once.
+     */
+    private static final long WINDOW_SIZE = 1L << 30;
+
+    /**
+     * The open file, or null when reading from a buffer supplied by the caller.
+     */
+    private final FileChannel channel;
+
+    /**
+     * Total size of the input in bytes.
+     */
+    private final long size;
+
+    /**
+     * The currently mapped window of the input.
+     */
+    private ByteBuffer window;
+
+    /**
+     * Position in the input of the first byte of the current window.
+     */
+    private long windowOffset = 0;
+
+    /**
+     * Index in the window of the first byte of the current line.
+     */
+    private int lineStart = 0;
+
+    /**
+     * Index in the window one past the last byte of the current line, excluding the terminator.
+     */
+    private int lineEnd = 0;
+
+    /**
+     * Index in the window of the first byte of the next line.
+     */
+    private int nextStart = 0;
+
+    /**
+     * Constructor, which opens and maps the file.
+     *
+     * @param path the file to read
+     * @throws IOException on any I/O error
+     */
+    public MappedLineReader(Path path) throws IOException
+    {
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+        size = channel.size();
+        map(0);
+    }
+
+    /**
+     * Constructor to read lines from a buffer that is already in memory, such as a slice of a larger
+     * mapped file. Lines are read from the buffer's position to its limit.
+     *
+     * @param buffer the bytes to read
+     * @param offset the position of the buffer's first byte in the original file
+     */
+    public MappedLineReader(ByteBuffer buffer, long offset)
+    {
+        channel = null;
+        window = buffer.slice();
+        size = window.limit();
+        windowOffset = offset;
+    }
+
+    /**
+     * Advances to the next line.
+     *
+     * @return true if a line is available, false at the end of the input
+     * @throws IOException on any I/O error
+     */
+    public boolean nextLine() throws IOException
+    {
+        int i = nextStart;
+        int limit = window.limit();
+
+        if (i >= limit)
+        {
+            if (!remap(i)) return false;
+            i = nextStart;
+            limit = window.limit();
+        }
+
+        while (true)
+        {
+            // Scan for the line terminator
+            while ((i < limit) && (window.get(i) != '\n') && (window.get(i) != '\r'))
+                i++;
+
+            // A line (or a CR LF pair) that runs off the end of the window is rescanned after mapping
+            // a new window that starts with this line
+            boolean moreInput = (channel != null) && ((windowOffset + limit) < size);
+            boolean split = (i >= limit) || ((i == limit - 1) && (window.get(i) == '\r'));
+            if (moreInput && split)
+            {
+                if (nextStart == 0)
+                {
+                    throw new IOException("Line too long at offset " + windowOffset);
+                }
+                remap(nextStart);
+                i = nextStart;
+                limit = window.limit();
+                continue;
+            }
+            break;
+        }
+
+        lineStart = nextStart;
+        lineEnd = i;
+        if (i < limit)
+        {
+            // skip over the terminator
+            i += (window.get(i) == '\r' && (i + 1) < limit && window.get(i + 1) == '\n') ? 2 : 1;
+        }
+        nextStart = i;
+        return true;
+    }
+
+    /**
+     * Returns the number of bytes in the current line, excluding the terminator.
+     */
+    public int length()
+    {
+        return lineEnd - lineStart;
+    }
+
+    /**
+     * Returns the number of bytes in the terminator of the current line: 0 for a last line with no
+     * terminator, otherwise 1 or 2.
+     */
+    public int terminatorLength()
+    {
+        return nextStart - lineEnd;
+    }
+
+    /**
+     * Returns a byte of the current line.
+     *
+     * @param i index of the byte from the start of the line
+     */
+    public byte byteAt(int i)
+    {
+        return window.get(lineStart + i);
+    }
+
+    /**
+     * Returns the position in the file of the first byte of the current line.
+     */
+    public long lineOffset()
+    {
+        return windowOffset + lineStart;
+    }
+
+    /**
+     * Copies the bytes of the current line into the start of an array.
+     *
+     * @param dst the destination array, which must be at least length() long
+     */
+    public void copyTo(byte[] dst)
+    {
+        window.get(lineStart, dst, 0, length());
+    }
+
+    /**
+     * Returns true if the current line starts with the given ASCII prefix.
+     *
+     * @param prefix the prefix to test for
+     */
+    public boolean startsWith(String prefix)
+    {
+        int n = prefix.length();
+        if (n > length()) return false;
+        for (int i = 0; i < n; i++)
+        {
+            if (window.get(lineStart + i) != prefix.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Decodes the current line as UTF-8 and returns it as a String. This allocates, so it should
+     * only be called when the text is actually needed.
+     */
+    public String lineText()
+    {
+        byte[] bytes = new byte[length()];
+        copyTo(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Closes the file.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if (channel != null) channel.close();
+    }
+
+    /**
+     * Maps a new window starting at the given index of the current window.
+     *
+     * @param from index in the current window where the new window starts
+     * @return false if there is no more input
+     */
+    private boolean remap(int from) throws IOException
+    {
+        long offset = windowOffset + from;
+        if (channel == null || offset >= size) return false;
+        map(offset);
+        return true;
+    }
+
+    /**
+     * Maps a window of the file starting at the given file position.
+     *
+     * @param offset the file position of the start of the window
+     */
+    private void map(long offset) throws IOException
+    {
+        long length = Math.min(WINDOW_SIZE, size - offset);
+        window = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        windowOffset = offset;
+        lineStart = 0;
+        lineEnd = 0;
+        nextStart = 0;
+    }
+}
@@ -0,0 +1,86 @@
+package cncleveler;
+
+/**
+ * Tracks the effective modal state of a program as each block is resolved in order: the absolute
+ * X, Y and Z position and the motion, plane, distance, units and work coordinate modes.
+ *
+ * Resolving a block only looks at the few words that affect these values, so the cost does not
+ * depend on the number of groups or axes. Incremental (G91) moves are added to the previous
+ * position. Values that have not been set yet are NaN (positions) or null (modes).
+ */
+public class ModalResolver
+{
+    /* Effective absolute position after the last resolved block */
+    public double x = Double.NaN;
+    public double y = Double.NaN;
+    public double z = Double.NaN;
+
+    /* Effective feed rate after the last resolved block */
+    public double feed = Double.NaN;
+
+    /* Effective modes after the last resolved block */
+    public Mode motion = null;
+    public Mode plane = null;
+    public Mode distance = null;
+    public Mode units = null;
+    public Mode wcs = null;
+
+    /**
+     * Updates the modal state with a block.
+     *
+     * @param state the next block of the program
+     */
+    public void resolve(State state)
+    {
+        Mode m;
+        if ((m = state.getGroup(Group.MOTION)) != null) motion = m;
+        if ((m = state.getGroup(Group.PLANE)) != null) plane = m;
+        if ((m = state.getGroup(Group.DISTANCE)) != null) distance = m;
+        if ((m = state.getGroup(Group.UNITS)) != null) units = m;
+        if ((m = state.getGroup(Group.WORK_COORDINATES)) != null) wcs = m;
+
+        Double d;
+        if ((d = state.getAxis(Axis.FEED)) != null) feed = d;
+
+        // Axis words in a non-modal block (G10, G28, G53 ...) are not a position in work coordinates
+        if (!state.hasPosition() || state.getGroup(Group.NON_MODAL) != null) return;
+
+        if ((d = state.getAxis(Axis.X)) != null) x = move(x, d);
+        if ((d = state.getAxis(Axis.Y)) != null) y = move(y, d);
+        if ((d = state.getAxis(Axis.Z)) != null) z = move(z, d);
+    }
+
+    /**
+     * Updates the modal state with a block of a columnar program.
+     *
+     * @param program the program
+     * @param block the index of the next block
+     */
+    public void resolve(ProgramStore program, int block)
+    {
+        Mode m;
+        if ((m = program.getGroup(block, Group.MOTION)) != null) motion = m;
+        if ((m = program.getGroup(block, Group.PLANE)) != null) plane = m;
+        if ((m = program.getGroup(block, Group.DISTANCE)) != null) distance = m;
+        if ((m = program.getGroup(block, Group.UNITS)) != null) units = m;
+        if ((m = program.getGroup(block, Group.WORK_COORDINATES)) != null) wcs = m;
+
+        int mask = program.getAxisMask(block);
+        if ((mask & (1 << Axis.FEED.ordinal())) != 0) feed = program.getAxis(block, Axis.FEED);
+
+        if (program.getGroup(block, Group.NON_MODAL) != null) return;
+
+        if ((mask & (1 << Axis.X.ordinal())) != 0) x = move(x, program.getAxis(block, Axis.X));
+        if ((mask & (1 << Axis.Y.ordinal())) != 0) y = move(y, program.getAxis(block, Axis.Y));
+        if ((mask & (1 << Axis.Z.ordinal())) != 0) z = move(z, program.getAxis(block, Axis.Z));
+    }
+
+    /**
+     * Returns the new absolute position of an axis given the axis word, allowing for the distance
+     * mode.
+     */
+    private double move(double position, double word)
+    {
+        return (distance == Mode.INCREMENTAL) ? position + word : word;
+    }
+}
@@ -11,6 +11,7 @@ public enum Mode
     LINEAR ("G1", Group.MOTION),
     CIRCULAR_CW ("G2",Group.MOTION),
     CIRCULAR_CCW ("G3",Group.MOTION),
+    PROBE_TOWARD ("G38.2",Group.MOTION),
 
  // plane modes: {G17, G18, G19}
     XY_PLANE ("G17",Group.PLANE),
@@ -62,7 +63,46 @@ public enum Mode
     OPTIONAL_STOP ("M1", Group.STOPPING),
     END ("M2", Group.STOPPING),
     END_RETURN ("M30", Group.STOPPING),
-    PALLET_CHANGE ("M60", Group.STOPPING);
+    PALLET_CHANGE ("M60", Group.STOPPING),
+
+ // non-modal codes: {G4, G10, G28, G30, G53}
+    DWELL ("G4", Group.NON_MODAL),
+    SET_COORDINATES ("G10", Group.NON_MODAL),
+    GO_HOME ("G28", Group.NON_MODAL),
+    GO_HOME_2 ("G30", Group.NON_MODAL),
+    MACHINE_COORDINATES ("G53", Group.NON_MODAL);
+
+    /**
+     * Number of table entries per whole code number. Codes have at most one decimal place, so the
+     * table index of G38.2 is 382.
+     */
+    private static final int STEPS = 10;
+
+    /**
+     * Size of each letter's dispatch table, which covers code numbers 0 to 99.9.
+     */
+    private static final int TABLE_SIZE = 100 * STEPS;
+
+    /**
+     * Dispatch tables for G and M code words, indexed by code number times STEPS. Null entries are
+     * unsupported codes.
+     */
+    private static final Mode[] G_TABLE = new Mode[TABLE_SIZE];
+    private static final Mode[] M_TABLE = new Mode[TABLE_SIZE];
+
+    /**
+     * Cached copy of values(), which clones the array on every call.
+     */
+    private static final Mode[] VALUES = values();
+
+    static
+    {
+        for (Mode m : VALUES)
+        {
+            Mode[] table = (m.code.charAt(0) == 'G') ? G_TABLE : M_TABLE;
+            table[tableIndex(Double.parseDouble(m.code.substring(1)))] = m;
+        }
+    }
 
     private final String code;
     private final Group group;
@@ -96,11 +136,48 @@ public enum Mode
      */
     public static Mode find(String code)
     {
-        for (Mode m : Mode.values())
+        for (Mode m : VALUES)
         {
             if(m.code().equals(code)) return m;
         }
         return null;
     }
 
+    /**
+     * Utility method to find and return the enum value for a G code letter and number, such as
+     * ('G', 38.2). This is a table lookup, so no String is created.
+     * Returns null if not found.
+     * 
+     * @param letter
+     *            the code letter, 'G' or 'M'
+     * @param value
+     *            the code number
+     * @return the matching enum or null if not found
+     */
+    public static Mode find(char letter, double value)
+    {
+        Mode[] table;
+        if (letter == 'G') table = G_TABLE;
+        else if (letter == 'M') table = M_TABLE;
+        else return null;
+
+        int i = tableIndex(value);
+        return (i >= 0) ? table[i] : null;
+    }
+
+    /**
+     * Converts a code number to an index into a dispatch table.
+     * 
+     * @param value
+     *            the code number
+     * @return the table index, or -1 if the number is out of range or has more than one decimal place
+     */
+    private static int tableIndex(double value)
+    {
+        double scaled = value * STEPS;
+        long i = Math.round(scaled);
+        if (i < 0 || i >= TABLE_SIZE || Math.abs(scaled - i) > 1e-6) return -1;
+        return (int) i;
+    }
+
 }
\ No newline at end of file
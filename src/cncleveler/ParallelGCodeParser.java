@@ -0,0 +1,277 @@
+package cncleveler;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.logging.Logger;
+
+/**
+ * Parses a G code file on several threads. The file is split into chunks at line boundaries, each
+ * chunk is memory mapped and tokenized by its own GCodeParser on a fork-join pool, and the chunk
+ * results are then stitched together in file order by a short sequential pass.
+ *
+ * The output is identical to GCodeParser. Each State only holds the words set by its own block, so
+ * the only state that carries across a chunk edge is the line count: chunks number their lines from
+ * 1 and the sequential pass adds the number of lines in all earlier chunks.
+ */
+public class ParallelGCodeParser
+{
+    private static final Logger logger = Logger.getLogger((Main.class.getName()));
+
+    /**
+     * Smallest chunk worth handing to another thread, in bytes.
+     */
+    private static final long MIN_CHUNK_SIZE = 1L << 20;
+
+    /**
+     * Largest chunk size, in bytes. Each chunk is mapped as a single buffer.
+     */
+    private static final long MAX_CHUNK_SIZE = 1L << 30;
+
+    /**
+     * Number of chunks to create for each thread, so that threads that finish early can pick up
+     * more work.
+     */
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    /**
+     * The pool that parses the chunks.
+     */
+    private final ForkJoinPool pool;
+
+    /**
+     * Smallest chunk size, in bytes.
+     */
+    protected long minChunkSize = MIN_CHUNK_SIZE;
+
+    /**
+     * True to store the text of each line in State.originalText.
+     */
+    public boolean keepOriginalText = true;
+
+    /**
+     * True to attach a SourceSpan to each state, for minimal-edit output.
+     */
+    public boolean keepSourceSpans = false;
+
+    /**
+     * Constructor that parses on the common fork-join pool.
+     */
+    public ParallelGCodeParser()
+    {
+        this(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Constructor that parses on the given pool.
+     *
+     * @param pool the pool to parse chunks on
+     */
+    public ParallelGCodeParser(ForkJoinPool pool)
+    {
+        this.pool = pool;
+    }
+
+    /**
+     * Reads and parses a G code file.
+     *
+     * @param filename The filename (and path) to the G code file
+     * @return An ordered list of states that contain the parsed information from the G code file.
+     * @throws IOException on any I/O error
+     */
+    public List<State> read(String filename) throws IOException
+    {
+        List<State> states = new ArrayList<State>();
+
+        read(filename, new StateSink()
+        {
+            public void accept(State state)
+            {
+                states.add(state);
+            }
+
+            public void close()
+            {
+            }
+        });
+
+        return states;
+    }
+
+    /**
+     * Reads and parses a G code file, passing each state to the sink in file order. Only a bounded
+     * number of parsed chunks are held in memory at once. The sink is not closed by this method.
+     *
+     * @param filename The filename (and path) to the G code file
+     * @param sink The stage that receives each parsed state in file order
+     * @throws IOException on any I/O error
+     */
+    public void read(String filename, StateSink sink) throws IOException
+    {
+        // Show progress
+        logger.info("Opening: " + filename);
+
+        Path inFile = Paths.get(filename);
+        int lineCount = 0;
+
+        try (FileChannel channel = FileChannel.open(inFile, StandardOpenOption.READ))
+        {
+            List<long[]> chunks = splitChunks(channel);
+            logger.info("   Parsing " + chunks.size() + " chunks on " + pool.getParallelism() + " threads");
+
+            // Keep a bounded number of chunks in flight so memory stays bounded for slow sinks
+            int window = pool.getParallelism() * 2;
+            Deque<ChunkTask> inFlight = new ArrayDeque<ChunkTask>();
+            int nextChunk = 0;
+
+            while (nextChunk < chunks.size() || !inFlight.isEmpty())
+            {
+                while (nextChunk < chunks.size() && inFlight.size() < window)
+                {
+                    long[] chunk = chunks.get(nextChunk++);
+                    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, chunk[0], chunk[1]);
+                    ChunkTask task = new ChunkTask(buffer, chunk[0]);
+                    pool.execute(task);
+                    inFlight.add(task);
+                }
+
+                // Sequential fix-up pass: renumber lines from the start of the file
+                List<State> states = join(inFlight.removeFirst());
+                for (State state : states)
+                {
+                    state.lineNum += lineCount;
+                    sink.accept(state);
+                }
+                lineCount += states.size();
+            }
+        }
+        logger.info("Parsed " + lineCount + " lines");
+    }
+
+    /**
+     * Splits the file into chunks that each end just after a line feed (or at the end of the file).
+     *
+     * @param channel the open file
+     * @return a list of {offset, length} pairs in file order
+     * @throws IOException on any I/O error
+     */
+    protected List<long[]> splitChunks(FileChannel channel) throws IOException
+    {
+        long size = channel.size();
+        long target = size / ((long) pool.getParallelism() * CHUNKS_PER_THREAD);
+        target = Math.min(MAX_CHUNK_SIZE / 2, Math.max(minChunkSize, target));
+
+        List<long[]> chunks = new ArrayList<long[]>();
+        ByteBuffer probe = ByteBuffer.allocate(4096);
+        long start = 0;
+        while (start < size)
+        {
+            long end = Math.min(size, start + target);
+
+            // Move the end forward to just past the next line feed
+            boolean found = (end >= size);
+            while (!found)
+            {
+                probe.clear();
+                int n = channel.read(probe, end);
+                if (n <= 0)
+                {
+                    end = size;
+                    break;
+                }
+                for (int i = 0; i < n; i++)
+                {
+                    if (probe.get(i) == '\n')
+                    {
+                        end += i + 1;
+                        found = true;
+                        break;
+                    }
+                }
+                if (!found) end += n;
+                if (end - start > MAX_CHUNK_SIZE)
+                {
+                    throw new IOException("No line break found within " + MAX_CHUNK_SIZE + " bytes of offset " + start);
+                }
+            }
+
+            chunks.add(new long[] { start, end - start });
+            start = end;
+        }
+        return chunks;
+    }
+
+    /**
+     * Waits for a chunk to finish parsing, unwrapping any I/O error.
+     */
+    private static List<State> join(ForkJoinTask<List<State>> task) throws IOException
+    {
+        try
+        {
+            return task.join();
+        }
+        catch (UncheckedIOException ex)
+        {
+            throw ex.getCause();
+        }
+    }
+
+    /**
+     * Parses one chunk of the file with its own GCodeParser.
+     */
+    private class ChunkTask extends RecursiveTask<List<State>>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final ByteBuffer buffer;
+        private final long offset;
+
+        ChunkTask(ByteBuffer buffer, long offset)
+        {
+            this.buffer = buffer;
+            this.offset = offset;
+        }
+
+        @Override
+        protected List<State> compute()
+        {
+            List<State> states = new ArrayList<State>();
+
+            GCodeParser parser = new GCodeParser();
+            parser.keepOriginalText = keepOriginalText;
+            parser.keepSourceSpans = keepSourceSpans;
+            parser.chunkOffset = offset;
+            try
+            {
+                parser.read(new MappedLineReader(buffer, offset), new StateSink()
+                {
+                    public void accept(State state)
+                    {
+                        states.add(state);
+                    }
+
+                    public void close()
+                    {
+                    }
+                });
+            }
+            catch (IOException ex)
+            {
+                throw new UncheckedIOException(ex);
+            }
+            return states;
+        }
+    }
+}
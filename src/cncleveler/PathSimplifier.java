@@ -0,0 +1,454 @@
+package cncleveler;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Reduces the number of blocks in a leveled program by merging runs of short G1 moves that lie
+ * within a tolerance of one straight line, and by refitting runs that lie on a circle (with Z
+ * changing linearly along it) as a single G2/G3 arc. GRBL plans only 16 to 18 blocks ahead, so a
+ * long run of tiny segments forces it to slow down; fewer, longer blocks keep the feed rate up.
+ *
+ * The program is simplified in one streaming pass. A run is held until the next move no longer
+ * fits it, or until it reaches WINDOW moves, and is then written as one block. The first block of
+ * a run keeps all its other words (feed rate, comment ...); the rest of the run must be blocks
+ * that set only X, Y and Z. Merged moves must progress steadily along the line or arc, so moves
+ * that double back (repeated passes) are never merged.
+ *
+ * Only absolute (G90) moves are merged, and arcs are only fitted in the XY plane (G17). A later
+ * block that moves without its own motion word is given the input program's motion mode again.
+ */
+public class PathSimplifier implements StateSink
+{
+    private static final Logger logger = Logger.getLogger((Main.class.getName()));
+
+    /**
+     * Millimeters per inch, for programs in G20 units.
+     */
+    private static final double MM_PER_INCH = 25.4;
+
+    /**
+     * The most moves merged into one block.
+     */
+    private static final int WINDOW = 64;
+
+    /**
+     * The fewest moves refitted as an arc.
+     */
+    private static final int MIN_ARC_MOVES = 3;
+
+    /**
+     * The largest radius (mm) of a refitted arc. Larger arcs are close to straight, and GRBL
+     * computes them with poor precision.
+     */
+    private static final double MAX_RADIUS = 1000.0;
+
+    /* How the moves of the current run are fitted. NONE is a run too short to fit an arc yet */
+    private static final int NONE = 0;
+    private static final int LINE = 1;
+    private static final int ARC = 2;
+
+    /**
+     * The largest allowed distance (mm) between an input move and the output path.
+     */
+    private final double tolerance;
+
+    /**
+     * The next stage to receive states.
+     */
+    private final StateSink next;
+
+    /**
+     * The running modal state of the input program.
+     */
+    private final ModalResolver resolver = new ModalResolver();
+
+    /**
+     * The motion mode in effect in the output program.
+     */
+    private Mode outputMotion = null;
+
+    /*
+     * The current run: its blocks, the position it starts from, the end position of each move and
+     * how the moves are fitted. Positions are in program units; scale converts them to mm.
+     */
+    private final State[] blocks = new State[WINDOW];
+    private double ax;
+    private double ay;
+    private double az;
+    private final double[] px = new double[WINDOW];
+    private final double[] py = new double[WINDOW];
+    private final double[] pz = new double[WINDOW];
+    private int count = 0;
+    private double scale = 1.0;
+    private boolean arcPlane = true;
+    private int fit = LINE;
+
+    /* Axis words set by any move of the current run */
+    private boolean setX;
+    private boolean setY;
+    private boolean setZ;
+
+    /* The fitted arc of the current run: center (relative to the start, in mm) and direction */
+    private double cx;
+    private double cy;
+    private boolean counterClockwise;
+
+    /**
+     * Angle of each move end around the arc being tested.
+     */
+    private final double[] angles = new double[WINDOW];
+
+    /* Statistics */
+    private int movesIn = 0;
+    private int blocksOut = 0;
+    private int arcs = 0;
+
+    /**
+     * Constructor
+     *
+     * @param tolerance the largest allowed distance (mm) between an input move and the output path
+     * @param next the stage that receives each state
+     */
+    public PathSimplifier(double tolerance, StateSink next)
+    {
+        this.tolerance = tolerance;
+        this.next = next;
+        logger.info("Simplifying moves to within " + tolerance + " mm");
+    }
+
+    /**
+     * Simplifies a list of states.
+     *
+     * @param states the program
+     * @param tolerance the largest allowed distance (mm) between an input move and the output path
+     * @return a new list of states, sharing the input states that are kept
+     * @throws IOException never, as the list does no I/O
+     */
+    public static List<State> simplify(List<State> states, double tolerance) throws IOException
+    {
+        List<State> result = new ArrayList<State>(states.size());
+        try (PathSimplifier simplifier = new PathSimplifier(tolerance, new StateSink()
+        {
+            public void accept(State state)
+            {
+                result.add(state);
+            }
+
+            public void close()
+            {
+            }
+        }))
+        {
+            for (State state : states)
+            {
+                simplifier.accept(state);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Simplifies a columnar program.
+     *
+     * @param program the program
+     * @param tolerance the largest allowed distance (mm) between an input move and the output path
+     * @return a new columnar program
+     * @throws IOException never, as the program store does no I/O
+     */
+    public static ProgramStore simplify(ProgramStore program, double tolerance) throws IOException
+    {
+        ProgramStore result = new ProgramStore(Config.offHeap);
+        try (PathSimplifier simplifier = new PathSimplifier(tolerance, result))
+        {
+            for (int block = 0; block < program.size(); block++)
+            {
+                simplifier.accept(program.getState(block));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Adds the state to the current run if it fits, otherwise writes the run and starts a new one
+     * or passes the state on.
+     *
+     * @param state the next block of the program
+     */
+    @Override
+    public void accept(State state) throws IOException
+    {
+        double x0 = resolver.x;
+        double y0 = resolver.y;
+        double z0 = resolver.z;
+        resolver.resolve(state);
+
+        boolean linear = isLinearMove(state, x0, y0, z0);
+        if (linear && (count > 0) && state.isMoveOnly() && extend(state)) return;
+
+        flush();
+        if (linear)
+        {
+            // Start a new run with this block
+            movesIn++;
+            ax = x0;
+            ay = y0;
+            az = z0;
+            scale = (resolver.units == Mode.INCHES) ? MM_PER_INCH : 1.0;
+            arcPlane = (resolver.plane == null) || (resolver.plane == Mode.XY_PLANE);
+            setX = setY = setZ = false;
+            addMove(state);
+            fit = LINE;
+            return;
+        }
+
+        if (state.getGroup(Group.MOTION) != null)
+        {
+            outputMotion = resolver.motion;
+        }
+        else if (state.hasPosition() && state.getGroup(Group.NON_MODAL) == null && outputMotion != resolver.motion)
+        {
+            // The output motion mode was changed by a refitted arc, so put the input mode back
+            state.setGroup(Group.MOTION, resolver.motion);
+            outputMotion = resolver.motion;
+        }
+        next.accept(state);
+    }
+
+    /**
+     * Writes the current run, logs the statistics and closes the next stage.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        flush();
+        logger.info("   " + movesIn + " moves simplified to " + blocksOut + " blocks (" + arcs + " arcs)");
+        next.close();
+    }
+
+    /**
+     * Abandons the job: the next stage is aborted.
+     */
+    @Override
+    public void abort()
+    {
+        next.abort();
+    }
+
+    /**
+     * Returns true if the block just resolved is an absolute G1 move from a known position.
+     */
+    private boolean isLinearMove(State state, double x0, double y0, double z0)
+    {
+        if (resolver.motion != Mode.LINEAR || resolver.distance == Mode.INCREMENTAL) return false;
+        if (!state.hasPosition() || state.getGroup(Group.NON_MODAL) != null) return false;
+        return !Double.isNaN(x0) && !Double.isNaN(y0) && !Double.isNaN(z0) && !Double.isNaN(resolver.z);
+    }
+
+    /**
+     * Appends the end of the move just resolved to the current run.
+     */
+    private void addMove(State state)
+    {
+        blocks[count] = state;
+        px[count] = resolver.x;
+        py[count] = resolver.y;
+        pz[count] = resolver.z;
+        count++;
+        setX |= state.getAxis(Axis.X) != null;
+        setY |= state.getAxis(Axis.Y) != null;
+        setZ |= state.getAxis(Axis.Z) != null;
+    }
+
+    /**
+     * Adds the move just resolved to the current run if the run still fits a line or an arc.
+     *
+     * @return true if the move was added
+     */
+    private boolean extend(State state)
+    {
+        if (count == WINDOW) return false;
+
+        addMove(state);
+        if (fitsLine())
+        {
+            fit = LINE;
+        }
+        else if (fitsArc())
+        {
+            fit = ARC;
+        }
+        else if (arcPlane && count < MIN_ARC_MOVES)
+        {
+            // Too short to tell yet whether the run will fit an arc
+            fit = NONE;
+        }
+        else
+        {
+            count--;
+            return false;
+        }
+        movesIn++;
+        return true;
+    }
+
+    /**
+     * Writes the current run as one block, or unchanged if it did not fit a line or an arc.
+     */
+    private void flush() throws IOException
+    {
+        if (count == 0) return;
+
+        State first = blocks[0];
+        int last = count - 1;
+        if (fit == NONE)
+        {
+            if (first.getGroup(Group.MOTION) == null && outputMotion != Mode.LINEAR)
+            {
+                first.setGroup(Group.MOTION, Mode.LINEAR);
+            }
+            outputMotion = Mode.LINEAR;
+            for (int k = 0; k < count; k++)
+            {
+                next.accept(blocks[k]);
+                blocks[k] = null;
+            }
+            blocksOut += count;
+            count = 0;
+            return;
+        }
+
+        if (fit == ARC)
+        {
+            Mode motion = counterClockwise ? Mode.CIRCULAR_CCW : Mode.CIRCULAR_CW;
+            first.setGroup(Group.MOTION, motion);
+            first.setAxis(Axis.I, cx / scale);
+            first.setAxis(Axis.J, cy / scale);
+            outputMotion = motion;
+            setX = setY = true;
+            arcs++;
+        }
+        else if (first.getGroup(Group.MOTION) != null || outputMotion != Mode.LINEAR)
+        {
+            first.setGroup(Group.MOTION, Mode.LINEAR);
+            outputMotion = Mode.LINEAR;
+        }
+
+        if (setX) first.setAxis(Axis.X, px[last]);
+        if (setY) first.setAxis(Axis.Y, py[last]);
+        if (setZ) first.setAxis(Axis.Z, pz[last]);
+        next.accept(first);
+
+        blocksOut++;
+        for (int k = 0; k < count; k++)
+        {
+            blocks[k] = null;
+        }
+        count = 0;
+    }
+
+    /**
+     * Returns true if every move end of the current run is within tolerance of the straight line
+     * from the start of the run to its last move end, progressing along it.
+     */
+    private boolean fitsLine()
+    {
+        int last = count - 1;
+        double dx = (px[last] - ax) * scale;
+        double dy = (py[last] - ay) * scale;
+        double dz = (pz[last] - az) * scale;
+        double length2 = dx * dx + dy * dy + dz * dz;
+        if (length2 == 0) return false;
+
+        double tolerance2 = tolerance * tolerance;
+        double previous = 0.0;
+        for (int k = 0; k < last; k++)
+        {
+            double qx = (px[k] - ax) * scale;
+            double qy = (py[k] - ay) * scale;
+            double qz = (pz[k] - az) * scale;
+
+            // Fraction of the way along the line, which must not go backwards
+            double t = (qx * dx + qy * dy + qz * dz) / length2;
+            if (t < previous || t > 1.0) return false;
+            previous = t;
+
+            double ex = qx - t * dx;
+            double ey = qy - t * dy;
+            double ez = qz - t * dz;
+            if (ex * ex + ey * ey + ez * ez > tolerance2) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the current run fits an arc through its start, its middle move end and its
+     * last move end: every move end and the middle of every move must be within tolerance of the
+     * circle, progressing around it, and Z must change linearly with the angle. Sets the arc center
+     * and direction.
+     */
+    private boolean fitsArc()
+    {
+        if (!arcPlane || count < MIN_ARC_MOVES) return false;
+
+        // Circle through the start (at the origin), the middle and the last move end
+        int last = count - 1;
+        int middle = last / 2;
+        double bx = (px[middle] - ax) * scale;
+        double by = (py[middle] - ay) * scale;
+        double ex = (px[last] - ax) * scale;
+        double ey = (py[last] - ay) * scale;
+        double d = 2 * (bx * ey - by * ex);
+        if (Math.abs(d) < 1e-12) return false;
+
+        double b2 = bx * bx + by * by;
+        double e2 = ex * ex + ey * ey;
+        double ux = (ey * b2 - by * e2) / d;
+        double uy = (bx * e2 - ex * b2) / d;
+        double radius = Math.hypot(ux, uy);
+        if (radius > MAX_RADIUS) return false;
+
+        boolean ccw = d > 0;
+        double startAngle = Math.atan2(-uy, -ux);
+        double previousX = 0.0;
+        double previousY = 0.0;
+        double previousAngle = 0.0;
+        for (int k = 0; k < count; k++)
+        {
+            double qx = (px[k] - ax) * scale;
+            double qy = (py[k] - ay) * scale;
+
+            // The move end and the middle of the move (its farthest point from the arc)
+            if (Math.abs(Math.hypot(qx - ux, qy - uy) - radius) > tolerance) return false;
+            double mx = (qx + previousX) / 2;
+            double my = (qy + previousY) / 2;
+            if (Math.abs(Math.hypot(mx - ux, my - uy) - radius) > tolerance) return false;
+
+            // Angle travelled around the arc, which must keep increasing
+            double a = Math.atan2(qy - uy, qx - ux) - startAngle;
+            if (!ccw) a = -a;
+            if (a < 0) a += 2 * Math.PI;
+            if (a <= previousAngle) return false;
+            angles[k] = a;
+
+            previousX = qx;
+            previousY = qy;
+            previousAngle = a;
+        }
+
+        // Z must follow a helix
+        double dz = (pz[last] - az) * scale;
+        for (int k = 0; k < last; k++)
+        {
+            double z = (pz[k] - az) * scale;
+            if (Math.abs(z - dz * angles[k] / angles[last]) > tolerance) return false;
+        }
+
+        cx = ux;
+        cy = uy;
+        counterClockwise = ccw;
+        return true;
+    }
+}
@@ -0,0 +1,373 @@
+package cncleveler;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+/**
+ * Runs the next stage of a chain on its own thread, so that the stages of a streaming job work on
+ * different blocks at the same time.
+ *
+ * States are collected into batches, and full batches are passed to the stage thread through a
+ * bounded SpscRingBuffer. Emptied batches come back through a second ring buffer to be reused. A
+ * full queue makes accept() wait, so memory stays bounded by the batch size times the queue size.
+ * Waiting spins briefly, then yields, then parks until the other side adds or takes a batch, so a
+ * stage waiting on a slow one (such as GRBL working through its buffer) uses no processor time.
+ *
+ * Each queue records how full it was each time a batch was added, and how often either side had to
+ * wait. These are logged on close: a queue that is usually full feeds the slowest stage, and a
+ * queue that is usually empty follows it.
+ *
+ * If the stage thread fails, the next accept() or close() throws its exception (once). The stages
+ * after a failed one are aborted, so that closing them does not finish a partial job, and are
+ * closed by close() on the calling thread.
+ */
+public class PipelineStage implements StateSink
+{
+    private static final Logger logger = Logger.getLogger((Main.class.getName()));
+
+    /**
+     * Wait iterations that spin, and that yield, before parking.
+     */
+    private static final int SPIN_WAITS = 100;
+    private static final int YIELD_WAITS = 200;
+
+    /**
+     * A batch of states.
+     */
+    private static final class Batch
+    {
+        final State[] states;
+        int size = 0;
+
+        Batch(int capacity)
+        {
+            states = new State[capacity];
+        }
+    }
+
+    /**
+     * Marks the end of the input. Never reused.
+     */
+    private static final Batch END = new Batch(0);
+
+    /**
+     * Name of the stage, for the thread and the log.
+     */
+    private final String name;
+
+    /**
+     * The stage run on this stage's thread.
+     */
+    private final StateSink next;
+
+    /**
+     * Number of states in each batch.
+     */
+    private final int batchSize;
+
+    /**
+     * Full batches for the stage thread, and empty batches back from it.
+     */
+    private final SpscRingBuffer<Batch> full;
+    private final SpscRingBuffer<Batch> free;
+
+    /**
+     * The stage thread.
+     */
+    private final Thread thread;
+
+    /**
+     * The batch being filled by accept().
+     */
+    private Batch batch = null;
+
+    /**
+     * The caller's thread while it is parked waiting for room in the queue, and the stage thread
+     * while it is parked waiting for a batch; otherwise null.
+     */
+    private volatile Thread parkedProducer = null;
+    private volatile Thread parkedConsumer = null;
+
+    /**
+     * The exception that stopped the stage thread, if any.
+     */
+    private volatile Throwable failure = null;
+
+    /**
+     * True once the failure has been thrown from accept(). close() does not throw it again, as
+     * try-with-resources can't add an exception to itself as suppressed.
+     */
+    private boolean reported = false;
+
+    /**
+     * True once close() has been called.
+     */
+    private boolean closed = false;
+
+    /**
+     * True once the stage thread has started to close the next stage.
+     */
+    private boolean nextClosed = false;
+
+    /* Queue statistics. The stage thread's are read only after it has been joined. */
+    private long batches = 0;
+    private long occupancy = 0;
+    private long producerWaits = 0;
+    private long consumerWaits = 0;
+
+    /**
+     * Constructor, which starts the stage thread, with the batch and queue sizes from Config.
+     *
+     * @param name the name of the stage
+     * @param next the stage to run on the new thread
+     */
+    public PipelineStage(String name, StateSink next)
+    {
+        this(name, next, Config.pipelineBatchSize, Config.pipelineQueueSize);
+    }
+
+    /**
+     * Constructor, which starts the stage thread.
+     *
+     * @param name the name of the stage
+     * @param next the stage to run on the new thread
+     * @param batchSize the number of states in each batch
+     * @param queueSize the number of batches that can wait for the stage thread
+     */
+    public PipelineStage(String name, StateSink next, int batchSize, int queueSize)
+    {
+        this.name = name;
+        this.next = next;
+        this.batchSize = batchSize;
+        full = new SpscRingBuffer<Batch>(queueSize);
+        free = new SpscRingBuffer<Batch>(full.capacity() + 2);
+
+        thread = new Thread(this::run, "Pipeline " + name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Adds the state to the current batch, and passes the batch to the stage thread when it is
+     * full.
+     *
+     * @param state the next block of the program
+     * @throws IOException if the stage thread has failed
+     */
+    @Override
+    public void accept(State state) throws IOException
+    {
+        if (batch == null)
+        {
+            batch = free.poll();
+            if (batch == null) batch = new Batch(batchSize);
+        }
+        batch.states[batch.size++] = state;
+        if (batch.size == batchSize)
+        {
+            put(batch);
+            batch = null;
+        }
+    }
+
+    /**
+     * Passes the last batch to the stage thread, waits for it to finish (it closes the next stage)
+     * and logs the queue statistics.
+     *
+     * @throws IOException if the stage thread or a later stage failed
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if (closed) return;
+        closed = true;
+        if (failure == null)
+        {
+            try
+            {
+                if (batch != null && batch.size > 0) put(batch);
+                put(END);
+            }
+            catch (IOException | RuntimeException ex)
+            {
+                // The stage thread failed while waiting; its exception is thrown below
+            }
+        }
+        batch = null;
+        join();
+
+        double average = (batches > 0) ? (double) occupancy / batches : 0.0;
+        logger.info(String.format("   %s queue: %.1f of %d batches on average, waited %d times when full, %d when empty",
+                name, average, full.capacity(), producerWaits, consumerWaits));
+
+        Throwable ex = failure;
+        if (ex != null)
+        {
+            // A stage thread that fails before the end of the input does not close the stages after it
+            if (!nextClosed)
+            {
+                try
+                {
+                    next.close();
+                }
+                catch (IOException | RuntimeException closeEx)
+                {
+                    // A later pipeline stage rethrows the same exception
+                    if (closeEx != ex) ex.addSuppressed(closeEx);
+                }
+            }
+            if (!reported) rethrow(ex);
+        }
+    }
+
+    /**
+     * Abandons the job: the next stage is aborted. The stage thread keeps passing on the states
+     * already queued until close() is called.
+     */
+    @Override
+    public void abort()
+    {
+        next.abort();
+    }
+
+    /**
+     * Adds a batch to the queue, waiting while the queue is full.
+     */
+    private void put(Batch b) throws IOException
+    {
+        if (failure != null) report();
+        batches++;
+        occupancy += full.size();
+        for (int waits = 0; !full.offer(b); waits++)
+        {
+            if (failure != null) report();
+            if (waits == 0) producerWaits++;
+            if (waits < YIELD_WAITS)
+            {
+                idle(waits);
+                continue;
+            }
+
+            // Check again once parkedProducer is visible, so the stage thread can't miss it
+            parkedProducer = Thread.currentThread();
+            if (full.size() == full.capacity() && failure == null) LockSupport.park(this);
+            parkedProducer = null;
+        }
+        wake(false);
+    }
+
+    /**
+     * The stage thread: passes each state of each batch to the next stage, then closes it.
+     */
+    private void run()
+    {
+        try
+        {
+            while (true)
+            {
+                Batch b = full.poll();
+                for (int waits = 0; b == null; waits++)
+                {
+                    if (waits == 0) consumerWaits++;
+                    if (waits < YIELD_WAITS)
+                    {
+                        idle(waits);
+                    }
+                    else
+                    {
+                        parkedConsumer = Thread.currentThread();
+                        if (full.size() == 0) LockSupport.park(this);
+                        parkedConsumer = null;
+                    }
+                    b = full.poll();
+                }
+                wake(true);
+                if (b == END) break;
+
+                for (int i = 0; i < b.size; i++)
+                {
+                    next.accept(b.states[i]);
+                    b.states[i] = null;
+                }
+                b.size = 0;
+                free.offer(b);
+            }
+            nextClosed = true;
+            next.close();
+        }
+        catch (Throwable ex)
+        {
+            failure = ex;
+            next.abort();
+            LockSupport.unpark(parkedProducer);
+        }
+    }
+
+    /**
+     * Waits for the stage thread to finish.
+     */
+    private void join() throws IOException
+    {
+        try
+        {
+            thread.join();
+        }
+        catch (InterruptedException ex)
+        {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for pipeline stage " + name);
+        }
+    }
+
+    /**
+     * Waits a little before trying again: spins, then yields.
+     */
+    private static void idle(int waits)
+    {
+        if (waits < SPIN_WAITS)
+        {
+            Thread.onSpinWait();
+        }
+        else
+        {
+            Thread.yield();
+        }
+    }
+
+    /**
+     * Unparks the other side of the queue after a batch was added or taken, if it is parked. The
+     * fence makes the queue change visible before parkedProducer or parkedConsumer is read, as the
+     * parked side checks the queue only after publishing itself.
+     *
+     * @param producer true to wake the producer (a batch was taken), false to wake the stage thread
+     */
+    private void wake(boolean producer)
+    {
+        VarHandle.fullFence();
+        Thread parked = producer ? parkedProducer : parkedConsumer;
+        if (parked != null) LockSupport.unpark(parked);
+    }
+
+    /**
+     * Throws the stage thread's failure from accept().
+     */
+    private void report() throws IOException
+    {
+        reported = true;
+        rethrow(failure);
+    }
+
+    /**
+     * Throws an exception from the stage thread on the calling thread.
+     */
+    private static void rethrow(Throwable ex) throws IOException
+    {
+        if (ex instanceof IOException) throw (IOException) ex;
+        if (ex instanceof RuntimeException) throw (RuntimeException) ex;
+        if (ex instanceof Error) throw (Error) ex;
+        throw new IOException(ex);
+    }
+}
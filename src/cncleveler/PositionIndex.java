@@ -0,0 +1,120 @@
+package cncleveler;
+
+import java.util.List;
+
+/**
+ * The effective absolute position and modes of every block of a program, computed in one pass by a
+ * ModalResolver and stored as primitive arrays. Later stages (leveling, statistics, replay) read
+ * from this shared index instead of each merging states again.
+ *
+ * Entry i holds the values in effect after block i. Positions not yet set are NaN. Modes are stored
+ * as the Mode ordinal plus one, with zero for not set.
+ */
+public class PositionIndex
+{
+    private static final Mode[] MODES = Mode.values();
+
+    /* Effective absolute position after each block */
+    public final double[] x;
+    public final double[] y;
+    public final double[] z;
+
+    /* Effective modes after each block, as Mode ordinal plus one */
+    public final byte[] motion;
+    public final byte[] units;
+    public final byte[] wcs;
+    public final byte[] distance;
+
+    /**
+     * Constructor that allocates an empty index.
+     *
+     * @param size the number of blocks
+     */
+    private PositionIndex(int size)
+    {
+        x = new double[size];
+        y = new double[size];
+        z = new double[size];
+        motion = new byte[size];
+        units = new byte[size];
+        wcs = new byte[size];
+        distance = new byte[size];
+    }
+
+    /**
+     * Builds the index for a list of states.
+     *
+     * @param states the program
+     * @return the index
+     */
+    public static PositionIndex build(List<State> states)
+    {
+        PositionIndex index = new PositionIndex(states.size());
+        ModalResolver resolver = new ModalResolver();
+        int i = 0;
+        for (State state : states)
+        {
+            resolver.resolve(state);
+            index.set(i++, resolver);
+        }
+        return index;
+    }
+
+    /**
+     * Builds the index for a columnar program.
+     *
+     * @param program the program
+     * @return the index
+     */
+    public static PositionIndex build(ProgramStore program)
+    {
+        PositionIndex index = new PositionIndex(program.size());
+        ModalResolver resolver = new ModalResolver();
+        for (int i = 0; i < program.size(); i++)
+        {
+            resolver.resolve(program, i);
+            index.set(i, resolver);
+        }
+        return index;
+    }
+
+    /**
+     * Returns the number of blocks in the index.
+     */
+    public int size()
+    {
+        return x.length;
+    }
+
+    /**
+     * Returns a stored mode value as a Mode, or null if not set.
+     *
+     * @param code a value from one of the mode arrays
+     */
+    public static Mode mode(byte code)
+    {
+        return (code == 0) ? null : MODES[code - 1];
+    }
+
+    /**
+     * Records the resolver's current values as entry i.
+     */
+    private void set(int i, ModalResolver resolver)
+    {
+        x[i] = resolver.x;
+        y[i] = resolver.y;
+        z[i] = resolver.z;
+        motion[i] = code(resolver.motion);
+        units[i] = code(resolver.units);
+        wcs[i] = code(resolver.wcs);
+        distance[i] = code(resolver.distance);
+    }
+
+    /**
+     * Returns a Mode as its stored value.
+     */
+    private static byte code(Mode m)
+    {
+        return (m == null) ? 0 : (byte) (m.ordinal() + 1);
+    }
+}
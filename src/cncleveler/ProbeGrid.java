@@ -1,9 +1,13 @@
 package cncleveler;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.function.DoubleConsumer;
 import java.util.logging.Logger;
 
 /**
@@ -14,8 +18,11 @@ import java.util.logging.Logger;
  * easy querying and interpolation. The (X,Y) values are offset buy the work coordinate offset. And
  * Z is offset so that Z=0 at (X,Y) = (0,0). 
  * 
+ * The probes don't have to cover every point of the lattice formed by their X and Y values, so a
+ * grid can be refined with extra probes in some cells; missing points are filled in from their
+ * neighbours (see fillMissing()).
  */
-public class ProbeGrid
+public class ProbeGrid implements ProbeSurface
 {
     private static final Logger logger = Logger.getLogger((Main.class.getName()));
 
@@ -24,9 +31,37 @@ public class ProbeGrid
     protected int xsize = 0;
     protected int ysize = 0;
 
-    protected Double[] xgrid;
-    protected Double[] ygrid;
-    protected Double[][] zprobe;
+    protected double[] xgrid;
+    protected double[] ygrid;
+
+    /**
+     * The probed Z values in row-major order: the value at (xgrid[i], ygrid[j]) is at index
+     * (j * xsize + i).
+     */
+    protected double[] zprobe;
+
+    /**
+     * The bilinear patch of each cell, four coefficients (a, b, c, d) per cell in row-major order.
+     * Within cell (i,j) the height is z = a + b*u + c*v + d*u*v, where u = x - xgrid[i] and
+     * v = y - ygrid[j]. Local coordinates keep the coefficients small, so the result matches
+     * interpolating between the four corners to within round-off.
+     */
+    protected double[] coeffs;
+
+    /**
+     * Grid spacing in X and Y, or NaN if the grid values are not evenly spaced. Evenly spaced grids
+     * find the cell index by division instead of searching.
+     */
+    protected double xpitch = Double.NaN;
+    protected double ypitch = Double.NaN;
+
+    /**
+     * The cell indexes found by the last query. Consecutive toolpath points usually fall in the same
+     * or a neighbouring cell, so the search starts here. Because of this cache, a ProbeGrid must not
+     * be queried from more than one thread at a time.
+     */
+    private int lastI = 0;
+    private int lastJ = 0;
 
     /**
      * Constructor, which requires a list of Point3(x,y,z) probe values. Processes the values into a
@@ -47,6 +82,34 @@ public class ProbeGrid
         logger.info("Probe Grid Complete");
     }
 
+    /**
+     * Constructor for a grid that shares the probe data of another grid but has its own lookup
+     * cache, so that each thread can query its own copy.
+     *
+     * @param other the grid to share the probe data of
+     */
+    protected ProbeGrid(ProbeGrid other)
+    {
+        probes = other.probes;
+        xsize = other.xsize;
+        ysize = other.ysize;
+        xgrid = other.xgrid;
+        ygrid = other.ygrid;
+        zprobe = other.zprobe;
+        coeffs = other.coeffs;
+        xpitch = other.xpitch;
+        ypitch = other.ypitch;
+    }
+
+    /**
+     * Returns a grid with the same probe data, for use on another thread. The probe data is shared,
+     * not copied.
+     */
+    public ProbeGrid copy()
+    {
+        return new ProbeGrid(this);
+    }
+
     /**
      * Computes the Z probe offset for a given an (x,y) coordinate by linearly interpolating the Z
      * probe data in both X and Y. Some references called this "bilinear interpolation".
@@ -80,56 +143,220 @@ public class ProbeGrid
      * to extrapolate outside the grid.
      * </pre>
      * 
+     * The interpolation is precomputed for each cell as a bilinear patch (see coeffs), so a query
+     * only locates the cell and evaluates the patch.
+     * 
      * @param x The X coordinate to use in interpolation
      * @param y The Y coordinate to use in interpolation
      * @return the interpolated Z value
      */
     public double getProbeHeight(double x, double y)
     {
-        double z1, z2;
+        int i = lastI = findGridIndex(xgrid, x, lastI, xpitch);
+        int j = lastJ = findGridIndex(ygrid, y, lastJ, ypitch);
 
-        int i = findGridIndex(xgrid, x);
-        int j = findGridIndex(ygrid, y);
+        int k = 4 * (j * (xsize - 1) + i);
+        double u = x - xgrid[i];
+        double v = y - ygrid[j];
+        return coeffs[k] + coeffs[k + 1] * u + v * (coeffs[k + 2] + coeffs[k + 3] * u);
+    }
 
-        double y_ratio = (y - ygrid[j]) / (ygrid[j + 1] - ygrid[j]);
+    /**
+     * Computes the Z probe offset for many (x,y) coordinates at once. Gives the same results as
+     * calling getProbeHeight() for each point, without the per-call overhead.
+     * 
+     * @param xs the X coordinates to interpolate at
+     * @param ys the Y coordinates to interpolate at, the same length as xs
+     * @param out receives the interpolated Z values, at least as long as xs
+     */
+    public void getProbeHeights(double[] xs, double[] ys, double[] out)
+    {
+        if ((ys.length != xs.length) || (out.length < xs.length))
+        {
+            throw new IllegalArgumentException("Coordinate and output arrays must have matching lengths");
+        }
+        getProbeHeights(xs, ys, out, 0, xs.length);
+    }
 
-        // linear interpolate in y on left side;
-        z1 = zprobe[j][i];
-        z2 = zprobe[j + 1][i];
-        double z_left = z1 + (z2 - z1) * y_ratio;
+    /**
+     * Computes the Z probe offset for a range of (x,y) coordinates at once.
+     * 
+     * @param xs the X coordinates to interpolate at
+     * @param ys the Y coordinates to interpolate at
+     * @param out receives the interpolated Z values
+     * @param offset the index of the first point in xs, ys and out
+     * @param count the number of points
+     */
+    public void getProbeHeights(double[] xs, double[] ys, double[] out, int offset, int count)
+    {
+        // Keep the grid in locals so the loop does not reload fields
+        double[] xg = xgrid;
+        double[] yg = ygrid;
+        double[] c = coeffs;
+        int rowCells = xsize - 1;
+        int i = lastI;
+        int j = lastJ;
+
+        for (int n = offset; n < offset + count; n++)
+        {
+            double x = xs[n];
+            double y = ys[n];
+            i = findGridIndex(xg, x, i, xpitch);
+            j = findGridIndex(yg, y, j, ypitch);
+
+            int k = 4 * (j * rowCells + i);
+            double u = x - xg[i];
+            double v = y - yg[j];
+            out[n] = c[k] + c[k + 1] * u + v * (c[k + 2] + c[k + 3] * u);
+        }
 
-        // linear interpolate in y on right side;
-        z1 = zprobe[j][i + 1];
-        z2 = zprobe[j + 1][i + 1];
-        double z_right = z1 + (z2 - z1) * y_ratio;
+        lastI = i;
+        lastJ = j;
+    }
 
-        double x_ratio = (x - xgrid[i]) / (xgrid[i + 1] - xgrid[i]);
+    /**
+     * Finds where the line p(t) = (x + t*dx, y + t*dy) crosses the interior grid lines. The outer
+     * grid lines are not edges, as the surface is extrapolated from the outer cells.
+     */
+    public void findEdges(double x, double y, double dx, double dy, DoubleConsumer edges)
+    {
+        for (int k = 1; k < xsize - 1; k++)
+        {
+            double t = (xgrid[k] - x) / dx;
+            if (t > 0.0 && t < 1.0) edges.accept(t);
+        }
+        for (int k = 1; k < ysize - 1; k++)
+        {
+            double t = (ygrid[k] - y) / dy;
+            if (t > 0.0 && t < 1.0) edges.accept(t);
+        }
+    }
 
-        // linear interpolate in x between left and right sides;
-        double z = z_left + (z_right - z_left) * x_ratio;
+    /**
+     * Returns the second derivative of the surface along a straight line through (x,y) in direction
+     * (dx,dy). Within a cell, the bilinear patch is a quadratic along any straight line, so the
+     * result is the same for every point of the line inside the cell containing (x,y). Along the
+     * line p(t) = (x + t*dx, y + t*dy) the surface bows away from a chord of length L (in t) by
+     * at most |curvature| * L^2 / 8.
+     * 
+     * @param x The X coordinate of a point in the cell
+     * @param y The Y coordinate of a point in the cell
+     * @param dx the X component of the line direction
+     * @param dy the Y component of the line direction
+     * @return the second derivative d^2z/dt^2
+     */
+    public double getCurvature(double x, double y, double dx, double dy)
+    {
+        int i = lastI = findGridIndex(xgrid, x, lastI, xpitch);
+        int j = lastJ = findGridIndex(ygrid, y, lastJ, ypitch);
+        return 2.0 * coeffs[4 * (j * (xsize - 1) + i) + 3] * dx * dy;
+    }
+
+    /**
+     * Returns the smallest spacing between grid values in X or Y.
+     */
+    public double minSpacing()
+    {
+        double spacing = Double.POSITIVE_INFINITY;
+        for (int k = 1; k < xsize; k++)
+        {
+            spacing = Math.min(spacing, xgrid[k] - xgrid[k - 1]);
+        }
+        for (int k = 1; k < ysize; k++)
+        {
+            spacing = Math.min(spacing, ygrid[k] - ygrid[k - 1]);
+        }
+        return spacing;
+    }
 
-        return z;
+    /**
+     * Returns the probed Z value at grid point (xgrid[i], ygrid[j]).
+     * 
+     * @param i the X grid index
+     * @param j the Y grid index
+     * @return the probed Z value, or the value filled in by fillMissing() if the point was not probed
+     */
+    public double probeZ(int i, int j)
+    {
+        return zprobe[j * xsize + i];
     }
 
     /**
-     * Given an array of n grid values and a value v, returns i such that grid[i] <= v < grid[i+1].
+     * Given an array of n grid values and a value v, returns i such that grid[i] < v <= grid[i+1].
      * For out-of-bounds values, returns 0 if v <= grid[0] or (n-2) if v >= grid[n-1]. Both the
      * returned value i and (i+1) will valid index to the array.
      * 
+     * The search starts from the previous cell and its neighbours. Failing that, the index is
+     * computed directly for evenly spaced grids, or by binary search otherwise.
+     * 
      * @param grid a sorted array of grid values
      * @param v a value to search for
-     * @return an index i such that grid[i] <= v < grid[i+1]
+     * @param hint the index returned by the previous search
+     * @param pitch the grid spacing, or NaN if the grid is not evenly spaced
+     * @return an index i such that grid[i] < v <= grid[i+1]
      */
-    private int findGridIndex(Double[] grid, double v)
+    private int findGridIndex(double[] grid, double v, int hint, double pitch)
     {
-        int n = grid.length;
-        for (int i = 1; i < n; i++)
+        int last = grid.length - 2;
+
+        // Check the previous cell and its neighbours
+        int i = hint;
+        if ((i > 0) && (v <= grid[i]))
+        {
+            i--;
+        }
+        else if ((i < last) && (v > grid[i + 1]))
+        {
+            i++;
+        }
+        if (inCell(grid, v, i)) return i;
+
+        if (!Double.isNaN(pitch))
         {
-            if (v <= grid[i]) return i - 1;
+            // Evenly spaced: compute the index, then correct for round-off at the cell edges
+            double cells = Math.ceil((v - grid[0]) / pitch) - 1;
+            i = (int) Math.max(0, Math.min(last, cells));
+            if ((i > 0) && (v <= grid[i])) i--;
+            else if ((i < last) && (v > grid[i + 1])) i++;
+            return i;
         }
-        return n - 2;
+
+        // Binary search for the first grid value at or above v
+        int lo = 1;
+        int hi = last + 1;
+        while (lo < hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            if (v <= grid[mid]) hi = mid;
+            else lo = mid + 1;
+        }
+        return lo - 1;
+    }
+
+    /**
+     * Returns true if i is the cell index for v, as defined by findGridIndex().
+     */
+    private static boolean inCell(double[] grid, double v, int i)
+    {
+        return ((i == 0) || (v > grid[i])) && ((i == grid.length - 2) || (v <= grid[i + 1]));
+    }
+
+    /**
+     * Returns the spacing of an evenly spaced grid, or NaN if the spacing varies.
+     * 
+     * @param grid a sorted array of grid values
+     */
+    private static double findPitch(double[] grid)
+    {
+        if (grid.length < 2) return Double.NaN;
+        double pitch = (grid[grid.length - 1] - grid[0]) / (grid.length - 1);
+        for (int i = 1; i < grid.length; i++)
+        {
+            // Allow for round-off in the probe coordinates reported by GRBL
+            if (Math.abs((grid[i] - grid[i - 1]) - pitch) > 1e-6 * pitch) return Double.NaN;
+        }
+        return pitch;
     }
-    
 
     /**
      * Offsets each probe point to the Work Coordinate System (G54 .. G59)
@@ -169,64 +396,234 @@ public class ProbeGrid
         ysize = yvalues.size();
 
         // Convert to arrays for indexing
-        xgrid = new Double[xsize];
-        ygrid = new Double[ysize];
-        xgrid = xvalues.toArray(xgrid);
-        ygrid = yvalues.toArray(ygrid);
+        xgrid = xvalues.stream().mapToDouble(Double::doubleValue).toArray();
+        ygrid = yvalues.stream().mapToDouble(Double::doubleValue).toArray();
 
         // Because these are Doubles, check for near duplicate values as a sanity check.
         // For example, 15.0 and 14.999999999
         checkForDuplicates(xgrid, "X");
         checkForDuplicates(ygrid, "Y");
+
+        xpitch = findPitch(xgrid);
+        ypitch = findPitch(ygrid);
     }
 
     /**
-     * Creates the Z probe 2-dimensional array using the same index values as the xgrid and ygrid
-     * arrays
+     * Creates the Z probe array using the same index values as the xgrid and ygrid arrays, and the
+     * bilinear patch of each cell.
      */
     private void makeZprobes()
     {
-        zprobe = new Double[ysize][xsize];
+        zprobe = new double[ysize * xsize];
+        Arrays.fill(zprobe, Double.NaN);
 
-        for (int i = 0; i < xsize; i++)
+        // Look up each probe's grid position by its exact coordinates
+        Map<Double, Integer> xindex = indexOf(xgrid);
+        Map<Double, Integer> yindex = indexOf(ygrid);
+        for (Point3 probe : probes)
         {
-            double x = xgrid[i];
-            for (int j = 0; j < ysize; j++)
-            {
-                double y = ygrid[j];
+            int k = yindex.get(probe.y) * xsize + xindex.get(probe.x);
 
-                // find the z value at this (x,y) position
-                zprobe[j][i] = Double.NaN;
-                for (Point3 probe : probes)
-                {
-                    if ((probe.x == x) && (probe.y == y))
-                    {
-                        zprobe[j][i] = probe.z;
-                        break;
-                    }
-                }
-                if (Double.isNaN(zprobe[j][i]))
-                {
-                    logger.severe(String.format("Missing Probe value at [%d,%d] (%.3f,%.3f)", i, j, x, y));
-                }
+            // The first probe at each position is used
+            if (Double.isNaN(zprobe[k]))
+            {
+                zprobe[k] = probe.z;
             }
         }
 
+        fillMissing();
+        makeCoefficients();
+
         // Offset so that Z = 0 at (x,y) = (0,0)
         double zOffset = getProbeHeight(0.0, 0.0);
         logger.info(String.format("Z offset = %.3f", zOffset));
 
         // offset all probe values
-        for (int i = 0; i < xsize; i++)
+        for (int k = 0; k < zprobe.length; k++)
         {
+            zprobe[k] -= zOffset;
+        }
+        makeCoefficients();
+    }
+
+    /**
+     * Fills in grid points that were not probed. Refining some cells of a grid (see ProbeRefiner)
+     * adds rows and columns that are only probed inside those cells, and a probe program that only
+     * covers the cutting area leaves out parts of the lattice.
+     * 
+     * A missing point is interpolated along its row or its column, between the nearest known
+     * points on either side, whichever pair is closer together. On a refined grid this gives the
+     * same surface as the coarser cell the point lies in. Points are filled in passes, each pass
+     * using only the values known before it, until no more can be interpolated. Points left
+     * outside the probed area then take the value of the nearest known point in their row or
+     * column, one pass at a time, going back to interpolation after each pass.
+     * 
+     * Neither refinement nor a cutting area leaves out a point whose four neighbours were all
+     * probed, so such a point is reported as a missing probe: the probe log is probably incomplete.
+     */
+    private void fillMissing()
+    {
+        for (int j = 1; j < ysize - 1; j++)
+        {
+            for (int i = 1; i < xsize - 1; i++)
+            {
+                int k = j * xsize + i;
+                if (Double.isNaN(zprobe[k]) && !Double.isNaN(zprobe[k - 1]) && !Double.isNaN(zprobe[k + 1])
+                        && !Double.isNaN(zprobe[k - xsize]) && !Double.isNaN(zprobe[k + xsize]))
+                {
+                    logger.severe(String.format("Missing Probe value at [%d,%d] (%.3f,%.3f)", i, j, xgrid[i], ygrid[j]));
+                }
+            }
+        }
+
+        int interpolated = 0;
+        int extrapolated = 0;
+        boolean interpolating = true;
+        while (true)
+        {
+            double[] known = zprobe.clone();
+            int filled = 0;
+            int missing = 0;
             for (int j = 0; j < ysize; j++)
             {
-                if (!Double.isNaN(zprobe[j][i]))
+                for (int i = 0; i < xsize; i++)
                 {
-                    zprobe[j][i] -= zOffset;
+                    int k = j * xsize + i;
+                    if (!Double.isNaN(known[k])) continue;
+                    missing++;
+                    double z = interpolating ? interpolateMissing(known, i, j) : nearestKnown(known, i, j);
+                    if (!Double.isNaN(z))
+                    {
+                        zprobe[k] = z;
+                        filled++;
+                    }
                 }
             }
+            if (interpolating) interpolated += filled;
+            else extrapolated += filled;
+
+            if (filled == missing) break;
+            if (!interpolating)
+            {
+                if (filled == 0) break;
+                interpolating = true;
+            }
+            else if (filled == 0)
+            {
+                interpolating = false;
+            }
+        }
+
+        if (interpolated > 0)
+        {
+            logger.info("   Interpolated " + interpolated + " grid points that were not probed");
+        }
+        if (extrapolated > 0)
+        {
+            logger.warning("   Extended the probed area to " + extrapolated + " grid points outside it");
+        }
+    }
+
+    /**
+     * Returns the value interpolated at a grid point from the nearest known points on either side
+     * in its row or column, whichever are closer together, or NaN if there are none.
+     */
+    private double interpolateMissing(double[] known, int i, int j)
+    {
+        int left = i - 1;
+        while (left >= 0 && Double.isNaN(known[j * xsize + left])) left--;
+        int right = i + 1;
+        while (right < xsize && Double.isNaN(known[j * xsize + right])) right++;
+        int down = j - 1;
+        while (down >= 0 && Double.isNaN(known[down * xsize + i])) down--;
+        int up = j + 1;
+        while (up < ysize && Double.isNaN(known[up * xsize + i])) up++;
+
+        boolean inRow = (left >= 0 && right < xsize);
+        boolean inColumn = (down >= 0 && up < ysize);
+        if (inRow && (!inColumn || xgrid[right] - xgrid[left] <= ygrid[up] - ygrid[down]))
+        {
+            double f = (xgrid[i] - xgrid[left]) / (xgrid[right] - xgrid[left]);
+            return known[j * xsize + left] + f * (known[j * xsize + right] - known[j * xsize + left]);
+        }
+        if (inColumn)
+        {
+            double f = (ygrid[j] - ygrid[down]) / (ygrid[up] - ygrid[down]);
+            return known[down * xsize + i] + f * (known[up * xsize + i] - known[down * xsize + i]);
+        }
+        return Double.NaN;
+    }
+
+    /**
+     * Returns the value of the nearest known point in the row or column of a grid point, or NaN
+     * if there is none.
+     */
+    private double nearestKnown(double[] known, int i, int j)
+    {
+        double best = Double.NaN;
+        double bestDistance = Double.POSITIVE_INFINITY;
+        for (int k = 0; k < xsize; k++)
+        {
+            double z = known[j * xsize + k];
+            double d = Math.abs(xgrid[k] - xgrid[i]);
+            if (!Double.isNaN(z) && d < bestDistance)
+            {
+                best = z;
+                bestDistance = d;
+            }
         }
+        for (int k = 0; k < ysize; k++)
+        {
+            double z = known[k * xsize + i];
+            double d = Math.abs(ygrid[k] - ygrid[j]);
+            if (!Double.isNaN(z) && d < bestDistance)
+            {
+                best = z;
+                bestDistance = d;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Computes the bilinear patch coefficients of each cell from the Z probe array.
+     */
+    private void makeCoefficients()
+    {
+        coeffs = new double[4 * (ysize - 1) * (xsize - 1)];
+        int k = 0;
+        for (int j = 0; j < ysize - 1; j++)
+        {
+            double dy = ygrid[j + 1] - ygrid[j];
+            for (int i = 0; i < xsize - 1; i++)
+            {
+                double dx = xgrid[i + 1] - xgrid[i];
+
+                // Corners A, B, C, D as named in getProbeHeight()
+                double za = probeZ(i, j);
+                double zb = probeZ(i, j + 1);
+                double zc = probeZ(i + 1, j);
+                double zd = probeZ(i + 1, j + 1);
+
+                coeffs[k++] = za;
+                coeffs[k++] = (zc - za) / dx;
+                coeffs[k++] = (zb - za) / dy;
+                coeffs[k++] = ((zd - zc) - (zb - za)) / (dx * dy);
+            }
+        }
+    }
+
+    /**
+     * Returns a map from each grid value to its index.
+     */
+    private static Map<Double, Integer> indexOf(double[] grid)
+    {
+        Map<Double, Integer> index = new HashMap<Double, Integer>(2 * grid.length);
+        for (int i = 0; i < grid.length; i++)
+        {
+            index.put(grid[i], i);
+        }
+        return index;
     }
 
     /**
@@ -236,7 +633,7 @@ public class ProbeGrid
      * reports pairs of x or y coordinates that are less than 0.1 from each other. Results are
      * reported to the logger as a warning.
      */
-    private void checkForDuplicates(Double[] grid, String axis)
+    private void checkForDuplicates(double[] grid, String axis)
     {
         double prev = Double.NEGATIVE_INFINITY;
         for (double v : grid)
@@ -255,11 +652,11 @@ public class ProbeGrid
      */
     private void logProbeGrid()
     {
-        logger.info("   X grid size: " + xsize);
+        logger.info("   X grid size: " + xsize + (Double.isNaN(xpitch) ? ", uneven" : ", pitch " + xpitch));
         logger.fine("   X grid = ");
         logger.fine("   " + arrayToString(xgrid));
 
-        logger.info("   Y grid size: " + ysize);
+        logger.info("   Y grid size: " + ysize + (Double.isNaN(ypitch) ? ", uneven" : ", pitch " + ypitch));
         logger.fine("   Y grid = ");
         logger.fine("   " + arrayToString(ygrid));
 
@@ -267,25 +664,17 @@ public class ProbeGrid
 
         for (int j = 0; j < ysize; j++)
         {
-            Double[] row = new Double[xsize];
-            for (int i = 0; i < xsize; i++)
-            {
-                row[i] = zprobe[j][i];
-            }
+            double[] row = Arrays.copyOfRange(zprobe, j * xsize, (j + 1) * xsize);
             logger.fine("   " + arrayToString(row));
         }
 
         // Log the min/max value for each axis
         double maxZ = Double.NEGATIVE_INFINITY;
         double minZ = Double.POSITIVE_INFINITY;
-        for (int j = 0; j < ysize; j++)
+        for (double z : zprobe)
         {
-            for (int i = 0; i < xsize; i++)
-            {
-                double z = zprobe[j][i];
-                minZ = Math.min(minZ, z);
-                maxZ = Math.max(maxZ, z);
-            }
+            minZ = Math.min(minZ, z);
+            maxZ = Math.max(maxZ, z);
         }
         Point3 min = new Point3(xgrid[0], ygrid[0], minZ);
         Point3 max = new Point3(xgrid[xsize - 1], ygrid[ysize - 1], maxZ);
@@ -299,7 +688,7 @@ public class ProbeGrid
      * 
      * @param grid array to convert
      */
-    private String arrayToString(Double[] grid)
+    private String arrayToString(double[] grid)
     {
         StringBuilder sb = new StringBuilder();
         sb.append("[");
@@ -1,9 +1,6 @@
 package cncleveler;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
@@ -34,38 +31,39 @@ public class ProbeLogReader
         // Open input file for reading
         Path inFile = Paths.get(filename);
 
-        // BufferedReader supports readLine()
-        BufferedReader in = Files.newBufferedReader(inFile, StandardCharsets.UTF_8);
-
-        String line;
         List<Point3> probes = new ArrayList<Point3>();
 
-        while ((line = in.readLine()) != null)
+        // Memory map the file and only decode the probe result lines
+        try (MappedLineReader in = new MappedLineReader(inFile))
         {
-            if (line.startsWith("[PRB:"))
+            while (in.nextLine())
             {
-                //
-                // Typical Line formated as:
-                // [PRB:-262.500,-150.000,-20.966:1]
-                //
-                try
-                {
-                    // Pull out values between colons, then split at commas
-                    String subline = line.split(":")[1];
-                    String values[] = subline.split(",");
-                    Point3 probe = new Point3();
-                    probe.x = Double.parseDouble(values[0]);
-                    probe.y = Double.parseDouble(values[1]);
-                    probe.z = Double.parseDouble(values[2]);
-                    probes.add(probe);
-                }
-                catch (Exception ex)
+                if (in.startsWith("[PRB:"))
                 {
-                    System.out.println("Error parsing: " + line);
+                    String line = in.lineText();
+
+                    //
+                    // Typical Line formated as:
+                    // [PRB:-262.500,-150.000,-20.966:1]
+                    //
+                    try
+                    {
+                        // Pull out values between colons, then split at commas
+                        String subline = line.split(":")[1];
+                        String values[] = subline.split(",");
+                        Point3 probe = new Point3();
+                        probe.x = Double.parseDouble(values[0]);
+                        probe.y = Double.parseDouble(values[1]);
+                        probe.z = Double.parseDouble(values[2]);
+                        probes.add(probe);
+                    }
+                    catch (Exception ex)
+                    {
+                        System.out.println("Error parsing: " + line);
+                    }
                 }
             }
         }
-        in.close();
 
         logProbeValues(probes);
 
@@ -0,0 +1,398 @@
+package cncleveler;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Writes a G38.2 probe program that only probes where a G code program cuts, in the same form as
+ * the hand-written probe programs: "G0Z-15 / G0XnYn / G38.2Z-25F50" for each point.
+ *
+ * The probe points are the nodes of a square lattice with spacing Config.probePitch, aligned to
+ * the work origin. A cell of the lattice is probed (all four of its corners) if a cutting move,
+ * one that goes below Z0, passes within Config.probeMargin of it in X and in Y. Each move is traced
+ * through the lattice a column of cells at a time, so a cell the move only clips at a corner is
+ * still probed. Arcs in the XY plane are followed as chords a quarter of the pitch long, with the
+ * margin widened by how far a chord strays from the curve. On a sparse board this leaves out most
+ * of the full-bed grid.
+ *
+ * The points are visited nearest neighbour first, starting from the work origin, and the route is
+ * then improved with 2-opt moves (reversing a stretch of the route when that makes it shorter)
+ * until no reversal helps. The rapid travel of the route is logged, along with that of visiting
+ * the same points row by row.
+ *
+ * A ProbeProgramGenerator is a StateSink, so the program is read block by block with the parser.
+ */
+public class ProbeProgramGenerator implements StateSink
+{
+    private static final Logger logger = Logger.getLogger((Main.class.getName()));
+
+    /**
+     * Millimeters per inch, for programs in G20 units.
+     */
+    private static final double MM_PER_INCH = 25.4;
+
+    /**
+     * The most passes of 2-opt moves over the route.
+     */
+    private static final int MAX_PASSES = 100;
+
+    /**
+     * Spacing of the lattice, and distance around the cutting moves to cover (mm).
+     */
+    private final double pitch;
+    private final double margin;
+
+    private final ModalResolver resolver = new ModalResolver();
+
+    /**
+     * The cells to probe, keyed by cell(i, j).
+     */
+    private final Set<Long> cells = new HashSet<Long>();
+
+    /**
+     * Number of cutting moves found.
+     */
+    private int cuttingMoves = 0;
+
+    /**
+     * Constructor
+     *
+     * @param pitch the spacing of the probe lattice (mm)
+     * @param margin the distance around the cutting moves to probe (mm)
+     */
+    public ProbeProgramGenerator(double pitch, double margin)
+    {
+        this.pitch = pitch;
+        this.margin = margin;
+    }
+
+    /**
+     * Reads a G code program and writes a probe program covering its cutting moves.
+     *
+     * @param gcodeFilename the G code program to be leveled
+     * @param probeFilename the probe program to write
+     * @throws IOException on IO errors
+     */
+    public static void generate(String gcodeFilename, String probeFilename) throws IOException
+    {
+        ProbeProgramGenerator generator = new ProbeProgramGenerator(Config.probePitch, Config.probeMargin);
+        try (StateSink sink = generator)
+        {
+            GCodeParser parser = new GCodeParser();
+            parser.keepOriginalText = false;
+            parser.read(gcodeFilename, sink);
+        }
+
+        List<Point3> points = generator.points();
+        List<Point3> route = order(points, new Point3(0.0, 0.0, 0.0));
+        write(probeFilename, route, gcodeFilename);
+    }
+
+    /**
+     * Marks the cells a cutting move passes through or near.
+     *
+     * @param state the next block of the program
+     */
+    @Override
+    public void accept(State state)
+    {
+        double x0 = resolver.x;
+        double y0 = resolver.y;
+        double z0 = resolver.z;
+        resolver.resolve(state);
+        if (!state.hasPosition() || state.getGroup(Group.NON_MODAL) != null) return;
+
+        Mode motion = resolver.motion;
+        if (motion == null || motion == Mode.RAPID || motion == Mode.PROBE_TOWARD) return;
+        double x1 = resolver.x;
+        double y1 = resolver.y;
+        double z1 = resolver.z;
+        if (Double.isNaN(x0 + y0 + z0 + x1 + y1 + z1)) return;
+        if (Math.min(z0, z1) >= 0) return;
+
+        cuttingMoves++;
+        double scale = (resolver.units == Mode.INCHES) ? MM_PER_INCH : 1.0;
+        ArcLinearizer.Arc arc = null;
+        if ((motion == Mode.CIRCULAR_CW || motion == Mode.CIRCULAR_CCW)
+                && (resolver.plane == null || resolver.plane == Mode.XY_PLANE))
+        {
+            arc = ArcLinearizer.Arc.of(state, motion == Mode.CIRCULAR_CW, x0, y0, x1, y1);
+        }
+
+        if (arc == null)
+        {
+            mark(x0 * scale, y0 * scale, x1 * scale, y1 * scale, margin);
+            return;
+        }
+
+        int n = Math.max(1, (int) Math.ceil(Math.abs(arc.angle) * arc.radius * scale / (pitch / 4)));
+        double sagitta = arc.radius * scale * (1 - Math.cos(arc.angle / n / 2));
+        for (int k = 0; k < n; k++)
+        {
+            double f0 = (double) k / n;
+            double f1 = (double) (k + 1) / n;
+            mark(arc.x(f0) * scale, arc.y(f0) * scale, arc.x(f1) * scale, arc.y(f1) * scale, margin + sagitta);
+        }
+    }
+
+    @Override
+    public void close()
+    {
+        logger.info("   " + cuttingMoves + " cutting moves cover " + cells.size() + " probe cells");
+    }
+
+    /**
+     * Returns the corners of the marked cells, sorted by Y then X.
+     *
+     * @return the probe points, with Z = 0
+     */
+    public List<Point3> points()
+    {
+        Set<Long> nodes = new HashSet<Long>();
+        for (long c : cells)
+        {
+            int i = (int) (c >> 32);
+            int j = (int) c;
+            nodes.add(cell(i, j));
+            nodes.add(cell(i + 1, j));
+            nodes.add(cell(i, j + 1));
+            nodes.add(cell(i + 1, j + 1));
+        }
+
+        List<Point3> points = new ArrayList<Point3>(nodes.size());
+        for (long node : nodes)
+        {
+            int i = (int) (node >> 32);
+            int j = (int) node;
+            points.add(new Point3(i * pitch, j * pitch, 0.0));
+        }
+        points.sort(ProbeProgramGenerator::compareRows);
+        return points;
+    }
+
+    /**
+     * Returns the points in a short order to visit them from a start point: nearest neighbour
+     * first, then improved by 2-opt moves.
+     *
+     * @param points the points to visit
+     * @param start the position the route starts from, which is not part of the route
+     * @return the points in visiting order
+     */
+    public static List<Point3> order(List<Point3> points, Point3 start)
+    {
+        int n = points.size();
+        Point3[] route = new Point3[n];
+        boolean[] visited = new boolean[n];
+
+        // Nearest neighbour
+        Point3 at = start;
+        for (int k = 0; k < n; k++)
+        {
+            int best = -1;
+            double bestDistance = Double.POSITIVE_INFINITY;
+            for (int i = 0; i < n; i++)
+            {
+                if (!visited[i])
+                {
+                    double d = distance(at, points.get(i));
+                    if (d < bestDistance)
+                    {
+                        bestDistance = d;
+                        best = i;
+                    }
+                }
+            }
+            visited[best] = true;
+            route[k] = at = points.get(best);
+        }
+
+        // 2-opt: reverse route[i..k] when joining its ends the other way round is shorter. The
+        // route is open, so reversing a tail only changes the edge into it.
+        boolean improved = true;
+        for (int pass = 0; improved && pass < MAX_PASSES; pass++)
+        {
+            improved = false;
+            for (int i = 0; i < n - 1; i++)
+            {
+                Point3 before = (i == 0) ? start : route[i - 1];
+                for (int k = i + 1; k < n; k++)
+                {
+                    double delta = distance(before, route[k]) - distance(before, route[i]);
+                    if (k < n - 1)
+                    {
+                        delta += distance(route[i], route[k + 1]) - distance(route[k], route[k + 1]);
+                    }
+                    if (delta < -1e-9)
+                    {
+                        reverse(route, i, k);
+                        improved = true;
+                    }
+                }
+            }
+        }
+
+        List<Point3> ordered = new ArrayList<Point3>(n);
+        for (Point3 p : route)
+        {
+            ordered.add(p);
+        }
+        return ordered;
+    }
+
+    /**
+     * Returns the length of the rapid moves to visit the points in order from a start point.
+     *
+     * @param route the points in visiting order
+     * @param start the position the route starts from
+     * @return the total XY distance (mm)
+     */
+    public static double travel(List<Point3> route, Point3 start)
+    {
+        double total = 0;
+        Point3 at = start;
+        for (Point3 p : route)
+        {
+            total += distance(at, p);
+            at = p;
+        }
+        return total;
+    }
+
+    /**
+     * Writes the probe program.
+     *
+     * @param filename the probe program to write
+     * @param route the points in visiting order
+     * @param purpose what the points are for, such as the program they cover, for a comment
+     * @throws IOException on IO errors
+     */
+    public static void write(String filename, List<Point3> route, String purpose) throws IOException
+    {
+        logger.info("Writing: " + filename);
+
+        String clearance = "G0" + State.format('Z', Config.probeClearanceZ) + "\n";
+        String probe = "G38.2" + State.format('Z', Config.probeDepthZ) + State.format('F', Config.probeFeed) + "\n";
+        try (BufferedWriter out = Files.newBufferedWriter(Paths.get(filename), StandardCharsets.UTF_8))
+        {
+            out.write("(Probe program for " + purpose + ": " + route.size() + " points)\n");
+            out.write("G90\n");
+            out.write("G21\n");
+            for (Point3 p : route)
+            {
+                out.write(clearance);
+                out.write("G0" + State.format('X', p.x) + State.format('Y', p.y) + "\n");
+                out.write(probe);
+            }
+            out.write(clearance);
+        }
+
+        Point3 origin = new Point3(0.0, 0.0, 0.0);
+        logger.info(String.format("   %d probe points, %.0f mm of rapid travel (%.0f mm row by row)", route.size(),
+                travel(route, origin), travel(serpentine(route), origin)));
+    }
+
+    /**
+     * Marks every cell that a straight move passes within a distance of, in X and in Y (mm).
+     *
+     * The move is traced one column of cells at a time: the part of the move within the distance
+     * of the column's X range is clipped out, and every cell of the column within the distance of
+     * that part's Y range is marked.
+     */
+    private void mark(double x0, double y0, double x1, double y1, double distance)
+    {
+        int i0 = (int) Math.floor((Math.min(x0, x1) - distance) / pitch);
+        int i1 = (int) Math.floor((Math.max(x0, x1) + distance) / pitch);
+        double dx = x1 - x0;
+        for (int i = i0; i <= i1; i++)
+        {
+            // The fractions of the move between which it is within the distance of the column
+            double f0 = 0.0;
+            double f1 = 1.0;
+            if (dx != 0)
+            {
+                double a = (i * pitch - distance - x0) / dx;
+                double b = ((i + 1) * pitch + distance - x0) / dx;
+                f0 = Math.max(f0, Math.min(a, b));
+                f1 = Math.min(f1, Math.max(a, b));
+                if (f0 > f1) continue;
+            }
+            double ya = y0 + f0 * (y1 - y0);
+            double yb = y0 + f1 * (y1 - y0);
+            int j0 = (int) Math.floor((Math.min(ya, yb) - distance) / pitch);
+            int j1 = (int) Math.floor((Math.max(ya, yb) + distance) / pitch);
+            for (int j = j0; j <= j1; j++)
+            {
+                cells.add(cell(i, j));
+            }
+        }
+    }
+
+    /**
+     * Returns the key of a cell or node from its two indexes.
+     */
+    private static long cell(int a, int b)
+    {
+        return ((long) a << 32) | (b & 0xffffffffL);
+    }
+
+    /**
+     * Returns the points row by row, alternating direction, as a hand-written program visits them.
+     */
+    private static List<Point3> serpentine(List<Point3> points)
+    {
+        List<Point3> rows = new ArrayList<Point3>(points);
+        rows.sort(ProbeProgramGenerator::compareRows);
+
+        List<Point3> route = new ArrayList<Point3>(rows.size());
+        boolean reversed = false;
+        int start = 0;
+        for (int k = 1; k <= rows.size(); k++)
+        {
+            if (k == rows.size() || rows.get(k).y != rows.get(start).y)
+            {
+                List<Point3> row = rows.subList(start, k);
+                for (int m = 0; m < row.size(); m++)
+                {
+                    route.add(row.get(reversed ? row.size() - 1 - m : m));
+                }
+                reversed = !reversed;
+                start = k;
+            }
+        }
+        return route;
+    }
+
+    /**
+     * Orders points by Y, then by X.
+     */
+    private static int compareRows(Point3 a, Point3 b)
+    {
+        return (a.y != b.y) ? Double.compare(a.y, b.y) : Double.compare(a.x, b.x);
+    }
+
+    /**
+     * Reverses route[i..k].
+     */
+    private static void reverse(Point3[] route, int i, int k)
+    {
+        for (; i < k; i++, k--)
+        {
+            Point3 t = route[i];
+            route[i] = route[k];
+            route[k] = t;
+        }
+    }
+
+    private static double distance(Point3 a, Point3 b)
+    {
+        return Math.hypot(a.x - b.x, a.y - b.y);
+    }
+}
@@ -0,0 +1,216 @@
+package cncleveler;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Plans extra probes where a probe grid is least accurate, so flat areas of a board need few
+ * probes and warped areas get more.
+ *
+ * The error of bilinear interpolation in a cell of size hx by hy is at most
+ * (hx^2/8)*|d2z/dx2| + (hy^2/8)*|d2z/dy2|. The second derivatives are estimated at each grid
+ * point from second differences of the probed heights along its row and column (allowing for
+ * uneven spacing), and each cell takes the largest at its four corners. Cells are ranked by this
+ * estimate, and each cell above the tolerance is split in four: its center and the midpoints of
+ * its edges are probed.
+ *
+ * The follow-up probe program is ordered and written by ProbeProgramGenerator. When its results
+ * are read together with the first probes, ProbeGrid fills in the new rows and columns outside the
+ * refined cells, so the grid is refined only where it was needed. Refining again splits the
+ * refined cells further where they are still above the tolerance.
+ */
+public class ProbeRefiner
+{
+    private static final Logger logger = Logger.getLogger((Main.class.getName()));
+
+    /**
+     * Number of cells to list in the log, worst first.
+     */
+    private static final int CELLS_LOGGED = 5;
+
+    private final ProbeGrid grid;
+
+    /**
+     * Estimated interpolation error of each cell (mm), in row-major order.
+     */
+    private final double[] errors;
+
+    /**
+     * Constructor, which estimates the error of each cell of the grid.
+     *
+     * @param grid the probe grid to refine
+     */
+    public ProbeRefiner(ProbeGrid grid)
+    {
+        this.grid = grid;
+        int xsize = grid.xsize;
+        int ysize = grid.ysize;
+
+        double[] dxx = new double[xsize * ysize];
+        double[] dyy = new double[xsize * ysize];
+        for (int j = 0; j < ysize; j++)
+        {
+            for (int i = 0; i < xsize; i++)
+            {
+                int row = j;
+                int column = i;
+                dxx[j * xsize + i] = secondDifference(grid.xgrid, i, k -> grid.probeZ(k, row));
+                dyy[j * xsize + i] = secondDifference(grid.ygrid, j, k -> grid.probeZ(column, k));
+            }
+        }
+
+        errors = new double[Math.max(xsize - 1, 0) * Math.max(ysize - 1, 0)];
+        for (int j = 0; j < ysize - 1; j++)
+        {
+            double hy = grid.ygrid[j + 1] - grid.ygrid[j];
+            for (int i = 0; i < xsize - 1; i++)
+            {
+                double hx = grid.xgrid[i + 1] - grid.xgrid[i];
+                double maxDxx = 0;
+                double maxDyy = 0;
+                for (int k : new int[] { j * xsize + i, j * xsize + i + 1, (j + 1) * xsize + i, (j + 1) * xsize + i + 1 })
+                {
+                    maxDxx = Math.max(maxDxx, Math.abs(dxx[k]));
+                    maxDyy = Math.max(maxDyy, Math.abs(dyy[k]));
+                }
+                errors[j * (xsize - 1) + i] = (hx * hx * maxDxx + hy * hy * maxDyy) / 8;
+            }
+        }
+    }
+
+    /**
+     * Writes a probe program that refines every cell whose estimated error is above the
+     * tolerance.
+     *
+     * @param grid the probe grid to refine
+     * @param tolerance the largest acceptable interpolation error (mm)
+     * @param filename the probe program to write
+     * @param probeFilename the probe results the grid was made from, named in a comment
+     * @throws IOException on IO errors
+     */
+    public static void refine(ProbeGrid grid, double tolerance, String filename, String probeFilename)
+            throws IOException
+    {
+        ProbeRefiner refiner = new ProbeRefiner(grid);
+        refiner.logRanking(tolerance);
+
+        List<Point3> points = refiner.refinementPoints(tolerance);
+        List<Point3> route = ProbeProgramGenerator.order(points, new Point3(0.0, 0.0, 0.0));
+        ProbeProgramGenerator.write(filename, route, "refining " + probeFilename);
+    }
+
+    /**
+     * Returns the estimated interpolation error of cell (i,j), between grid points i and i+1 in X
+     * and j and j+1 in Y.
+     *
+     * @param i the X cell index
+     * @param j the Y cell index
+     * @return the estimated error (mm)
+     */
+    public double cellError(int i, int j)
+    {
+        return errors[j * (grid.xsize - 1) + i];
+    }
+
+    /**
+     * Returns the points to probe to split each cell whose estimated error is above the
+     * tolerance: the center of the cell and the midpoints of its edges. Points shared by
+     * neighbouring cells are returned once. Coordinates are rounded to 0.001 mm, as GRBL reports
+     * them.
+     *
+     * @param tolerance the largest acceptable interpolation error (mm)
+     * @return the points to probe, with Z = 0
+     */
+    public List<Point3> refinementPoints(double tolerance)
+    {
+        double[] xg = grid.xgrid;
+        double[] yg = grid.ygrid;
+        Set<List<Double>> seen = new HashSet<List<Double>>();
+        List<Point3> points = new ArrayList<Point3>();
+        for (int j = 0; j < grid.ysize - 1; j++)
+        {
+            for (int i = 0; i < grid.xsize - 1; i++)
+            {
+                if (cellError(i, j) <= tolerance) continue;
+
+                double xm = round((xg[i] + xg[i + 1]) / 2);
+                double ym = round((yg[j] + yg[j + 1]) / 2);
+                double[][] split = { { xm, ym }, { xm, yg[j] }, { xm, yg[j + 1] }, { xg[i], ym }, { xg[i + 1], ym } };
+                for (double[] p : split)
+                {
+                    if (seen.add(Arrays.asList(p[0], p[1])))
+                    {
+                        points.add(new Point3(p[0], p[1], 0.0));
+                    }
+                }
+            }
+        }
+        return points;
+    }
+
+    /**
+     * Logs how many cells are above the tolerance, and the worst cells.
+     */
+    private void logRanking(double tolerance)
+    {
+        Integer[] order = new Integer[errors.length];
+        int above = 0;
+        for (int k = 0; k < errors.length; k++)
+        {
+            order[k] = k;
+            if (errors[k] > tolerance) above++;
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(errors[b], errors[a]));
+
+        logger.info(String.format("   %d of %d probe cells have an estimated error above %.3f mm", above,
+                errors.length, tolerance));
+        int cells = grid.xsize - 1;
+        for (int n = 0; n < Math.min(CELLS_LOGGED, order.length); n++)
+        {
+            int k = order[n];
+            int i = k % cells;
+            int j = k / cells;
+            logger.info(String.format("      (%.3f,%.3f)-(%.3f,%.3f): %.4f mm", grid.xgrid[i], grid.ygrid[j],
+                    grid.xgrid[i + 1], grid.ygrid[j + 1], errors[k]));
+        }
+    }
+
+    /**
+     * A function from a grid index to a probed height.
+     */
+    private interface Heights
+    {
+        double at(int k);
+    }
+
+    /**
+     * Returns the second derivative at grid point i of a row or column, from the second difference
+     * of it and its neighbours. Points at the ends use the value of their neighbour, and a row or
+     * column of fewer than three points has none.
+     */
+    private static double secondDifference(double[] grid, int i, Heights z)
+    {
+        int n = grid.length;
+        if (n < 3) return 0;
+        int c = Math.max(1, Math.min(n - 2, i));
+
+        double h0 = grid[c] - grid[c - 1];
+        double h1 = grid[c + 1] - grid[c];
+        double slope0 = (z.at(c) - z.at(c - 1)) / h0;
+        double slope1 = (z.at(c + 1) - z.at(c)) / h1;
+        return 2 * (slope1 - slope0) / (h0 + h1);
+    }
+
+    /**
+     * Rounds a coordinate to 0.001 mm.
+     */
+    private static double round(double v)
+    {
+        return Math.round(v * 1000) / 1000.0;
+    }
+}
@@ -0,0 +1,73 @@
+package cncleveler;
+
+import java.util.function.DoubleConsumer;
+
+/**
+ * A surface interpolated from probe data, giving the Z offset to level a program by at any (X,Y)
+ * position in work coordinates. Z is offset so that Z=0 at (X,Y) = (0,0).
+ *
+ * Implementations may cache the last lookup to speed up the next one, so a surface must not be
+ * queried from more than one thread at a time; copy() gives each thread its own.
+ */
+public interface ProbeSurface
+{
+    /**
+     * Computes the Z probe offset at an (x,y) coordinate.
+     *
+     * @param x The X coordinate to use in interpolation
+     * @param y The Y coordinate to use in interpolation
+     * @return the interpolated Z value
+     */
+    double getProbeHeight(double x, double y);
+
+    /**
+     * Computes the Z probe offset for a range of (x,y) coordinates at once. Gives the same results
+     * as calling getProbeHeight() for each point.
+     *
+     * @param xs the X coordinates to interpolate at
+     * @param ys the Y coordinates to interpolate at
+     * @param out receives the interpolated Z values
+     * @param offset the index of the first point in xs, ys and out
+     * @param count the number of points
+     */
+    void getProbeHeights(double[] xs, double[] ys, double[] out, int offset, int count);
+
+    /**
+     * Finds where the line p(t) = (x + t*dx, y + t*dy) crosses from one piece of the surface to the
+     * next (a probe cell or triangle), for t between 0 and 1. Between the crossings the height
+     * along the line is a quadratic in t, so a chord between two points of the line is furthest
+     * from the surface at a crossing or where the surface is parallel to it.
+     *
+     * @param x the X coordinate of the start of the line
+     * @param y the Y coordinate of the start of the line
+     * @param dx the X distance to the end of the line
+     * @param dy the Y distance to the end of the line
+     * @param edges receives each value of t, in no particular order
+     */
+    void findEdges(double x, double y, double dx, double dy, DoubleConsumer edges);
+
+    /**
+     * Returns the second derivative of the surface along a straight line through (x,y) in direction
+     * (dx,dy), which is the same for every point of the line between the same two crossings (see
+     * findEdges()).
+     *
+     * @param x The X coordinate of a point of the line
+     * @param y The Y coordinate of a point of the line
+     * @param dx the X component of the line direction
+     * @param dy the Y component of the line direction
+     * @return the second derivative d^2z/dt^2
+     */
+    double getCurvature(double x, double y, double dx, double dy);
+
+    /**
+     * Returns the smallest distance (mm) between neighbouring probes, the smallest feature of the
+     * surface.
+     */
+    double minSpacing();
+
+    /**
+     * Returns a surface with the same probe data, for use on another thread. The probe data is
+     * shared, not copied.
+     */
+    ProbeSurface copy();
+}
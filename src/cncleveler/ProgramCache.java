@@ -0,0 +1,267 @@
+package cncleveler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Caches parsed G code programs as binary images so that a program that is leveled many times is
+ * only parsed once.
+ *
+ * The image is keyed by a SHA-256 hash of the G code file contents, the image format version and a
+ * signature of the supported code words. When any of these change the cached image is ignored and
+ * rewritten, so invalidation is automatic. Images are loaded through a copy-on-write memory map, so
+ * leveling the loaded program never modifies the cache file. An image that can't be written, such
+ * as one in a shared read-only cache, is mapped read-only and copied into memory instead.
+ *
+ * Images are kept next to the source file (as filename.cnlc), or in a cache directory named by the
+ * content hash when one is given.
+ */
+public class ProgramCache
+{
+    private static final Logger logger = Logger.getLogger((Main.class.getName()));
+
+    /**
+     * Identifies a program image file ("CNLC").
+     */
+    private static final int MAGIC = 0x434E4C43;
+
+    /**
+     * Version of the image format. Change whenever the layout written by ProgramStore changes.
+     */
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * Size of the content hash in bytes.
+     */
+    private static final int HASH_SIZE = 32;
+
+    /**
+     * Size of the image file header: magic, version, schema signature and content hash.
+     */
+    private static final int HEADER_SIZE = 3 * Integer.BYTES + HASH_SIZE + 4;
+
+    /**
+     * Largest number of bytes hashed from one mapping of the source file.
+     */
+    private static final long HASH_WINDOW = 1L << 30;
+
+    /**
+     * The directory to keep images in, or null to keep them next to the source file.
+     */
+    private final Path cacheDir;
+
+    /**
+     * Constructor
+     *
+     * @param cacheDir the directory to keep images in, or null to keep them next to the source file
+     */
+    public ProgramCache(String cacheDir)
+    {
+        this.cacheDir = (cacheDir != null) ? Paths.get(cacheDir) : null;
+    }
+
+    /**
+     * Returns the parsed program for a G code file, from the cache when the cached image matches
+     * the file contents, otherwise by parsing the file and saving a new image.
+     *
+     * @param filename The filename (and path) to the G code file
+     * @return the parsed program
+     * @throws IOException on any I/O error reading the G code file
+     */
+    public ProgramStore read(String filename) throws IOException
+    {
+        Path source = Paths.get(filename);
+        byte[] hash = hash(source);
+        Path image = imagePath(source, hash);
+
+        if (Files.exists(image))
+        {
+            try
+            {
+                ProgramStore program = load(image, hash);
+                if (program != null)
+                {
+                    logger.info("Loaded cached program: " + image + " (" + program.size() + " blocks)");
+                    return program;
+                }
+                logger.info("Cached program is out of date: " + image);
+            }
+            catch (IOException ex)
+            {
+                logger.log(Level.WARNING, "Unable to read cached program " + image, ex);
+            }
+        }
+
+        GCodeParser parser = new GCodeParser();
+        parser.keepOriginalText = false;
+        ProgramStore program = new ProgramStore(Config.offHeap);
+        parser.read(filename, program);
+
+        try
+        {
+            save(image, hash, program);
+            logger.info("Saved cached program: " + image);
+        }
+        catch (IOException ex)
+        {
+            // The cache is only an optimization, so carry on without it
+            logger.log(Level.WARNING, "Unable to save cached program " + image, ex);
+        }
+        return program;
+    }
+
+    /**
+     * Returns the path of the image for a source file.
+     */
+    private Path imagePath(Path source, byte[] hash)
+    {
+        if (cacheDir == null)
+        {
+            return source.resolveSibling(source.getFileName() + ".cnlc");
+        }
+        StringBuilder name = new StringBuilder();
+        for (byte b : hash)
+        {
+            name.append(String.format("%02x", b));
+        }
+        return cacheDir.resolve(name.append(".cnlc").toString());
+    }
+
+    /**
+     * Maps an image file and returns the program it holds, or null if the image was made for
+     * different file contents or by a different version.
+     */
+    private static ProgramStore load(Path image, byte[] hash) throws IOException
+    {
+        // A copy-on-write mapping needs a channel open for writing, though nothing is written
+        boolean writable = Files.isWritable(image);
+        try (FileChannel channel = writable
+                ? FileChannel.open(image, StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(image, StandardOpenOption.READ))
+        {
+            ByteBuffer in;
+            if (writable)
+            {
+                // Copy-on-write, so changes made by the leveler stay in memory
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.PRIVATE, 0, channel.size());
+                in = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+            }
+            else
+            {
+                // The leveler changes the program in place, so it gets a copy of a read-only image
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                in = ByteBuffer.allocateDirect(buffer.capacity()).put(buffer).order(ByteOrder.LITTLE_ENDIAN);
+                in.flip();
+            }
+            if (in.remaining() < HEADER_SIZE) return null;
+
+            if (in.getInt() != MAGIC || in.getInt() != FORMAT_VERSION || in.getInt() != schemaSignature()) return null;
+            byte[] imageHash = new byte[HASH_SIZE];
+            in.get(imageHash);
+            if (!Arrays.equals(imageHash, hash)) return null;
+
+            in.position(HEADER_SIZE);
+            return new ProgramStore(in);
+        }
+    }
+
+    /**
+     * Writes an image file. The image is written to a temporary file and then moved into place, so
+     * an interrupted write never leaves a partial image behind. Where the file system can't rename
+     * atomically, the move replaces any existing image non-atomically.
+     */
+    private static void save(Path image, byte[] hash, ProgramStore program) throws IOException
+    {
+        Path dir = image.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        // A new file with the usual permissions; createTempFile() would make it private to the owner
+        Path temp = dir.resolve(image.getFileName() + "." + Long.toHexString(ThreadLocalRandom.current().nextLong())
+                + ".tmp");
+        FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        try
+        {
+            try (FileChannel out = channel)
+            {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                header.putInt(MAGIC);
+                header.putInt(FORMAT_VERSION);
+                header.putInt(schemaSignature());
+                header.put(hash);
+                header.rewind();
+                while (header.hasRemaining())
+                    out.write(header);
+
+                program.writeImage(out);
+            }
+            try
+            {
+                Files.move(temp, image, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (AtomicMoveNotSupportedException ex)
+            {
+                Files.move(temp, image, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        finally
+        {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Returns the SHA-256 hash of a file's contents.
+     */
+    private static byte[] hash(Path source) throws IOException
+    {
+        MessageDigest digest;
+        try
+        {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException ex)
+        {
+            throw new IOException(ex);
+        }
+
+        try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ))
+        {
+            long size = channel.size();
+            for (long offset = 0; offset < size; offset += HASH_WINDOW)
+            {
+                digest.update(channel.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(HASH_WINDOW, size - offset)));
+            }
+        }
+        return digest.digest();
+    }
+
+    /**
+     * Returns a signature of the code words the image's ordinals refer to, so that images are
+     * rebuilt when a Mode, Axis or Group is added or reordered.
+     */
+    private static int schemaSignature()
+    {
+        StringBuilder sb = new StringBuilder();
+        for (Mode m : Mode.values())
+            sb.append(m.code()).append(',');
+        for (Axis a : Axis.values())
+            sb.append(a.letter());
+        for (Group g : Group.values())
+            sb.append(g.name()).append(',');
+        return sb.toString().hashCode();
+    }
+}
@@ -0,0 +1,649 @@
+package cncleveler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Holds a parsed G code program in a compact column-oriented form. This is an alternative to a
+ * List of State objects for large programs.
+ *
+ * Each block (line) of the program is a row. Each Axis has a column of primitive doubles and each
+ * Group has a column of bytes holding the Mode ordinal plus one (zero means not set). A column of
+ * bit masks records which axes each block sets, and comments are interned and stored as an index.
+ * Columns are only created for the axes, groups and comments that actually appear in the program.
+ * The original text of each line is not stored, and the line number of block i is always i + 1.
+ *
+ * Columns are held in heap buffers backed by primitive arrays (double[], byte[] ...), or optionally
+ * in direct buffers outside the Java heap for very large jobs. A store can also be saved as a binary
+ * image and later used in place from a memory mapped copy of that image (see ProgramCache).
+ */
+public class ProgramStore implements StateSink
+{
+    private static final Axis[] AXES = Axis.values();
+    private static final Group[] GROUPS = Group.values();
+    private static final Mode[] MODES = Mode.values();
+
+    /**
+     * Byte order of binary images. Fixed so that images can be shared between machines.
+     */
+    private static final ByteOrder IMAGE_ORDER = ByteOrder.LITTLE_ENDIAN;
+
+    /**
+     * Columns in a binary image start on a multiple of this many bytes.
+     */
+    private static final int IMAGE_ALIGNMENT = 8;
+
+    /**
+     * Number of blocks to allocate space for initially.
+     */
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /**
+     * True to allocate the columns off-heap.
+     */
+    private final boolean offHeap;
+
+    /**
+     * Number of blocks in the program.
+     */
+    private int size = 0;
+
+    /**
+     * Number of blocks the columns have room for.
+     */
+    private int capacity = 0;
+
+    /**
+     * Value of each axis, indexed by Axis ordinal. Null if no block sets the axis.
+     */
+    private final DoubleBuffer[] axisColumns = new DoubleBuffer[AXES.length];
+
+    /**
+     * Mode ordinal plus one for each group, indexed by Group ordinal. Null if no block sets the
+     * group.
+     */
+    private final ByteBuffer[] groupColumns = new ByteBuffer[GROUPS.length];
+
+    /**
+     * Bit mask of the axes set by each block, with bit n for Axis ordinal n.
+     */
+    private ShortBuffer axisMask;
+
+    /**
+     * Comment index plus one for each block (zero means no comment). Null if there are no comments.
+     */
+    private IntBuffer commentColumn;
+
+    /**
+     * Interned comment strings.
+     */
+    private final List<String> comments = new ArrayList<String>();
+
+    /**
+     * Index of each interned comment string.
+     */
+    private final Map<String, Integer> commentIndex = new HashMap<String, Integer>();
+
+    /**
+     * Constructor for a store that keeps its columns on the heap.
+     */
+    public ProgramStore()
+    {
+        this(false);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param offHeap true to keep the columns in direct buffers outside the Java heap
+     */
+    public ProgramStore(boolean offHeap)
+    {
+        this.offHeap = offHeap;
+        ensureCapacity(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Constructor for a store whose columns are views of a binary image written by writeImage().
+     * The columns are used in place, so a memory mapped image is not copied.
+     *
+     * @param image the image, positioned at its start
+     * @throws IOException if the image is malformed
+     */
+    public ProgramStore(ByteBuffer image) throws IOException
+    {
+        this.offHeap = true;
+        ByteBuffer in = image.slice().order(IMAGE_ORDER);
+        try
+        {
+            size = in.getInt();
+            int axisPresent = in.getInt();
+            int groupPresent = in.getInt();
+            int commentCount = in.getInt();
+
+            for (int i = 0; i < commentCount; i++)
+            {
+                byte[] text = new byte[in.getInt()];
+                in.get(text);
+                String comment = new String(text, StandardCharsets.UTF_8);
+                comments.add(comment);
+                commentIndex.put(comment, comments.size());
+            }
+            align(in);
+
+            axisMask = column(in, size * Short.BYTES).asShortBuffer();
+            for (Axis a : AXES)
+            {
+                if ((axisPresent & (1 << a.ordinal())) != 0)
+                    axisColumns[a.ordinal()] = column(in, size * Double.BYTES).asDoubleBuffer();
+            }
+            for (Group g : GROUPS)
+            {
+                if ((groupPresent & (1 << g.ordinal())) != 0) groupColumns[g.ordinal()] = column(in, size);
+            }
+            if (commentCount > 0)
+            {
+                commentColumn = column(in, size * Integer.BYTES).asIntBuffer();
+            }
+        }
+        catch (RuntimeException ex)
+        {
+            throw new IOException("Malformed program image", ex);
+        }
+        capacity = size;
+    }
+
+    /**
+     * Appends a state as the next block of the program.
+     *
+     * @param state the state to append
+     */
+    @Override
+    public void accept(State state)
+    {
+        add(state);
+    }
+
+    /**
+     * Nothing to close; the store stays readable.
+     */
+    @Override
+    public void close()
+    {
+    }
+
+    /**
+     * Appends a state as the next block of the program.
+     *
+     * @param state the state to append
+     * @return the index of the new block
+     */
+    public int add(State state)
+    {
+        ensureCapacity(size + 1);
+        int block = size++;
+
+        for (Group g : GROUPS)
+        {
+            Mode m = state.getGroup(g);
+            if (m != null) setGroup(block, g, m);
+        }
+
+        for (Axis a : AXES)
+        {
+            Double d = state.getAxis(a);
+            if (d != null) setAxis(block, a, d);
+        }
+
+        if (state.getComment() != null)
+        {
+            setComment(block, state.getComment());
+        }
+        return block;
+    }
+
+    /**
+     * Returns the number of blocks in the program.
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Returns the mode set for a group by a block.
+     *
+     * @param block the block index
+     * @param group the group to return
+     * @return the mode, or null if the block does not set the group
+     */
+    public Mode getGroup(int block, Group group)
+    {
+        ByteBuffer column = groupColumns[group.ordinal()];
+        if (column == null) return null;
+        int m = column.get(block);
+        return (m == 0) ? null : MODES[m - 1];
+    }
+
+    /**
+     * Sets the mode of a group for a block.
+     *
+     * @param block the block index
+     * @param group the group to set
+     * @param mode the mode to set
+     */
+    public void setGroup(int block, Group group, Mode mode)
+    {
+        ByteBuffer column = groupColumns[group.ordinal()];
+        if (column == null)
+        {
+            column = allocate(capacity);
+            groupColumns[group.ordinal()] = column;
+        }
+        column.put(block, (byte) (mode.ordinal() + 1));
+    }
+
+    /**
+     * Returns true if a block sets an axis or parameter.
+     *
+     * @param block the block index
+     * @param axis the axis to test
+     */
+    public boolean hasAxis(int block, Axis axis)
+    {
+        return (axisMask.get(block) & (1 << axis.ordinal())) != 0;
+    }
+
+    /**
+     * Returns the bit mask of the axes set by a block, with bit n for Axis ordinal n.
+     *
+     * @param block the block index
+     */
+    public int getAxisMask(int block)
+    {
+        return axisMask.get(block) & 0xFFFF;
+    }
+
+    /**
+     * Returns the value of an axis or parameter for a block.
+     *
+     * @param block the block index
+     * @param axis the axis to return
+     * @return the value, or NaN if the block does not set the axis
+     */
+    public double getAxis(int block, Axis axis)
+    {
+        if (!hasAxis(block, axis)) return Double.NaN;
+        return axisColumns[axis.ordinal()].get(block);
+    }
+
+    /**
+     * Sets the value of an axis or parameter for a block.
+     *
+     * @param block the block index
+     * @param axis the axis to set
+     * @param value the value to set
+     */
+    public void setAxis(int block, Axis axis, double value)
+    {
+        DoubleBuffer column = axisColumns[axis.ordinal()];
+        if (column == null)
+        {
+            column = allocateDoubles(capacity);
+            axisColumns[axis.ordinal()] = column;
+        }
+        column.put(block, value);
+        axisMask.put(block, (short) (axisMask.get(block) | (1 << axis.ordinal())));
+    }
+
+    /**
+     * Returns the comment of a block, or null if it has none.
+     *
+     * @param block the block index
+     */
+    public String getComment(int block)
+    {
+        if (commentColumn == null) return null;
+        int c = commentColumn.get(block);
+        return (c == 0) ? null : comments.get(c - 1);
+    }
+
+    /**
+     * Sets the comment of a block. Identical comments share one String.
+     *
+     * @param block the block index
+     * @param comment the comment text
+     */
+    public void setComment(int block, String comment)
+    {
+        if (commentColumn == null)
+        {
+            commentColumn = allocateInts(capacity);
+        }
+        Integer c = commentIndex.get(comment);
+        if (c == null)
+        {
+            comments.add(comment);
+            c = comments.size();
+            commentIndex.put(comment, c);
+        }
+        commentColumn.put(block, c);
+    }
+
+    /**
+     * Creates a State object holding the contents of a block.
+     *
+     * @param block the block index
+     * @return a new State for the block
+     */
+    public State getState(int block)
+    {
+        State state = new State();
+        state.lineNum = block + 1;
+
+        for (Group g : GROUPS)
+        {
+            Mode m = getGroup(block, g);
+            if (m != null) state.setGroup(g, m);
+        }
+
+        int mask = getAxisMask(block);
+        for (Axis a : AXES)
+        {
+            if ((mask & (1 << a.ordinal())) != 0) state.setAxis(a, axisColumns[a.ordinal()].get(block));
+        }
+
+        state.setComment(getComment(block));
+        return state;
+    }
+
+    /**
+     * Returns a formated string of G codes for a block, in the same form as State.toString().
+     *
+     * @param block the block index
+     * @return the block as a formated G code string
+     */
+    public String toString(int block)
+    {
+        StringBuilder sb = new StringBuilder();
+
+        for (Group g : GROUPS)
+        {
+            Mode m = getGroup(block, g);
+            if (m != null)
+            {
+                if (sb.length() > 0) sb.append(' ');
+                sb.append(m.code());
+            }
+        }
+
+        int mask = getAxisMask(block);
+        for (Axis a : AXES)
+        {
+            if ((mask & (1 << a.ordinal())) != 0)
+            {
+                if (sb.length() > 0) sb.append(' ');
+                sb.append(State.format(a.letter(), axisColumns[a.ordinal()].get(block)));
+            }
+        }
+
+        String comment = getComment(block);
+        if (comment != null)
+        {
+            if (sb.length() > 0) sb.append(' ');
+            sb.append(comment);
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Returns the approximate number of bytes used by the columns per block.
+     */
+    public int bytesPerBlock()
+    {
+        int bytes = Short.BYTES;
+        for (DoubleBuffer column : axisColumns)
+            if (column != null) bytes += Double.BYTES;
+        for (ByteBuffer column : groupColumns)
+            if (column != null) bytes += 1;
+        if (commentColumn != null) bytes += Integer.BYTES;
+        return bytes;
+    }
+
+    /**
+     * Writes the program as a binary image that can be read back with ProgramStore(ByteBuffer).
+     *
+     * The image holds a header (block count, bit masks of the axis and group columns present, and
+     * the interned comments) followed by each column in turn, each starting on an 8 byte boundary.
+     *
+     * @param out the channel to write to
+     * @throws IOException on any I/O error
+     */
+    public void writeImage(WritableByteChannel out) throws IOException
+    {
+        ImageWriter writer = new ImageWriter(out);
+
+        int axisPresent = 0;
+        for (Axis a : AXES)
+            if (axisColumns[a.ordinal()] != null) axisPresent |= (1 << a.ordinal());
+        int groupPresent = 0;
+        for (Group g : GROUPS)
+            if (groupColumns[g.ordinal()] != null) groupPresent |= (1 << g.ordinal());
+        int commentCount = (commentColumn != null) ? comments.size() : 0;
+
+        writer.putInt(size);
+        writer.putInt(axisPresent);
+        writer.putInt(groupPresent);
+        writer.putInt(commentCount);
+        for (int i = 0; i < commentCount; i++)
+        {
+            byte[] text = comments.get(i).getBytes(StandardCharsets.UTF_8);
+            writer.putInt(text.length);
+            for (byte b : text)
+                writer.put(b);
+        }
+        writer.align();
+
+        for (int i = 0; i < size; i++)
+            writer.putShort(axisMask.get(i));
+        writer.align();
+
+        for (DoubleBuffer column : axisColumns)
+        {
+            if (column == null) continue;
+            for (int i = 0; i < size; i++)
+                writer.putDouble(column.get(i));
+        }
+
+        for (ByteBuffer column : groupColumns)
+        {
+            if (column == null) continue;
+            for (int i = 0; i < size; i++)
+                writer.put(column.get(i));
+            writer.align();
+        }
+
+        if (commentCount > 0)
+        {
+            for (int i = 0; i < size; i++)
+                writer.putInt(commentColumn.get(i));
+        }
+        writer.align();
+        writer.flush();
+    }
+
+    /**
+     * Returns the next column of an image as a buffer of the given length, and moves past it.
+     */
+    private static ByteBuffer column(ByteBuffer in, int length)
+    {
+        ByteBuffer column = in.slice().limit(length).order(IMAGE_ORDER);
+        in.position(in.position() + length);
+        align(in);
+        return column;
+    }
+
+    /**
+     * Moves the position of an image up to the next column boundary.
+     */
+    private static void align(ByteBuffer in)
+    {
+        int misalignment = in.position() % IMAGE_ALIGNMENT;
+        if (misalignment != 0) in.position(in.position() + IMAGE_ALIGNMENT - misalignment);
+    }
+
+    /**
+     * Grows every column so it has room for at least the given number of blocks.
+     *
+     * @param needed the number of blocks needed
+     */
+    private void ensureCapacity(int needed)
+    {
+        if (needed <= capacity) return;
+        int newCapacity = Math.max(needed, capacity * 2);
+
+        for (int i = 0; i < axisColumns.length; i++)
+        {
+            if (axisColumns[i] != null)
+            {
+                DoubleBuffer column = allocateDoubles(newCapacity);
+                column.put(0, axisColumns[i], 0, size);
+                axisColumns[i] = column;
+            }
+        }
+
+        for (int i = 0; i < groupColumns.length; i++)
+        {
+            if (groupColumns[i] != null)
+            {
+                ByteBuffer column = allocate(newCapacity);
+                column.put(0, groupColumns[i], 0, size);
+                groupColumns[i] = column;
+            }
+        }
+
+        ShortBuffer mask = allocateShorts(newCapacity);
+        if (axisMask != null) mask.put(0, axisMask, 0, size);
+        axisMask = mask;
+
+        if (commentColumn != null)
+        {
+            IntBuffer column = allocateInts(newCapacity);
+            column.put(0, commentColumn, 0, size);
+            commentColumn = column;
+        }
+
+        capacity = newCapacity;
+    }
+
+    /**
+     * Allocates a zero filled byte column on or off the heap.
+     *
+     * @param length the number of elements
+     */
+    private ByteBuffer allocate(int length)
+    {
+        return offHeap ? ByteBuffer.allocateDirect(length) : ByteBuffer.allocate(length);
+    }
+
+    /**
+     * Allocates a zero filled double column, backed by a double[] on the heap or a direct buffer off
+     * the heap.
+     *
+     * @param length the number of elements
+     */
+    private DoubleBuffer allocateDoubles(int length)
+    {
+        if (!offHeap) return DoubleBuffer.allocate(length);
+        return ByteBuffer.allocateDirect(length * Double.BYTES).order(ByteOrder.nativeOrder()).asDoubleBuffer();
+    }
+
+    /**
+     * Allocates a zero filled short column on or off the heap.
+     *
+     * @param length the number of elements
+     */
+    private ShortBuffer allocateShorts(int length)
+    {
+        if (!offHeap) return ShortBuffer.allocate(length);
+        return ByteBuffer.allocateDirect(length * Short.BYTES).order(ByteOrder.nativeOrder()).asShortBuffer();
+    }
+
+    /**
+     * Allocates a zero filled int column on or off the heap.
+     *
+     * @param length the number of elements
+     */
+    private IntBuffer allocateInts(int length)
+    {
+        if (!offHeap) return IntBuffer.allocate(length);
+        return ByteBuffer.allocateDirect(length * Integer.BYTES).order(ByteOrder.nativeOrder()).asIntBuffer();
+    }
+
+    /**
+     * Writes the values of an image through a fixed size buffer, keeping track of the column
+     * alignment.
+     */
+    private static class ImageWriter
+    {
+        private final WritableByteChannel out;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16).order(IMAGE_ORDER);
+        private long written = 0;
+
+        ImageWriter(WritableByteChannel out)
+        {
+            this.out = out;
+        }
+
+        void put(byte b) throws IOException
+        {
+            room(1).put(b);
+        }
+
+        void putShort(short v) throws IOException
+        {
+            room(Short.BYTES).putShort(v);
+        }
+
+        void putInt(int v) throws IOException
+        {
+            room(Integer.BYTES).putInt(v);
+        }
+
+        void putDouble(double v) throws IOException
+        {
+            room(Double.BYTES).putDouble(v);
+        }
+
+        void align() throws IOException
+        {
+            while ((written + buffer.position()) % IMAGE_ALIGNMENT != 0)
+                put((byte) 0);
+        }
+
+        void flush() throws IOException
+        {
+            buffer.flip();
+            while (buffer.hasRemaining())
+                written += out.write(buffer);
+            buffer.clear();
+        }
+
+        private ByteBuffer room(int bytes) throws IOException
+        {
+            if (buffer.remaining() < bytes) flush();
+            return buffer;
+        }
+    }
+}
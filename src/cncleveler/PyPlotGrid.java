@@ -6,6 +6,7 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
 import java.util.logging.Logger;
 
 public class PyPlotGrid
@@ -55,16 +56,25 @@ public class PyPlotGrid
         }
         out.write("]\n");
 
-        // Build Z Array
+        // Build Z Array, one row of heights at a time
+        double[] xs = new double[79];
+        double[] ys = new double[79];
+        double[] zs = new double[79];
+        for (int x = 0; x <= 78; x++)
+        {
+            xs[x] = x;
+        }
         out.write("z=[\n");
         for (int y = 0; y <= 50; y++)
         {
+            Arrays.fill(ys, y);
+            probeGrid.getProbeHeights(xs, ys, zs);
+
             out.write("[");
             for (int x = 0; x <= 78; x++)
             {
                 if (x > 0) out.write(',');
-                double z = probeGrid.getProbeHeight((double) x, (double) y);
-                out.write(String.format("%.3f", z));
+                out.write(String.format("%.3f", zs[x]));
             }
             out.write("],\n");
         }
@@ -105,7 +115,7 @@ public class PyPlotGrid
             for (int i = 0; i < probeGrid.xsize; i++)               
             {
                 if (i > 0) out.write(',');
-                out.write(String.format("%.3f", probeGrid.zprobe[j][i]));
+                out.write(String.format("%.3f", probeGrid.probeZ(i, j)));
             }
             out.write("]\n");
             out.write("ax.plot(np.array(x),np.array(y),np.array(z),linewidth=2,color='black')\n");
@@ -135,7 +145,7 @@ public class PyPlotGrid
             for (int j = 0; j < probeGrid.ysize; j++)                 
             {
                 if (j > 0) out.write(',');
-                out.write(String.format("%.3f", probeGrid.zprobe[j][i]));
+                out.write(String.format("%.3f", probeGrid.probeZ(i, j)));
             }
             out.write("]\n");
             out.write("ax.plot(np.array(x),np.array(y),np.array(z),linewidth=2,color='black')\n");
@@ -0,0 +1,59 @@
+package cncleveler;
+
+/**
+ * Where a block's line is in the G code file it was parsed from, and which words it was parsed
+ * with. GCodeParser attaches one to each state when keepSourceSpans is set, so that GCodeWriter's
+ * minimal-edit mode can copy unchanged lines from the file verbatim and splice a new Z word into
+ * lines where only Z has changed.
+ *
+ * Offsets within the line are byte offsets, and are only known for plain ASCII lines.
+ */
+public class SourceSpan
+{
+    /**
+     * Position in the file of the first byte of the line.
+     */
+    public final long offset;
+
+    /**
+     * Length of the line in bytes, including its line terminator.
+     */
+    public final int length;
+
+    /**
+     * Offset in the line of the first byte of the Z word, or -1 if the line has no Z word or the
+     * offset is not known.
+     */
+    public int zStart = -1;
+
+    /**
+     * Offset in the line one past the last byte of the Z word, or -1.
+     */
+    public int zEnd = -1;
+
+    /**
+     * Offset in the line one past its last code word, where a Z word can be inserted, or -1 if the
+     * line has no code words or the offset is not known.
+     */
+    public int insertAt = -1;
+
+    /* The words the line was parsed with, recorded by State.recordSource() */
+    int groupMask;
+    int axisMask;
+    Mode motion;
+    double x;
+    double y;
+    double z;
+
+    /**
+     * Constructor
+     *
+     * @param offset the position in the file of the first byte of the line
+     * @param length the length of the line in bytes, including its terminator
+     */
+    public SourceSpan(long offset, int length)
+    {
+        this.offset = offset;
+        this.length = length;
+    }
+}
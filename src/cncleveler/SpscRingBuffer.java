@@ -0,0 +1,108 @@
+package cncleveler;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded first-in first-out queue for exactly one producer thread and one consumer thread,
+ * without locks.
+ *
+ * The items are held in a power-of-two sized array. The producer only writes tail and the
+ * consumer only writes head, each publishing its progress with a release store, so offer() and
+ * poll() never block or wait for each other. Each side keeps a copy of the other side's counter
+ * and only reads the shared one again when the queue looks full (or empty), which keeps the two
+ * threads from fighting over the same cache line on every call.
+ *
+ * @param <T> the type of the items
+ */
+public class SpscRingBuffer<T>
+{
+    /**
+     * The slots, indexed by counter & mask.
+     */
+    private final Object[] slots;
+    private final int mask;
+
+    /**
+     * Number of items taken so far. Written only by the consumer.
+     */
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * Number of items added so far. Written only by the producer.
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    /**
+     * The producer's copy of head, and the consumer's copy of tail.
+     */
+    private long producerHead = 0;
+    private long consumerTail = 0;
+
+    /**
+     * Constructor
+     *
+     * @param capacity the most items the queue holds, rounded up to a power of two
+     */
+    public SpscRingBuffer(int capacity)
+    {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        slots = new Object[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Adds an item at the tail of the queue. Called only from the producer thread.
+     *
+     * @param item the item to add, not null
+     * @return true if the item was added, false if the queue is full
+     */
+    public boolean offer(T item)
+    {
+        long t = tail.get();
+        if (t - producerHead == slots.length)
+        {
+            producerHead = head.get();
+            if (t - producerHead == slots.length) return false;
+        }
+        slots[(int) t & mask] = item;
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    /**
+     * Takes the item at the head of the queue. Called only from the consumer thread.
+     *
+     * @return the item, or null if the queue is empty
+     */
+    @SuppressWarnings("unchecked")
+    public T poll()
+    {
+        long h = head.get();
+        if (h == consumerTail)
+        {
+            consumerTail = tail.get();
+            if (h == consumerTail) return null;
+        }
+        int slot = (int) h & mask;
+        T item = (T) slots[slot];
+        slots[slot] = null;
+        head.lazySet(h + 1);
+        return item;
+    }
+
+    /**
+     * Returns the number of items in the queue. From any thread this is only a snapshot.
+     */
+    public int size()
+    {
+        return (int) (tail.get() - head.get());
+    }
+
+    /**
+     * Returns the most items the queue holds.
+     */
+    public int capacity()
+    {
+        return slots.length;
+    }
+}
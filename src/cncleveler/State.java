@@ -1,5 +1,6 @@
 package cncleveler;
 
+import java.nio.charset.StandardCharsets;
 import java.util.EnumMap;
 
 /**
@@ -8,6 +9,19 @@ import java.util.EnumMap;
  */
 public class State
 {
+    private static final Group[] GROUPS = Group.values();
+    private static final Axis[] AXES = Axis.values();
+
+    /**
+     * Bits of the X, Y and Z axes in axisMask.
+     */
+    private static final int POSITION_MASK = (1 << Axis.X.ordinal()) | (1 << Axis.Y.ordinal()) | (1 << Axis.Z.ordinal());
+
+    /**
+     * Bit of the Z axis in axisMask.
+     */
+    private static final int Z_MASK = 1 << Axis.Z.ordinal();
+
     /**
      * Storage for the current state of each mode group. The current state of each group is defined
      * by a Mode enum value. Null means that the group's state has not been set.
@@ -23,6 +37,17 @@ public class State
      */
     private final EnumMap<Axis, Double> axisMap = new EnumMap<>(Axis.class);
 
+    /**
+     * Bit mask of the groups that have been set, with bit n for Group ordinal n. Lets mergeWith()
+     * visit only the words a block actually sets.
+     */
+    private int groupMask = 0;
+
+    /**
+     * Bit mask of the axes and parameters that have been set, with bit n for Axis ordinal n.
+     */
+    private int axisMask = 0;
+
     /**
      * Storage for the comment string. Assumption is there will only be one per line (block). Null
      * means the comment has not been set.
@@ -40,6 +65,12 @@ public class State
      */
     public String originalText = "";
 
+    /**
+     * Where this block's line is in the source file, or null if not known. Only kept when parsing
+     * for minimal-edit output (see GCodeParser.keepSourceSpans).
+     */
+    public SourceSpan source = null;
+
     /**
      * Constructor
      */
@@ -57,7 +88,7 @@ public class State
      */
     public void setMode(Mode mode)
     {
-        stateMap.put(mode.group(), mode);
+        setGroup(mode.group(), mode);
     }
 
     /**
@@ -70,6 +101,8 @@ public class State
     public void setGroup(Group group, Mode mode)
     {
         stateMap.put(group, mode);
+        if (mode != null) groupMask |= (1 << group.ordinal());
+        else groupMask &= ~(1 << group.ordinal());
     }
     
     /**
@@ -93,6 +126,8 @@ public class State
     public void setAxis(Axis axis, Double value)
     {
         axisMap.put(axis, value);
+        if (value != null) axisMask |= (1 << axis.ordinal());
+        else axisMask &= ~(1 << axis.ordinal());
     }
 
     /**
@@ -127,28 +162,82 @@ public class State
 
     /**
      * Updated this state with all modal state values in the other state that have been set.
-     * Non-modal Axis values are not updated.
+     * Non-modal groups and Axis values are not updated.
      * 
      * @param other the other state to use to update this state
      */
     public void mergeWith(State other)
     {
-        for (Group g : Group.values())
+        // Visit only the groups and axes the other state sets
+        for (int mask = other.groupMask; mask != 0; mask &= (mask - 1))
         {
-            Mode m = other.getGroup(g);
-            if (m != null) stateMap.put(m.group(), m);
+            Group g = GROUPS[Integer.numberOfTrailingZeros(mask)];
+            if (g.modal()) setGroup(g, other.stateMap.get(g));
         }
 
-        for (Axis a : Axis.values())
+        // Axis words in a non-modal block (G10, G28, G53 ...) are offsets or positions in another
+        // coordinate system, not the new current position
+        if (other.getGroup(Group.NON_MODAL) != null) return;
+
+        for (int mask = other.axisMask; mask != 0; mask &= (mask - 1))
         {
-            if (a.modal())
-            {
-                Double d = other.getAxis(a);
-                if (d != null) axisMap.put(a, d);
-            }
+            Axis a = AXES[Integer.numberOfTrailingZeros(mask)];
+            if (a.modal()) setAxis(a, other.axisMap.get(a));
         }
     }
 
+    /**
+     * Returns true if this state sets any of X, Y or Z.
+     */
+    public boolean hasPosition()
+    {
+        return (axisMask & POSITION_MASK) != 0;
+    }
+
+    /**
+     * Records the words this state sets in its source span, so that matchesSource() can later tell
+     * whether they have been changed.
+     */
+    public void recordSource()
+    {
+        source.groupMask = groupMask;
+        source.axisMask = axisMask & ~Z_MASK;
+        source.motion = stateMap.get(Group.MOTION);
+        source.x = valueOf(Axis.X);
+        source.y = valueOf(Axis.Y);
+        source.z = valueOf(Axis.Z);
+    }
+
+    /**
+     * Returns true if this state has a source span and still sets the same groups, motion mode and
+     * axes as when it was parsed, with the same X and Y. Only Z may have been changed or added.
+     */
+    public boolean matchesSource()
+    {
+        return (source != null) && (groupMask == source.groupMask) && ((axisMask & ~Z_MASK) == source.axisMask)
+                && (stateMap.get(Group.MOTION) == source.motion) && (Double.compare(valueOf(Axis.X), source.x) == 0)
+                && (Double.compare(valueOf(Axis.Y), source.y) == 0);
+    }
+
+    /**
+     * Returns the value of an axis, or NaN if it is not set.
+     */
+    private double valueOf(Axis axis)
+    {
+        Double d = axisMap.get(axis);
+        return (d == null) ? Double.NaN : d;
+    }
+
+    /**
+     * Returns true if this state is just a move: it sets X, Y or Z and nothing else apart from the
+     * motion mode. No other modes, words or comment.
+     */
+    public boolean isMoveOnly()
+    {
+        return hasPosition() && ((groupMask & ~(1 << Group.MOTION.ordinal())) == 0)
+                && ((axisMask & ~POSITION_MASK) == 0) && (comment == null);
+    }
+
     /**
      * Returns a formated string of G codes that represent this state. Unset group or axis values
      * are not included.
@@ -162,7 +251,7 @@ public class State
     {
         StringBuilder sb = new StringBuilder();
 
-        for (Group g : Group.values())
+        for (Group g : GROUPS)
         {
             Mode m = stateMap.get(g);
             if (m != null)
@@ -172,7 +261,7 @@ public class State
             }
         }
 
-        for (Axis a : Axis.values())
+        for (Axis a : AXES)
         {
             Double d = axisMap.get(a);
             if (d != null)
@@ -199,20 +288,21 @@ public class State
      */
     public static String format(char letter, double value)
     {
-        String s = String.format("%c%.3f", letter, value);
-
-        // remove any trailing zeros
-        while (s.endsWith("0"))
-        {
-            s = s.substring(0, s.length() - 1);
-        }
+        return format(letter, value, 3);
+    }
 
-        // remove any trailing decimal point
-        if (s.endsWith("."))
-        {
-            s = s.substring(0, s.length() - 1);
-        }
-        return s;
+    /**
+     * Utility method to take the letter and value and generate a formated G code word with at most
+     * the given number of decimal places.
+     * 
+     * @param decimals the number of decimal places to round to
+     * @return the formated code word
+     */
+    public static String format(char letter, double value, int decimals)
+    {
+        byte[] buf = new byte[WordFormatter.MAX_WORD_LENGTH + Math.max(decimals, 0)];
+        int length = WordFormatter.write(buf, 0, letter, value, decimals);
+        return new String(buf, 0, length, StandardCharsets.US_ASCII);
     }
 
     /**
@@ -223,7 +313,7 @@ public class State
     {
         System.out.println("-----------------");
 
-        for (Group g : Group.values())
+        for (Group g : GROUPS)
         {
             System.out.print(g.name() + " = ");
             Mode m = stateMap.get(g);
@@ -238,7 +328,7 @@ public class State
 
         }
 
-        for (Axis a : Axis.values())
+        for (Axis a : AXES)
         {
             System.out.print(a.name() + " = ");
             Double d = axisMap.get(a);
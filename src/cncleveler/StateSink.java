@@ -0,0 +1,35 @@
+package cncleveler;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A stage that accepts parsed G code states one at a time. Stages are chained together so that a
+ * G code file can be parsed, leveled and written out block by block without holding the whole
+ * program in memory.
+ *
+ * Closing a stage flushes any buffered work and closes the next stage in the chain. After an error
+ * the chain is aborted before it is closed.
+ */
+public interface StateSink extends Closeable
+{
+    /**
+     * Accepts the next state (block) in program order.
+     *
+     * @param state the state to process
+     * @throws IOException on any I/O error in this or a later stage
+     */
+    public void accept(State state) throws IOException;
+
+    /**
+     * Abandons the job after an error, so that closing the chain does not finish a partial job. A
+     * stage passes this on to the next stage, and an output drops what it has: GCodeWriter deletes
+     * the partial file and GrblSender holds the machine. close() must still be called. This may be
+     * called from any thread.
+     *
+     * The default does nothing, for stages that only collect states in memory.
+     */
+    public default void abort()
+    {
+    }
+}
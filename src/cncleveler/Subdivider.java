@@ -0,0 +1,405 @@
+package cncleveler;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.DoubleConsumer;
+import java.util.logging.Logger;
+
+/**
+ * Splits straight G1 moves into shorter moves wherever the probed surface under a move bows away
+ * from the straight line by more than a tolerance, so that the leveled toolpath follows the surface
+ * instead of cutting a chord under it.
+ *
+ * Along a straight line the surface is a quadratic within each probe cell of a grid, and linear
+ * within each triangle of a triangulation, so the largest deviation between a chord and the
+ * surface can be found exactly: it is either where the line crosses a cell or triangle edge, or
+ * where the surface slope along the line equals the chord slope (see ProbeSurface.findEdges()).
+ * A chord that is out of tolerance and crosses edges is split at its point of largest deviation.
+ * A chord within a single cell is split into the fewest equal pieces that meet the tolerance.
+ * Moves already within tolerance are passed on unchanged.
+ *
+ * Only absolute (G90) linear moves from a known position are split. The first piece keeps all the
+ * other words of the block, so modes, feed rate and comments still take effect first.
+ */
+public class Subdivider implements StateSink
+{
+    private static final Logger logger = Logger.getLogger((Main.class.getName()));
+
+    /**
+     * Millimeters per inch, for programs in G20 units.
+     */
+    private static final double MM_PER_INCH = 25.4;
+
+    /**
+     * Pieces shorter than this (mm) are not split further.
+     */
+    private static final double MIN_LENGTH = 0.001;
+
+    /**
+     * The probe data the moves should follow.
+     */
+    private final ProbeSurface surface;
+
+    /**
+     * The largest allowed distance (mm) in Z between a move and the surface under it.
+     */
+    private final double tolerance;
+
+    /**
+     * The next stage to receive states.
+     */
+    private final StateSink next;
+
+    /**
+     * The running modal state of the input program.
+     */
+    private final ModalResolver resolver = new ModalResolver();
+
+    /*
+     * The surface along the current move, parameterized by t from 0 (start) to 1 (end). breaks
+     * holds the values of t where the move crosses an edge of the surface, plus both ends, and heights the
+     * surface height at each. Between breaks k and k+1 the height is
+     * heights[k] + slopes[k]*d + curvatures[k]*d*d/2, where d = t - breaks[k].
+     */
+    private double[] breaks = new double[16];
+    private double[] heights = new double[16];
+    private double[] slopes = new double[16];
+    private double[] curvatures = new double[16];
+    private int breakCount = 0;
+
+    /**
+     * Adds each edge the surface finds to breaks.
+     */
+    private final DoubleConsumer edgeAdder = this::addBreak;
+
+    /**
+     * The value of t at the end of each piece of the current move.
+     */
+    private double[] cuts = new double[16];
+    private int cutCount = 0;
+
+    /* Statistics */
+    private int movesSplit = 0;
+    private int blocksAdded = 0;
+
+    /**
+     * Constructor
+     *
+     * @param surface the probe data the moves should follow
+     * @param tolerance the largest allowed distance (mm) between a move and the surface
+     * @param next the stage that receives each state
+     */
+    public Subdivider(ProbeSurface surface, double tolerance, StateSink next)
+    {
+        this.surface = surface;
+        this.tolerance = tolerance;
+        this.next = next;
+        logger.info("Subdividing moves to within " + tolerance + " mm of the probed surface");
+    }
+
+    /**
+     * Subdivides the moves of a list of states.
+     *
+     * @param states the program
+     * @param surface the probe data the moves should follow
+     * @param tolerance the largest allowed distance (mm) between a move and the surface
+     * @return a new list of states, sharing the input states (a state that is split becomes its
+     *         first piece)
+     * @throws IOException never, as the list does no I/O
+     */
+    public static List<State> subdivide(List<State> states, ProbeSurface surface, double tolerance)
+            throws IOException
+    {
+        List<State> result = new ArrayList<State>(states.size());
+        try (Subdivider subdivider = new Subdivider(surface, tolerance, new StateSink()
+        {
+            public void accept(State state)
+            {
+                result.add(state);
+            }
+
+            public void close()
+            {
+            }
+        }))
+        {
+            for (State state : states)
+            {
+                subdivider.accept(state);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Subdivides the moves of a columnar program.
+     *
+     * @param program the program
+     * @param surface the probe data the moves should follow
+     * @param tolerance the largest allowed distance (mm) between a move and the surface
+     * @return a new columnar program
+     * @throws IOException never, as the program store does no I/O
+     */
+    public static ProgramStore subdivide(ProgramStore program, ProbeSurface surface, double tolerance)
+            throws IOException
+    {
+        ProgramStore result = new ProgramStore(Config.offHeap);
+        try (Subdivider subdivider = new Subdivider(surface, tolerance, result))
+        {
+            for (int block = 0; block < program.size(); block++)
+            {
+                subdivider.accept(program.getState(block));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Passes the state to the next stage, split into several states if it is a move that strays
+     * too far from the surface.
+     *
+     * @param state the next block of the program
+     */
+    @Override
+    public void accept(State state) throws IOException
+    {
+        double x0 = resolver.x;
+        double y0 = resolver.y;
+        double z0 = resolver.z;
+        resolver.resolve(state);
+
+        if (!canSplit(state, x0, y0, z0))
+        {
+            next.accept(state);
+            return;
+        }
+
+        // The surface is in millimeters
+        double scale = (resolver.units == Mode.INCHES) ? MM_PER_INCH : 1.0;
+        double ax = x0 * scale;
+        double ay = y0 * scale;
+        double dx = resolver.x * scale - ax;
+        double dy = resolver.y * scale - ay;
+
+        findPieces(ax, ay, dx, dy);
+        cutCount = 0;
+        split(0.0, 1.0, Math.hypot(dx, dy));
+
+        if (cutCount == 1)
+        {
+            next.accept(state);
+            return;
+        }
+        movesSplit++;
+        blocksAdded += cutCount - 1;
+
+        boolean hasX = state.getAxis(Axis.X) != null;
+        boolean hasY = state.getAxis(Axis.Y) != null;
+        boolean hasZ = state.getAxis(Axis.Z) != null;
+        double x1 = resolver.x;
+        double y1 = resolver.y;
+        double z1 = resolver.z;
+
+        // The first piece is the original block, the last piece ends exactly at the original end
+        State piece = state;
+        for (int k = 0; k < cutCount; k++)
+        {
+            if (k > 0)
+            {
+                piece = new State();
+                piece.lineNum = state.lineNum;
+            }
+            double t = cuts[k];
+            boolean last = (k == cutCount - 1);
+            if (hasX) piece.setAxis(Axis.X, last ? x1 : x0 + t * (x1 - x0));
+            if (hasY) piece.setAxis(Axis.Y, last ? y1 : y0 + t * (y1 - y0));
+            if (hasZ) piece.setAxis(Axis.Z, last ? z1 : z0 + t * (z1 - z0));
+            next.accept(piece);
+        }
+    }
+
+    /**
+     * Logs the subdivision statistics and closes the next stage.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        logger.info("   " + movesSplit + " moves subdivided, " + blocksAdded + " blocks added");
+        next.close();
+    }
+
+    /**
+     * Abandons the job: the next stage is aborted.
+     */
+    @Override
+    public void abort()
+    {
+        next.abort();
+    }
+
+    /**
+     * Returns true if the block just resolved is a move that can be split.
+     */
+    private boolean canSplit(State state, double x0, double y0, double z0)
+    {
+        if (resolver.motion != Mode.LINEAR || resolver.distance == Mode.INCREMENTAL) return false;
+        if (!state.hasPosition() || state.getGroup(Group.NON_MODAL) != null) return false;
+        if (Double.isNaN(x0) || Double.isNaN(y0) || Double.isNaN(resolver.x) || Double.isNaN(resolver.y)) return false;
+
+        // Pieces of a move in Z need a starting Z
+        if (state.getAxis(Axis.Z) != null && Double.isNaN(z0)) return false;
+
+        return (x0 != resolver.x) || (y0 != resolver.y);
+    }
+
+    /**
+     * Finds where the line from (ax,ay) in direction (dx,dy) crosses edges of the surface, and the
+     * surface height and curvature of each piece between the crossings.
+     */
+    private void findPieces(double ax, double ay, double dx, double dy)
+    {
+        breakCount = 0;
+        addBreak(0.0);
+        surface.findEdges(ax, ay, dx, dy, edgeAdder);
+        addBreak(1.0);
+        Arrays.sort(breaks, 0, breakCount);
+
+        // Drop repeated breaks, where the line passes through a grid point or a probe
+        int n = 1;
+        for (int k = 1; k < breakCount; k++)
+        {
+            if (breaks[k] > breaks[n - 1]) breaks[n++] = breaks[k];
+        }
+        breakCount = n;
+
+        for (int k = 0; k < breakCount; k++)
+        {
+            double t = breaks[k];
+            heights[k] = surface.getProbeHeight(ax + t * dx, ay + t * dy);
+        }
+        for (int k = 0; k < breakCount - 1; k++)
+        {
+            double length = breaks[k + 1] - breaks[k];
+            double mid = breaks[k] + length / 2;
+            double curvature = surface.getCurvature(ax + mid * dx, ay + mid * dy, dx, dy);
+            curvatures[k] = curvature;
+            slopes[k] = (heights[k + 1] - heights[k]) / length - curvature * length / 2;
+        }
+    }
+
+    /**
+     * Appends a value of t to breaks, growing the piece arrays as needed.
+     */
+    private void addBreak(double t)
+    {
+        if (breakCount == breaks.length)
+        {
+            int size = 2 * breaks.length;
+            breaks = Arrays.copyOf(breaks, size);
+            heights = Arrays.copyOf(heights, size);
+            slopes = Arrays.copyOf(slopes, size);
+            curvatures = Arrays.copyOf(curvatures, size);
+        }
+        breaks[breakCount++] = t;
+    }
+
+    /**
+     * Appends the end of a piece to cuts.
+     */
+    private void addCut(double t)
+    {
+        if (cutCount == cuts.length)
+        {
+            cuts = Arrays.copyOf(cuts, 2 * cuts.length);
+        }
+        cuts[cutCount++] = t;
+    }
+
+    /**
+     * Returns the surface height at t along the current move.
+     */
+    private double heightAt(double t)
+    {
+        int k = 0;
+        while (k < breakCount - 2 && t > breaks[k + 1])
+        {
+            k++;
+        }
+        double d = t - breaks[k];
+        return heights[k] + slopes[k] * d + curvatures[k] * d * d / 2;
+    }
+
+    /**
+     * Adds the cuts needed for the chord from ta to tb to stay within tolerance of the surface.
+     *
+     * @param ta the start of the chord
+     * @param tb the end of the chord
+     * @param length the length (mm) of the whole move
+     */
+    private void split(double ta, double tb, double length)
+    {
+        double ha = heightAt(ta);
+        double slope = (heightAt(tb) - ha) / (tb - ta);
+
+        // The deviation is largest at an interior cell edge or where the surface is parallel to the chord
+        double maxError = 0.0;
+        double tmax = ta;
+        double curvature = 0.0;
+        boolean crossesEdge = false;
+        for (int k = 0; k < breakCount - 1; k++)
+        {
+            double pa = Math.max(ta, breaks[k]);
+            double pb = Math.min(tb, breaks[k + 1]);
+            if (pb <= pa) continue;
+
+            curvature = curvatures[k];
+            if (pb < tb)
+            {
+                crossesEdge = true;
+                double error = Math.abs(heightAt(pb) - (ha + slope * (pb - ta)));
+                if (error > maxError)
+                {
+                    maxError = error;
+                    tmax = pb;
+                }
+            }
+            if (curvature != 0.0)
+            {
+                double t = breaks[k] + (slope - slopes[k]) / curvature;
+                if (t > pa && t < pb)
+                {
+                    double error = Math.abs(heightAt(t) - (ha + slope * (t - ta)));
+                    if (error > maxError)
+                    {
+                        maxError = error;
+                        tmax = t;
+                    }
+                }
+            }
+        }
+
+        if (maxError <= tolerance || (tb - ta) * length < 2 * MIN_LENGTH)
+        {
+            addCut(tb);
+        }
+        else if (!crossesEdge)
+        {
+            // Within one cell a chord of length L is off by |curvature| * L^2 / 8, so n equal pieces
+            // are needed where |curvature| * (L/n)^2 / 8 <= tolerance
+            int n = (int) Math.ceil((tb - ta) * Math.sqrt(Math.abs(curvature) / (8 * tolerance)));
+            n = (int) Math.max(2, Math.min(n, (tb - ta) * length / MIN_LENGTH));
+            for (int m = 1; m < n; m++)
+            {
+                addCut(ta + (tb - ta) * m / n);
+            }
+            addCut(tb);
+        }
+        else
+        {
+            split(ta, tmax, length);
+            split(tmax, tb, length);
+        }
+    }
+}
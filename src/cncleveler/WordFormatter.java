@@ -0,0 +1,176 @@
+package cncleveler;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Formats G code words (a letter and a number) straight into a byte array, without creating
+ * Strings on the write path.
+ *
+ * Numbers are rounded half-up to a fixed number of decimal places, then trailing zeros and a
+ * trailing decimal point are removed, giving exactly the same text as formatting with
+ * String.format("%c%.3f") and trimming. Like String.format, rounding applies to the shortest
+ * decimal representation of the double (as given by Double.toString), so 0.0005 rounds up to 0.001
+ * even though the nearest double is slightly below 0.0005. The value is scaled to an integer with
+ * one multiplication; only values within a millionth of a rounding tie, or too large to scale
+ * exactly, are rounded through BigDecimal. Negative values keep their sign even when they round to
+ * zero ("X-0"), as String.format does.
+ */
+public class WordFormatter
+{
+    /**
+     * The most decimal places supported by the fast path.
+     */
+    public static final int MAX_DECIMALS = 9;
+
+    /**
+     * Room to leave in the buffer for one word: the letter, a sign, the 309 integer digits of the
+     * largest double, the decimal point and decimal places.
+     */
+    public static final int MAX_WORD_LENGTH = 1 + 1 + 309 + 1 + MAX_DECIMALS + 1;
+
+    /**
+     * Scaled values at or above this are rounded through BigDecimal. Below it one multiplication is
+     * accurate to well within the tie margin.
+     */
+    private static final double MAX_SCALED = 1e9;
+
+    /**
+     * How close (in units of the last decimal place) the scaled value may come to a rounding tie
+     * before it is rounded through BigDecimal.
+     */
+    private static final double TIE_MARGIN = 1e-6;
+
+    /**
+     * Powers of ten, up to 10^MAX_DECIMALS.
+     */
+    private static final long[] POWERS = new long[MAX_DECIMALS + 1];
+
+    static
+    {
+        POWERS[0] = 1;
+        for (int i = 1; i < POWERS.length; i++)
+        {
+            POWERS[i] = POWERS[i - 1] * 10;
+        }
+    }
+
+    /**
+     * Writes a word into a byte array.
+     *
+     * @param buf the array to write to, with at least MAX_WORD_LENGTH bytes free after pos
+     * @param pos the index to write the first byte at
+     * @param letter the word letter
+     * @param value the word value
+     * @param decimals the number of decimal places to round to
+     * @return the index after the last byte written
+     */
+    public static int write(byte[] buf, int pos, char letter, double value, int decimals)
+    {
+        buf[pos++] = (byte) letter;
+
+        long rounded = round(value, decimals);
+        if (rounded < 0)
+        {
+            return writeSlow(buf, pos, value, decimals);
+        }
+
+        if (Double.doubleToRawLongBits(value) < 0) buf[pos++] = '-';
+
+        long unit = POWERS[decimals];
+        pos = writeDigits(buf, pos, rounded / unit);
+
+        // Trim trailing zeros from the fraction
+        long fraction = rounded % unit;
+        int places = decimals;
+        while (places > 0 && fraction % 10 == 0)
+        {
+            fraction /= 10;
+            places--;
+        }
+        if (places > 0)
+        {
+            buf[pos++] = '.';
+            for (int i = places - 1; i >= 0; i--)
+            {
+                buf[pos + i] = (byte) ('0' + fraction % 10);
+                fraction /= 10;
+            }
+            pos += places;
+        }
+        return pos;
+    }
+
+    /**
+     * Returns the magnitude of value rounded half-up to decimals places, in units of the last
+     * place, or -1 if it is not rounded by the fast path. Two values with the same result (and
+     * sign) are written as the same word.
+     *
+     * @param value the value to round
+     * @param decimals the number of decimal places to round to
+     * @return the rounded magnitude, or -1
+     */
+    public static long round(double value, int decimals)
+    {
+        if (decimals < 0 || decimals > MAX_DECIMALS) return -1;
+
+        double scaled = Math.abs(value) * POWERS[decimals];
+        if (!(scaled < MAX_SCALED)) return -1; // also NaN
+
+        double whole = Math.floor(scaled);
+        double fraction = scaled - whole;
+        if (Math.abs(fraction - 0.5) < TIE_MARGIN) return -1;
+        return (long) whole + ((fraction > 0.5) ? 1 : 0);
+    }
+
+    /**
+     * Writes the decimal digits of a non-negative number.
+     */
+    private static int writeDigits(byte[] buf, int pos, long n)
+    {
+        int length = 1;
+        for (long t = n; t >= 10; t /= 10)
+        {
+            length++;
+        }
+        for (int i = pos + length - 1; i >= pos; i--)
+        {
+            buf[i] = (byte) ('0' + n % 10);
+            n /= 10;
+        }
+        return pos + length;
+    }
+
+    /**
+     * Writes the number part of a word that the fast path does not handle: near rounding ties,
+     * very large values, NaN and infinities.
+     */
+    private static int writeSlow(byte[] buf, int pos, double value, int decimals)
+    {
+        String s;
+        if (Double.isNaN(value) || Double.isInfinite(value))
+        {
+            s = Double.toString(value);
+        }
+        else
+        {
+            // Round the shortest decimal representation, as String.format does
+            BigDecimal d = new BigDecimal(Double.toString(Math.abs(value))).setScale(decimals, RoundingMode.HALF_UP);
+            s = d.toPlainString();
+            if (decimals > 0)
+            {
+                int end = s.length();
+                while (s.charAt(end - 1) == '0')
+                    end--;
+                if (s.charAt(end - 1) == '.') end--;
+                s = s.substring(0, end);
+            }
+            if (Double.doubleToRawLongBits(value) < 0) s = "-" + s;
+        }
+
+        byte[] bytes = s.getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(bytes, 0, buf, pos, bytes.length);
+        return pos + bytes.length;
+    }
+}
@@ -0,0 +1,177 @@
+package cncleveler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.DoubleBinaryOperator;
+
+import org.junit.Test;
+
+/**
+ * Tests that ArcLinearizer replaces arcs with the fewest chords within the chord tolerance, and
+ * keeps arcs over a flat surface.
+ */
+public class ArcLinearizerTest
+{
+    private static final double CHORD_TOLERANCE = 0.002;
+
+    /**
+     * A warped board: heights of a tenth of a millimeter or so that bend in both directions.
+     */
+    private static final DoubleBinaryOperator WARPED = (x, y) -> 0.15 * Math.sin(x / 11) * Math.cos(y / 7) + 0.002 * x;
+
+    /**
+     * Returns a 7 by 6 grid of probes 10 mm apart, starting at (0,0).
+     */
+    private static ProbeGrid grid(DoubleBinaryOperator height)
+    {
+        List<Point3> probes = new ArrayList<Point3>();
+        for (int j = 0; j < 6; j++)
+        {
+            for (int i = 0; i < 7; i++)
+            {
+                probes.add(new Point3(10 * i + Config.probe_offset.x, 10 * j + Config.probe_offset.y,
+                        height.applyAsDouble(10 * i, 10 * j)));
+            }
+        }
+        return new ProbeGrid(probes);
+    }
+
+    private static List<State> parse(String... lines)
+    {
+        GCodeParser parser = new GCodeParser();
+        List<State> states = new ArrayList<State>();
+        for (String line : lines)
+        {
+            states.add(parser.parseLine(line));
+        }
+        return states;
+    }
+
+    /**
+     * Returns the XY end point of each block that moves, resolving modal positions.
+     */
+    private static List<double[]> path(List<State> states)
+    {
+        ModalResolver resolver = new ModalResolver();
+        List<double[]> points = new ArrayList<double[]>();
+        for (State state : states)
+        {
+            resolver.resolve(state);
+            if (state.hasPosition()) points.add(new double[] { resolver.x, resolver.y });
+        }
+        return points;
+    }
+
+    /**
+     * Checks that every vertex of the path after the first lies on the circle, that no chord is off
+     * the arc by more than the tolerance, and returns the number of chords.
+     */
+    private static int checkChords(List<double[]> path, int first, double cx, double cy, double r)
+    {
+        for (int k = first; k < path.size(); k++)
+        {
+            double[] a = path.get(k - 1);
+            double[] b = path.get(k);
+            assertEquals(r, Math.hypot(b[0] - cx, b[1] - cy), 1e-9);
+
+            // A chord of length c on radius r is off the arc by r - sqrt(r^2 - c^2/4)
+            double c = Math.hypot(b[0] - a[0], b[1] - a[1]);
+            assertTrue(r - Math.sqrt(r * r - c * c / 4) <= CHORD_TOLERANCE + 1e-12);
+        }
+        return path.size() - first;
+    }
+
+    @Test
+    public void replacesArcsWithTheFewestChordsWithinTolerance() throws IOException
+    {
+        ProbeGrid grid = grid(WARPED);
+        List<State> states = parse("G21 G90", "G1 X40 Y20 F300", "G2 X20 Y20 I-10 J0");
+        List<State> chords = ArcLinearizer.linearize(states, grid, CHORD_TOLERANCE, 0.0);
+
+        // Half a turn on radius 10: each chord may span 2 * acos(1 - tolerance / r)
+        int expected = (int) Math.ceil(Math.PI / (2 * Math.acos(1 - CHORD_TOLERANCE / 10)));
+        List<double[]> path = path(chords);
+        assertEquals(expected, checkChords(path, 1, 30, 20, 10));
+
+        // Clockwise from (40,20) passes below the center
+        assertTrue(path.get(expected / 2)[1] < 20);
+        double[] end = path.get(path.size() - 1);
+        assertEquals(20.0, end[0], 0.0);
+        assertEquals(20.0, end[1], 0.0);
+
+        State first = chords.get(2);
+        assertSame(states.get(2), first);
+        assertEquals(Mode.LINEAR, first.getGroup(Group.MOTION));
+        assertNull(first.getAxis(Axis.I));
+        assertNull(first.getAxis(Axis.J));
+    }
+
+    @Test
+    public void replacesFullCirclesAndRadiusArcs() throws IOException
+    {
+        ProbeGrid grid = grid(WARPED);
+        List<State> states = parse("G21 G90", "G1 X40 Y20 F300", "G3 X40 Y20 I-10 J0",
+                "G2 X20 Y20 R10");
+        List<State> chords = ArcLinearizer.linearize(states, grid, CHORD_TOLERANCE, 0.0);
+
+        int half = (int) Math.ceil(Math.PI / (2 * Math.acos(1 - CHORD_TOLERANCE / 10)));
+        List<double[]> path = path(chords);
+        int circle = checkChords(path.subList(0, path.size() - half), 1, 30, 20, 10);
+        assertTrue(circle >= 2 * half - 1 && circle <= 2 * half);
+        assertEquals(half, checkChords(path.subList(path.size() - half - 1, path.size()), 1, 30, 20, 10));
+    }
+
+    @Test
+    public void givesLaterMovesTheArcModeBack() throws IOException
+    {
+        ProbeGrid grid = grid(WARPED);
+        List<State> states = parse("G21 G90", "G1 X40 Y20 F300", "G2 X20 Y20 I-10 J0",
+                "X40 Y20 I10 J0");
+        List<State> chords = ArcLinearizer.linearize(states, grid, CHORD_TOLERANCE, 0.0);
+
+        // The second arc has no motion word of its own, so it is resolved as G2 and replaced too
+        State second = states.get(3);
+        assertEquals(Mode.LINEAR, second.getGroup(Group.MOTION));
+        assertEquals(2 * (chords.indexOf(second) - 2), chords.size() - 2);
+    }
+
+    @Test
+    public void keepsArcsOverAFlatSurface() throws IOException
+    {
+        // Tilted a little, so that leveling only the ends is within the surface tolerance
+        ProbeGrid grid = grid((x, y) -> 0.05 + 0.0001 * x);
+        List<State> states = parse("G21 G90", "G1 X40 Y20 F300", "G2 X20 Y20 I-10 J0");
+        List<State> result = ArcLinearizer.linearize(states, grid, CHORD_TOLERANCE, 0.001);
+        assertEquals(states, result);
+        assertEquals(Mode.CIRCULAR_CW, result.get(2).getGroup(Group.MOTION));
+
+        // But not over a warped one
+        grid = grid(WARPED);
+        result = ArcLinearizer.linearize(parse("G21 G90", "G1 X40 Y20 F300", "G2 X20 Y20 I-10 J0"),
+                grid, CHORD_TOLERANCE, 0.001);
+        assertTrue(result.size() > 3);
+    }
+
+    @Test
+    public void keepsArcsOverAGentlyTiltedSurfaceByDefault() throws IOException
+    {
+        // Tilted by 0.2% in X and 0.05% in Y: along a half turn on radius 10 the surface strays
+        // less than 0.008 mm from a helix between the leveled ends
+        ProbeGrid grid = grid((x, y) -> 0.3 + 0.002 * x + 0.0005 * y);
+        List<State> states = parse("G21 G90", "G1 X40 Y20 Z-0.1 F300", "G2 X20 Y20 I-10 J0");
+        List<State> result = ArcLinearizer.linearize(states, grid, CHORD_TOLERANCE, Config.arcFlatnessTolerance);
+        assertEquals(states, result);
+
+        // Leveled at its end only, so it is written as a helix
+        Leveler.level(result, grid);
+        State arc = result.get(2);
+        assertEquals(Mode.CIRCULAR_CW, arc.getGroup(Group.MOTION));
+        assertEquals(-0.1 + 0.002 * 20 + 0.0005 * 20, arc.getAxis(Axis.Z), 1e-9);
+    }
+}
@@ -0,0 +1,126 @@
+package cncleveler;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that AsyncChannelWriter writes every byte in order, and that a failed write leaves the
+ * target as it was and is thrown from close().
+ */
+public class AsyncChannelWriterTest
+{
+    private Path dir;
+    private Path target;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        dir = Files.createTempDirectory("cncleveler");
+        target = dir.resolve("out.nc");
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        for (File file : dir.toFile().listFiles())
+        {
+            file.delete();
+        }
+        Files.delete(dir);
+    }
+
+    /**
+     * Returns random bytes, enough to fill the writer's buffers a few times over.
+     */
+    private static byte[] bytes(long seed)
+    {
+        byte[] bytes = new byte[300000];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void writesEveryByteInOrder() throws IOException
+    {
+        byte[] data = bytes(1);
+        Path source = dir.resolve("in.nc");
+        Files.write(source, data);
+
+        byte[] expected = new byte[2 * data.length];
+        try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ))
+        {
+            AsyncChannelWriter writer = new AsyncChannelWriter(target);
+            int offset = 0;
+            for (int n = 1; offset + n <= data.length / 2; n = n * 3 + 1)
+            {
+                // Writes of all sizes, some larger than a buffer
+                writer.write(data, offset, n);
+                offset += n;
+            }
+            writer.write(data, offset, data.length - offset);
+            writer.transferFrom(channel, 1000, 5000);
+            writer.write(data, 0, data.length - 5000);
+            writer.close();
+        }
+        System.arraycopy(data, 0, expected, 0, data.length);
+        System.arraycopy(data, 1000, expected, data.length, 5000);
+        System.arraycopy(data, 0, expected, data.length + 5000, data.length - 5000);
+
+        assertArrayEquals(expected, Files.readAllBytes(target));
+        assertEquals(2, dir.toFile().list().length);
+    }
+
+    @Test
+    public void leavesTheTargetAloneWhenAWriteFails() throws IOException
+    {
+        Files.write(target, "G0 X0\n".getBytes(StandardCharsets.US_ASCII));
+        Path source = dir.resolve("in.nc");
+        Files.write(source, bytes(2));
+
+        AsyncChannelWriter writer = new AsyncChannelWriter(target);
+        byte[] data = bytes(3);
+        writer.write(data, 0, data.length);
+        FileChannel channel = FileChannel.open(source, StandardOpenOption.READ);
+        channel.close();
+        // Fails on the drain thread
+        writer.transferFrom(channel, 0, 1000);
+        try
+        {
+            writer.close();
+            fail("The failed write was not thrown");
+        }
+        catch (IOException ex)
+        {
+            // expected
+        }
+
+        assertArrayEquals("G0 X0\n".getBytes(StandardCharsets.US_ASCII), Files.readAllBytes(target));
+        assertEquals(2, dir.toFile().list().length);
+    }
+
+    @Test
+    public void leavesNoFileWhenAborted() throws IOException
+    {
+        AsyncChannelWriter writer = new AsyncChannelWriter(target);
+        byte[] data = bytes(4);
+        writer.write(data, 0, data.length);
+        writer.abort();
+        writer.close();
+
+        assertEquals(0, dir.toFile().list().length);
+    }
+}
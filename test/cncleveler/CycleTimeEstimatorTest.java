@@ -0,0 +1,142 @@
+package cncleveler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests CycleTimeEstimator against speed profiles worked out by hand.
+ */
+public class CycleTimeEstimatorTest
+{
+    /**
+     * Returns settings of 1000 mm/min and 10 mm/sec^2 on every axis.
+     */
+    private static GrblSettings settings()
+    {
+        GrblSettings settings = new GrblSettings();
+        settings.maxRate = new double[] { 1000.0, 1000.0, 1000.0 };
+        settings.acceleration = new double[] { 10.0, 10.0, 10.0 };
+        return settings;
+    }
+
+    private static List<State> parse(String... lines)
+    {
+        GCodeParser parser = new GCodeParser();
+        List<State> states = new ArrayList<State>();
+        for (String line : lines)
+        {
+            states.add(parser.parseLine(line));
+        }
+        return states;
+    }
+
+    private static double estimate(String... lines)
+    {
+        return CycleTimeEstimator.estimate("test", parse(lines), settings());
+    }
+
+    @Test
+    public void timesATrapezoid()
+    {
+        // 1 s up to 10 mm/sec over 5 mm, 90 mm at 10 mm/sec, 1 s down over 5 mm
+        assertEquals(11.0, estimate("G21 G90", "G1 X0 Y0 Z0 F600", "X100"), 1e-9);
+    }
+
+    @Test
+    public void timesATriangle()
+    {
+        // 4 mm is too short to reach 10 mm/sec: the peak speed is sqrt(10 * 4)
+        assertEquals(2 * Math.sqrt(40) / 10, estimate("G21 G90", "G1 X0 Y0 Z0 F600", "X4"), 1e-9);
+    }
+
+    @Test
+    public void runsStraightOnThroughJunctions()
+    {
+        assertEquals(11.0, estimate("G21 G90", "G1 X0 Y0 Z0 F600", "X25", "X50", "X75", "X100"), 1e-9);
+    }
+
+    @Test
+    public void slowsDownForCorners()
+    {
+        double corner = estimate("G21 G90", "G1 X0 Y0 Z0 F600", "X50", "Y50");
+        double stop = estimate("G21 G90", "G1 X0 Y0 Z0 F600", "X50", "M5", "Y50");
+
+        // Faster than stopping at the corner, slower than going straight
+        assertEquals(2 * 6.0, stop, 1e-9);
+        assertTrue(corner < stop - 0.1);
+        assertTrue(corner > 11.0 + 1e-3);
+
+        // Through a square corner at the junction speed: the corner direction allows 10 * sqrt(2)
+        // mm/sec^2, and sin(45 degrees) of the junction deviation of 0.01 mm
+        double sinHalf = Math.sqrt(0.5);
+        double junction = Math.sqrt(10 * Math.sqrt(2) * 0.01 * sinHalf / (1 - sinHalf));
+        double leg = 1.0 + (10 - junction) / 10 + (50 - 5 - (100 - junction * junction) / 20) / 10;
+        assertEquals(2 * leg, corner, 1e-9);
+    }
+
+    @Test
+    public void limitsRapidsToTheMaximumRate()
+    {
+        // 1000 mm/min is 16.67 mm/sec, reached over 13.9 mm
+        double v = 1000.0 / 60;
+        double expected = 2 * v / 10 + (100 - v * v / 10) / v;
+        assertEquals(expected, estimate("G21 G90", "G0 X0 Y0 Z0", "X100"), 1e-9);
+    }
+
+    @Test
+    public void addsDwells()
+    {
+        assertEquals(11.0 + 2.5, estimate("G21 G90", "G1 X0 Y0 Z0 F600", "X100", "G4 P2.5"), 1e-9);
+    }
+
+    @Test
+    public void convertsInches()
+    {
+        // 4 in at 24 in/min is 101.6 mm at 10.16 mm/sec
+        double v = 10.16;
+        double expected = 2 * v / 10 + (101.6 - v * v / 10) / v;
+        assertEquals(expected, estimate("G20 G90", "G1 X0 Y0 Z0 F24", "X4"), 1e-9);
+    }
+
+    @Test
+    public void passesEveryStateOnAsAStage() throws IOException
+    {
+        final List<State> passed = new ArrayList<State>();
+        StateSink sink = new StateSink()
+        {
+            public void accept(State state)
+            {
+                passed.add(state);
+            }
+
+            public void close()
+            {
+            }
+
+            public void abort()
+            {
+            }
+        };
+        List<State> states = parse("G21 G90", "G1 X0 Y0 Z0 F600", "X50", "Y50", "X0 Y0");
+        CycleTimeEstimator stage = new CycleTimeEstimator("test", settings(), sink);
+        for (State state : states)
+        {
+            stage.accept(state);
+        }
+        stage.close();
+
+        assertEquals(states.size(), passed.size());
+        for (int k = 0; k < states.size(); k++)
+        {
+            assertSame(states.get(k), passed.get(k));
+        }
+        assertEquals(CycleTimeEstimator.estimate("test", states, settings()), stage.totalSeconds(), 1e-12);
+    }
+}
@@ -0,0 +1,105 @@
+package cncleveler;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that leveling gcode.nc against probe-results-4.txt with the default settings gives the
+ * output in gcode_leveled.nc, whether the program is leveled as a whole, as columns, one block at a
+ * time, or with each stage on its own thread. Run from the project directory.
+ *
+ * gcode_leveled.nc was written by Main with the default settings after Leveler was changed to level
+ * each block once from its programmed Z. It differs from the output of earlier versions, which
+ * leveled a block without a Z word from the last leveled Z, so heights added up from block to block.
+ */
+public class DefaultRunTest
+{
+    private static final String EXPECTED = "test/cncleveler/gcode_leveled.nc";
+
+    private ProbeGrid grid;
+    private Path dir;
+    private boolean pipelined;
+    private boolean parallelParse;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        grid = new ProbeGrid(ProbeLogReader.read("probe-results-4.txt"));
+        dir = Files.createTempDirectory("cncleveler");
+        pipelined = Config.pipelined;
+        parallelParse = Config.parallelParse;
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        Config.pipelined = pipelined;
+        Config.parallelParse = parallelParse;
+        for (File file : dir.toFile().listFiles())
+        {
+            file.delete();
+        }
+        Files.delete(dir);
+    }
+
+    private String output()
+    {
+        return dir.resolve("gcode_leveled.nc").toString();
+    }
+
+    private void assertExpectedOutput() throws IOException
+    {
+        List<String> expected = Files.readAllLines(Paths.get(EXPECTED));
+        List<String> actual = Files.readAllLines(Paths.get(output()));
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void levelsTheWholeProgram() throws IOException
+    {
+        List<State> states = new GCodeParser().read("gcode.nc");
+        PositionIndex index = PositionIndex.build(states);
+        Leveler.level(states, index, grid);
+        GCodeWriter.write(output(), states);
+        assertExpectedOutput();
+    }
+
+    @Test
+    public void levelsAColumnarProgram() throws IOException
+    {
+        ProgramStore program = new ProgramStore(false);
+        new GCodeParser().read("gcode.nc", program);
+        PositionIndex index = PositionIndex.build(program);
+        Leveler.level(program, index, grid);
+        GCodeWriter.write(output(), program);
+        assertExpectedOutput();
+    }
+
+    @Test
+    public void levelsOneBlockAtATime() throws IOException
+    {
+        Config.pipelined = false;
+        Config.parallelParse = false;
+        Main.levelStreaming("gcode.nc", output(), grid, null);
+        assertExpectedOutput();
+    }
+
+    @Test
+    public void levelsOnAThreadPerStage() throws IOException
+    {
+        Config.pipelined = true;
+        Config.parallelParse = true;
+        Main.levelStreaming("gcode.nc", output(), grid, null);
+        assertExpectedOutput();
+    }
+}
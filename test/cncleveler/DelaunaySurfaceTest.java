@@ -0,0 +1,316 @@
+package cncleveler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.function.DoubleBinaryOperator;
+
+import org.junit.Test;
+
+/**
+ * Tests that DelaunaySurface triangulates the convex hull of the probes, interpolates linearly
+ * within each triangle, and that moves subdivided against it stay within tolerance inside and
+ * outside the probed area.
+ */
+public class DelaunaySurfaceTest
+{
+    private static final DoubleBinaryOperator PLANE = (x, y) -> 0.3 + 0.01 * x - 0.02 * y;
+
+    /**
+     * A warped board: heights of a tenth of a millimeter or so that bend in both directions.
+     */
+    private static final DoubleBinaryOperator WARPED = (x, y) -> 0.15 * Math.sin(x / 11) * Math.cos(y / 7)
+            + 0.002 * x;
+
+    /**
+     * Returns raw probe points, as read from a probe log, at the given work coordinates.
+     */
+    private static List<Point3> grid(double[] xs, double[] ys, DoubleBinaryOperator height)
+    {
+        List<Point3> probes = new ArrayList<Point3>();
+        for (double y : ys)
+        {
+            for (double x : xs)
+            {
+                probes.add(new Point3(x + Config.probe_offset.x, y + Config.probe_offset.y,
+                        height.applyAsDouble(x, y)));
+            }
+        }
+        return probes;
+    }
+
+    /**
+     * Returns a surface of probes scattered at random over a width by height area from (0,0).
+     */
+    private static DelaunaySurface scattered(int count, double width, double height, long seed,
+            DoubleBinaryOperator z)
+    {
+        Random random = new Random(seed);
+        List<Point3> probes = new ArrayList<Point3>();
+        for (int n = 0; n < count; n++)
+        {
+            double x = random.nextDouble() * width;
+            double y = random.nextDouble() * height;
+            probes.add(new Point3(x + Config.probe_offset.x, y + Config.probe_offset.y, z.applyAsDouble(x, y)));
+        }
+        return new DelaunaySurface(probes);
+    }
+
+    private static List<State> parse(String... lines)
+    {
+        GCodeParser parser = new GCodeParser();
+        List<State> states = new ArrayList<State>();
+        for (String line : lines)
+        {
+            states.add(parser.parseLine(line));
+        }
+        return states;
+    }
+
+    /**
+     * Returns the XY end point of each block that moves, resolving modal positions.
+     */
+    private static List<double[]> path(List<State> states)
+    {
+        ModalResolver resolver = new ModalResolver();
+        List<double[]> points = new ArrayList<double[]>();
+        for (State state : states)
+        {
+            resolver.resolve(state);
+            if (state.hasPosition()) points.add(new double[] { resolver.x, resolver.y });
+        }
+        return points;
+    }
+
+    /**
+     * Returns the largest distance in Z between the surface and the straight path through the given
+     * points, leveled at each point, sampling each segment densely.
+     */
+    private static double maxDeviation(ProbeSurface surface, List<double[]> points)
+    {
+        double worst = 0.0;
+        for (int k = 1; k < points.size(); k++)
+        {
+            double[] a = points.get(k - 1);
+            double[] b = points.get(k);
+            double ha = surface.getProbeHeight(a[0], a[1]);
+            double hb = surface.getProbeHeight(b[0], b[1]);
+            for (int s = 1; s < 100; s++)
+            {
+                double f = s / 100.0;
+                double h = surface.getProbeHeight(a[0] + f * (b[0] - a[0]), a[1] + f * (b[1] - a[1]));
+                worst = Math.max(worst, Math.abs(h - (ha + f * (hb - ha))));
+            }
+        }
+        return worst;
+    }
+
+    /**
+     * Returns the probes used as triangle corners.
+     */
+    private static List<Point3> probes(DelaunaySurface surface)
+    {
+        TreeSet<Integer> used = new TreeSet<Integer>();
+        for (int t = 0; t < surface.triangleCount(); t++)
+        {
+            for (int k = 0; k < 3; k++)
+            {
+                used.add(surface.corner(t, k));
+            }
+        }
+        List<Point3> probes = new ArrayList<Point3>();
+        for (int v : used)
+        {
+            probes.add(surface.probe(v));
+        }
+        return probes;
+    }
+
+    /**
+     * Returns twice the signed area of the triangle abc, positive if counter-clockwise.
+     */
+    private static double cross(Point3 a, Point3 b, Point3 c)
+    {
+        return (b.x - a.x) * (c.y - a.y) - (b.y - a.y) * (c.x - a.x);
+    }
+
+    /**
+     * Returns the area of the convex hull of the points, by Andrew's monotone chain.
+     */
+    private static double hullArea(List<Point3> points)
+    {
+        Point3[] p = points.toArray(new Point3[0]);
+        Arrays.sort(p, (a, b) -> (a.x != b.x) ? Double.compare(a.x, b.x) : Double.compare(a.y, b.y));
+        Point3[] hull = new Point3[2 * p.length];
+        int k = 0;
+        for (int i = 0; i < p.length; i++)
+        {
+            while (k >= 2 && cross(hull[k - 2], hull[k - 1], p[i]) <= 0)
+                k--;
+            hull[k++] = p[i];
+        }
+        for (int i = p.length - 2, lower = k + 1; i >= 0; i--)
+        {
+            while (k >= lower && cross(hull[k - 2], hull[k - 1], p[i]) <= 0)
+                k--;
+            hull[k++] = p[i];
+        }
+        double area = 0;
+        for (int i = 1; i < k - 1; i++)
+        {
+            area += cross(hull[0], hull[i], hull[i + 1]) / 2;
+        }
+        return area;
+    }
+
+    /**
+     * Checks that the triangles are counter-clockwise, use every probe and exactly cover the convex
+     * hull of the probes.
+     */
+    private static void checkCoversHull(DelaunaySurface surface, int probeCount)
+    {
+        List<Point3> probes = probes(surface);
+        assertEquals(probeCount, probes.size());
+        double area = 0;
+        for (int t = 0; t < surface.triangleCount(); t++)
+        {
+            double a = cross(surface.probe(surface.corner(t, 0)), surface.probe(surface.corner(t, 1)),
+                    surface.probe(surface.corner(t, 2))) / 2;
+            assertTrue(a > 0);
+            area += a;
+        }
+        assertEquals(hullArea(probes), area, 1e-9 * area);
+    }
+
+    @Test
+    public void triangulatesTheConvexHullOfScatteredProbes()
+    {
+        for (long seed = 1; seed <= 5; seed++)
+        {
+            DelaunaySurface surface = scattered(200, 60, 50, seed, WARPED);
+            checkCoversHull(surface, 200);
+
+            // Triangles on n probes with h of them on the boundary
+            assertEquals(2 * 200 - 2 - surface.hullFrom.length, surface.triangleCount());
+        }
+    }
+
+    @Test
+    public void keepsProbesOutOfCircumcircles()
+    {
+        DelaunaySurface surface = scattered(200, 60, 50, 7, WARPED);
+        List<Point3> probes = probes(surface);
+        for (int t = 0; t < surface.triangleCount(); t++)
+        {
+            Point3 a = surface.probe(surface.corner(t, 0));
+            Point3 b = surface.probe(surface.corner(t, 1));
+            Point3 c = surface.probe(surface.corner(t, 2));
+            for (Point3 p : probes)
+            {
+                // The in-circle determinant, positive if p is inside the circumcircle of abc
+                double ax = a.x - p.x, ay = a.y - p.y;
+                double bx = b.x - p.x, by = b.y - p.y;
+                double cx = c.x - p.x, cy = c.y - p.y;
+                double det = (ax * ax + ay * ay) * (bx * cy - by * cx) - (bx * bx + by * by) * (ax * cy - ay * cx)
+                        + (cx * cx + cy * cy) * (ax * by - ay * bx);
+                assertTrue(det < 1e-6);
+            }
+        }
+    }
+
+    @Test
+    public void triangulatesAGridWithRepeatedProbes()
+    {
+        // Every square of a grid has its four corners on one circle
+        double[] xs = { 0, 10, 20, 30, 40, 50, 60 };
+        double[] ys = { 0, 10, 20, 30, 40, 50 };
+        List<Point3> grid = grid(xs, ys, PLANE);
+        grid.addAll(grid(new double[] { 20 }, new double[] { 30 }, PLANE));
+        DelaunaySurface surface = new DelaunaySurface(grid);
+
+        checkCoversHull(surface, xs.length * ys.length);
+        assertEquals(2 * (xs.length - 1) * (ys.length - 1), surface.triangleCount());
+        assertEquals(10.0, surface.minSpacing(), 1e-12);
+    }
+
+    @Test
+    public void interpolatesProbesAndPlanesExactly()
+    {
+        DelaunaySurface surface = scattered(200, 60, 50, 3, PLANE);
+
+        // Heights are offset by the same amount, the height at (0,0), at every probe
+        List<Point3> probes = probes(surface);
+        double offset = PLANE.applyAsDouble(probes.get(0).x, probes.get(0).y) - probes.get(0).z;
+        for (Point3 p : probes)
+        {
+            assertEquals(PLANE.applyAsDouble(p.x, p.y), p.z + offset, 1e-12);
+            assertEquals(p.z, surface.getProbeHeight(p.x, p.y), 1e-12);
+        }
+
+        Random random = new Random(4);
+        for (int n = 0; n < 10000; n++)
+        {
+            // A random point in a random triangle
+            int t = random.nextInt(surface.triangleCount());
+            double u = random.nextDouble();
+            double v = random.nextDouble();
+            if (u + v > 1)
+            {
+                u = 1 - u;
+                v = 1 - v;
+            }
+            Point3 a = surface.probe(surface.corner(t, 0));
+            Point3 b = surface.probe(surface.corner(t, 1));
+            Point3 c = surface.probe(surface.corner(t, 2));
+            double x = a.x + u * (b.x - a.x) + v * (c.x - a.x);
+            double y = a.y + u * (b.y - a.y) + v * (c.y - a.y);
+            assertEquals(PLANE.applyAsDouble(x, y), surface.getProbeHeight(x, y) + offset, 1e-9);
+        }
+    }
+
+    @Test
+    public void givesCopiesTheSameHeights()
+    {
+        DelaunaySurface surface = scattered(100, 60, 50, 5, WARPED);
+        DelaunaySurface copy = surface.copy();
+        Random random = new Random(6);
+        for (int n = 0; n < 1000; n++)
+        {
+            double x = random.nextDouble() * 100 - 20;
+            double y = random.nextDouble() * 90 - 20;
+            assertEquals(surface.getProbeHeight(x, y), copy.getProbeHeight(x, y), 0.0);
+        }
+    }
+
+    @Test
+    public void keepsSubdividedPiecesWithinTolerance() throws IOException
+    {
+        double tolerance = 0.001;
+        DelaunaySurface surface = scattered(150, 60, 50, 8, WARPED);
+        Random random = new Random(9);
+        for (int n = 0; n < 300; n++)
+        {
+            // Moves from inside the probed area to well outside it, to the 0.1 mm
+            double x0 = (random.nextInt(800) - 100) / 10.0;
+            double y0 = (random.nextInt(700) - 100) / 10.0;
+            double x1 = (random.nextInt(800) - 100) / 10.0;
+            double y1 = (random.nextInt(700) - 100) / 10.0;
+            List<State> states = parse("G21 G90", String.format(Locale.ROOT, "G1 X%.1f Y%.1f", x0, y0),
+                    String.format(Locale.ROOT, "G1 X%.1f Y%.1f", x1, y1));
+            List<State> pieces = Subdivider.subdivide(states, surface, tolerance);
+
+            List<double[]> path = path(pieces);
+            double[] end = path.get(path.size() - 1);
+            assertEquals(x1, end[0], 0.0);
+            assertEquals(y1, end[1], 0.0);
+            assertTrue(maxDeviation(surface, path) <= tolerance + 1e-9);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package cncleveler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests GCodeParser's number parsing, which must give exactly the same values as
+ * Double.parseDouble() without allocating.
+ */
+public class GCodeParserTest
+{
+    /**
+     * Parses a number with GCodeParser.parseNumber().
+     */
+    private static double parse(String text)
+    {
+        GCodeParser parser = new GCodeParser();
+        parser.loadBuffer(text);
+        return parser.parseNumber(0, text.length());
+    }
+
+    @Test
+    public void parsesSimpleNumbers()
+    {
+        assertEquals(0.0, parse("0"), 0.0);
+        assertEquals(12.0, parse("12"), 0.0);
+        assertEquals(-0.25, parse("-0.25"), 0.0);
+        assertEquals(3.5, parse("+3.5"), 0.0);
+        assertEquals(0.5, parse(".5"), 0.0);
+        assertEquals(7.0, parse("7."), 0.0);
+    }
+
+    @Test
+    public void keepsTheSignOfNegativeZero()
+    {
+        assertEquals(Double.doubleToRawLongBits(-0.0), Double.doubleToRawLongBits(parse("-0.000")));
+    }
+
+    @Test
+    public void matchesParseDoubleOnRandomDecimals()
+    {
+        Random random = new Random(1);
+        for (int n = 0; n < 100000; n++)
+        {
+            int decimals = random.nextInt(8);
+            long mantissa = random.nextLong() % 10_000_000_000L;
+            String text = Long.toString(Math.abs(mantissa));
+            if (decimals > 0)
+            {
+                while (text.length() <= decimals)
+                {
+                    text = "0" + text;
+                }
+                text = text.substring(0, text.length() - decimals) + "." + text.substring(text.length() - decimals);
+            }
+            if (mantissa < 0) text = "-" + text;
+            assertEquals(text, Double.parseDouble(text), parse(text), 0.0);
+        }
+    }
+
+    @Test
+    public void fallsBackForLongNumbers()
+    {
+        String[] texts = { "12345678901234567890", "0.12345678901234567890123", "9007199254740993",
+                "1.0000000000000000000000001" };
+        for (String text : texts)
+        {
+            assertEquals(text, Double.parseDouble(text), parse(text), 0.0);
+        }
+    }
+
+    @Test
+    public void rejectsMalformedNumbers()
+    {
+        assertTrue(Double.isNaN(parse("1.2.3")));
+        assertTrue(Double.isNaN(parse("-")));
+        assertTrue(Double.isNaN(parse(".")));
+        assertTrue(Double.isNaN(parse("1-2")));
+    }
+
+    @Test
+    public void parsesWordsOfALine()
+    {
+        State state = new GCodeParser().parseLine("g1 x1.5 Y-0.25 z+3 F 100");
+        assertEquals(Mode.LINEAR, state.getGroup(Group.MOTION));
+        assertEquals(1.5, state.getAxis(Axis.X), 0.0);
+        assertEquals(-0.25, state.getAxis(Axis.Y), 0.0);
+        assertEquals(3.0, state.getAxis(Axis.Z), 0.0);
+        assertEquals(100.0, state.getAxis(Axis.FEED), 0.0);
+        assertNull(state.getAxis(Axis.I));
+    }
+}
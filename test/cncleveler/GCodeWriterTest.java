@@ -0,0 +1,209 @@
+package cncleveler;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the text GCodeWriter writes in plain, compact and minimal-edit modes, and that a failed
+ * write leaves no file.
+ */
+public class GCodeWriterTest
+{
+    /**
+     * A Z word, with the spaces before it.
+     */
+    private static final Pattern Z_WORD = Pattern.compile("[ \\t]*[Zz]-?[0-9.]+");
+
+    private Path dir;
+    private boolean compactOutput;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        dir = Files.createTempDirectory("cncleveler");
+        compactOutput = Config.compactOutput;
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        Config.compactOutput = compactOutput;
+        for (File file : dir.toFile().listFiles())
+        {
+            file.delete();
+        }
+        Files.delete(dir);
+    }
+
+    /**
+     * Returns a 7 by 6 grid of probes 10 mm apart on a plane rising 0.01 mm per mm of X and 0.02
+     * mm per mm of Y.
+     */
+    private static ProbeGrid grid()
+    {
+        List<Point3> probes = new ArrayList<Point3>();
+        for (int j = 0; j < 6; j++)
+        {
+            for (int i = 0; i < 7; i++)
+            {
+                probes.add(new Point3(10 * i + Config.probe_offset.x, 10 * j + Config.probe_offset.y,
+                        0.5 + 0.1 * i + 0.2 * j));
+            }
+        }
+        return new ProbeGrid(probes);
+    }
+
+    private static List<State> parse(String... lines)
+    {
+        GCodeParser parser = new GCodeParser();
+        List<State> states = new ArrayList<State>();
+        for (String line : lines)
+        {
+            states.add(parser.parseLine(line));
+        }
+        return states;
+    }
+
+    /**
+     * Writes the states and returns the lines of the file.
+     */
+    private List<String> write(List<State> states) throws IOException
+    {
+        Path out = dir.resolve("out.nc");
+        GCodeWriter.write(out.toString(), states);
+        return Files.readAllLines(out, StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void writesTheSameLinesAsToString() throws IOException
+    {
+        List<State> states = parse("%", "N10 G21 G90 G17 (Caf\u00e9 r\u00e9glage)", "G0 X0 Y0 Z1.0005", "M3 S12000",
+                "G1 Z-0.1254 F99.95", "G2 X10.5 Y-3.25 I5.25 J-1.625", "G91 G1 X0.0004 Y-0.0004", "G90 G4 P0.5",
+                "G0 Z3", "M5", "M30");
+        List<String> expected = new ArrayList<String>();
+        ProgramStore columns = new ProgramStore();
+        for (State state : states)
+        {
+            expected.add(state.toString());
+            columns.add(state);
+        }
+
+        // Lists are written state by state, columnar programs straight from their columns
+        Path out = dir.resolve("out.nc");
+        assertEquals(expected, write(states));
+        GCodeWriter.write(out.toString(), columns);
+        assertEquals(expected, Files.readAllLines(out, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void keepsStopsAndStartsAgainAfterTheEnd() throws IOException
+    {
+        Config.compactOutput = true;
+        List<String> lines = write(parse("G21 G90", "G1 X0 Y0 Z-0.1 F100", "G1 X10 F100", "M0", "M0", "G1 X10 Y5",
+                "M1", "M1", "M2", "G21 G90 G1 X10 Y5 F100", "M30", "G21 G90 G1 X10 Y5 F100"));
+
+        // Repeated modes and words are left out, but every stop and end is written, and the
+        // state after M2 and M30 is written in full as GRBL has reset it
+        assertEquals(Arrays.asList("G90 G21", "G1 F100 X0 Y0 Z-0.1", "X10", "M0", "M0", "Y5", "M1", "M1", "M2",
+                "G1 G90 G21 F100 X10 Y5", "M30", "G1 G90 G21 F100 X10 Y5"), lines);
+    }
+
+    @Test
+    public void changesNothingButZWordsInMinimalEditMode() throws IOException
+    {
+        StringBuilder program = new StringBuilder();
+        program.append("%\r\nG21  G90 (metric)\r\nG0 X0.0000 Y0.0000 Z1.000\r\nG01 Z-0.1000 F100.0\r\n");
+        program.append("X10.00  Y5\r\nx20y5 z-0.10000\r\nG1 F150 Y20.5 (to the top)\r\n");
+        for (int k = 0; k < 2000; k++)
+        {
+            // A run of untouched lines long enough to be copied in bulk
+            program.append("(pass ").append(k).append(" of the comment block)\r\n");
+        }
+        program.append("N10 G1 X30 Y25\r\nG0 Z1\r\nM30\r\n%\r\n");
+        String text = program.toString();
+        Path source = dir.resolve("in.nc");
+        Files.write(source, text.getBytes(StandardCharsets.US_ASCII));
+
+        GCodeParser parser = new GCodeParser();
+        parser.keepSourceSpans = true;
+        List<State> states = parser.read(source.toString());
+        Leveler.level(states, grid());
+        Path out = dir.resolve("out.nc");
+        GCodeWriter.write(out.toString(), states, source.toString());
+        String written = new String(Files.readAllBytes(out), StandardCharsets.US_ASCII);
+
+        // Every byte but the Z words, including line endings and spacing, is copied
+        assertEquals(Z_WORD.matcher(text).replaceAll(""), Z_WORD.matcher(written).replaceAll(""));
+
+        // Leveled Z words replace the ones there were, or are added after the last word
+        String[] lines = written.split("\r\n");
+        assertEquals("G01 Z-0.1000 F100.0", lines[3]);
+        assertEquals("X10.00  Y5 Z0.1", lines[4]);
+        assertEquals("x20y5 Z0.2", lines[5]);
+        assertEquals("G1 F150 Y20.5 Z0.51 (to the top)", lines[6]);
+        assertEquals("N10 G1 X30 Y25 Z0.7", lines[2007]);
+    }
+
+    @Test
+    public void throwsAFailedWriteFromCloseAndLeavesNoFile() throws IOException
+    {
+        // Runs of untouched lines either side of a leveled line, long enough to be copied by the
+        // writer's drain thread
+        StringBuilder program = new StringBuilder("G21 G90\nG1 X0 Y0 Z-0.1 F100\n");
+        for (int k = 0; k < 8000; k++)
+        {
+            program.append("(pass ").append(k).append(" of the comment block)\n");
+            if (k == 3999) program.append("X10 Y10\n");
+        }
+        program.append("M30\n");
+        Path source = dir.resolve("in.nc");
+        Files.write(source, program.toString().getBytes(StandardCharsets.US_ASCII));
+        Path out = dir.resolve("out.nc");
+        byte[] old = "G0 X0\n".getBytes(StandardCharsets.US_ASCII);
+        Files.write(out, old);
+
+        GCodeParser parser = new GCodeParser();
+        parser.keepSourceSpans = true;
+        List<State> states = parser.read(source.toString());
+        Leveler.level(states, grid());
+        try (FileChannel channel = FileChannel.open(source, StandardOpenOption.WRITE))
+        {
+            channel.truncate(program.length() / 4);
+        }
+
+        GCodeWriter writer = new GCodeWriter(out.toString(), source.toString());
+        for (State state : states)
+        {
+            writer.accept(state);
+        }
+        try
+        {
+            writer.close();
+            fail("The failed write was not thrown");
+        }
+        catch (IOException ex)
+        {
+            // expected
+        }
+
+        assertArrayEquals(old, Files.readAllBytes(out));
+        assertEquals(2, dir.toFile().list().length);
+    }
+}
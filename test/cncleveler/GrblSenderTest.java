@@ -0,0 +1,186 @@
+package cncleveler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.junit.Test;
+
+/**
+ * Tests that GrblSender keeps GRBL's receive buffer from overflowing and waits for every block to
+ * be acknowledged, against a GrblSimulator, and that it stops on an error or a line too long for
+ * GRBL. Also tests the simulator's real-time commands.
+ */
+public class GrblSenderTest
+{
+    private static final String BANNER = "\r\nGrbl 1.1f ['$' for help]\r\n";
+
+    /**
+     * Parses lines into states numbered from 1, as read from a file.
+     */
+    private static List<State> parse(String... lines)
+    {
+        GCodeParser parser = new GCodeParser();
+        List<State> states = new ArrayList<State>();
+        for (String line : lines)
+        {
+            State state = parser.parseLine(line);
+            state.lineNum = states.size() + 1;
+            states.add(state);
+        }
+        return states;
+    }
+
+    /**
+     * Returns a program of short and long moves, so lines of many lengths share the buffer.
+     */
+    private static List<State> program(int moves)
+    {
+        List<String> lines = new ArrayList<String>();
+        lines.add("(start)");
+        lines.add("G21 G90");
+        lines.add("G1 F500");
+        for (int k = 0; k < moves; k++)
+        {
+            lines.add((k % 3 == 0) ? String.format(Locale.ROOT, "X%.3f", k * 0.001)
+                    : String.format(Locale.ROOT, "X%.4f Y%.4f Z-%.4f", k * 0.0123, k * 0.0456, k * 0.0001));
+        }
+        lines.add("M30");
+        return parse(lines.toArray(new String[0]));
+    }
+
+    /**
+     * Reads a response line from the simulator, without its line ending.
+     */
+    private static String readLine(InputStream in) throws IOException
+    {
+        StringBuilder line = new StringBuilder();
+        for (int c = in.read(); c != '\n'; c = in.read())
+        {
+            if (c < 0) throw new IOException("End of responses");
+            if (c != '\r') line.append((char) c);
+        }
+        return line.toString();
+    }
+
+    @Test
+    public void keepsTheReceiveBufferFromOverflowing() throws IOException
+    {
+        List<State> states = program(2000);
+        GrblSimulator simulator = GrblSimulator.connect(20);
+        GrblSender sender = new GrblSender(simulator.senderInput(), simulator.senderOutput());
+        for (State state : states)
+        {
+            sender.accept(state);
+        }
+        sender.close();
+        simulator.close();
+
+        // Every block but the comment is acknowledged before close() returns
+        assertEquals(states.size() - 1, simulator.blocksAccepted());
+        assertEquals(0, simulator.overruns());
+        assertTrue(simulator.maxBuffered() <= GrblSender.RX_BUFFER_SIZE);
+        assertTrue(simulator.maxBuffered() > GrblSender.RX_BUFFER_SIZE / 2);
+    }
+
+    @Test
+    public void endsTheSimulationWhenAbortedAndClosed() throws IOException
+    {
+        List<State> states = program(200);
+        GrblSimulator simulator = GrblSimulator.connect(5000);
+        GrblSender sender = new GrblSender(simulator.senderInput(), simulator.senderOutput());
+        for (State state : states.subList(0, 100))
+        {
+            sender.accept(state);
+        }
+        sender.abort();
+        sender.accept(states.get(100));
+        sender.close();
+
+        // The feed hold stops blocks being accepted, and hanging up is a normal end
+        simulator.close();
+        assertTrue(simulator.blocksAccepted() < 100);
+        assertEquals(0, simulator.overruns());
+    }
+
+    @Test
+    public void stopsOnAnErrorNamingTheLine() throws IOException
+    {
+        InputStream responses = new ByteArrayInputStream(
+                (BANNER + "ok\r\n[MSG:Pgm End]\r\nerror:22\r\nok\r\n").getBytes(StandardCharsets.US_ASCII));
+        GrblSender sender = new GrblSender(responses, new ByteArrayOutputStream());
+        for (State state : parse("G21 G90", "(no block)", "G1 X10 F0", "G1 X20 F100"))
+        {
+            sender.accept(state);
+        }
+        try
+        {
+            sender.close();
+            fail("The error was not thrown");
+        }
+        catch (IOException ex)
+        {
+            assertEquals("GRBL rejected line 3 with error:22", ex.getMessage());
+        }
+    }
+
+    @Test
+    public void rejectsALineTooLongForGrbl() throws IOException
+    {
+        InputStream responses = new ByteArrayInputStream(BANNER.getBytes(StandardCharsets.US_ASCII));
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        GrblSender sender = new GrblSender(responses, sent);
+
+        // 79 characters fit in the line buffer with the newline, 80 do not
+        String fits = "G1F12000.5S120000X-1210.123Y-1210.123Z-10.123I-123.456J-123.456R1125.125P12.125";
+        assertEquals(GrblSender.LINE_BUFFER_SIZE - 1, fits.length());
+        List<State> states = parse(fits, fits.replace("X-1210", "X-11210"));
+        sender.accept(states.get(0));
+        assertEquals(fits + "\n", new String(sent.toByteArray(), StandardCharsets.US_ASCII));
+        try
+        {
+            sender.accept(states.get(1));
+            fail("The long line was not rejected");
+        }
+        catch (IOException ex)
+        {
+            assertTrue(ex.getMessage().startsWith("Line 2 has more than 79 characters"));
+        }
+        assertEquals(fits.length() + 1, sent.size());
+    }
+
+    @Test
+    public void actsOnRealTimeCommandsAtOnce() throws IOException
+    {
+        GrblSimulator simulator = GrblSimulator.connect(0);
+        InputStream in = simulator.senderInput();
+        OutputStream out = simulator.senderOutput();
+        assertEquals("Grbl 1.1f ['$' for help]", readLine(in));
+
+        // Held lines wait in the buffer, and the commands take no room in it
+        out.write("!G1X1\n?".getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+        assertEquals("<Hold:0>", readLine(in));
+        out.write("~".getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+        assertEquals("ok", readLine(in));
+        out.write("?".getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+        assertEquals("<Idle>", readLine(in));
+
+        out.close();
+        simulator.close();
+        assertEquals(1, simulator.blocksAccepted());
+        assertEquals(5, simulator.maxBuffered());
+    }
+}
@@ -0,0 +1,190 @@
+package cncleveler;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.function.DoubleConsumer;
+
+import org.junit.Test;
+
+/**
+ * Tests InterpolationCache: quantization, hits, and that entries survive the clock eviction and the
+ * backward-shift deletion it uses.
+ */
+public class InterpolationCacheTest
+{
+    /**
+     * A surface that counts how often each position is interpolated.
+     */
+    private static class CountingSurface implements ProbeSurface
+    {
+        final Map<List<Double>, Integer> calls = new HashMap<List<Double>, Integer>();
+
+        public double getProbeHeight(double x, double y)
+        {
+            calls.merge(List.of(x, y), 1, Integer::sum);
+            return x * 1000 + y;
+        }
+
+        public void getProbeHeights(double[] xs, double[] ys, double[] out, int offset, int count)
+        {
+            for (int n = offset; n < offset + count; n++)
+            {
+                out[n] = getProbeHeight(xs[n], ys[n]);
+            }
+        }
+
+        public void findEdges(double x, double y, double dx, double dy, DoubleConsumer edges)
+        {
+        }
+
+        public double getCurvature(double x, double y, double dx, double dy)
+        {
+            return 0.0;
+        }
+
+        public double minSpacing()
+        {
+            return 1.0;
+        }
+
+        public ProbeSurface copy()
+        {
+            return this;
+        }
+
+        int calls(double x, double y)
+        {
+            return calls.getOrDefault(List.of(x, y), 0);
+        }
+    }
+
+    @Test
+    public void interpolatesAtTheQuantizedPosition()
+    {
+        CountingSurface surface = new CountingSurface();
+        InterpolationCache cache = new InterpolationCache(surface, 16, 0.5);
+
+        assertEquals(1000.0 + 2.5, cache.getProbeHeight(1.1, 2.4), 0.0);
+        assertEquals(1, surface.calls(1.0, 2.5));
+
+        // A nearby position in the same quantization step is a hit
+        assertEquals(1000.0 + 2.5, cache.getProbeHeight(0.9, 2.6), 0.0);
+        assertEquals(1, surface.calls(1.0, 2.5));
+        assertEquals(1, cache.hits());
+        assertEquals(1, cache.misses());
+    }
+
+    @Test
+    public void doesNotCacheNaN()
+    {
+        CountingSurface surface = new CountingSurface();
+        InterpolationCache cache = new InterpolationCache(surface, 16, 0.001);
+        cache.getProbeHeight(Double.NaN, 1.0);
+        cache.getProbeHeight(Double.NaN, 1.0);
+        assertEquals(2, cache.misses());
+    }
+
+    @Test
+    public void keepsEntriesThatAreHitWhileOthersAreEvicted()
+    {
+        CountingSurface surface = new CountingSurface();
+        InterpolationCache cache = new InterpolationCache(surface, 16, 1.0);
+
+        // Fill the cache first, so the hot positions land behind others in their probe sequences
+        for (int n = 0; n < 16; n++)
+        {
+            cache.getProbeHeight(-1 - n, 7.0);
+        }
+
+        // Each new position evicts another. The clock passes over the hot positions, which are hit
+        // again before it comes round, and deleting an entry shifts hot entries of the same probe
+        // sequence back, where they must still be found. Until every hot position has been hit once
+        // the clock may evict some, so the count starts after a few rounds.
+        int hot = 14;
+        int[] warm = new int[hot];
+        for (int n = 0; n < 10000; n++)
+        {
+            for (int x = 0; x < hot; x++)
+            {
+                assertEquals(x * 1000.0, cache.getProbeHeight(x, 0.0), 0.0);
+            }
+            double x = 100 + n;
+            assertEquals(x * 1000 + 7, cache.getProbeHeight(x, 7.0), 0.0);
+            if (n == 10)
+            {
+                for (int k = 0; k < hot; k++)
+                {
+                    warm[k] = surface.calls(k, 0.0);
+                }
+            }
+        }
+        for (int x = 0; x < hot; x++)
+        {
+            assertEquals(warm[x], surface.calls(x, 0.0));
+        }
+    }
+
+    @Test
+    public void findsEveryEntryAfterADeletion()
+    {
+        // With the cache full and every entry but one hit, the next new position evicts that one.
+        // Whichever entry it is, the entries after it in its probe sequence must still be found.
+        for (int victim = 0; victim < 16; victim++)
+        {
+            CountingSurface surface = new CountingSurface();
+            InterpolationCache cache = new InterpolationCache(surface, 16, 1.0);
+            for (int x = 0; x < 16; x++)
+            {
+                cache.getProbeHeight(x, 0.0);
+            }
+            for (int x = 0; x < 16; x++)
+            {
+                if (x != victim) cache.getProbeHeight(x, 0.0);
+            }
+            cache.getProbeHeight(100, 0.0);
+
+            long misses = cache.misses();
+            for (int x = 0; x < 16; x++)
+            {
+                if (x != victim) assertEquals(x * 1000.0, cache.getProbeHeight(x, 0.0), 0.0);
+            }
+            assertEquals("entries lost evicting " + victim, misses, cache.misses());
+        }
+    }
+
+    @Test
+    public void holdsMaxEntriesWithoutEvicting()
+    {
+        CountingSurface surface = new CountingSurface();
+        InterpolationCache cache = new InterpolationCache(surface, 100, 1.0);
+        for (int pass = 0; pass < 3; pass++)
+        {
+            for (int x = 0; x < 100; x++)
+            {
+                assertEquals(x * 1000.0, cache.getProbeHeight(x, 0.0), 0.0);
+            }
+        }
+        assertEquals(100, cache.misses());
+        assertEquals(200, cache.hits());
+    }
+
+    @Test
+    public void staysCorrectUnderRandomEvictions()
+    {
+        CountingSurface surface = new CountingSurface();
+        InterpolationCache cache = new InterpolationCache(surface, 64, 1.0);
+        Random random = new Random(2);
+        for (int n = 0; n < 100000; n++)
+        {
+            double x = random.nextInt(200);
+            double y = random.nextInt(3);
+            assertEquals(x * 1000 + y, cache.getProbeHeight(x, y), 0.0);
+        }
+        assertEquals(100000, cache.hits() + cache.misses());
+        assertEquals(cache.misses(), surface.calls.values().stream().mapToInt(Integer::intValue).sum());
+    }
+}
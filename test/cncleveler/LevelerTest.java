@@ -0,0 +1,161 @@
+package cncleveler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests that Leveler adds the probe height once to each block's programmed Z, writes incremental Z
+ * words for G91 blocks and converts G20 programs to and from the millimeter probe data, the same
+ * way for a list of states, a columnar program and a stream.
+ */
+public class LevelerTest
+{
+    /**
+     * Probed on a plane, so the interpolated height is exact: 0.01 mm per mm of X and 0.02 mm per
+     * mm of Y, relative to (0,0).
+     */
+    private static double height(double x, double y)
+    {
+        return 0.01 * x + 0.02 * y;
+    }
+
+    /**
+     * Returns a 7 by 6 grid of probes 10 mm apart on the plane, from a probe log.
+     */
+    private static ProbeGrid grid()
+    {
+        List<Point3> probes = new ArrayList<Point3>();
+        for (int j = 0; j < 6; j++)
+        {
+            for (int i = 0; i < 7; i++)
+            {
+                probes.add(new Point3(10 * i + Config.probe_offset.x, 10 * j + Config.probe_offset.y,
+                        0.7 + height(10 * i, 10 * j)));
+            }
+        }
+        return new ProbeGrid(probes);
+    }
+
+    private static List<State> parse(String... lines)
+    {
+        GCodeParser parser = new GCodeParser();
+        List<State> states = new ArrayList<State>();
+        for (String line : lines)
+        {
+            states.add(parser.parseLine(line));
+        }
+        return states;
+    }
+
+    /**
+     * Returns the Z word of each block after leveling, or null where a block has none.
+     */
+    private static List<Double> levelZ(String... lines)
+    {
+        List<State> states = parse(lines);
+        Leveler.level(states, grid());
+        List<Double> words = new ArrayList<Double>();
+        for (State state : states)
+        {
+            words.add(state.getAxis(Axis.Z));
+        }
+        return words;
+    }
+
+    @Test
+    public void addsTheHeightOnceToEachBlock()
+    {
+        List<Double> z = levelZ("G21 G90", "G0 X0 Y0 Z1", "G1 Z-0.1 F100", "X10", "X20 Y10", "Y30");
+
+        assertEquals(-0.1, z.get(2), 1e-9);
+        assertEquals(-0.1 + height(10, 0), z.get(3), 1e-9);
+        // Moves that do not set Z are leveled from the programmed Z, not the last leveled one
+        assertEquals(-0.1 + height(20, 10), z.get(4), 1e-9);
+        assertEquals(-0.1 + height(20, 30), z.get(5), 1e-9);
+    }
+
+    @Test
+    public void leavesBlocksWithoutAPositionAlone()
+    {
+        List<Double> z = levelZ("G21 G90", "X10 Y10 Z0", "G1 F100", "G28 Z5", "G1 X20");
+
+        // Nothing is leveled until a motion mode is set
+        assertEquals(0.0, z.get(1), 0.0);
+        assertNull(z.get(2));
+        assertEquals(5.0, z.get(3), 0.0);
+        assertEquals(height(20, 10), z.get(4), 1e-9);
+    }
+
+    @Test
+    public void writesIncrementalZForG91Blocks()
+    {
+        List<Double> z = levelZ("G21 G90", "G1 X10 Y10 Z-0.1 F100", "G91", "X10", "X10 Z-0.2", "G90 X50");
+
+        // The output follows the leveled Z, one increment at a time
+        double level0 = -0.1 + height(10, 10);
+        double level1 = -0.1 + height(20, 10);
+        double level2 = -0.3 + height(30, 10);
+        assertEquals(level0, z.get(1), 1e-9);
+        assertEquals(level1 - level0, z.get(3), 1e-9);
+        assertEquals(level2 - level1, z.get(4), 1e-9);
+        assertEquals(-0.3 + height(50, 10), z.get(5), 1e-9);
+    }
+
+    @Test
+    public void convertsInchPrograms()
+    {
+        List<Double> z = levelZ("G20 G90", "G1 X0 Y0 Z-0.004 F4", "X1 Y0.5", "X2 Y1.5");
+
+        assertEquals(-0.004 + height(25.4, 12.7) / 25.4, z.get(2), 1e-9);
+        assertEquals(-0.004 + height(50.8, 38.1) / 25.4, z.get(3), 1e-9);
+    }
+
+    @Test
+    public void levelsListsColumnsAndStreamsAlike() throws IOException
+    {
+        String[] program = { "G21 G90", "G0 X0 Y0 Z1", "G1 Z-0.1 F100", "X10", "G91 X5 Y5", "X5 Z-0.1", "G90",
+                "X30 Y40", "G28 Z3", "G0 Z3", "X60 Y50" };
+
+        List<State> states = parse(program);
+        Leveler.level(states, grid());
+
+        ProgramStore columns = new ProgramStore();
+        for (State state : parse(program))
+        {
+            columns.add(state);
+        }
+        Leveler.level(columns, grid());
+
+        final List<State> streamed = new ArrayList<State>();
+        Leveler stage = new Leveler(grid(), new StateSink()
+        {
+            public void accept(State state)
+            {
+                streamed.add(state);
+            }
+
+            public void close()
+            {
+            }
+        });
+        for (State state : parse(program))
+        {
+            stage.accept(state);
+        }
+        stage.close();
+
+        for (int block = 0; block < program.length; block++)
+        {
+            Double z = states.get(block).getAxis(Axis.Z);
+            assertEquals(z, streamed.get(block).getAxis(Axis.Z));
+            if (z != null) assertEquals(z, columns.getAxis(block, Axis.Z), 0.0);
+            assertEquals(z != null, columns.hasAxis(block, Axis.Z));
+        }
+    }
+}
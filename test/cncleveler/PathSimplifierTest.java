@@ -0,0 +1,148 @@
+package cncleveler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import org.junit.Test;
+
+/**
+ * Tests that PathSimplifier merges straight runs, refits runs on a circle as arcs, and leaves
+ * alone moves that do not fit.
+ */
+public class PathSimplifierTest
+{
+    private static final double TOLERANCE = 0.005;
+
+    /**
+     * Returns a program that moves to (x0,y0) at Z0, then along the given points.
+     */
+    private static List<State> program(double x0, double y0, List<double[]> points)
+    {
+        List<String> lines = new ArrayList<String>();
+        lines.add("G21 G90 G17");
+        lines.add(String.format(Locale.ROOT, "G1 X%.4f Y%.4f Z0 F300", x0, y0));
+        for (double[] p : points)
+        {
+            lines.add(String.format(Locale.ROOT, "X%.4f Y%.4f Z%.4f", p[0], p[1], p[2]));
+        }
+        GCodeParser parser = new GCodeParser();
+        List<State> states = new ArrayList<State>();
+        for (String line : lines)
+        {
+            states.add(parser.parseLine(line));
+        }
+        return states;
+    }
+
+    /**
+     * Returns the XY end point of each block that moves, resolving modal positions.
+     */
+    private static List<double[]> path(List<State> states)
+    {
+        ModalResolver resolver = new ModalResolver();
+        List<double[]> points = new ArrayList<double[]>();
+        for (State state : states)
+        {
+            resolver.resolve(state);
+            if (state.hasPosition()) points.add(new double[] { resolver.x, resolver.y });
+        }
+        return points;
+    }
+
+    @Test
+    public void mergesMovesAlongALine() throws IOException
+    {
+        List<double[]> points = new ArrayList<double[]>();
+        for (int k = 1; k <= 20; k++)
+        {
+            // Within a thousandth of a millimeter of the line, with Z falling steadily
+            points.add(new double[] { k, 0.5 * k + ((k % 2 == 0) ? 0.001 : -0.001), -0.01 * k });
+        }
+        List<State> result = PathSimplifier.simplify(program(0, 0, points), TOLERANCE);
+
+        assertEquals(3, result.size());
+        State merged = result.get(2);
+        assertEquals(20.0, merged.getAxis(Axis.X), 0.0);
+        assertEquals(10.001, merged.getAxis(Axis.Y), 0.0);
+        assertEquals(-0.2, merged.getAxis(Axis.Z), 0.0);
+    }
+
+    @Test
+    public void refitsChordsOfACircleAsAnArc() throws IOException
+    {
+        // Half a turn counter-clockwise around (30,20) on radius 10, descending in a helix, in
+        // chords whose middles are within tolerance of the circle
+        List<double[]> points = new ArrayList<double[]>();
+        int chords = 60;
+        for (int k = 1; k <= chords; k++)
+        {
+            double a = Math.PI * k / chords;
+            points.add(new double[] { 30 + 10 * Math.cos(a), 20 + 10 * Math.sin(a), -0.1 * k / chords });
+        }
+        List<State> result = PathSimplifier.simplify(program(40, 20, points), TOLERANCE);
+
+        assertEquals(3, result.size());
+        State arc = result.get(2);
+        assertEquals(Mode.CIRCULAR_CCW, arc.getGroup(Group.MOTION));
+        assertEquals(-10.0, arc.getAxis(Axis.I), TOLERANCE);
+        assertEquals(0.0, arc.getAxis(Axis.J), TOLERANCE);
+        assertEquals(20.0, arc.getAxis(Axis.X), 1e-4);
+        assertEquals(20.0, arc.getAxis(Axis.Y), 1e-4);
+        assertEquals(-0.1, arc.getAxis(Axis.Z), 1e-4);
+    }
+
+    @Test
+    public void doesNotMergeMovesThatDoubleBack() throws IOException
+    {
+        List<double[]> points = new ArrayList<double[]>();
+        points.add(new double[] { 10, 0, 0 });
+        points.add(new double[] { 5, 0, 0 });
+        points.add(new double[] { 10, 0, 0 });
+        List<State> states = program(0, 0, points);
+        List<State> result = PathSimplifier.simplify(states, TOLERANCE);
+        assertEquals(path(states).size(), path(result).size());
+    }
+
+    @Test
+    public void doesNotMergeMovesOffTheLine() throws IOException
+    {
+        List<double[]> points = new ArrayList<double[]>();
+        for (int k = 1; k <= 4; k++)
+        {
+            points.add(new double[] { k, (k % 2 == 0) ? 0.02 : 0, 0 });
+        }
+        List<State> states = program(0, 0, points);
+        List<State> result = PathSimplifier.simplify(states, TOLERANCE);
+
+        // Every input vertex stays within tolerance of the output path
+        List<double[]> in = path(states);
+        List<double[]> out = path(result);
+        assertTrue(out.size() > 2);
+        for (double[] p : in)
+        {
+            double best = Double.POSITIVE_INFINITY;
+            for (int k = 1; k < out.size(); k++)
+            {
+                best = Math.min(best, distance(p, out.get(k - 1), out.get(k)));
+            }
+            assertTrue(best <= TOLERANCE);
+        }
+    }
+
+    /**
+     * Returns the distance from p to the segment from a to b in XY.
+     */
+    private static double distance(double[] p, double[] a, double[] b)
+    {
+        double dx = b[0] - a[0];
+        double dy = b[1] - a[1];
+        double f = ((p[0] - a[0]) * dx + (p[1] - a[1]) * dy) / (dx * dx + dy * dy);
+        f = Math.max(0, Math.min(1, f));
+        return Math.hypot(a[0] + f * dx - p[0], a[1] + f * dy - p[1]);
+    }
+}
@@ -0,0 +1,196 @@
+package cncleveler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * Tests that ProbeProgramGenerator probes every cell a cutting move passes through or near, lists
+ * the points by row, and that 2-opt never makes the nearest neighbour route longer.
+ */
+public class ProbeProgramGeneratorTest
+{
+    private static final double PITCH = 10.0;
+
+    /**
+     * Returns the probe points for a program.
+     */
+    private static List<Point3> points(double margin, String... lines)
+    {
+        ProbeProgramGenerator generator = new ProbeProgramGenerator(PITCH, margin);
+        GCodeParser parser = new GCodeParser();
+        for (String line : lines)
+        {
+            generator.accept(parser.parseLine(line));
+        }
+        generator.close();
+        return generator.points();
+    }
+
+    private static List<String> text(List<Point3> points)
+    {
+        List<String> text = new ArrayList<String>();
+        for (Point3 p : points)
+        {
+            text.add(String.format(Locale.ROOT, "%.0f,%.0f", p.x, p.y));
+        }
+        return text;
+    }
+
+    /**
+     * Returns true if a move from (x0, y0) to (x1, y1) passes within the margin of cell (i, j), in
+     * X and in Y, by clipping it to the cell widened by the margin.
+     */
+    private static boolean crosses(double x0, double y0, double x1, double y1, int i, int j, double margin)
+    {
+        double[] lo = { i * PITCH - margin, j * PITCH - margin };
+        double[] hi = { (i + 1) * PITCH + margin, (j + 1) * PITCH + margin };
+        double[] p = { x0, y0 };
+        double[] d = { x1 - x0, y1 - y0 };
+        double f0 = 0.0;
+        double f1 = 1.0;
+        for (int axis = 0; axis < 2; axis++)
+        {
+            if (d[axis] == 0)
+            {
+                if (p[axis] < lo[axis] || p[axis] > hi[axis]) return false;
+                continue;
+            }
+            double a = (lo[axis] - p[axis]) / d[axis];
+            double b = (hi[axis] - p[axis]) / d[axis];
+            f0 = Math.max(f0, Math.min(a, b));
+            f1 = Math.min(f1, Math.max(a, b));
+        }
+        return f0 <= f1;
+    }
+
+    /**
+     * Returns the nearest neighbour route, visiting the closest point not yet visited each time.
+     */
+    private static List<Point3> nearestNeighbour(List<Point3> points, Point3 start)
+    {
+        List<Point3> left = new ArrayList<Point3>(points);
+        List<Point3> route = new ArrayList<Point3>();
+        Point3 at = start;
+        while (!left.isEmpty())
+        {
+            int best = 0;
+            for (int k = 1; k < left.size(); k++)
+            {
+                if (Math.hypot(left.get(k).x - at.x, left.get(k).y - at.y) < Math.hypot(left.get(best).x - at.x,
+                        left.get(best).y - at.y))
+                {
+                    best = k;
+                }
+            }
+            at = left.remove(best);
+            route.add(at);
+        }
+        return route;
+    }
+
+    @Test
+    public void probesACellClippedAtItsCorner()
+    {
+        // Crosses Y10 at X9.44, so it clips cell (0,1) before going into cell (1,1)
+        List<Point3> points = points(0.0, "G21 G90", "G0 X0.5 Y9.2 Z1", "G1 Z-0.1 F100", "X19.5 Y10.9");
+
+        assertEquals(Arrays.asList("0,0", "10,0", "0,10", "10,10", "20,10", "0,20", "10,20", "20,20"), text(points));
+    }
+
+    @Test
+    public void probesEveryCellAMovePassesNear()
+    {
+        Random random = new Random(2);
+        for (int n = 0; n < 300; n++)
+        {
+            double margin = (n % 3 == 0) ? 0.0 : random.nextDouble() * 4;
+            double x0 = random.nextDouble() * 100 - 50;
+            double y0 = random.nextDouble() * 100 - 50;
+            double x1 = (n % 5 == 0) ? x0 : random.nextDouble() * 100 - 50;
+            double y1 = random.nextDouble() * 100 - 50;
+            List<Point3> points = points(margin, "G21 G90", String.format(Locale.ROOT, "G0 X%.17g Y%.17g Z1", x0, y0),
+                    "G1 Z-0.1 F100", String.format(Locale.ROOT, "X%.17g Y%.17g", x1, y1));
+
+            Set<String> expected = new HashSet<String>();
+            for (int j = -10; j < 10; j++)
+            {
+                for (int i = -10; i < 10; i++)
+                {
+                    if (crosses(x0, y0, x1, y1, i, j, margin))
+                    {
+                        expected.addAll(text(Arrays.asList(new Point3(i * PITCH, j * PITCH, 0.0),
+                                new Point3((i + 1) * PITCH, j * PITCH, 0.0), new Point3(i * PITCH, (j + 1) * PITCH, 0.0),
+                                new Point3((i + 1) * PITCH, (j + 1) * PITCH, 0.0))));
+                    }
+                }
+            }
+            assertEquals(expected, new HashSet<String>(text(points)));
+        }
+    }
+
+    @Test
+    public void followsArcsAlongTheirCurve()
+    {
+        // A half circle of radius 25 about (0,0), from (25,0) to (-25,0)
+        List<Point3> points = points(0.0, "G21 G90", "G0 X25 Y0 Z1", "G1 Z-0.1 F100", "G3 X-25 Y0 I-25 J0");
+
+        Set<String> found = new HashSet<String>(text(points));
+        for (int k = 0; k <= 1000; k++)
+        {
+            double a = Math.PI * k / 1000;
+            int i = (int) Math.floor(25 * Math.cos(a) / PITCH);
+            int j = (int) Math.floor(25 * Math.sin(a) / PITCH);
+            assertTrue(found.contains(text(Arrays.asList(new Point3(i * PITCH, j * PITCH, 0.0))).get(0)));
+        }
+        // Nothing is probed in the middle of the circle
+        assertTrue(!found.contains("0,10"));
+    }
+
+    @Test
+    public void listsThePointsByRowThenColumn()
+    {
+        List<Point3> points = points(0.0, "G21 G90", "G0 X-25 Y-5 Z1", "G1 Z-0.1 F100", "X15 Y5");
+
+        for (int k = 1; k < points.size(); k++)
+        {
+            Point3 a = points.get(k - 1);
+            Point3 b = points.get(k);
+            assertTrue(a.y < b.y || (a.y == b.y && a.x < b.x));
+        }
+        assertEquals("-30,-10", text(points).get(0));
+        assertEquals("20,10", text(points).get(points.size() - 1));
+    }
+
+    @Test
+    public void neverMakesTheNearestNeighbourRouteLonger()
+    {
+        Random random = new Random(3);
+        Point3 start = new Point3(0.0, 0.0, 0.0);
+        for (int n = 0; n < 50; n++)
+        {
+            // Scattered points, and lattice points with many equal distances
+            List<Point3> points = new ArrayList<Point3>();
+            for (int k = 0; k < 60; k++)
+            {
+                points.add((n % 2 == 0) ? new Point3(random.nextDouble() * 200, random.nextDouble() * 150, 0.0)
+                        : new Point3(10.0 * random.nextInt(20), 10.0 * random.nextInt(15), 0.0));
+            }
+
+            List<Point3> route = ProbeProgramGenerator.order(points, start);
+            assertEquals(points.size(), route.size());
+            assertTrue(route.containsAll(points) && points.containsAll(route));
+            assertTrue(ProbeProgramGenerator.travel(route, start) <= ProbeProgramGenerator
+                    .travel(nearestNeighbour(points, start), start) + 1e-9);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package cncleveler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.DoubleBinaryOperator;
+
+import org.junit.Test;
+
+/**
+ * Tests ProbeRefiner's error estimate against surfaces whose interpolation error is known, the
+ * points it plans, and that a grid probed again at those points keeps the coarse surface outside
+ * the refined cells.
+ */
+public class ProbeRefinerTest
+{
+    /**
+     * Unevenly spaced grid lines, including the origin so that the grid's Z offset is 0.
+     */
+    private static final double[] XS = { 0, 10, 15, 30, 40 };
+    private static final double[] YS = { 0, 8, 20, 25 };
+
+    /**
+     * Returns probes of a surface at the grid points, as read from a probe log.
+     */
+    private static List<Point3> probes(double[] xs, double[] ys, DoubleBinaryOperator surface)
+    {
+        List<Point3> probes = new ArrayList<Point3>();
+        for (double y : ys)
+        {
+            for (double x : xs)
+            {
+                probes.add(probe(x, y, surface));
+            }
+        }
+        return probes;
+    }
+
+    private static Point3 probe(double x, double y, DoubleBinaryOperator surface)
+    {
+        return new Point3(x + Config.probe_offset.x, y + Config.probe_offset.y, surface.applyAsDouble(x, y));
+    }
+
+    /**
+     * Returns grid lines 10 mm apart, starting from 0.
+     */
+    private static double[] lines(int count)
+    {
+        double[] lines = new double[count];
+        for (int k = 0; k < count; k++)
+        {
+            lines[k] = 10.0 * k;
+        }
+        return lines;
+    }
+
+    @Test
+    public void findsNoErrorOnABilinearSurface()
+    {
+        ProbeGrid grid = new ProbeGrid(probes(XS, YS, (x, y) -> 0.3 + 0.01 * x - 0.02 * y + 0.0005 * x * y));
+        ProbeRefiner refiner = new ProbeRefiner(grid);
+        for (int j = 0; j < YS.length - 1; j++)
+        {
+            for (int i = 0; i < XS.length - 1; i++)
+            {
+                assertEquals(0.0, refiner.cellError(i, j), 1e-12);
+            }
+        }
+        assertEquals(0, refiner.refinementPoints(1e-9).size());
+    }
+
+    @Test
+    public void boundsTheErrorOnAQuadraticSurface()
+    {
+        // Bilinear interpolation of x^2 and y^2 is furthest off at the center of each cell, by
+        // h^2 * |z''| / 8 in each direction
+        double kx = -0.0004;
+        double ky = -0.0003;
+        DoubleBinaryOperator surface = (x, y) -> kx * x * x + ky * y * y;
+        ProbeGrid grid = new ProbeGrid(probes(XS, YS, surface));
+        ProbeRefiner refiner = new ProbeRefiner(grid);
+        for (int j = 0; j < YS.length - 1; j++)
+        {
+            for (int i = 0; i < XS.length - 1; i++)
+            {
+                double hx = XS[i + 1] - XS[i];
+                double hy = YS[j + 1] - YS[j];
+                double expected = (hx * hx * 2 * Math.abs(kx) + hy * hy * 2 * Math.abs(ky)) / 8;
+                assertEquals(expected, refiner.cellError(i, j), 1e-12);
+
+                double x = (XS[i] + XS[i + 1]) / 2;
+                double y = (YS[j] + YS[j + 1]) / 2;
+                double actual = Math.abs(grid.getProbeHeight(x, y) - surface.applyAsDouble(x, y));
+                assertEquals(Math.abs(kx) * hx * hx / 4 + Math.abs(ky) * hy * hy / 4, actual, 1e-12);
+            }
+        }
+    }
+
+    @Test
+    public void plansEachSharedPointOnce()
+    {
+        ProbeGrid grid = new ProbeGrid(probes(lines(4), lines(4), (x, y) -> 0.001 * x * x));
+        List<Point3> points = new ProbeRefiner(grid).refinementPoints(0.001);
+
+        // Every cell of 3 by 3 is split: 9 centers, and the midpoints of 24 edges
+        assertEquals(9 + 24, points.size());
+        Set<String> distinct = new HashSet<String>();
+        for (Point3 p : points)
+        {
+            distinct.add(p.x + "," + p.y);
+            boolean centerX = (p.x % 10 == 5);
+            boolean centerY = (p.y % 10 == 5);
+            assertTrue(centerX || centerY);
+            assertEquals(0.0, p.z, 0.0);
+        }
+        assertEquals(points.size(), distinct.size());
+    }
+
+    @Test
+    public void keepsTheCoarseSurfaceOutsideTheRefinedCells()
+    {
+        // A bump on a bilinear board: only the cells around it are refined
+        DoubleBinaryOperator surface = (x, y) -> 0.01 * x + 0.02 * y + 0.0002 * x * y
+                + 0.05 * Math.exp(-((x - 40) * (x - 40) + (y - 30) * (y - 30)) / 15);
+        double[] xs = lines(7);
+        double[] ys = lines(6);
+        List<Point3> probes = probes(xs, ys, surface);
+        ProbeGrid coarse = new ProbeGrid(probes);
+        ProbeRefiner refiner = new ProbeRefiner(coarse);
+        double tolerance = 0.02;
+        List<Point3> points = refiner.refinementPoints(tolerance);
+
+        List<Point3> refinedProbes = new ArrayList<Point3>(probes);
+        for (Point3 p : points)
+        {
+            refinedProbes.add(probe(p.x, p.y, surface));
+        }
+        ProbeGrid refined = new ProbeGrid(refinedProbes);
+
+        Random random = new Random(1);
+        int kept = 0;
+        int split = 0;
+        for (int j = 0; j < ys.length - 1; j++)
+        {
+            for (int i = 0; i < xs.length - 1; i++)
+            {
+                // Cells with no new probe inside them or on their edges
+                boolean touched = false;
+                for (Point3 p : points)
+                {
+                    touched |= p.x >= xs[i] && p.x <= xs[i + 1] && p.y >= ys[j] && p.y <= ys[j + 1];
+                }
+                if (refiner.cellError(i, j) > tolerance)
+                {
+                    split++;
+                    double x = (xs[i] + xs[i + 1]) / 2;
+                    double y = (ys[j] + ys[j + 1]) / 2;
+                    assertEquals(surface.applyAsDouble(x, y), refined.getProbeHeight(x, y), 1e-12);
+                    continue;
+                }
+                if (touched) continue;
+
+                kept++;
+                for (int n = 0; n < 100; n++)
+                {
+                    double x = xs[i] + random.nextDouble() * (xs[i + 1] - xs[i]);
+                    double y = ys[j] + random.nextDouble() * (ys[j + 1] - ys[j]);
+                    assertEquals(coarse.getProbeHeight(x, y), refined.getProbeHeight(x, y), 1e-12);
+                }
+            }
+        }
+        assertTrue(split > 0 && split < 10);
+        assertTrue(kept > 10);
+    }
+}
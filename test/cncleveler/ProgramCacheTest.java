@@ -0,0 +1,119 @@
+package cncleveler;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that ProgramCache gives back the parsed program from its image, and that changing the
+ * loaded program never changes the image, even when the image can't be written.
+ */
+public class ProgramCacheTest
+{
+    private static final String PROGRAM = "G21 G90\n( Contour )\nG0 X0 Y0 Z1\nG1 Z-0.1 F100\nX10 Y5\nG2 X20 Y5 I5 J0\n"
+            + "G0 Z1\nM30\n";
+
+    private Path dir;
+    private Path source;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        dir = Files.createTempDirectory("cncleveler");
+        source = dir.resolve("program.nc");
+        Files.write(source, PROGRAM.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        for (File file : dir.toFile().listFiles())
+        {
+            file.setWritable(true);
+            file.delete();
+        }
+        Files.delete(dir);
+    }
+
+    private static String[] blocks(ProgramStore program)
+    {
+        String[] blocks = new String[program.size()];
+        for (int block = 0; block < blocks.length; block++)
+        {
+            blocks[block] = program.toString(block);
+        }
+        return blocks;
+    }
+
+    private Path image()
+    {
+        return dir.resolve("program.nc.cnlc");
+    }
+
+    @Test
+    public void loadsTheProgramItSaved() throws IOException
+    {
+        ProgramCache cache = new ProgramCache(null);
+        String[] parsed = blocks(cache.read(source.toString()));
+        assertTrue(Files.exists(image()));
+        assertArrayEquals(parsed, blocks(cache.read(source.toString())));
+        assertEquals(8, parsed.length);
+    }
+
+    @Test
+    public void leavesTheImageAloneWhenTheProgramChanges() throws IOException
+    {
+        ProgramCache cache = new ProgramCache(null);
+        String[] parsed = blocks(cache.read(source.toString()));
+        byte[] saved = Files.readAllBytes(image());
+
+        ProgramStore loaded = cache.read(source.toString());
+        loaded.setAxis(4, Axis.Z, -0.5);
+        assertEquals(-0.5, loaded.getAxis(4, Axis.Z), 0.0);
+
+        assertArrayEquals(saved, Files.readAllBytes(image()));
+        assertArrayEquals(parsed, blocks(cache.read(source.toString())));
+    }
+
+    @Test
+    public void loadsAndChangesAReadOnlyImage() throws IOException
+    {
+        ProgramCache cache = new ProgramCache(null);
+        String[] parsed = blocks(cache.read(source.toString()));
+        byte[] saved = Files.readAllBytes(image());
+        image().toFile().setWritable(false);
+
+        ProgramStore loaded = cache.read(source.toString());
+        assertArrayEquals(parsed, blocks(loaded));
+        loaded.setAxis(4, Axis.Z, -0.5);
+        assertEquals(-0.5, loaded.getAxis(4, Axis.Z), 0.0);
+        assertTrue(Arrays.equals(saved, Files.readAllBytes(image())));
+    }
+
+    @Test
+    public void rewritesAnImageOfOtherContents() throws IOException
+    {
+        ProgramCache cache = new ProgramCache(dir.resolve("cache").toString());
+        cache.read(source.toString());
+        Files.write(source, "G21 G90\nG0 X1 Y1\n".getBytes(StandardCharsets.US_ASCII));
+        assertEquals(2, cache.read(source.toString()).size());
+        assertEquals(2, dir.resolve("cache").toFile().list().length);
+
+        for (File file : dir.resolve("cache").toFile().listFiles())
+        {
+            file.delete();
+        }
+        Files.delete(dir.resolve("cache"));
+    }
+}
@@ -0,0 +1,136 @@
+package cncleveler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * Tests SpscRingBuffer: order, full and empty, wrapping round the array, and handing items from one
+ * thread to another.
+ */
+public class SpscRingBufferTest
+{
+    @Test
+    public void roundsTheCapacityUpToAPowerOfTwo()
+    {
+        assertEquals(2, new SpscRingBuffer<Integer>(1).capacity());
+        assertEquals(16, new SpscRingBuffer<Integer>(16).capacity());
+        assertEquals(32, new SpscRingBuffer<Integer>(17).capacity());
+    }
+
+    @Test
+    public void takesItemsInOrderUntilEmpty()
+    {
+        SpscRingBuffer<Integer> queue = new SpscRingBuffer<Integer>(8);
+        assertNull(queue.poll());
+        for (int n = 0; n < 5; n++)
+        {
+            assertTrue(queue.offer(n));
+        }
+        assertEquals(5, queue.size());
+        for (int n = 0; n < 5; n++)
+        {
+            assertEquals(Integer.valueOf(n), queue.poll());
+        }
+        assertNull(queue.poll());
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void refusesItemsWhenFull()
+    {
+        SpscRingBuffer<Integer> queue = new SpscRingBuffer<Integer>(4);
+        for (int n = 0; n < 4; n++)
+        {
+            assertTrue(queue.offer(n));
+        }
+        assertFalse(queue.offer(4));
+        assertEquals(4, queue.size());
+
+        // Taking one makes room for one
+        assertEquals(Integer.valueOf(0), queue.poll());
+        assertTrue(queue.offer(4));
+        assertFalse(queue.offer(5));
+        for (int n = 1; n <= 4; n++)
+        {
+            assertEquals(Integer.valueOf(n), queue.poll());
+        }
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void wrapsRoundTheArray()
+    {
+        SpscRingBuffer<Integer> queue = new SpscRingBuffer<Integer>(4);
+        int next = 0;
+        int expected = 0;
+        for (int round = 0; round < 1000; round++)
+        {
+            // Fill and drain by different amounts, so the head and tail cross every slot
+            int add = 1 + round % 4;
+            for (int n = 0; n < add; n++)
+            {
+                if (queue.offer(next)) next++;
+            }
+            int take = 1 + (round * 7) % 3;
+            for (int n = 0; n < take; n++)
+            {
+                Integer item = queue.poll();
+                if (item == null) break;
+                assertEquals(Integer.valueOf(expected++), item);
+            }
+            assertEquals(next - expected, queue.size());
+        }
+        assertTrue(next > 1000);
+    }
+
+    @Test
+    public void handsItemsFromOneThreadToAnother() throws InterruptedException
+    {
+        final int count = 1000000;
+        final SpscRingBuffer<Integer> queue = new SpscRingBuffer<Integer>(64);
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+        Thread producer = new Thread(() -> {
+            for (int n = 0; n < count; n++)
+            {
+                Integer item = n;
+                while (!queue.offer(item))
+                {
+                    Thread.yield();
+                }
+            }
+        });
+        Thread consumer = new Thread(() -> {
+            try
+            {
+                for (int n = 0; n < count; n++)
+                {
+                    Integer item;
+                    while ((item = queue.poll()) == null)
+                    {
+                        Thread.yield();
+                    }
+                    assertEquals(n, item.intValue());
+                }
+                assertNull(queue.poll());
+            }
+            catch (Throwable ex)
+            {
+                failure.set(ex);
+            }
+        });
+        producer.start();
+        consumer.start();
+        producer.join(60000);
+        consumer.join(60000);
+
+        assertFalse(producer.isAlive() || consumer.isAlive());
+        if (failure.get() != null) throw new AssertionError(failure.get());
+    }
+}
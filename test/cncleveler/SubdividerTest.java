@@ -0,0 +1,155 @@
+package cncleveler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests that Subdivider splits moves into pieces within the tolerance of the surface, and leaves
+ * everything else alone.
+ */
+public class SubdividerTest
+{
+    private static final double TOLERANCE = 0.001;
+
+    /**
+     * Returns a 7 by 6 grid of probes 10 mm apart on a warped board, with heights of a tenth of a
+     * millimeter or so that bend in both directions.
+     */
+    private static ProbeGrid warpedGrid()
+    {
+        List<Point3> probes = new ArrayList<Point3>();
+        for (int j = 0; j < 6; j++)
+        {
+            for (int i = 0; i < 7; i++)
+            {
+                double x = 10 * i;
+                double y = 10 * j;
+                double z = 0.15 * Math.sin(x / 11) * Math.cos(y / 7) + 0.002 * x;
+                probes.add(new Point3(x + Config.probe_offset.x, y + Config.probe_offset.y, z));
+            }
+        }
+        return new ProbeGrid(probes);
+    }
+
+    private static List<State> parse(String... lines)
+    {
+        GCodeParser parser = new GCodeParser();
+        List<State> states = new ArrayList<State>();
+        for (String line : lines)
+        {
+            states.add(parser.parseLine(line));
+        }
+        return states;
+    }
+
+    /**
+     * Returns the XY end point of each block that moves, resolving modal positions.
+     */
+    private static List<double[]> path(List<State> states)
+    {
+        ModalResolver resolver = new ModalResolver();
+        List<double[]> points = new ArrayList<double[]>();
+        for (State state : states)
+        {
+            resolver.resolve(state);
+            if (state.hasPosition()) points.add(new double[] { resolver.x, resolver.y });
+        }
+        return points;
+    }
+
+    /**
+     * Returns the largest distance in Z between the surface and the straight path through the given
+     * points, leveled at each point, sampling each segment densely.
+     */
+    private static double maxDeviation(ProbeSurface surface, List<double[]> points)
+    {
+        double worst = 0.0;
+        for (int k = 1; k < points.size(); k++)
+        {
+            double[] a = points.get(k - 1);
+            double[] b = points.get(k);
+            double ha = surface.getProbeHeight(a[0], a[1]);
+            double hb = surface.getProbeHeight(b[0], b[1]);
+            for (int s = 1; s < 100; s++)
+            {
+                double f = s / 100.0;
+                double h = surface.getProbeHeight(a[0] + f * (b[0] - a[0]), a[1] + f * (b[1] - a[1]));
+                worst = Math.max(worst, Math.abs(h - (ha + f * (hb - ha))));
+            }
+        }
+        return worst;
+    }
+
+    @Test
+    public void keepsPiecesWithinToleranceOfAGrid() throws IOException
+    {
+        ProbeGrid grid = warpedGrid();
+        Random random = new Random(3);
+        for (int n = 0; n < 500; n++)
+        {
+            // Moves from inside the grid to well outside it, to the 0.1 mm
+            double x0 = (random.nextInt(800) - 100) / 10.0;
+            double y0 = (random.nextInt(700) - 100) / 10.0;
+            double x1 = (random.nextInt(800) - 100) / 10.0;
+            double y1 = (random.nextInt(700) - 100) / 10.0;
+            List<State> states = parse("G21 G90", String.format(Locale.ROOT, "G1 X%.1f Y%.1f", x0, y0),
+                    String.format(Locale.ROOT, "G1 X%.1f Y%.1f", x1, y1));
+            List<State> pieces = Subdivider.subdivide(states, grid, TOLERANCE);
+
+            List<double[]> path = path(pieces);
+            double[] end = path.get(path.size() - 1);
+            assertEquals(x1, end[0], 0.0);
+            assertEquals(y1, end[1], 0.0);
+            assertTrue(maxDeviation(grid, path) <= TOLERANCE + 1e-9);
+        }
+    }
+
+    @Test
+    public void keepsTheOriginalBlockAsTheFirstPiece() throws IOException
+    {
+        ProbeGrid grid = warpedGrid();
+        List<State> states = parse("G21 G90", "G1 X0 Y0 Z0 F300", "G1 X60 Y50 Z-0.1 F200");
+        List<State> pieces = Subdivider.subdivide(states, grid, TOLERANCE);
+
+        assertTrue(pieces.size() > 3);
+        assertSame(states.get(2), pieces.get(2));
+        assertEquals(200.0, pieces.get(2).getAxis(Axis.FEED), 0.0);
+        for (int k = 3; k < pieces.size(); k++)
+        {
+            assertEquals(null, pieces.get(k).getAxis(Axis.FEED));
+            assertEquals(states.get(2).lineNum, pieces.get(k).lineNum);
+        }
+
+        // Z moves linearly along the pieces
+        List<double[]> path = path(pieces);
+        for (int k = 2; k < pieces.size(); k++)
+        {
+            double[] p = path.get(k - 1);
+            assertEquals(-0.1 * p[0] / 60, pieces.get(k).getAxis(Axis.Z), 1e-9);
+        }
+        assertEquals(-0.1, pieces.get(pieces.size() - 1).getAxis(Axis.Z), 0.0);
+    }
+
+    @Test
+    public void leavesMovesWithinToleranceAlone() throws IOException
+    {
+        // Along a grid line the bilinear surface is straight within a cell
+        ProbeGrid grid = warpedGrid();
+        List<State> states = parse("G21 G90", "G1 X0 Y10", "X10", "Y20", "G0 X60 Y50", "G1 X0 Y0", "G91 G1 X30 Y30");
+        List<State> pieces = Subdivider.subdivide(states, grid, TOLERANCE);
+
+        // Only the absolute diagonal G1 is split; rapids and incremental moves are not
+        assertEquals(states.subList(0, 5), pieces.subList(0, 5));
+        assertSame(states.get(6), pieces.get(pieces.size() - 1));
+        assertTrue(pieces.size() > states.size());
+    }
+}
@@ -0,0 +1,146 @@
+package cncleveler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Tests that WordFormatter writes the same text as String.format with trailing zeros trimmed.
+ */
+public class WordFormatterTest
+{
+    /**
+     * Formats a word the slow way: String.format, then trailing zeros and decimal point removed.
+     */
+    private static String expected(char letter, double value, int decimals)
+    {
+        String s = String.format(Locale.ROOT, "%c%." + decimals + "f", letter, value);
+        if (decimals > 0)
+        {
+            int end = s.length();
+            while (s.charAt(end - 1) == '0')
+                end--;
+            if (s.charAt(end - 1) == '.') end--;
+            s = s.substring(0, end);
+        }
+        return s;
+    }
+
+    /**
+     * Formats a word with WordFormatter, after some other bytes already in the buffer.
+     */
+    private static String write(char letter, double value, int decimals)
+    {
+        byte[] buf = new byte[3 + WordFormatter.MAX_WORD_LENGTH];
+        buf[0] = 'G';
+        buf[1] = '1';
+        buf[2] = ' ';
+        int end = WordFormatter.write(buf, 3, letter, value, decimals);
+        return new String(buf, 3, end - 3, StandardCharsets.US_ASCII);
+    }
+
+    private static void check(double value, int decimals)
+    {
+        assertEquals("formatting " + value, expected('X', value, decimals), write('X', value, decimals));
+    }
+
+    @Test
+    public void trimsTrailingZeros()
+    {
+        assertEquals("X1", write('X', 1.0, 3));
+        assertEquals("Y1.5", write('Y', 1.5, 3));
+        assertEquals("Z-0.125", write('Z', -0.125, 3));
+        assertEquals("F300", write('F', 300, 0));
+        assertEquals("X0", write('X', 0.0, 3));
+    }
+
+    @Test
+    public void roundsTiesUpLikeStringFormat()
+    {
+        // The nearest doubles are a little below the ties, but their shortest decimals are not
+        assertEquals("X0.001", write('X', 0.0005, 3));
+        assertEquals("X1.001", write('X', 1.0005, 3));
+        assertEquals("X-2.5", write('X', -2.45, 1));
+        check(0.0005, 3);
+        check(1.0005, 3);
+        check(2.675, 2);
+        check(-0.0015, 3);
+    }
+
+    @Test
+    public void keepsTheSignOfValuesThatRoundToZero()
+    {
+        assertEquals("X-0", write('X', -0.0004, 3));
+        assertEquals("X-0", write('X', -0.0, 3));
+        check(-0.0004, 3);
+        check(-0.0, 3);
+    }
+
+    @Test
+    public void writesLargeValuesAndNonNumbersThroughTheSlowPath()
+    {
+        assertEquals(-1, WordFormatter.round(1e12, 3));
+        assertEquals(-1, WordFormatter.round(Double.NaN, 3));
+        assertEquals(-1, WordFormatter.round(1.0, WordFormatter.MAX_DECIMALS + 1));
+        check(1e12, 3);
+        check(-123456789.0125, 4);
+        check(Double.MAX_VALUE, 3);
+        check(-Double.MAX_VALUE, WordFormatter.MAX_DECIMALS);
+        assertEquals("XNaN", write('X', Double.NaN, 3));
+        assertEquals("X-Infinity", write('X', Double.NEGATIVE_INFINITY, 3));
+    }
+
+    @Test
+    public void roundsToUnitsOfTheLastPlace()
+    {
+        assertEquals(1235, WordFormatter.round(1.2346, 3));
+        assertEquals(1234, WordFormatter.round(-1.2344, 3));
+        assertEquals(0, WordFormatter.round(-0.0004, 3));
+
+        // Values close to a tie go to the slow path rather than guess
+        assertEquals(-1, WordFormatter.round(0.0005, 3));
+    }
+
+    @Test
+    public void matchesStringFormatOnRandomValues()
+    {
+        Random random = new Random(5);
+        for (int n = 0; n < 200000; n++)
+        {
+            int decimals = random.nextInt(5);
+            double value;
+            switch (n % 4)
+            {
+            case 0:
+                // Ties and near ties at one more place than is kept
+                value = (random.nextInt(2000000) - 1000000) / Math.pow(10, decimals + 1);
+                break;
+            case 1:
+                value = (random.nextDouble() - 0.5) * 1000;
+                break;
+            case 2:
+                value = (random.nextDouble() - 0.5) * 1e-3;
+                break;
+            default:
+                value = (random.nextDouble() - 0.5) * 1e11;
+                break;
+            }
+            check(value, decimals);
+        }
+    }
+
+    @Test
+    public void returnsTheEndOfTheWord()
+    {
+        byte[] buf = new byte[2 * WordFormatter.MAX_WORD_LENGTH];
+        int end = WordFormatter.write(buf, 0, 'X', 12.5, 3);
+        end = WordFormatter.write(buf, end, 'Y', -3, 3);
+        assertEquals("X12.5Y-3", new String(buf, 0, end, StandardCharsets.US_ASCII));
+        assertTrue(end < buf.length);
+    }
+}
@@ -0,0 +1,418 @@
+( GENERATED BY CARBIDE COPPER )
+( MATERIAL SIZE )
+( X= 20.320, Y= 20.320, Z= 1.580 )
+( )
+G17
+G21
+G54
+G90
+( CONTOUR )
+G0 Z3
+M3 S1000
+G0 X11 Y19.022 Z2.996
+G1 F50 Z-0.004
+G1 F50 Z-0.104
+G1 F50 X11.122 Y17.504 Z-0.108
+X11.878 Y17.504 Z-0.112
+X11.878 Y19.022 Z-0.108
+X11.122 Y19.022 Z-0.105
+G0 Z2.995
+G0 X11.922 Y19.022 Z2.992
+G0 Z2.992
+G1 F50 Z-0.008
+G1 F50 Z-0.108
+G1 F50 X11.922 Y17.504 Z-0.112
+X12.678 Y17.504 Z-0.115
+X12.678 Y19.022 Z-0.112
+X11.922 Y19.022 Z-0.108
+G0 Z2.992
+G0 X9.522 Y19.022 Z3.002
+G0 Z3.002
+G1 F50 Z0.002
+G1 F50 Z-0.098
+G1 F50 X9.522 Y17.504 Z-0.102
+X10.278 Y17.504 Z-0.105
+X10.278 Y19.022 Z-0.101
+X9.522 Y19.022 Z-0.098
+G0 Z3.002
+G0 X10.322 Y19.022 Z2.999
+G0 Z2.999
+G1 F50 Z-0.001
+G1 F50 Z-0.101
+G1 F50 X10.322 Y17.504 Z-0.105
+X11.078 Y17.504 Z-0.108
+X11.078 Y19.022 Z-0.105
+X10.322 Y19.022 Z-0.101
+G0 Z2.999
+G0 X14.322 Y19.022 Z2.981
+G0 Z2.981
+G1 F50 Z-0.019
+G1 F50 Z-0.119
+G1 F50 X14.322 Y17.504 Z-0.122
+X15.078 Y17.504 Z-0.125
+X15.078 Y19.022 Z-0.122
+X14.322 Y19.022 Z-0.119
+G0 Z2.981
+G0 X15.122 Y19.022 Z2.978
+G0 Z2.978
+G1 F50 Z-0.022
+G1 F50 Z-0.122
+G1 F50 X15.122 Y17.504 Z-0.126
+X15.878 Y17.504 Z-0.129
+X15.878 Y19.022 Z-0.125
+X15.122 Y19.022 Z-0.122
+G0 Z2.978
+G0 X12.722 Y19.022 Z2.988
+G0 Z2.988
+G1 F50 Z-0.012
+G1 F50 Z-0.112
+G1 F50 X12.722 Y17.504 Z-0.115
+X13.478 Y17.504 Z-0.119
+X13.478 Y19.022 Z-0.115
+X12.722 Y19.022 Z-0.112
+G0 Z2.988
+G0 X13.522 Y19.022 Z2.985
+G0 Z2.985
+G1 F50 Z-0.015
+G1 F50 Z-0.115
+G1 F50 X13.522 Y17.504 Z-0.119
+X14.278 Y17.504 Z-0.122
+X14.278 Y19.022 Z-0.118
+X13.522 Y19.022 Z-0.115
+G0 Z2.985
+G0 X16.233 Y17.148 Z2.969
+G0 Z2.969
+G1 F50 Z-0.031
+G1 F50 Z-0.131
+G1 F50 X16.233 Y16.392 Z-0.133
+X17.752 Y16.392 Z-0.14
+X17.752 Y17.148 Z-0.138
+X16.233 Y17.148 Z-0.131
+G0 Z2.969
+G0 X7.648 Y17.148 Z3.006
+G0 Z3.006
+G1 F50 Z0.006
+G1 F50 Z-0.094
+G1 F50 X7.648 Y16.392 Z-0.096
+X9.167 Y16.392 Z-0.103
+X9.167 Y17.148 Z-0.101
+X7.648 Y17.148 Z-0.094
+G0 Z3.006
+G0 X16.233 Y16.348 Z2.967
+G0 Z2.967
+G1 F50 Z-0.033
+G1 F50 Z-0.133
+G1 F50 X16.233 Y15.592 Z-0.135
+X17.752 Y15.592 Z-0.141
+X17.752 Y16.348 Z-0.14
+X16.233 Y16.348 Z-0.133
+G0 Z2.967
+G0 X7.648 Y16.348 Z3.004
+G0 Z3.004
+G1 F50 Z0.004
+G1 F50 Z-0.096
+G1 F50 X7.648 Y15.592 Z-0.098
+X9.167 Y15.592 Z-0.104
+X9.167 Y16.348 Z-0.103
+X7.648 Y16.348 Z-0.096
+G0 Z3.004
+G0 X16.233 Y15.548 Z2.965
+G0 Z2.965
+G1 F50 Z-0.035
+G1 F50 Z-0.135
+G1 F50 X16.233 Y14.792 Z-0.137
+X17.752 Y14.792 Z-0.143
+X17.752 Y15.548 Z-0.141
+X16.233 Y15.548 Z-0.135
+G0 Z2.965
+G0 X7.648 Y15.548 Z3.002
+G0 Z3.002
+G1 F50 Z0.002
+G1 F50 Z-0.098
+G1 F50 X7.648 Y14.792 Z-0.1
+X9.167 Y14.792 Z-0.106
+X9.167 Y15.548 Z-0.104
+X7.648 Y15.548 Z-0.098
+G0 Z3.002
+G0 X1.866 Y15.444 Z3.027
+G0 Z3.027
+G1 F50 Z0.027
+G1 F50 Z-0.073
+G1 F50 X1.866 Y14.196 Z-0.076
+X3.214 Y14.196 Z-0.082
+X3.214 Y14.525 Z-0.081
+X4.055 Y14.532 Z-0.085
+X6.863 Y11.724 Z-0.103
+X6.916 Y11.686 Z-0.104
+X6.979 Y11.658 Z-0.104
+X7.046 Y11.644 Z-0.104
+X7.648 Y11.644 Z-0.107
+X7.648 Y11.592 Z-0.107
+X9.167 Y11.592 Z-0.114
+X9.167 Y12.348 Z-0.112
+X7.648 Y12.348 Z-0.105
+X7.648 Y12.296 Z-0.105
+X7.216 Y12.296 Z-0.103
+X4.408 Y15.105 Z-0.085
+X4.355 Y15.143 Z-0.085
+X4.292 Y15.171 Z-0.084
+X4.225 Y15.185 Z-0.084
+X3.214 Y15.185 Z-0.08
+X3.214 Y15.444 Z-0.079
+X1.866 Y15.444 Z-0.073
+G0 Z3.027
+G0 X16.233 Y14.748 Z2.963
+G0 Z2.963
+G1 F50 Z-0.037
+G1 F50 Z-0.137
+G1 F50 X16.233 Y13.992 Z-0.139
+X17.752 Y13.992 Z-0.145
+X17.752 Y14.748 Z-0.143
+X16.233 Y14.748 Z-0.137
+G0 Z2.963
+G0 X7.648 Y14.748 Z3
+G0 Z3
+G1 F50 Z0
+G1 F50 Z-0.1
+G1 F50 X7.648 Y13.992 Z-0.101
+X9.167 Y13.992 Z-0.108
+X9.167 Y14.748 Z-0.106
+X7.648 Y14.748 Z-0.1
+G0 Z3
+G0 X16.233 Y13.948 Z2.961
+G0 Z2.961
+G1 F50 Z-0.039
+G1 F50 Z-0.139
+G1 F50 X16.233 Y13.192 Z-0.14
+X17.752 Y13.192 Z-0.147
+X17.752 Y13.948 Z-0.145
+X16.233 Y13.948 Z-0.139
+G0 Z2.961
+G0 X7.648 Y13.948 Z2.998
+G0 Z2.998
+G1 F50 Z-0.002
+G1 F50 Z-0.102
+G1 F50 X7.648 Y13.192 Z-0.103
+X9.167 Y13.192 Z-0.11
+X9.167 Y13.948 Z-0.108
+X7.648 Y13.948 Z-0.102
+G0 Z2.998
+G0 X1.866 Y13.744 Z3.023
+G0 Z3.023
+G1 F50 Z0.023
+G1 F50 Z-0.077
+G1 F50 X1.866 Y12.496 Z-0.08
+X3.214 Y12.496 Z-0.086
+X3.214 Y12.794 Z-0.085
+X4.524 Y12.794 Z-0.091
+X6.393 Y10.924 Z-0.103
+X6.446 Y10.886 Z-0.103
+X6.509 Y10.858 Z-0.104
+X6.576 Y10.844 Z-0.104
+X7.648 Y10.844 Z-0.109
+X7.648 Y10.792 Z-0.109
+X9.167 Y10.792 Z-0.115
+X9.167 Y11.548 Z-0.114
+X7.648 Y11.548 Z-0.107
+X7.648 Y11.496 Z-0.107
+X6.746 Y11.496 Z-0.103
+X4.877 Y13.366 Z-0.091
+X4.824 Y13.404 Z-0.091
+X4.761 Y13.432 Z-0.09
+X4.694 Y13.446 Z-0.09
+X3.214 Y13.446 Z-0.084
+X3.214 Y13.744 Z-0.083
+X1.866 Y13.744 Z-0.077
+G0 Z3.023
+G0 X16.233 Y13.148 Z2.96
+G0 Z2.96
+G1 F50 Z-0.04
+G1 F50 Z-0.14
+G1 F50 X16.233 Y12.392 Z-0.142
+X17.752 Y12.392 Z-0.149
+X17.752 Y13.148 Z-0.147
+X16.233 Y13.148 Z-0.14
+G0 Z2.96
+G0 X7.648 Y13.148 Z2.997
+G0 Z2.997
+G1 F50 Z-0.003
+G1 F50 Z-0.103
+G1 F50 X7.648 Y12.392 Z-0.105
+X9.167 Y12.392 Z-0.112
+X9.167 Y13.148 Z-0.11
+X7.648 Y13.148 Z-0.103
+G0 Z2.997
+G0 X16.233 Y12.348 Z2.958
+G0 Z2.958
+G1 F50 Z-0.042
+G1 F50 Z-0.142
+G1 F50 X16.233 Y11.592 Z-0.144
+X17.752 Y11.592 Z-0.151
+X17.752 Y12.348 Z-0.149
+X16.233 Y12.348 Z-0.142
+G0 Z2.958
+G0 X16.233 Y11.548 Z2.956
+G0 Z2.956
+G1 F50 Z-0.044
+G1 F50 Z-0.144
+G1 F50 X16.233 Y10.792 Z-0.146
+X17.752 Y10.792 Z-0.153
+X17.752 Y11.548 Z-0.151
+X16.233 Y11.548 Z-0.144
+G0 Z2.956
+G0 X13.522 Y10.437 Z2.965
+G0 Z2.965
+G1 F50 Z-0.035
+G1 F50 Z-0.135
+G1 F50 X13.522 Y8.918 Z-0.139
+X14.278 Y8.918 Z-0.142
+X14.278 Y10.437 Z-0.138
+X13.522 Y10.437 Z-0.135
+G0 Z2.965
+G0 X12.722 Y10.437 Z2.968
+G0 Z2.968
+G1 F50 Z-0.032
+G1 F50 Z-0.132
+G1 F50 X12.722 Y8.918 Z-0.135
+X12.773 Y8.918 Z-0.135
+X12.773 Y8.484 Z-0.136
+X12.779 Y8.422 Z-0.136
+X12.8 Y8.357 Z-0.137
+X12.835 Y8.297 Z-0.137
+X12.874 Y8.254 Z-0.137
+X13.389 Y7.739 Z-0.141
+X13.389 Y7.174 Z-0.142
+X13.026 Y7.174 Z-0.14
+X13.026 Y5.526 Z-0.144
+X14.374 Y5.526 Z-0.15
+X14.374 Y7.174 Z-0.146
+X14.043 Y7.174 Z-0.145
+X14.043 Y7.881 Z-0.143
+X14.037 Y7.942 Z-0.143
+X14.016 Y8.007 Z-0.143
+X13.981 Y8.067 Z-0.142
+X13.942 Y8.11 Z-0.142
+X13.427 Y8.625 Z-0.139
+X13.427 Y8.918 Z-0.138
+X13.478 Y8.918 Z-0.138
+X13.478 Y10.437 Z-0.135
+X12.722 Y10.437 Z-0.132
+G0 Z2.968
+G0 X15.122 Y10.437 Z2.958
+G0 Z2.958
+G1 F50 Z-0.042
+G1 F50 Z-0.142
+G1 F50 X15.122 Y8.918 Z-0.145
+X15.878 Y8.918 Z-0.149
+X15.878 Y10.437 Z-0.145
+X15.122 Y10.437 Z-0.142
+G0 Z2.958
+G0 X14.322 Y10.437 Z2.961
+G0 Z2.961
+G1 F50 Z-0.039
+G1 F50 Z-0.139
+G1 F50 X14.322 Y8.918 Z-0.142
+X15.078 Y8.918 Z-0.145
+X15.078 Y10.437 Z-0.142
+X14.322 Y10.437 Z-0.139
+G0 Z2.961
+G0 X10.322 Y10.437 Z2.979
+G0 Z2.979
+G1 F50 Z-0.021
+G1 F50 Z-0.121
+G1 F50 X10.322 Y8.918 Z-0.125
+X11.078 Y8.918 Z-0.128
+X11.078 Y10.437 Z-0.124
+X10.322 Y10.437 Z-0.121
+G0 Z2.979
+G0 X9.522 Y10.437 Z2.982
+G0 Z2.982
+G1 F50 Z-0.018
+G1 F50 Z-0.118
+G1 F50 X9.522 Y8.918 Z-0.121
+X10.278 Y8.918 Z-0.124
+X10.278 Y10.437 Z-0.121
+X9.522 Y10.437 Z-0.118
+G0 Z2.982
+G0 X11.922 Y10.437 Z2.972
+G0 Z2.972
+G1 F50 Z-0.028
+G1 F50 Z-0.128
+G1 F50 X11.922 Y8.918 Z-0.132
+X11.973 Y8.918 Z-0.132
+X11.973 Y8.625 Z-0.133
+X11.458 Y8.111 Z-0.131
+X11.419 Y8.067 Z-0.131
+X11.384 Y8.007 Z-0.131
+X11.363 Y7.942 Z-0.131
+X11.357 Y7.881 Z-0.132
+X11.357 Y7.174 Z-0.133
+X11.026 Y7.174 Z-0.132
+X11.026 Y5.526 Z-0.136
+X12.374 Y5.526 Z-0.141
+X12.374 Y7.174 Z-0.138
+X12.011 Y7.174 Z-0.136
+X12.011 Y7.739 Z-0.135
+X12.526 Y8.254 Z-0.136
+X12.565 Y8.297 Z-0.136
+X12.6 Y8.357 Z-0.136
+X12.621 Y8.422 Z-0.136
+X12.627 Y8.484 Z-0.136
+X12.627 Y8.918 Z-0.135
+X12.678 Y8.918 Z-0.135
+X12.678 Y10.437 Z-0.131
+X11.922 Y10.437 Z-0.128
+G0 Z2.972
+G0 X11.122 Y10.437 Z2.975
+G0 Z2.975
+G1 F50 Z-0.025
+G1 F50 Z-0.125
+G1 F50 X11.122 Y8.918 Z-0.128
+X11.878 Y8.918 Z-0.131
+X11.878 Y10.437 Z-0.128
+X11.122 Y10.437 Z-0.125
+G0 Z2.975
+G0 X4.695 Y8.741 Z2.999
+G0 Z2.999
+G1 F50 Z-0.001
+G1 F50 Z-0.101
+G1 F50 X3.943 Y8.581 Z-0.098
+X3.24 Y8.268 Z-0.095
+X2.617 Y7.815 Z-0.094
+X2.102 Y7.244 Z-0.093
+X1.717 Y6.577 Z-0.093
+X1.48 Y5.845 Z-0.093
+X1.399 Y5.08 Z-0.095
+X1.48 Y4.315 Z-0.097
+X1.717 Y3.583 Z-0.099
+X2.102 Y2.917 Z-0.103
+X2.617 Y2.345 Z-0.106
+X3.24 Y1.892 Z-0.11
+X3.943 Y1.579 Z-0.114
+X4.695 Y1.419 Z-0.117
+X5.465 Y1.419 Z-0.121
+X6.217 Y1.579 Z-0.124
+X6.92 Y1.892 Z-0.126
+X7.543 Y2.345 Z-0.128
+X8.058 Y2.917 Z-0.129
+X8.443 Y3.583 Z-0.129
+X8.68 Y4.315 Z-0.128
+X8.761 Y5.08 Z-0.127
+X8.68 Y5.845 Z-0.125
+X8.443 Y6.577 Z-0.122
+X8.058 Y7.244 Z-0.119
+X7.543 Y7.815 Z-0.115
+X6.92 Y8.268 Z-0.111
+X6.217 Y8.581 Z-0.108
+X5.465 Y8.741 Z-0.104
+X4.695 Y8.741 Z-0.101
+G0 Z2.999
+( DRILLING )
+G0 X5.08 Y5.08 Z2.989
+G0 Z2.989
+G1 F50 Z-0.111
+G0 Z2.989
+G0 X20 Y0 Z2.913
+M5
+M30
+